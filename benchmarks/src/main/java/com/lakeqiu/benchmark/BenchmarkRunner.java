@@ -0,0 +1,44 @@
+package com.lakeqiu.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * 压测入口，在JMH默认的基础上加上GC profiler，并把结果写成JSON，方便和上一次的结果比较
+ * 其余参数与JMH命令行相同，比如只测NIO的小消息：
+ * java -jar benchmarks.jar -p transport=NIO -p messageSize=16 -rff nio.json
+ * 不指定要跑的压测时只跑ChatServerBenchmark，其他压测要写上类名，比如：java -jar benchmarks.jar RoomRoutingBenchmark
+ * @author lakeqiu
+ */
+public class BenchmarkRunner {
+    /**
+     * 默认的结果文件
+     */
+    private final static String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.parent(commandLine);
+        if (commandLine.getIncludes().isEmpty()) {
+            builder.include(ChatServerBenchmark.class.getSimpleName());
+        }
+        if (!commandLine.getResult().hasValue()) {
+            builder.result(DEFAULT_RESULT_FILE);
+        }
+        if (!commandLine.getResultFormat().hasValue()) {
+            builder.resultFormat(ResultFormatType.JSON);
+        }
+        if (commandLine.getProfilers().isEmpty()) {
+            builder.addProfiler(GCProfiler.class);
+        }
+        Options options = builder.build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,237 @@
+package com.lakeqiu.benchmark;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 进程内的广播压测客户端
+ * 一个发送方加若干接收方，接收方平均分给几个读线程，每个读线程一个selector，只数换行符，不解析内容
+ * 服务器都会原样转发换行符（NIO、BIO加上"端口:"前缀，AIO不分帧），所以数换行符就能知道每个接收方收到了几条
+ * @author lakeqiu
+ */
+class BroadcastLoadGenerator implements Closeable {
+    /**
+     * 1、读线程的读缓冲区长度
+     * 2、等待服务器把所有连接注册好的最长时间
+     * 3、一次广播等待送达的最长时间，超过说明消息丢了
+     */
+    private final static int READ_BUFFER_LENGTH = 64 * 1024;
+    private final static long WARM_UP_TIMEOUT_MILLIS = 60_000;
+    private final static long DELIVERY_TIMEOUT_MILLIS = 30_000;
+
+    /**
+     * 1、接收方数量
+     * 2、发送方，阻塞模式
+     * 3、接收方
+     * 4、每个接收方收到的行数，下标与receivers相同
+     * 5、所有接收方一共收到的行数
+     * 6、读线程
+     * 7、每次发送的消息，包含结尾的换行符
+     * 8、是否已经关闭
+     */
+    private final int receiverCount;
+    private final SocketChannel sender;
+    private final List<SocketChannel> receivers;
+    private final AtomicLong[] receivedLines;
+    private final AtomicLong delivered = new AtomicLong();
+    private final List<Reader> readers = new ArrayList<>();
+    private final ByteBuffer message;
+    private volatile boolean closed;
+
+    /**
+     * @param port 服务器端口
+     * @param receiverCount 接收方数量
+     * @param messageSize 消息体的字节数，不含换行符
+     * @param readerThreads 读线程数
+     */
+    BroadcastLoadGenerator(int port, int receiverCount, int messageSize, int readerThreads) throws IOException {
+        this.receiverCount = receiverCount;
+        this.receivers = new ArrayList<>(receiverCount);
+        this.receivedLines = new AtomicLong[receiverCount];
+        this.message = newMessage(messageSize);
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+        for (int i = 0; i < readerThreads; i++) {
+            readers.add(new Reader(i));
+        }
+        for (int i = 0; i < receiverCount; i++) {
+            SocketChannel channel = SocketChannel.open(address);
+            channel.configureBlocking(false);
+            receivedLines[i] = new AtomicLong();
+            receivers.add(channel);
+            readers.get(i % readerThreads).add(channel, i);
+        }
+        for (Reader reader : readers) {
+            reader.start();
+        }
+        this.sender = SocketChannel.open(address);
+        this.sender.socket().setTcpNoDelay(true);
+    }
+
+    private static ByteBuffer newMessage(int size) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size + 1);
+        for (int i = 0; i < size; i++) {
+            buffer.put((byte) ('a' + i % 26));
+        }
+        buffer.put((byte) '\n');
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * 服务器注册连接是异步的，刚连上时发的消息不一定每个接收方都能收到
+     * 反复发探测消息，直到每个接收方都至少收到一条，说明全部注册好了
+     */
+    void awaitReady() throws IOException, InterruptedException, TimeoutException {
+        long deadline = System.currentTimeMillis() + WARM_UP_TIMEOUT_MILLIS;
+        while (!allReceived()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new TimeoutException("服务器没有在规定时间内注册所有连接");
+            }
+            send();
+            Thread.sleep(100);
+        }
+        // 等还在路上的探测消息都到齐
+        long last;
+        do {
+            last = delivered.get();
+            Thread.sleep(200);
+        } while (delivered.get() != last);
+    }
+
+    private boolean allReceived() {
+        for (AtomicLong lines : receivedLines) {
+            if (lines.get() == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 发一条消息，等所有接收方都收到
+     */
+    void broadcast() throws IOException, TimeoutException {
+        long target = delivered.get() + receiverCount;
+        send();
+        long deadline = System.nanoTime() + DELIVERY_TIMEOUT_MILLIS * 1_000_000;
+        while (delivered.get() < target) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new TimeoutException("广播没有送达所有接收方，收到 "
+                        + (receiverCount - (target - delivered.get())) + "/" + receiverCount);
+            }
+            Thread.yield();
+        }
+    }
+
+    private void send() throws IOException {
+        ByteBuffer buffer = message.duplicate();
+        while (buffer.hasRemaining()) {
+            sender.write(buffer);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        for (Reader reader : readers) {
+            reader.selector.wakeup();
+        }
+        sender.close();
+        for (SocketChannel receiver : receivers) {
+            receiver.close();
+        }
+    }
+
+    /**
+     * 读线程，负责一部分接收方
+     */
+    private class Reader extends Thread {
+        private final Selector selector;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_LENGTH);
+
+        Reader(int index) throws IOException {
+            super("benchmark-reader-" + index);
+            setDaemon(true);
+            this.selector = Selector.open();
+        }
+
+        void add(SocketChannel channel, int index) throws IOException {
+            channel.register(selector, SelectionKey.OP_READ, index);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    selector.select();
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        read(key);
+                    }
+                }
+                selector.close();
+            } catch (IOException e) {
+                if (!closed) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void read(SelectionKey key) throws IOException {
+            buffer.clear();
+            int length = ((SocketChannel) key.channel()).read(buffer);
+            if (length < 0) {
+                key.cancel();
+                return;
+            }
+            int lines = 0;
+            for (int i = 0; i < length; i++) {
+                if (buffer.get(i) == '\n') {
+                    lines++;
+                }
+            }
+            if (lines > 0) {
+                receivedLines[(Integer) key.attachment()].addAndGet(lines);
+                delivered.addAndGet(lines);
+            }
+        }
+    }
+
+    /**
+     * @return 一个当前空闲的端口
+     */
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * 等服务器开始监听，连上就马上关掉，ChatServerBenchmark和ThreadModelBenchmark共用
+     */
+    static void awaitListening(int port) throws InterruptedException, TimeoutException {
+        for (int i = 0; i < 200; i++) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new TimeoutException("服务器没有启动");
+    }
+}
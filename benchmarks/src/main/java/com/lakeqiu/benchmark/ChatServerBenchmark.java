@@ -0,0 +1,79 @@
+package com.lakeqiu.benchmark;
+
+import com.lakeqiu.common.lifecycle.Lifecycle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 广播压测：一个发送方发一条消息，等所有接收方都收到算一次操作
+ * Throughput模式得到每秒广播次数，乘以接收方数量就是每秒送达的消息数；
+ * SampleTime模式得到一次广播完全送达的p50、p99、p999延迟；
+ * 加上GC profiler（BenchmarkRunner默认加上）的gc.alloc.rate.norm是每次广播整个进程（包括服务器）分配的字节数，
+ * 除以接收方数量就是每条消息的分配量
+ * 服务器和客户端在同一个JVM里，连接数为clients + 1，clients较大时需要调高ulimit -n
+ * 服务器转发消息时不打印，只在建立连接时打印，都在Setup里，不计入测量；关闭时的统计照常输出
+ * @author lakeqiu
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChatServerBenchmark {
+    private final static long SHUTDOWN_SECONDS = 5;
+
+    @Param({"BIO", "BIO_POOL", "NIO", "AIO"})
+    public Transport transport;
+
+    /**
+     * 接收方数量
+     */
+    @Param({"1", "100", "1000", "10000"})
+    public int clients;
+
+    /**
+     * 消息体字节数
+     */
+    @Param({"16", "256", "4096", "65536"})
+    public int messageSize;
+
+    private BroadcastLoadGenerator generator;
+    private Lifecycle server;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException, TimeoutException {
+        int port = BroadcastLoadGenerator.freePort();
+        server = transport.start(port, clients + 1);
+        BroadcastLoadGenerator.awaitListening(port);
+        int readerThreads = Math.max(1, Math.min(clients, Runtime.getRuntime().availableProcessors() / 2));
+        generator = new BroadcastLoadGenerator(port, clients, messageSize, readerThreads);
+        generator.awaitReady();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        generator.close();
+        server.stop(SHUTDOWN_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public void broadcast() throws IOException, TimeoutException {
+        generator.broadcast();
+    }
+}
@@ -0,0 +1,123 @@
+package com.lakeqiu.benchmark;
+
+import com.lakeqiu.common.session.RoomRegistry;
+import com.lakeqiu.common.session.Session;
+import com.lakeqiu.common.session.SessionRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 消息路由的代价：每条消息要找出哪些会话是接收方
+ * broadcastAll是加房间之前的做法，遍历所有会话，代价与总连接数成正比；
+ * roomFanout只遍历发送者所在房间的成员，代价与房间大小成正比
+ * 默认10000个会话平均分到1000个房间，每个房间10人，两者相差约三个数量级；rooms=1时所有人在同一个房间，两者应该差不多
+ * 只测路由本身，不经过网络，运行：java -jar benchmarks.jar RoomRoutingBenchmark
+ * @author lakeqiu
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoomRoutingBenchmark {
+    /**
+     * 会话总数
+     */
+    @Param({"10000"})
+    public int clients;
+
+    /**
+     * 房间数，会话按编号轮流分到各个房间
+     */
+    @Param({"1", "1000"})
+    public int rooms;
+
+    private SessionRegistry<Member> registry;
+    private RoomRegistry<Member> roomRegistry;
+    private Member[] members;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        registry = new SessionRegistry<>();
+        roomRegistry = new RoomRegistry<>();
+        members = new Member[clients];
+        for (int i = 0; i < clients; i++) {
+            members[i] = new Member(registry.nextId());
+            registry.register(members[i]);
+            roomRegistry.join(members[i], "room-" + (i % rooms));
+        }
+    }
+
+    /**
+     * 每次换一个发送者，免得总是命中同一个房间
+     */
+    private Member nextSender() {
+        Member sender = members[next];
+        next = next + 1 == members.length ? 0 : next + 1;
+        return sender;
+    }
+
+    @Benchmark
+    public int broadcastAll(Blackhole blackhole) {
+        Member sender = nextSender();
+        int recipients = 0;
+        for (Member member : registry.sessions()) {
+            if (member.id() != sender.id()) {
+                blackhole.consume(member);
+                recipients++;
+            }
+        }
+        return recipients;
+    }
+
+    @Benchmark
+    public int roomFanout(Blackhole blackhole) {
+        Member sender = nextSender();
+        int recipients = 0;
+        for (Member member : roomRegistry.members(roomRegistry.roomOf(sender))) {
+            if (member.id() != sender.id()) {
+                blackhole.consume(member);
+                recipients++;
+            }
+        }
+        return recipients;
+    }
+
+    /**
+     * 加入一个房间再回到原来的房间，衡量/join的代价
+     */
+    @Benchmark
+    public String joinAndReturn() {
+        Member member = nextSender();
+        String room = roomRegistry.join(member, "room-" + rooms);
+        return roomRegistry.join(member, room);
+    }
+
+    private static class Member implements Session {
+        private final long id;
+
+        Member(long id) {
+            this.id = id;
+        }
+
+        @Override
+        public long id() {
+            return id;
+        }
+    }
+}
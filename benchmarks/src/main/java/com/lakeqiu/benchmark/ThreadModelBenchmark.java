@@ -0,0 +1,215 @@
+package com.lakeqiu.benchmark;
+
+import com.lakeqiu.bio.server.ThreadMode;
+import com.lakeqiu.common.lifecycle.Lifecycle;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 比较BIO服务器三种线程模型的连接开销：
+ * 平台线程（bio，一个连接一个线程）、线程池（bioPool）、虚拟线程（bio，需要JDK 21）
+ * 每种模型在单独的子JVM里运行，互不影响：先建立N个空闲连接，记录建连耗时、线程数、堆和RSS，
+ * 然后让第一个连接发一条消息，记录多少个连接收到了广播以及耗时
+ * 用法：java -cp benchmarks/target/benchmarks.jar com.lakeqiu.benchmark.ThreadModelBenchmark [连接数] [模式...]
+ * 模式为PLATFORM、POOLED、VIRTUAL，默认全部；连接数较大时注意调高ulimit -n
+ * @author lakeqiu
+ */
+public class ThreadModelBenchmark {
+    /**
+     * 1、默认连接数
+     * 2、子JVM里服务器监听的端口
+     * 3、等待广播送达的最长时间
+     * 4、子JVM输出结果时的行前缀，用来和其他输出区分开
+     */
+    private final static int DEFAULT_CONNECTIONS = 2000;
+    private final static int BENCH_PORT = 18090;
+    private final static long BROADCAST_TIMEOUT_MILLIS = 10_000;
+    private final static String RESULT_PREFIX = "RESULT ";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "--child".equals(args[0])) {
+            runChild(args[1], Integer.parseInt(args[2]));
+            return;
+        }
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CONNECTIONS;
+        List<String> modes = args.length > 1 ? Arrays.asList(args).subList(1, args.length)
+                : Arrays.asList("PLATFORM", "POOLED", "VIRTUAL");
+        System.out.printf("%-9s %8s %10s %8s %9s %9s %12s %12s%n",
+                "mode", "conns", "connectMs", "threads", "heapMB", "rssMB", "delivered", "broadcastMs");
+        for (String mode : modes) {
+            System.out.println(fork(mode.toUpperCase(), connections));
+        }
+    }
+
+    /**
+     * 启动子JVM跑一种模式，返回它的结果行
+     */
+    private static String fork(String mode, int connections) throws IOException, InterruptedException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                ThreadModelBenchmark.class.getName(), "--child", mode, String.valueOf(connections));
+        builder.redirectErrorStream(true);
+        Process process = builder.start();
+        String result = null;
+        String lastLine = null;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(RESULT_PREFIX)) {
+                    result = line.substring(RESULT_PREFIX.length());
+                } else {
+                    lastLine = line;
+                }
+            }
+        }
+        process.waitFor();
+        return result != null ? result : String.format("%-9s 失败：%s", mode, lastLine);
+    }
+
+    private static void runChild(String mode, int connections) throws Exception {
+        PrintStream out = System.out;
+        // 服务器每个连接都会打印日志，压测时全部丢掉
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        try {
+            startServer(mode);
+        } catch (UnsupportedOperationException e) {
+            out.println(RESULT_PREFIX + String.format("%-9s 不支持：%s", mode, e.getMessage()));
+            return;
+        }
+        BroadcastLoadGenerator.awaitListening(BENCH_PORT);
+
+        Selector selector = Selector.open();
+        List<SocketChannel> channels = new ArrayList<>(connections);
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            try {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", BENCH_PORT));
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, new int[1]);
+                channels.add(channel);
+            } catch (IOException e) {
+                // 服务器已经不再接收连接（比如线程池拒绝后退出），记下建立成功的数量
+                break;
+            }
+        }
+        long connectMillis = (System.nanoTime() - start) / 1_000_000;
+        // 等服务器把连接都交给handler线程
+        Thread.sleep(1000);
+        System.gc();
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        long heapMb = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() >> 20;
+
+        int expected = channels.size() - 1;
+        int delivered = 0;
+        start = System.nanoTime();
+        if (expected >= 0) {
+            channels.get(0).write(StandardCharsets.UTF_8.encode("ping\n"));
+            delivered = awaitBroadcast(selector, expected);
+        }
+        long broadcastMillis = (System.nanoTime() - start) / 1_000_000;
+
+        out.println(RESULT_PREFIX + String.format("%-9s %8d %10d %8d %9d %9s %12s %12d",
+                mode, channels.size(), connectMillis, threads, heapMb, rssMb(),
+                delivered + "/" + Math.max(expected, 0), broadcastMillis));
+        out.flush();
+        System.exit(0);
+    }
+
+    /**
+     * start不会阻塞，服务器在自己的线程里接收连接，子JVM跑完后直接System.exit
+     */
+    private static void startServer(String mode) throws IOException {
+        Lifecycle server;
+        if ("POOLED".equals(mode)) {
+            server = new com.lakeqiu.bioPool.server.ChatServer(BENCH_PORT);
+        } else {
+            server = new com.lakeqiu.bio.server.ChatServer(BENCH_PORT, ThreadMode.valueOf(mode));
+        }
+        server.start();
+    }
+
+    /**
+     * 等每个连接都收到一行广播，第一个连接是发送方，不会收到
+     * @return 收到广播的连接数
+     */
+    private static int awaitBroadcast(Selector selector, int expected) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        long deadline = System.currentTimeMillis() + BROADCAST_TIMEOUT_MILLIS;
+        int delivered = 0;
+        while (delivered < expected) {
+            long timeout = deadline - System.currentTimeMillis();
+            if (timeout <= 0) {
+                break;
+            }
+            selector.select(timeout);
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                buffer.clear();
+                int length;
+                try {
+                    length = ((SocketChannel) key.channel()).read(buffer);
+                } catch (IOException e) {
+                    // 服务器关闭了连接，比如线程池拒绝后退出
+                    length = -1;
+                }
+                if (length < 0) {
+                    key.cancel();
+                    continue;
+                }
+                int[] lines = (int[]) key.attachment();
+                for (int i = 0; i < length; i++) {
+                    if (buffer.get(i) == '\n' && lines[0]++ == 0) {
+                        delivered++;
+                    }
+                }
+            }
+        }
+        return delivered;
+    }
+
+    /**
+     * @return 进程常驻内存，只在Linux上能拿到
+     */
+    private static String rssMb() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    long kb = Long.parseLong(line.replaceAll("[^0-9]", ""));
+                    return String.valueOf(kb >> 10);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // 不是Linux
+        }
+        return "-";
+    }
+}
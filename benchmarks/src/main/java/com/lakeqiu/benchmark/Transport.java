@@ -0,0 +1,67 @@
+package com.lakeqiu.benchmark;
+
+import com.lakeqiu.bio.server.ThreadMode;
+import com.lakeqiu.bioPool.server.QueueType;
+import com.lakeqiu.common.lifecycle.Lifecycle;
+
+import java.io.IOException;
+
+/**
+ * 被压测的四种服务器
+ * 服务器的start不会阻塞，压测结束时由TearDown关闭
+ * @author lakeqiu
+ */
+public enum Transport {
+    /**
+     * 一个连接一个线程
+     */
+    BIO {
+        @Override
+        Lifecycle newServer(int port, int clients) {
+            return new com.lakeqiu.bio.server.ChatServer(port, ThreadMode.PLATFORM);
+        }
+    },
+    /**
+     * 线程池，线程数放大到连接数，否则多出来的连接会被拒绝，测不出结果
+     */
+    BIO_POOL {
+        @Override
+        Lifecycle newServer(int port, int clients) {
+            com.lakeqiu.bioPool.server.ChatServer server = new com.lakeqiu.bioPool.server.ChatServer(port);
+            server.setPoolSize(clients, clients);
+            server.setQueue(QueueType.SYNCHRONOUS, 0);
+            return server;
+        }
+    },
+    /**
+     * 主从Reactor
+     */
+    NIO {
+        @Override
+        Lifecycle newServer(int port, int clients) {
+            return new com.lakeqiu.nio.chatroom.server.ChatServer(port);
+        }
+    },
+    /**
+     * AsynchronousChannelGroup
+     */
+    AIO {
+        @Override
+        Lifecycle newServer(int port, int clients) {
+            return new com.lakeqiu.aio.chatroom.server.ChatServer(port);
+        }
+    };
+
+    /**
+     * @param port 监听端口
+     * @param clients 压测时的连接总数
+     * @return 还没有启动的服务器
+     */
+    abstract Lifecycle newServer(int port, int clients);
+
+    Lifecycle start(int port, int clients) throws IOException {
+        Lifecycle server = newServer(port, clients);
+        server.start();
+        return server;
+    }
+}
@@ -1,67 +1,532 @@
 package com.lakeqiu.aio.base;
 
+import com.lakeqiu.common.buffer.BufferPool;
+import com.lakeqiu.common.buffer.PooledBuffer;
+import com.lakeqiu.common.protocol.ChatProtocol;
+import com.lakeqiu.common.protocol.Opcode;
+
 import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousSocketChannel;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
+ * 异步的聊天客户端，连接、读、写都由CompletionHandler串起来，不调用Future.get()阻塞线程
+ * 读和写是两条独立的链：读链一直读，按协议切帧交给回调，处理完接着发起下一次读；
+ * 写链从写队列取出一批帧用gathering write写出去，写完在回调里接着写下一批
+ * AsynchronousSocketChannel同一时间只允许有一个读和一个写，所以send只管放进写队列，可以在任何线程并发调用
+ * 多个客户端共用一个AsynchronousChannelGroup，几个线程就能模拟成千上万个用户
  * @author lakeqiu
  */
 public class ChatClient {
     private final static String DEFAULT_SERVER_HOST = "127.0.0.1";
     private final static Integer DEFAULT_SERVER_PORT = 8090;
-    private AsynchronousSocketChannel socketChannel;
+    private final static String QUIT = "quit";
+    private final static int MAX_FRAME_LENGTH = 1024 * 1024;
+    /**
+     * 1、读缓冲区的初始长度，凑不够一帧时翻倍扩容
+     * 2、一次gathering write最多带几帧
+     */
+    private final static int BUFFER_LENGTH = 1024;
+    private final static int MAX_WRITE_BATCH = 16;
+
+    /**
+     * 1、服务器地址
+     * 2、通道所属的group，为null时用JVM默认的
+     * 3、线上协议和编码，要与服务器一致
+     * 4、收到消息时的回调
+     * 5、与服务器的通道，connect之后才有
+     * 6、读缓冲区，同时也是累积缓冲区，只由读链使用和释放
+     * 7、写队列，以及已经写出去、还在等PONG的ping
+     * 8、是否有写操作正在进行、是否已经关闭
+     * 9、连接成功时完成
+     * 10、读写完成后的回调，所有读、所有写各共用一个
+     * 11、是否已经发起过连接，发起之后读缓冲区由读链释放，之前由close释放
+     */
+    private final String host;
+    private final int port;
+    private final AsynchronousChannelGroup group;
+    private ChatProtocol protocol = ChatProtocol.fromProperty(MAX_FRAME_LENGTH);
+    private Charset charset = StandardCharsets.UTF_8;
+    private Listener listener = Listener.CONSOLE;
+    private AsynchronousSocketChannel channel;
+    private PooledBuffer readBuffer;
+    private final Queue<PendingWrite> writeQueue = new ConcurrentLinkedQueue<>();
+    private final Queue<PendingWrite> pings = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final CompletableFuture<Void> connected = new CompletableFuture<>();
+    private final ReadHandler readHandler = new ReadHandler();
+    private final WriteHandler writeHandler = new WriteHandler();
+    private boolean connecting;
+
+    public ChatClient() {
+        this(DEFAULT_SERVER_HOST, DEFAULT_SERVER_PORT, null);
+    }
 
-    private void start() {
+    /**
+     * @param group 模拟很多用户时共用一个group，为null时用JVM默认的
+     */
+    public ChatClient(String host, int port, AsynchronousChannelGroup group) {
+        this.host = host;
+        this.port = port;
+        this.group = group;
+        this.readBuffer = BufferPool.DEFAULT.acquire(BUFFER_LENGTH);
+    }
+
+    /**
+     * 设置线上协议，需要在connect之前调用，要与服务器一致
+     */
+    public void setProtocol(ChatProtocol protocol) {
+        this.protocol = protocol;
+    }
+
+    /**
+     * 设置收到消息时的回调，需要在connect之前调用，默认打印到控制台
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 发起连接，不会阻塞，连上后开始读链，连上之前send的消息也开始写
+     * @return 连接成功时完成
+     */
+    public synchronized CompletableFuture<Void> connect() {
+        if (connecting) {
+            throw new IllegalStateException("客户端已经连接");
+        }
+        if (closed.get()) {
+            return connected;
+        }
         try {
-            socketChannel = AsynchronousSocketChannel.open();
-            // 这里是用get方式
-            Future<Void> future = socketChannel.connect(new InetSocketAddress(DEFAULT_SERVER_HOST, DEFAULT_SERVER_PORT));
-            future.get();
-            System.out.println("客户端已经连接服务器");
-            BufferedReader consoleReader = new BufferedReader(new InputStreamReader(System.in));
-
-            while (true) {
-                // 从控制套获取信息并发送给服务器
-                String msg = consoleReader.readLine();
-                byte[] msgBytes = msg.getBytes();
-                ByteBuffer buffer = ByteBuffer.wrap(msgBytes);
-                // 注意要等到其发送完给服务器
-                Future<Integer> writeFuture = socketChannel.write(buffer);
-                writeFuture.get();
-
-                // 等待服务器返回的消息并打印在屏幕上
-                buffer.flip();
-                Future<Integer> readFuture = socketChannel.read(buffer);
-                readFuture.get();
-                String returnMsg = new String(buffer.array());
-                System.out.println(returnMsg);
-                buffer.clear();
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            close();
-        }
-    }
-
-    private void close() {
-        if (socketChannel != null) {
+            channel = AsynchronousSocketChannel.open(group);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        } catch (IOException e) {
+            close(e);
+            return connected;
+        }
+        connecting = true;
+        channel.connect(new InetSocketAddress(host, port), null, new CompletionHandler<Void, Void>() {
+            @Override
+            public void completed(Void result, Void attachment) {
+                connected.complete(null);
+                channel.read(readBuffer.buffer(), null, readHandler);
+                // 连上之前放进写队列的消息
+                if (writing.compareAndSet(false, true)) {
+                    writeNext();
+                }
+            }
+
+            @Override
+            public void failed(Throwable exc, Void attachment) {
+                readBuffer.release();
+                close(exc);
+            }
+        });
+        return connected;
+    }
+
+    public boolean isOpen() {
+        return !closed.get();
+    }
+
+    /**
+     * 发送一条消息，可以在任何线程调用，不会阻塞
+     * @return 消息写出去时完成，连接断开时异常完成
+     */
+    public CompletableFuture<Void> send(String msg) {
+        PendingWrite pending = new PendingWrite(protocol.encode(Opcode.ofInput(msg), 0, charset.encode(msg)), null);
+        enqueue(pending);
+        return pending.written;
+    }
+
+    /**
+     * 发一个PING，服务器按顺序处理同一个连接的帧，收到PONG说明之前发的消息都已经处理完了
+     * @return 收到PONG时完成，值是从调用到收到PONG的纳秒数
+     */
+    public CompletableFuture<Long> ping() {
+        CompletableFuture<Long> pong = new CompletableFuture<>();
+        enqueue(new PendingWrite(protocol.encode(Opcode.PING), pong));
+        return pong;
+    }
+
+    /**
+     * 发送退出口令，写出去后关闭连接
+     */
+    public CompletableFuture<Void> quit() {
+        CompletableFuture<Void> future = send(QUIT);
+        future.whenComplete((ignored, e) -> close());
+        return future;
+    }
+
+    /**
+     * 关闭连接，写队列中还没写出去的消息都异常完成，重复调用时什么也不做
+     */
+    public void close() {
+        close(new ClosedChannelException());
+    }
+
+    private void close(Throwable cause) {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        synchronized (this) {
+            if (!connecting) {
+                // 没有发起过连接，读链不会开始，由这里释放读缓冲区
+                readBuffer.release();
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        // 正在进行中的那一批由WriteHandler的failed负责
+        failAll(writeQueue, cause);
+        failAll(pings, cause);
+        connected.completeExceptionally(cause);
+        listener.onClosed(cause);
+    }
+
+    private static void failAll(Queue<PendingWrite> queue, Throwable cause) {
+        PendingWrite pending;
+        while ((pending = queue.poll()) != null) {
+            pending.fail(cause);
+        }
+    }
+
+    /**
+     * 把一帧放进写队列，没有正在进行的写并且已经连上时由这个线程发起写
+     */
+    private void enqueue(PendingWrite pending) {
+        if (closed.get()) {
+            pending.fail(new ClosedChannelException());
+            return;
+        }
+        writeQueue.offer(pending);
+        // 放进去的同时连接被关闭了，close可能已经清理过队列，这里再清理一次
+        if (closed.get()) {
+            failAll(writeQueue, new ClosedChannelException());
+            return;
+        }
+        if (connected.isDone() && writing.compareAndSet(false, true)) {
+            writeNext();
+        }
+    }
+
+    /**
+     * 从写队列取出一批帧用gathering write写出去，只有拿到writing的线程才能调用
+     */
+    private void writeNext() {
+        if (closed.get()) {
+            return;
+        }
+        PendingWrite[] batch = null;
+        int count = 0;
+        int length = 0;
+        PendingWrite next;
+        while (count < MAX_WRITE_BATCH && (next = writeQueue.poll()) != null) {
+            if (batch == null) {
+                batch = new PendingWrite[MAX_WRITE_BATCH];
+            }
+            // ping在写之前登记，服务器的PONG不会比写完成的回调先到而找不到它
+            if (next.pong != null) {
+                pings.offer(next);
+            }
+            batch[count++] = next;
+            length += next.buffers.length;
+        }
+        if (count == 0) {
+            writing.set(false);
+            // 在set之前可能有别的线程放进了消息，但它看到writing是true就没有发起写，这里要再检查一次
+            if (!writeQueue.isEmpty() && writing.compareAndSet(false, true)) {
+                writeNext();
+            }
+            return;
+        }
+        // 几帧的各段buffer摊平成一个数组，一次gathering write写出去
+        ByteBuffer[] buffers = new ByteBuffer[length];
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(batch[i].buffers, 0, buffers, offset, batch[i].buffers.length);
+            offset += batch[i].buffers.length;
+        }
+        channel.write(buffers, 0, length, 0L, TimeUnit.MILLISECONDS, new Batch(batch, buffers, count), writeHandler);
+    }
+
+    /**
+     * 处理读缓冲区中的完整帧：心跳在这里回复，其余的交给回调
+     * @param buffer 读模式
+     */
+    private void processInbound(ByteBuffer buffer) throws IOException {
+        ByteBuffer frame;
+        while ((frame = protocol.frameCodec().decode(buffer)) != null) {
+            Opcode opcode = protocol.opcode(frame);
+            if (opcode == Opcode.PING) {
+                enqueue(new PendingWrite(protocol.encode(Opcode.PONG), null));
+            } else if (opcode == Opcode.PONG) {
+                PendingWrite ping = pings.poll();
+                if (ping != null) {
+                    ping.pong.complete(System.nanoTime() - ping.createTime);
+                }
+            } else {
+                listener.onFrame(protocol, frame);
+            }
+        }
+    }
+
+    /**
+     * 读缓冲区满了才扩容，一帧比它还长
+     */
+    private ByteBuffer expandReadBuffer() {
+        ByteBuffer buffer = readBuffer.buffer();
+        PooledBuffer bigger = BufferPool.DEFAULT.acquire(buffer.capacity() << 1);
+        buffer.flip();
+        bigger.buffer().put(buffer);
+        readBuffer.release();
+        readBuffer = bigger;
+        return bigger.buffer();
+    }
+
+    /**
+     * 读链，同一时间只有一个读，读缓冲区只在这里使用，读链结束时释放
+     */
+    private class ReadHandler implements CompletionHandler<Integer, Void> {
+        @Override
+        public void completed(Integer result, Void attachment) {
+            if (result < 0) {
+                readBuffer.release();
+                close(new EOFException("服务器关闭了连接"));
+                return;
+            }
+            ByteBuffer buffer = readBuffer.buffer();
+            buffer.flip();
             try {
-                socketChannel.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+                processInbound(buffer);
+            } catch (IOException | RuntimeException e) {
+                readBuffer.release();
+                close(e);
+                return;
+            }
+            buffer.compact();
+            if (!buffer.hasRemaining()) {
+                buffer = expandReadBuffer();
             }
+            // 连接已经被关闭时会走failed
+            channel.read(buffer, null, this);
+        }
+
+        @Override
+        public void failed(Throwable exc, Void attachment) {
+            readBuffer.release();
+            close(exc);
         }
     }
 
-    public static void main(String[] args) {
+    /**
+     * 写队列中的一帧
+     * 1、编码好的帧
+     * 2、写完时完成
+     * 3、PING的回复，收到PONG时完成，不是PING时为null
+     * 4、创建时间，纳秒
+     */
+    private static class PendingWrite {
+        private final ByteBuffer[] buffers;
+        private final CompletableFuture<Void> written = new CompletableFuture<>();
+        private final CompletableFuture<Long> pong;
+        private final long createTime = System.nanoTime();
+
+        PendingWrite(ByteBuffer[] buffers, CompletableFuture<Long> pong) {
+            this.buffers = buffers;
+            this.pong = pong;
+        }
+
+        void fail(Throwable cause) {
+            written.completeExceptionally(cause);
+            if (pong != null) {
+                pong.completeExceptionally(cause);
+            }
+        }
+    }
+
+    /**
+     * 正在写的一批帧
+     * 1、这一批的帧
+     * 2、所有帧的各段buffer
+     * 3、帧数
+     * 4、buffers中第一个还没写完的下标
+     */
+    private static class Batch {
+        private final PendingWrite[] writes;
+        private final ByteBuffer[] buffers;
+        private final int count;
+        private int offset;
+
+        Batch(PendingWrite[] writes, ByteBuffer[] buffers, int count) {
+            this.writes = writes;
+            this.buffers = buffers;
+            this.count = count;
+        }
+    }
+
+    private class WriteHandler implements CompletionHandler<Long, Batch> {
+        @Override
+        public void completed(Long result, Batch batch) {
+            // 跳过已经写完的buffer，没写完就接着写这一批
+            while (batch.offset < batch.buffers.length && !batch.buffers[batch.offset].hasRemaining()) {
+                batch.offset++;
+            }
+            if (batch.offset < batch.buffers.length) {
+                channel.write(batch.buffers, batch.offset, batch.buffers.length - batch.offset,
+                        0L, TimeUnit.MILLISECONDS, batch, this);
+                return;
+            }
+            for (int i = 0; i < batch.count; i++) {
+                batch.writes[i].written.complete(null);
+            }
+            writeNext();
+        }
+
+        @Override
+        public void failed(Throwable exc, Batch batch) {
+            for (int i = 0; i < batch.count; i++) {
+                batch.writes[i].fail(exc);
+            }
+            close(exc);
+        }
+    }
+
+    /**
+     * 收到消息和连接关闭时的回调，在group的线程中调用，同一个客户端的回调不会并发，不能阻塞
+     */
+    public interface Listener {
+        /**
+         * 打印到控制台
+         */
+        Listener CONSOLE = (protocol, frame) -> System.out.println(protocol.text(frame));
+
+        /**
+         * 收到一帧，心跳已经处理掉了，不会出现在这里
+         * @param frame 只在调用期间有效，要保留就复制一份
+         */
+        void onFrame(ChatProtocol protocol, ByteBuffer frame) throws IOException;
+
+        /**
+         * 连接关闭，只会调用一次
+         * @param cause 关闭的原因，服务器关闭连接时是EOFException，自己关闭时是ClosedChannelException
+         */
+        default void onClosed(Throwable cause) {
+        }
+    }
+
+    /**
+     * 控制台客户端：主线程读控制台，只管把消息放进写队列，收到的消息由读链打印
+     */
+    private static void console() throws IOException {
         ChatClient chatClient = new ChatClient();
-        chatClient.start();
+        chatClient.connect().whenComplete((ignored, e) -> {
+            if (e == null) {
+                System.out.println("客户端已经连接服务器");
+            } else {
+                System.out.println("客户端：连接服务器失败：" + e);
+            }
+        });
+        BufferedReader consoleReader = new BufferedReader(new InputStreamReader(System.in));
+        String msg;
+        while ((msg = consoleReader.readLine()) != null && chatClient.isOpen()) {
+            if (msg.isEmpty()) {
+                continue;
+            }
+            if (QUIT.equals(msg)) {
+                // group的线程是守护线程，等退出口令写出去再结束主线程
+                chatClient.quit().handle((ignored, e) -> null).join();
+                System.out.println("关闭客户端成功");
+                return;
+            }
+            chatClient.send(msg);
+        }
+        chatClient.close();
+    }
+
+    /**
+     * 模拟很多个用户：所有连接共用一个group，每个用户每隔一段时间发一条消息，每秒打印一次收发的消息数
+     * 聊天室是广播的，用户都在一个房间里时接收量是用户数的平方，可以分散到几个房间里
+     * @param users 用户数
+     * @param intervalMillis 每个用户发消息的间隔
+     * @param rooms 房间数，大于1时每个用户连上后按编号加入其中一个
+     */
+    private static void simulate(int users, long intervalMillis, int rooms) throws IOException, InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        AsynchronousChannelGroup group = AsynchronousChannelGroup.withFixedThreadPool(threads, Executors.defaultThreadFactory());
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        AtomicInteger online = new AtomicInteger();
+        LongAdder sent = new LongAdder();
+        LongAdder received = new LongAdder();
+        Listener counter = new Listener() {
+            @Override
+            public void onFrame(ChatProtocol protocol, ByteBuffer frame) {
+                received.increment();
+            }
+
+            @Override
+            public void onClosed(Throwable cause) {
+                online.decrementAndGet();
+            }
+        };
+        for (int i = 0; i < users; i++) {
+            int user = i;
+            ChatClient client = new ChatClient(DEFAULT_SERVER_HOST, DEFAULT_SERVER_PORT, group);
+            client.setListener(counter);
+            online.incrementAndGet();
+            client.connect().thenRun(() -> {
+                if (rooms > 1) {
+                    client.send("/join room-" + user % rooms);
+                }
+                // 起始时间打散，用户不会在同一时刻一起发
+                long delay = ThreadLocalRandom.current().nextLong(intervalMillis);
+                timer.scheduleAtFixedRate(() -> client.send("用户" + user + "的消息").thenRun(sent::increment),
+                        delay, intervalMillis, TimeUnit.MILLISECONDS);
+            });
+        }
+        timer.scheduleAtFixedRate(() -> System.out.println("客户端：在线用户[" + online + "]，每秒发送["
+                + sent.sumThenReset() + "]条，接收[" + received.sumThenReset() + "]条"), 1, 1, TimeUnit.SECONDS);
+        // group的线程不是守护线程，进程一直运行到Ctrl+C
+        group.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+
+    /**
+     * 不带参数时是控制台客户端；带参数时模拟很多个用户：用户数 [发消息间隔毫秒] [房间数]
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 0) {
+            console();
+            return;
+        }
+        int users = Integer.parseInt(args[0]);
+        long intervalMillis = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+        int rooms = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        simulate(users, intervalMillis, rooms);
     }
 }
@@ -1,5 +1,8 @@
 package com.lakeqiu.aio.base;
 
+import com.lakeqiu.common.buffer.BufferPool;
+import com.lakeqiu.common.buffer.PooledBuffer;
+
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
@@ -58,10 +61,12 @@ public class ChatServer {
 
             // 如果用户通道不为空且还处于开启状态
             if (clientChannel != null && clientChannel.isOpen()){
+                // 从池中申请一个直接缓冲区，这个连接一直复用它，断开时还回去
+                PooledBuffer pooled = BufferPool.DEFAULT.acquire(1024);
                 // 新建异步方法结果处理类
-                ClientHandel clientHandel = new ClientHandel(clientChannel);
+                ClientHandel clientHandel = new ClientHandel(clientChannel, pooled);
 
-                ByteBuffer buffer = ByteBuffer.allocate(1024);
+                ByteBuffer buffer = pooled.buffer();
                 // 辅助类
                 Map<String, Object> info = new HashMap<>(2);
                 // 辅助检查一下在Handler应该读还是写
@@ -83,11 +88,13 @@ public class ChatServer {
     private class ClientHandel implements
             CompletionHandler<Integer, Map<String, Object>> {
         private AsynchronousSocketChannel clientChannel;
+        private PooledBuffer pooled;
         private final static String READ = "read";
         private final static String WRITE = "write";
 
-        public ClientHandel(AsynchronousSocketChannel socketChannel) {
+        public ClientHandel(AsynchronousSocketChannel socketChannel, PooledBuffer pooled) {
             this.clientChannel = socketChannel;
+            this.pooled = pooled;
         }
 
         @Override
@@ -96,19 +103,29 @@ public class ChatServer {
             String type = (String) info.get("type");
             // 客户端发送信息过来了，是可读事件
             if (READ.equals(type)) {
+                // 客户端已经断开
+                if (result < 0) {
+                    closeClient();
+                    return;
+                }
                 ByteBuffer buffer = (ByteBuffer) info.get("buffer");
                 // 翻转为读模式
                 buffer.flip();
                 info.put("type", "write");
-                // 注意，每次都是异步调用
+                // 注意，每次都是异步调用，写完之前不能动buffer
                 clientChannel.write(buffer, info, this);
-                buffer.clear();
             } else if (WRITE.equals(type)) {
-                ByteBuffer buffer = ByteBuffer.allocate(1024);
+                ByteBuffer buffer = (ByteBuffer) info.get("buffer");
+                // 还没写完就接着写
+                if (buffer.hasRemaining()) {
+                    clientChannel.write(buffer, info, this);
+                    return;
+                }
+                // 写完了，清空后复用同一个buffer读下一条
+                buffer.clear();
 
                 // 辅助检查一下在Handler应该读还是写
                 info.put("type", "read");
-                info.put("buffer", buffer);
                 // 异步调用read，在写事件完成后，就进行等待，等待客户端的下一次发送信息，然后读取
                 clientChannel.read(buffer, info, this);
             }
@@ -116,7 +133,19 @@ public class ChatServer {
 
         @Override
         public void failed(Throwable exc, Map<String, Object> attachment) {
+            closeClient();
+        }
 
+        /**
+         * 关闭连接，把缓冲区还给池
+         */
+        private void closeClient() {
+            pooled.release();
+            try {
+                clientChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
     }
 
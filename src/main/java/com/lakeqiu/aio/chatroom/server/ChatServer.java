@@ -1,5 +1,20 @@
 package com.lakeqiu.aio.chatroom.server;
 
+import com.lakeqiu.common.buffer.BufferPool;
+import com.lakeqiu.common.buffer.Buffers;
+import com.lakeqiu.common.buffer.PooledBuffer;
+import com.lakeqiu.common.lifecycle.Lifecycle;
+import com.lakeqiu.common.lifecycle.ShutdownReport;
+import com.lakeqiu.common.log.MessageLog;
+import com.lakeqiu.common.metrics.ChatMetrics;
+import com.lakeqiu.common.metrics.MetricsEndpoint;
+import com.lakeqiu.common.protocol.ChatProtocol;
+import com.lakeqiu.common.protocol.Opcode;
+import com.lakeqiu.common.session.NicknameRegistry;
+import com.lakeqiu.common.session.RoomHistory;
+import com.lakeqiu.common.session.RoomRegistry;
+import com.lakeqiu.common.session.SessionRegistry;
+
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
@@ -9,30 +24,70 @@ import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.util.List;
-import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author lakeqiu
  */
-public class ChatServer {
+public class ChatServer implements Lifecycle {
     private final static String HOST = "localhost";
     private final static Integer DEFAULT_PORT = 8090;
-    private final static String QUIT = "quit";
-    private final static Integer BUFFER_LENGTH = 1024;
     private final static Integer THREAD_POOL_SIZE = 8;
+    private final static int DEFAULT_MAX_FRAME_LENGTH = 1024 * 1024;
+    private final static long DEFAULT_SHUTDOWN_SECONDS = 10;
+    private final static int MAX_REPLAY_BYTES = 256 * 1024;
+    private final static ByteBuffer LEAVE_MSG = Buffers.readOnlyDirectCopy(StandardCharsets.UTF_8.encode("已经退出聊天室"));
 
     private AsynchronousChannelGroup channelGroup;
     private AsynchronousServerSocketChannel serverSocketChannel;
     private Charset charset = StandardCharsets.UTF_8;
     private int port;
     private AcceptHandler acceptHandler;
-    private Semaphore semaphore;
-    private Queue<AsynchronousSocketChannel> queue;
+    private SessionRegistry<ChatSession> registry;
+    private ChatProtocol protocol = ChatProtocol.fromProperty(DEFAULT_MAX_FRAME_LENGTH);
+    /**
+     * 房间索引，消息只转发给同一个房间的用户
+     */
+    private final RoomRegistry<ChatSession> rooms = new RoomRegistry<>();
+    /**
+     * 每个房间最近的消息，新加入房间的用户先收到
+     */
+    private final RoomHistory history = new RoomHistory();
+    /**
+     * 昵称索引，私聊时按昵称找到接收方
+     */
+    private final NicknameRegistry<ChatSession> nicknames = new NicknameRegistry<>();
+    /**
+     * 是否正在关闭，关闭开始后新连接一注册就开始排空
+     */
+    private volatile boolean stopping;
+    /**
+     * 关闭报告，没有在关闭时为null
+     */
+    private volatile ShutdownReport shutdownReport;
+    /**
+     * 等待所有连接都关闭时用的锁
+     */
+    private final Object drainLock = new Object();
+    /**
+     * 关闭完成
+     */
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    /**
+     * 消息日志，转发的每一帧都存下来，默认由系统属性com.lakeqiu.chat.log决定，为null时不保存
+     */
+    private MessageLog messageLog = MessageLog.fromProperty();
+    /**
+     * 指标，读、切帧、转发、写的路径上累加
+     */
+    private final ChatMetrics metrics = new ChatMetrics("aio");
+    /**
+     * 导出指标的HTTP端口，默认由系统属性com.lakeqiu.chat.metrics决定，为0时不开启
+     */
+    private int metricsPort = MetricsEndpoint.portFromProperty();
 
     public ChatServer() {
         this(DEFAULT_PORT);
@@ -40,29 +95,177 @@ public class ChatServer {
 
     public ChatServer(int port) {
         this.port = port;
-        this.semaphore = new Semaphore(0);
         this.acceptHandler = new AcceptHandler();
-        this.queue = new LinkedBlockingDeque<>();
+        this.registry = new SessionRegistry<>();
     }
 
-    public void start() {
-        try {
-            init();
-            work();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } finally {
-            close();
+    /**
+     * 设置线上协议，需要在start之前调用
+     * @param protocol 文本协议TextProtocol或二进制协议BinaryProtocol
+     */
+    public void setProtocol(ChatProtocol protocol) {
+        this.protocol = protocol;
+    }
+
+    /**
+     * 设置每个房间保存多少条最近的消息，新加入的用户先收到它们，需要在start之前调用
+     * @param frames 最多保存的消息数，为0时不保存
+     * @param bytes 最多保存的字节数，包括帧头
+     */
+    public void setHistoryLimit(int frames, int bytes) {
+        history.setLimit(frames, bytes);
+    }
+
+    /**
+     * 设置消息日志，转发的每一帧都存下来，用户可以用/replay从某个序号开始补收，需要在start之前调用
+     * 服务器在start时打开它，关闭时把剩下的记录落盘并关闭它
+     * @param messageLog 为null时不保存
+     */
+    public void setMessageLog(MessageLog messageLog) {
+        this.messageLog = messageLog;
+    }
+
+    /**
+     * 设置导出指标的HTTP端口，GET /metrics返回Prometheus的文本格式，需要在start之前调用
+     * @param port 为0时不开启
+     */
+    public void setMetricsPort(int port) {
+        this.metricsPort = port;
+    }
+
+    public ChatMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * 绑定端口，发起第一个accept，之后每接收一个连接就再发起下一个，不占用调用线程
+     */
+    @Override
+    public synchronized void start() throws IOException {
+        if (channelGroup != null) {
+            throw new IllegalStateException("服务器已经启动");
         }
+        init();
+        serverSocketChannel.accept(null, acceptHandler);
+        System.out.println("服务器：服务器已经启动，监听端口[" + port + "]");
+    }
 
+    /**
+     * 优雅关闭
+     * 1、关闭服务器通道，不再接收新连接
+     * 2、每个连接关闭输入端，不再读取新消息，写队列写空后关闭，这期间写出去的消息都算排空
+     * 3、到期还没写空的连接直接关闭，丢弃写队列
+     * 4、关闭AsynchronousChannelGroup和它的线程池
+     */
+    @Override
+    public synchronized ShutdownReport stop(long timeout, TimeUnit unit) {
+        if (shutdownReport != null) {
+            return shutdownReport;
+        }
+        ShutdownReport report = new ShutdownReport();
+        shutdownReport = report;
+        stopping = true;
+        close();
+        registry.forEach(session -> session.drain(report));
+        boolean timedOut = !awaitSessions(report, timeout, unit);
+        for (ChatSession session : registry.sessions()) {
+            session.close();
+        }
+        if (channelGroup != null) {
+            channelGroup.shutdown();
+            try {
+                channelGroup.awaitTermination(Math.max(0, report.remainingNanos(timeout, unit)), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (messageLog != null) {
+            messageLog.close();
+            System.out.println("服务器：" + messageLog);
+        }
+        metrics.closeEndpoint();
+        System.out.println("服务器：" + metrics);
+        report.complete(timedOut);
+        System.out.println("服务器：服务器已经关闭，" + report);
+        System.out.println("服务器：" + BufferPool.DEFAULT);
+        terminated.countDown();
+        return report;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    /**
+     * 等所有连接都关闭
+     * @return 是否在期限内都关闭了
+     */
+    private boolean awaitSessions(ShutdownReport report, long timeout, TimeUnit unit) {
+        synchronized (drainLock) {
+            while (registry.size() > 0) {
+                long remaining = report.remainingNanos(timeout, unit);
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(drainLock, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 新加入房间的用户先收到房间里最近的消息：历史的快照就是编码好的帧首尾相接，一次写出去，写完后还给池
+     */
+    private void replay(ChatSession session, String room) {
+        PooledBuffer recent = history.snapshot(room);
+        if (recent != null) {
+            session.write(new ByteBuffer[]{recent.buffer()}, recent);
+        }
+    }
+
+    /**
+     * 用户离开了房间，房间空了就释放它的历史，是否空了在RoomHistory里和删除一起判断
+     */
+    private void vacated(String room) {
+        if (room != null) {
+            history.removeIfVacant(room, rooms::hasMembers);
+        }
+    }
+
+    /**
+     * 连接关闭后的清理，不管是客户端断开、写失败、接收太慢还是服务器关闭，都只会调用一次
+     */
+    private void sessionClosed(ChatSession session) {
+        vacated(rooms.remove(session));
+        nicknames.remove(session);
+        ShutdownReport report = shutdownReport;
+        if (report == null) {
+            if (registry.unregister(session)) {
+                metrics.connectionClosed();
+            }
+            return;
+        }
+        // 移除和计数放在同一个锁里，stop看到注册表空了的时候，关闭的连接数也已经算好了
+        synchronized (drainLock) {
+            if (registry.unregister(session)) {
+                metrics.connectionClosed();
+                report.sessionClosed();
+                drainLock.notifyAll();
+            }
+        }
     }
 
     private void close() {
         try {
             if (serverSocketChannel != null) {
                 serverSocketChannel.close();
+                System.out.println("服务器：停止接收新连接");
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -70,87 +273,311 @@ public class ChatServer {
     }
 
     private void init() throws IOException {
+        if (messageLog != null) {
+            messageLog.open();
+        }
         // 创建线程池，指定线程池作为group
         ExecutorService threadPool = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
         channelGroup = AsynchronousChannelGroup.withThreadPool(threadPool);
         // 指定group
         serverSocketChannel = AsynchronousServerSocketChannel.open(channelGroup);
         serverSocketChannel.bind(new InetSocketAddress(port));
-    }
-
-    private void work() throws InterruptedException {
-        while (true) {
-            serverSocketChannel.accept(semaphore, acceptHandler);
-            semaphore.acquire(1);
-        }
+        // 写队列是ConcurrentLinkedQueue，积压的字节数单独用AtomicLong记着，抓取时才累加
+        metrics.gauge("chat_pending_write_bytes", "写队列中还没写出去的字节数", () -> {
+            long bytes = 0;
+            for (ChatSession session : registry.sessions()) {
+                bytes += session.pendingBytes();
+            }
+            return bytes;
+        });
+        metrics.openEndpoint(metricsPort);
     }
 
     private class AcceptHandler implements
-            CompletionHandler<AsynchronousSocketChannel, Semaphore> {
+            CompletionHandler<AsynchronousSocketChannel, Void> {
         @Override
-        public void completed(AsynchronousSocketChannel result, Semaphore attachment) {
+        public void completed(AsynchronousSocketChannel result, Void attachment) {
             AsynchronousSocketChannel clientChannel = result;
-            semaphore.release();
+            // 先发起下一个accept，同一时间只能有一个
+            if (!stopping) {
+                serverSocketChannel.accept(null, this);
+            }
 
             if (clientChannel != null && clientChannel.isOpen()) {
-                queue.add(clientChannel);
-                ClientHandler clientHandler = new ClientHandler(clientChannel);
-                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_LENGTH);
+                ChatSession session = new ChatSession(registry.nextId(), clientChannel, ChatServer.this::sessionClosed,
+                        metrics);
+                registry.register(session);
+                metrics.connectionOpened();
+                rooms.join(session, RoomRegistry.LOBBY);
+                replay(session, RoomRegistry.LOBBY);
+                // 默认昵称是端口，与转发的消息前面显示的一致
+                nicknames.register(session, String.valueOf(session.port()));
+                ClientHandler clientHandler = new ClientHandler(session);
+                ByteBuffer buffer = session.readBuffer(protocol.frameCodec().maxFrameLength());
                 // 虽然是同一个buffer，但是意义不同，第一是让系统把用户发送的信息写到buffer中
                 // 第二个是一个辅助，帮助异步调用成功后，将用户的消息发送给其他用户
                 clientChannel.read(buffer, buffer, clientHandler);
+                // 注册之前服务器就开始关闭了，stop没有看到这个连接，由这里开始排空
+                if (stopping) {
+                    session.drain(shutdownReport);
+                }
             }
         }
 
         @Override
-        public void failed(Throwable exc, Semaphore attachment) {
-
+        public void failed(Throwable exc, Void attachment) {
+            // 服务器通道被stop关闭了；其他错误（比如文件描述符用完）不影响接收下一个连接
+            if (serverSocketChannel.isOpen()) {
+                exc.printStackTrace();
+                serverSocketChannel.accept(null, this);
+            }
         }
     }
 
     private class ClientHandler implements
             CompletionHandler<Integer, ByteBuffer> {
-        private AsynchronousSocketChannel clientChannel;
+        private ChatSession session;
+        /**
+         * 转发这个用户的消息时的帧头，编码一次之后一直复用
+         */
+        private ByteBuffer header;
 
-        public ClientHandler(AsynchronousSocketChannel clientChannel) {
-            this.clientChannel = clientChannel;
+        public ClientHandler(ChatSession session) {
+            this.session = session;
+            this.header = protocol.header(Opcode.MESSAGE, session.id(), session.port());
         }
 
         @Override
         public void completed(Integer result, ByteBuffer attachment) {
             ByteBuffer buffer = attachment;
             if (buffer != null) {
-                if (result <= 0){
+                if (result < 0){
                     // 客户端异常
+                    stopReading();
                 } else {
-                    // 获取信息
+                    // 一次读到的字节可能不够一帧，也可能有好几帧，把完整的帧都切出来转发，剩下的留到下一次
+                    metrics.bytesIn(result);
                     buffer.flip();
-                    String msg = String.valueOf(charset.decode(buffer));
-                    System.out.println(msg);
-                    buffer.clear();
-
-                    // 转发给其他客户端
-                    for (AsynchronousSocketChannel socketChannel : queue) {
-                        if (!socketChannel.equals(clientChannel)) {
-                            buffer.put(charset.encode(msg));
-                            buffer.flip();
-                            socketChannel.write(buffer);
-                            buffer.clear();
+                    try {
+                        ByteBuffer frame;
+                        long start = System.nanoTime();
+                        while ((frame = protocol.frameCodec().decode(buffer)) != null) {
+                            long decodedAt = System.nanoTime();
+                            metrics.frameDecoded(decodedAt - start);
+                            if (!forwardFrame(frame, decodedAt)) {
+                                stopReading();
+                                return;
+                            }
+                            start = System.nanoTime();
                         }
+                    } catch (IOException e) {
+                        System.out.println("服务器：用户[" + session.port() + "]发来了非法的帧：" + e.getMessage());
+                        stopReading();
+                        return;
+                    }
+                    buffer.compact();
+                    // 服务器正在关闭，已经读到的消息转发完就不再读了
+                    if (stopping) {
+                        stopReading();
+                        return;
                     }
-                    clientChannel.read(buffer, buffer, this);
+                    // 连接可能已经被别的线程关闭了，这时read会马上失败，由failed释放读缓冲区
+                    ByteBuffer next = session.readBuffer(protocol.frameCodec().maxFrameLength());
+                    session.channel().read(next, next, this);
                 }
             }
         }
 
+        /**
+         * 转发一帧
+         * 只看帧头，消息体不解码，复制进池化的缓冲区，所有接收方共享，读缓冲区可以马上用来读下一帧
+         * @param decodedAt 切出这一帧的时间，纳秒，放进所有接收方的写队列后记下转发的耗时
+         * @return 用户是否还在线
+         */
+        private boolean forwardFrame(ByteBuffer frame, long decodedAt) throws IOException {
+            Opcode opcode = protocol.opcode(frame);
+            // 客户端的PING按顺序回复PONG，客户端收到时就知道前面的消息都处理完了
+            if (opcode == Opcode.PING) {
+                session.write(protocol.encode(Opcode.PONG), null);
+                return true;
+            }
+            if (opcode == Opcode.PONG) {
+                return true;
+            }
+            if (opcode == Opcode.COMMAND && commandAffair(protocol.payload(frame))) {
+                return true;
+            }
+            String room = rooms.roomOf(session);
+            if (room == null) {
+                return false;
+            }
+            boolean quit = opcode == Opcode.QUIT;
+            ByteBuffer payload = quit ? LEAVE_MSG : protocol.payload(frame);
+            PooledBuffer body = BufferPool.DEFAULT.copyOf(payload);
+            ByteBuffer msg = body.buffer().asReadOnlyBuffer();
+            ByteBuffer[] encoded = protocol.encode(header, msg);
+            history.record(room, encoded);
+            if (messageLog != null) {
+                messageLog.append(room, encoded);
+            }
+
+            // 转发给同一个房间的其他客户端，每个接收方拿到自己的视图并持有一个引用，
+            // 放进各自的写队列，由写队列保证同一时间只有一个写操作；所有接收方共用一个入队时间
+            long now = System.nanoTime();
+            int receivers = 0;
+            for (ChatSession other : rooms.members(room)) {
+                if (other.id() != session.id()) {
+                    other.write(Buffers.duplicate(encoded), body.retain(), now);
+                    receivers++;
+                }
+            }
+            body.release();
+            metrics.forwarded(receivers, System.nanoTime() - decodedAt);
+            if (quit) {
+                closeClient();
+            }
+            return !quit;
+        }
+
         @Override
         public void failed(Throwable exc, ByteBuffer attachment) {
+            stopReading();
+        }
+
+        /**
+         * 不再发起读了：关闭连接，再释放读缓冲区
+         * 读缓冲区只在这里释放，close可能在任何线程调用，那时这个线程可能还在切帧或者正要发起下一个读
+         */
+        private void stopReading() {
+            closeClient();
+            session.releaseReadBuffer();
+        }
 
+        /**
+         * 处理命令
+         * /join 房间名：离开当前房间，加入另一个房间，房间不存在时创建
+         * /leave：离开当前房间，回到大厅
+         * /msg 昵称 内容：私聊，只发给这一个用户
+         * /nick 昵称：改名
+         * /replay [序号]：从这个序号开始补收所在房间的消息，没有序号时只回复当前序号
+         * @return 是否是认识的命令，不认识的按普通消息转发
+         */
+        private boolean commandAffair(ByteBuffer command) {
+            String[] args = charset.decode(command.duplicate()).toString().trim().split(" +", 3);
+            switch (args[0]) {
+                case "/join":
+                    if (args.length != 2) {
+                        reply("用法：/join 房间名");
+                        return true;
+                    }
+                    try {
+                        vacated(rooms.join(session, args[1]));
+                        reply("已经进入房间[" + args[1] + "]");
+                        replay(session, args[1]);
+                    } catch (IllegalArgumentException e) {
+                        reply(e.getMessage());
+                    }
+                    return true;
+                case "/leave":
+                    vacated(rooms.leave(session));
+                    reply("已经回到大厅");
+                    replay(session, RoomRegistry.LOBBY);
+                    return true;
+                case "/msg":
+                    ByteBuffer text = ChatProtocol.skipWords(command, 2);
+                    if (text == null) {
+                        reply("用法：/msg 昵称 内容");
+                        return true;
+                    }
+                    directMsg(args[1], text);
+                    return true;
+                case "/nick":
+                    if (args.length != 2) {
+                        reply("用法：/nick 昵称");
+                        return true;
+                    }
+                    try {
+                        boolean renamed = nicknames.rename(session, args[1]);
+                        reply(renamed ? "昵称已经改为[" + args[1] + "]" : "昵称[" + args[1] + "]已经被占用");
+                    } catch (IllegalArgumentException e) {
+                        reply(e.getMessage());
+                    }
+                    return true;
+                case "/replay":
+                    replayLog(args);
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * 从消息日志里补收所在房间的消息，读出来的就是转发时编码好的帧，复制进池化的缓冲区交给写队列
+         * 一次最多补收MAX_REPLAY_BYTES字节，最后回复下一次应该从哪个序号开始
+         */
+        private void replayLog(String[] args) {
+            if (messageLog == null) {
+                reply("服务器没有保存消息");
+                return;
+            }
+            if (args.length == 1) {
+                reply("当前序号[" + messageLog.nextSequence() + "]");
+                return;
+            }
+            long from;
+            try {
+                from = Long.parseLong(args[1]);
+            } catch (NumberFormatException e) {
+                reply("用法：/replay 序号");
+                return;
+            }
+            PooledBuffer frames = BufferPool.DEFAULT.acquire(MAX_REPLAY_BYTES);
+            long next = messageLog.read(from, rooms.roomOf(session), frames.buffer());
+            frames.buffer().flip();
+            if (frames.buffer().hasRemaining()) {
+                session.write(new ByteBuffer[]{frames.buffer()}, frames);
+            } else {
+                frames.release();
+            }
+            reply("下次从序号[" + next + "]开始补收");
+        }
+
+        /**
+         * 私聊：按昵称查一次索引，只放进接收方一个人的写队列，不遍历其他用户
+         * @param text 内容，不解码，复制进池化的缓冲区，由接收方的写队列负责release
+         */
+        private void directMsg(String nickname, ByteBuffer text) {
+            ChatSession target = nicknames.get(nickname);
+            if (target == null) {
+                reply("没有昵称为[" + nickname + "]的用户");
+                return;
+            }
+            PooledBuffer body = BufferPool.DEFAULT.copyOf(text);
+            target.write(protocol.encode(protocol.header(Opcode.DIRECT, session.id(), session.port()),
+                    body.buffer().asReadOnlyBuffer()), body);
+        }
+
+        /**
+         * 给用户回一条服务器消息
+         */
+        private void reply(String msg) {
+            session.write(protocol.encode(Opcode.NOTICE, 0, charset.encode(msg)), null);
+        }
+
+        /**
+         * 关闭与客户端的连接，服务器正在关闭时先把写队列写完
+         */
+        private void closeClient() {
+            if (stopping) {
+                session.drain(shutdownReport);
+            } else {
+                session.close();
+            }
         }
     }
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException, InterruptedException {
         ChatServer chatServer = new ChatServer();
-        chatServer.start();
+        Lifecycle.runUntilShutdown(chatServer, DEFAULT_SHUTDOWN_SECONDS, TimeUnit.SECONDS);
     }
 }
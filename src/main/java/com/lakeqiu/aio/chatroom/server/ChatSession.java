@@ -0,0 +1,349 @@
+package com.lakeqiu.aio.chatroom.server;
+
+import com.lakeqiu.common.buffer.BufferPool;
+import com.lakeqiu.common.buffer.Buffers;
+import com.lakeqiu.common.buffer.PooledBuffer;
+import com.lakeqiu.common.lifecycle.ShutdownReport;
+import com.lakeqiu.common.metrics.ChatMetrics;
+import com.lakeqiu.common.session.Session;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * 一个客户端连接
+ * AsynchronousSocketChannel同一时间只允许有一个写操作，上一个没完成就再调用write会抛WritePendingException，
+ * 所以要发给这个客户端的消息都先进入写队列，同一时间只有一个写在进行，写完后在CompletionHandler里接着写下一批
+ * @author lakeqiu
+ */
+class ChatSession implements Session {
+    /**
+     * 1、读缓冲区的初始长度，凑不够一帧时翻倍扩容
+     * 2、一次gathering write最多带几帧
+     * 3、写队列最多积压的字节数，超过说明客户端接收太慢，断开连接
+     */
+    private final static int BUFFER_LENGTH = 1024;
+    private final static int MAX_WRITE_BATCH = 16;
+    private final static long MAX_PENDING_BYTES = 1024 * 1024;
+
+    /**
+     * 1、会话id，由注册表分配
+     * 2、与客户端的通道
+     * 3、客户端端口，通道关闭后就拿不到了，所以先存下来
+     * 4、读缓冲区，从池中申请，读的一侧不再发起读时还回去，同时也是累积缓冲区，没凑够一帧的字节留到下一次读
+     * 5、写队列
+     * 6、写队列中还没写出去的字节数
+     * 7、是否有写操作正在进行
+     * 8、是否已经关闭
+     * 9、写完成后的回调，所有写操作共用一个
+     * 10、关闭后的回调，由服务器把它从注册表、房间和昵称索引中移除，不管是谁关闭的
+     * 11、是否在排空，排空时写队列写空就关闭
+     * 12、关闭报告，服务器开始关闭之后不为null，用来统计写出去和丢弃的消息数
+     * 13、服务器的指标，记录写出的字节数、写的耗时和丢弃的帧数
+     */
+    private final long id;
+    private final AsynchronousSocketChannel channel;
+    private final int port;
+    private PooledBuffer readBuffer;
+    private final Queue<PendingWrite> writeQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final WriteHandler writeHandler = new WriteHandler();
+    private final Consumer<ChatSession> closeListener;
+    private volatile boolean draining;
+    private volatile ShutdownReport report;
+    private final ChatMetrics metrics;
+
+    ChatSession(long id, AsynchronousSocketChannel channel, Consumer<ChatSession> closeListener,
+                ChatMetrics metrics) {
+        this.id = id;
+        this.channel = channel;
+        this.closeListener = closeListener;
+        this.metrics = metrics;
+        this.port = remotePort(channel);
+        this.readBuffer = BufferPool.DEFAULT.acquire(BUFFER_LENGTH);
+    }
+
+    @Override
+    public long id() {
+        return id;
+    }
+
+    private static int remotePort(AsynchronousSocketChannel channel) {
+        try {
+            return ((InetSocketAddress) channel.getRemoteAddress()).getPort();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    int port() {
+        return port;
+    }
+
+    AsynchronousSocketChannel channel() {
+        return channel;
+    }
+
+    /**
+     * 读缓冲区满了才扩容，但不会超过一帧的上限，已经放得下最长的帧还是满了，说明帧超长，交给decode去报错
+     * @return 写模式的读缓冲区，扩容后会换成另一个buffer
+     */
+    ByteBuffer readBuffer(int maxFrameLength) {
+        ByteBuffer buffer = readBuffer.buffer();
+        if (!buffer.hasRemaining() && buffer.capacity() <= maxFrameLength) {
+            int capacity = (int) Math.min((long) buffer.capacity() << 1, (long) maxFrameLength + 8);
+            PooledBuffer bigger = BufferPool.DEFAULT.acquire(capacity);
+            buffer.flip();
+            bigger.buffer().put(buffer);
+            readBuffer.release();
+            readBuffer = bigger;
+        }
+        return readBuffer.buffer();
+    }
+
+    boolean isOpen() {
+        return !closed.get();
+    }
+
+    /**
+     * @return 写队列中还没写出去的字节数，可以在任何线程调用
+     */
+    long pendingBytes() {
+        return pendingBytes.get();
+    }
+
+    /**
+     * 把一帧放进写队列，可以在任何线程调用
+     * @param frame 编码好的帧，这个session独占它们的position和limit
+     * @param owner frame引用的池化缓冲区，所有权交给写队列，写完或丢弃时release，没有时为null
+     */
+    void write(ByteBuffer[] frame, PooledBuffer owner) {
+        write(frame, owner, System.nanoTime());
+    }
+
+    /**
+     * @param enqueueTime 放进写队列的时间，纳秒，一条发言的所有接收方共用一个，写完时记下写的耗时
+     */
+    void write(ByteBuffer[] frame, PooledBuffer owner, long enqueueTime) {
+        if (closed.get()) {
+            release(owner);
+            dropped(1);
+            return;
+        }
+        PendingWrite pending = new PendingWrite(frame, owner, enqueueTime);
+        writeQueue.offer(pending);
+        // 放进去的同时连接被关闭了，close可能已经清理过队列，这里再清理一次
+        if (closed.get()) {
+            discardQueue();
+            return;
+        }
+        if (pendingBytes.addAndGet(pending.length) > MAX_PENDING_BYTES) {
+            System.out.println("服务器：客户端接收太慢，断开连接");
+            close();
+            return;
+        }
+        // 没有正在进行的写，由这个线程发起
+        if (writing.compareAndSet(false, true)) {
+            writeNext();
+        }
+    }
+
+    /**
+     * 从写队列取出一批帧用gathering write写出去，只有拿到writing的线程才能调用
+     */
+    private void writeNext() {
+        if (closed.get()) {
+            return;
+        }
+        PendingWrite[] batch = null;
+        int count = 0;
+        int length = 0;
+        PendingWrite next;
+        while (count < MAX_WRITE_BATCH && (next = writeQueue.poll()) != null) {
+            if (batch == null) {
+                batch = new PendingWrite[MAX_WRITE_BATCH];
+            }
+            batch[count++] = next;
+            length += next.buffers.length;
+        }
+        if (count == 0) {
+            writing.set(false);
+            // 在set之前可能有别的线程放进了消息，但它看到writing是true就没有发起写，这里要再检查一次
+            if (!writeQueue.isEmpty() && writing.compareAndSet(false, true)) {
+                writeNext();
+            } else if (draining && writeQueue.isEmpty()) {
+                close();
+            }
+            return;
+        }
+        // 几帧的各段buffer摊平成一个数组，一次gathering write写出去
+        ByteBuffer[] buffers = new ByteBuffer[length];
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(batch[i].buffers, 0, buffers, offset, batch[i].buffers.length);
+            offset += batch[i].buffers.length;
+        }
+        Batch attachment = new Batch(batch, buffers, count);
+        channel.write(buffers, 0, length, 0L, TimeUnit.MILLISECONDS, attachment, writeHandler);
+    }
+
+    /**
+     * 服务器关闭时调用：关闭输入端，正在等待的读会读到结束，不再接收新消息；写队列写空后关闭连接
+     */
+    void drain(ShutdownReport report) {
+        this.report = report;
+        this.draining = true;
+        try {
+            channel.shutdownInput();
+        } catch (IOException e) {
+            // 连接已经断开，读回调会关闭它
+        }
+        // 没有正在进行的写时由这个线程检查写队列，已经空了就马上关闭
+        if (writing.compareAndSet(false, true)) {
+            writeNext();
+        }
+    }
+
+    /**
+     * 读的一侧不再发起读时调用，把读缓冲区还给池，重复调用时什么也不做
+     * 同一时间只有一个读，读回调之间有先后关系，所以不用加锁
+     */
+    void releaseReadBuffer() {
+        if (readBuffer != null) {
+            readBuffer.release();
+            readBuffer = null;
+        }
+    }
+
+    /**
+     * 关闭连接，释放写队列中还没写出去的消息，可以在任何线程调用
+     * 读缓冲区不在这里释放：读回调可能还在用它，正在等待的读会因为通道关闭而失败，由读的一侧释放
+     */
+    void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        // 正在进行中的那一批由WriteHandler的failed负责释放
+        discardQueue();
+        closeListener.accept(this);
+    }
+
+    private void discardQueue() {
+        PendingWrite pending;
+        while ((pending = writeQueue.poll()) != null) {
+            release(pending.owner);
+            dropped(1);
+        }
+    }
+
+    private void dropped(int count) {
+        metrics.dropped(count);
+        ShutdownReport report = this.report;
+        if (report != null) {
+            report.dropped(count);
+        }
+    }
+
+    private static void release(PooledBuffer owner) {
+        if (owner != null) {
+            owner.release();
+        }
+    }
+
+    private static class PendingWrite {
+        private final ByteBuffer[] buffers;
+        private final PooledBuffer owner;
+        private final long length;
+        private final long enqueueTime;
+
+        PendingWrite(ByteBuffer[] buffers, PooledBuffer owner, long enqueueTime) {
+            this.buffers = buffers;
+            this.owner = owner;
+            this.length = Buffers.remaining(buffers);
+            this.enqueueTime = enqueueTime;
+        }
+    }
+
+    /**
+     * 正在写的一批帧
+     * 1、这一批的帧
+     * 2、所有帧的各段buffer
+     * 3、帧数
+     * 4、buffers中第一个还没写完的下标
+     */
+    private static class Batch {
+        private final PendingWrite[] writes;
+        private final ByteBuffer[] buffers;
+        private final int count;
+        private int offset;
+
+        Batch(PendingWrite[] writes, ByteBuffer[] buffers, int count) {
+            this.writes = writes;
+            this.buffers = buffers;
+            this.count = count;
+        }
+
+        void release() {
+            for (int i = 0; i < count; i++) {
+                ChatSession.release(writes[i].owner);
+            }
+        }
+
+        /**
+         * 这一批都写完了，一起记下各帧从入队到现在的耗时
+         */
+        void written(ChatMetrics metrics) {
+            long now = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                metrics.written(now - writes[i].enqueueTime);
+            }
+        }
+    }
+
+    private class WriteHandler implements CompletionHandler<Long, Batch> {
+        @Override
+        public void completed(Long result, Batch batch) {
+            pendingBytes.addAndGet(-result);
+            metrics.bytesOut(result);
+            // 跳过已经写完的buffer，没写完就接着写这一批
+            while (batch.offset < batch.buffers.length && !batch.buffers[batch.offset].hasRemaining()) {
+                batch.offset++;
+            }
+            if (batch.offset < batch.buffers.length) {
+                channel.write(batch.buffers, batch.offset, batch.buffers.length - batch.offset,
+                        0L, TimeUnit.MILLISECONDS, batch, this);
+                return;
+            }
+            batch.written(metrics);
+            batch.release();
+            ShutdownReport report = ChatSession.this.report;
+            if (report != null) {
+                report.drained(batch.count);
+            }
+            writeNext();
+        }
+
+        @Override
+        public void failed(Throwable exc, Batch batch) {
+            batch.release();
+            dropped(batch.count);
+            close();
+        }
+    }
+}
@@ -14,7 +14,7 @@ public class Server {
      */
     private final static int DEFAULT_PORT = 8090;
     private int port;
-    private ServerSocket serverSocket;
+    private volatile ServerSocket serverSocket;
     private volatile boolean flag = true;
 
     public Server(int port) {
@@ -27,16 +27,19 @@ public class Server {
 
     public void start() {
         try {
-            serverSocket = new ServerSocket(8090);
+            serverSocket = new ServerSocket(port);
             System.out.println("服务器 --> 启动服务器，开始监听端口[" + port + "]");
-            while (true) {
+            while (flag) {
                 work();
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            // shutdown关闭了serverSocket，阻塞的accept会抛出SocketException
+            if (flag) {
+                e.printStackTrace();
+            }
         } finally {
             try {
-                if (null == serverSocket) {
+                if (null != serverSocket) {
                     serverSocket.close();
                 }
             } catch (IOException e) {
@@ -77,8 +80,18 @@ public class Server {
 
     }
 
+    /**
+     * 停止接收新连接，正在服务的客户端断开后start返回
+     */
     public void shutdown() {
         this.flag = false;
+        try {
+            if (null != serverSocket) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     public static void main(String[] args) {
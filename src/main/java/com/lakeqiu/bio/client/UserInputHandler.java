@@ -1,28 +1,44 @@
 package com.lakeqiu.bio.client;
 
-import java.io.BufferedReader;
+import com.lakeqiu.common.buffer.Buffers;
+import com.lakeqiu.common.codec.FrameReader;
+import com.lakeqiu.common.protocol.ChatProtocol;
+import com.lakeqiu.common.protocol.Opcode;
+
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.Socket;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
- * 负责接收服务器传递过来的信息并打印
+ * 负责接收服务器传递过来的信息并打印，服务器的心跳探测直接回复PONG
  * @author lakeqiu
  */
 public class UserInputHandler implements Runnable {
-    private BufferedReader reader;
+    private FrameReader reader;
+    private OutputStream writer;
+    private ChatProtocol protocol;
 
-    public UserInputHandler(BufferedReader reader) {
-        this.reader = reader;
+    public UserInputHandler(InputStream in, OutputStream writer, ChatProtocol protocol) {
+        this.reader = new FrameReader(in, protocol.frameCodec());
+        this.writer = writer;
+        this.protocol = protocol;
     }
 
     @Override
     public void run() {
         try {
 
-            String msg = null;
-            while ((msg = reader.readLine()) != null) {
-                System.out.println(msg);
+            ByteBuffer frame = null;
+            while ((frame = reader.next()) != null) {
+                if (protocol.opcode(frame) == Opcode.PING) {
+                    synchronized (writer) {
+                        writer.write(Buffers.toArray(protocol.encode(Opcode.PONG)));
+                        writer.flush();
+                    }
+                    continue;
+                }
+                System.out.println(protocol.text(frame));
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -1,9 +1,13 @@
 package com.lakeqiu.bio.server;
 
-import java.io.BufferedReader;
+import com.lakeqiu.common.codec.FrameReader;
+import com.lakeqiu.common.metrics.ChatMetrics;
+import com.lakeqiu.common.protocol.ChatProtocol;
+import com.lakeqiu.common.protocol.Opcode;
+
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 
 /**
  * 负责真正与客户进行通信
@@ -20,26 +24,48 @@ public class ChatHandler implements Runnable {
 
     @Override
     public void run() {
+        ClientSession session = null;
         try {
             // 将用户加入用户列表中
-            server.addClient(socket);
+            session = server.addClient(socket);
 
-            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            String msg = null;
-            while ((msg = reader.readLine()) != null) {
-                System.out.println("服务器：客户端[" + socket.getPort() + "]发送了：" + msg);
-                if (ChatServer.QUIT.equals(msg)) {
-                    // 关闭与用户的连接
-                    server.removeClient(socket);
-                    // 上面的知识关闭输出流，输入流也要关闭
-                    reader.close();
+            // 按协议切帧，累积缓冲区从512字节开始按需扩容，聊天消息很短，连接很多时不浪费内存
+            ChatProtocol protocol = server.protocol();
+            FrameReader reader = new FrameReader(socket.getInputStream(), protocol.frameCodec());
+            ChatMetrics metrics = server.metrics();
+            long bytesRead = 0;
+            ByteBuffer frame;
+            while ((frame = reader.next()) != null) {
+                long decodedAt = System.nanoTime();
+                metrics.bytesIn(reader.bytesRead() - bytesRead);
+                bytesRead = reader.bytesRead();
+                metrics.frameDecoded(reader.lastDecodeNanos());
+                Opcode opcode = protocol.opcode(frame);
+                if (opcode == Opcode.QUIT) {
                     break;
                 }
+                // 客户端的PING按顺序回复PONG，客户端收到时就知道前面的消息都处理完了
+                if (opcode == Opcode.PING) {
+                    server.pong(session);
+                    continue;
+                }
+                if (opcode == Opcode.PONG) {
+                    continue;
+                }
+                ByteBuffer msg = protocol.payload(frame);
+                if (opcode == Opcode.COMMAND && server.commandAffair(session, msg)) {
+                    continue;
+                }
 
-                server.forwardMsg(socket,msg);
+                server.forwardMsg(session, msg, decodedAt);
             }
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            // 主动退出、断开和异常都要把用户从列表中移除并关闭连接
+            if (session != null) {
+                server.removeClient(session);
+            }
         }
     }
 }
@@ -0,0 +1,52 @@
+package com.lakeqiu.bio.server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * 每个连接的ChatHandler跑在什么线程上
+ * 两种模式都是一个连接一个线程，ChatHandler照样阻塞在readLine上
+ * @author lakeqiu
+ */
+public enum ThreadMode {
+    /**
+     * 平台线程，每个线程对应一个操作系统线程，栈在创建时就预留好，
+     * 连接数上千之后内存和调度开销都很可观
+     */
+    PLATFORM {
+        @Override
+        Executor newExecutor() {
+            return runnable -> new Thread(runnable).start();
+        }
+    },
+    /**
+     * 虚拟线程，需要JDK 21及以上
+     * 阻塞在socket上时会让出载体线程，栈按需增长并保存在堆上，十万个空闲连接也只占少量内存
+     */
+    VIRTUAL {
+        @Override
+        Executor newExecutor() {
+            // 项目按JDK 8编译，所以通过反射调用Executors.newVirtualThreadPerTaskExecutor
+            try {
+                Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (Executor) method.invoke(null);
+            } catch (NoSuchMethodException e) {
+                throw new UnsupportedOperationException("虚拟线程需要JDK 21及以上版本，当前版本："
+                        + System.getProperty("java.version"));
+            } catch (InvocationTargetException e) {
+                // JDK 19、20中虚拟线程还是预览特性，没有开启--enable-preview时会抛UnsupportedOperationException
+                throw new UnsupportedOperationException("当前JDK不支持虚拟线程", e.getCause());
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /**
+     * @return 每提交一个任务就启动一个新线程的Executor
+     * @throws UnsupportedOperationException 当前JDK不支持这种线程
+     */
+    abstract Executor newExecutor();
+}
@@ -1,7 +1,12 @@
 package com.lakeqiu.bioPool.client;
 
+import com.lakeqiu.common.buffer.Buffers;
+import com.lakeqiu.common.protocol.ChatProtocol;
+import com.lakeqiu.common.protocol.Opcode;
+
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 
 /**
  * 客户端，主要负责等待用户输入信息并发送给服务器
@@ -11,10 +16,19 @@ public class ChatClient {
     private final static String DEFAULT_SERVER_HOST = "127.0.0.1";
     private final static Integer DEFAULT_SERVER_PORT = 8090;
     private final static String QUIT = "quit";
+    private final static int MAX_FRAME_LENGTH = 1024 * 1024;
 
     private Socket socket;
-    private BufferedWriter writer;
-    private BufferedReader reader;
+    private OutputStream writer;
+    private InputStream reader;
+    private ChatProtocol protocol = ChatProtocol.fromProperty(MAX_FRAME_LENGTH);
+
+    /**
+     * 设置线上协议，需要在start之前调用，要与服务器一致
+     */
+    public void setProtocol(ChatProtocol protocol) {
+        this.protocol = protocol;
+    }
 
     private void work() throws IOException {
         // 获取向服务器的输出流
@@ -22,9 +36,11 @@ public class ChatClient {
         BufferedReader consoleReader = new BufferedReader(new InputStreamReader(System.in));
         while (true) {
             String msg = consoleReader.readLine();
-            // 发送给服务器
-            writer.write(msg + "\n");
-            writer.flush();
+            // 按协议编码后发送给服务器，接收线程回复心跳时也用这个流，加锁免得两帧交错
+            synchronized (writer) {
+                writer.write(Buffers.toArray(protocol.encode(Opcode.ofInput(msg), 0, StandardCharsets.UTF_8.encode(msg))));
+                writer.flush();
+            }
             if (QUIT.equals(msg)) {
                 consoleReader.close();
                 System.out.println("客户端：关闭客户端");
@@ -37,11 +53,11 @@ public class ChatClient {
         try {
             this.socket = new Socket(DEFAULT_SERVER_HOST, DEFAULT_SERVER_PORT);
             // 获取流
-            writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            writer = socket.getOutputStream();
+            reader = socket.getInputStream();
             System.out.println("客户端：已经连接到服务器");
             // 将接受信息的线程设置为守护线程
-            Thread thread = new Thread(new UserInputHandler(reader));
+            Thread thread = new Thread(new UserInputHandler(reader, writer, protocol));
             thread.setDaemon(true);
             thread.start();
             // 这是个阻塞方法，所以要最后开启
@@ -1,126 +1,623 @@
 package com.lakeqiu.bioPool.server;
 
-import java.io.BufferedWriter;
+import com.lakeqiu.common.buffer.Buffers;
+import com.lakeqiu.common.lifecycle.Lifecycle;
+import com.lakeqiu.common.lifecycle.ShutdownReport;
+import com.lakeqiu.common.log.MessageLog;
+import com.lakeqiu.common.metrics.ChatMetrics;
+import com.lakeqiu.common.metrics.MetricsEndpoint;
+import com.lakeqiu.common.protocol.ChatProtocol;
+import com.lakeqiu.common.protocol.Opcode;
+import com.lakeqiu.common.session.NicknameRegistry;
+import com.lakeqiu.common.session.RoomHistory;
+import com.lakeqiu.common.session.RoomRegistry;
+import com.lakeqiu.common.session.SessionRegistry;
+
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.nio.channels.SelectionKey;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 负责接收请求并转发
  * @author lakeqiu
  */
-public class ChatServer {
+public class ChatServer implements Lifecycle {
     /**
      *  1、默认监听端口
-     *  2、客户端退出命令
-     *  3、存储用户信息map，<标识用户端口，输出流>
-     *  4、服务器socket
+     *  2、线程池默认参数：核心线程数、最大线程数、空闲线程存活时间（秒）、队列类型和容量、拒绝策略
+     *  3、默认单条消息的最大长度
+     *  4、用户注册表，按会话id索引，加入、离开和广播都不加全局锁
+     *  5、服务器socket
+     *  6、端口
+     *  7、线程池参数，在start时才创建线程池
+     *  8、线程池
+     *  9、线上协议，默认由系统属性com.lakeqiu.chat.protocol决定
+     *  10、房间索引，消息只转发给同一个房间的用户；每个房间最近的消息，新加入房间的用户先收到
+     *  11、昵称索引，私聊时按昵称找到接收方
+     *  12、main方法里收到退出信号后排空消息的期限（秒）
+     *  13、接收连接的线程
+     *  14、是否正在关闭，关闭开始后新连接一注册就停止读取
+     *  15、关闭报告，没有在关闭时为null
+     *  16、等待所有用户退出时用的锁
+     *  17、关闭完成
+     *  18、消息日志，转发的每一帧都存下来，默认由系统属性com.lakeqiu.chat.log决定，为null时不保存
+     *  19、每次/replay最多补收的字节数
+     *  20、指标，读、切帧、转发、写的路径上累加；导出指标的HTTP端口，默认由系统属性com.lakeqiu.chat.metrics决定，为0时不开启
      */
     private final static Integer DEFAULT_PORT = 8090;
-    protected final static String QUIT = "quit";
-    private final Map<Integer, Writer> clientMap;
+    private final static int DEFAULT_CORE_POOL_SIZE = 20;
+    private final static int DEFAULT_MAXIMUM_POOL_SIZE = 50;
+    private final static long DEFAULT_KEEP_ALIVE_SECONDS = 60;
+    private final static QueueType DEFAULT_QUEUE_TYPE = QueueType.ARRAY;
+    private final static int DEFAULT_QUEUE_CAPACITY = 100;
+    private final static RejectPolicy DEFAULT_REJECT_POLICY = RejectPolicy.BUSY_REPLY;
+    private final static int DEFAULT_MAX_FRAME_LENGTH = 1024 * 1024;
+    private final SessionRegistry<ClientSession> registry;
+    private final RoomRegistry<ClientSession> rooms = new RoomRegistry<>();
+    private final RoomHistory history = new RoomHistory();
+    private final NicknameRegistry<ClientSession> nicknames = new NicknameRegistry<>();
     private ServerSocket serverSocket;
+    private final int port;
+    private int corePoolSize = DEFAULT_CORE_POOL_SIZE;
+    private int maximumPoolSize = DEFAULT_MAXIMUM_POOL_SIZE;
+    private long keepAliveSeconds = DEFAULT_KEEP_ALIVE_SECONDS;
+    private QueueType queueType = DEFAULT_QUEUE_TYPE;
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private RejectPolicy rejectPolicy = DEFAULT_REJECT_POLICY;
+    private volatile MonitoredThreadPoolExecutor poolExecutor;
+    private ChatProtocol protocol = ChatProtocol.fromProperty(DEFAULT_MAX_FRAME_LENGTH);
+    private final static long DEFAULT_SHUTDOWN_SECONDS = 10;
+    private Thread acceptor;
+    private volatile boolean stopping;
+    private volatile ShutdownReport shutdownReport;
+    private final Object drainLock = new Object();
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private MessageLog messageLog = MessageLog.fromProperty();
+    private final static int MAX_REPLAY_BYTES = 256 * 1024;
+    private final ChatMetrics metrics = new ChatMetrics("bioPool");
+    private int metricsPort = MetricsEndpoint.portFromProperty();
 
+    public ChatServer() {
+        this(DEFAULT_PORT);
+    }
 
-    private ThreadPoolExecutor poolExecutor = new ThreadPoolExecutor(20, 50, 60, TimeUnit.SECONDS,
-            new ArrayBlockingQueue<Runnable>(100), runnable -> new Thread(runnable));
+    public ChatServer(int port) {
+        this.port = port;
+        this.registry = new SessionRegistry<>();
+    }
 
+    /**
+     * 设置线程数，需要在start之前调用
+     * 每个连接会一直占着一个线程，所以最多同时服务maximumPoolSize个用户，其余的在队列里等
+     */
+    public void setPoolSize(int corePoolSize, int maximumPoolSize) {
+        if (corePoolSize < 0 || maximumPoolSize <= 0 || maximumPoolSize < corePoolSize) {
+            throw new IllegalArgumentException("corePoolSize: " + corePoolSize + ", maximumPoolSize: " + maximumPoolSize);
+        }
+        this.corePoolSize = corePoolSize;
+        this.maximumPoolSize = maximumPoolSize;
+    }
 
-    public ChatServer() {
-        this.clientMap = new HashMap<>();
+    /**
+     * 设置超过核心线程数的线程空闲多久后回收，需要在start之前调用
+     */
+    public void setKeepAliveSeconds(long keepAliveSeconds) {
+        this.keepAliveSeconds = keepAliveSeconds;
+    }
+
+    /**
+     * 设置任务队列，需要在start之前调用
+     * @param queueType 队列类型
+     * @param queueCapacity 容量，SYNCHRONOUS时忽略
+     */
+    public void setQueue(QueueType queueType, int queueCapacity) {
+        if (queueType != QueueType.SYNCHRONOUS && queueCapacity <= 0) {
+            throw new IllegalArgumentException("queueCapacity: " + queueCapacity);
+        }
+        this.queueType = queueType;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * 设置线程池满了之后的拒绝策略，需要在start之前调用
+     */
+    public void setRejectPolicy(RejectPolicy rejectPolicy) {
+        this.rejectPolicy = rejectPolicy;
+    }
+
+    /**
+     * 设置线上协议，需要在start之前调用
+     * @param protocol 文本协议TextProtocol或二进制协议BinaryProtocol
+     */
+    public void setProtocol(ChatProtocol protocol) {
+        this.protocol = protocol;
+    }
+
+    /**
+     * 设置每个房间保存多少条最近的消息，新加入的用户先收到它们，需要在start之前调用
+     * @param frames 最多保存的消息数，为0时不保存
+     * @param bytes 最多保存的字节数，包括帧头
+     */
+    public void setHistoryLimit(int frames, int bytes) {
+        history.setLimit(frames, bytes);
+    }
+
+    /**
+     * 设置消息日志，转发的每一帧都存下来，用户可以用/replay从某个序号开始补收，需要在start之前调用
+     * 服务器在start时打开它，关闭时把剩下的记录落盘并关闭它
+     * @param messageLog 为null时不保存
+     */
+    public void setMessageLog(MessageLog messageLog) {
+        this.messageLog = messageLog;
+    }
+
+    /**
+     * 设置导出指标的HTTP端口，GET /metrics返回Prometheus的文本格式，需要在start之前调用
+     * @param port 为0时不开启
+     */
+    public void setMetricsPort(int port) {
+        this.metricsPort = port;
+    }
+
+    public ChatMetrics metrics() {
+        return metrics;
+    }
+
+    public ChatProtocol protocol() {
+        return protocol;
+    }
+
+    /**
+     * @return 线程池，可以读取活跃线程数、排队数、拒绝数、完成数和等待时间，start之前为null
+     */
+    public MonitoredThreadPoolExecutor poolExecutor() {
+        return poolExecutor;
     }
 
     /**
      * 用户连接服务器
      * 将用户添加到用户列表中
      * @param socket
+     * @return 这个用户的会话
      * @throws IOException
      */
-    public synchronized void addClient(Socket socket) throws IOException {
-        if (null != socket) {
-            int port = socket.getPort();
-            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            clientMap.put(port, writer);
-            System.out.println("服务器：用户[" + port + "]连接到服务器");
+    public ClientSession addClient(Socket socket) throws IOException {
+        ClientSession session = new ClientSession(registry.nextId(), socket);
+        registry.register(session);
+        metrics.connectionOpened();
+        rooms.join(session, RoomRegistry.LOBBY);
+        replay(session, RoomRegistry.LOBBY);
+        // 默认昵称是端口，与转发的消息前面显示的一致
+        String nickname = nicknames.register(session, String.valueOf(session.port()));
+        System.out.println("服务器：用户[" + session.port() + "]连接到服务器，会话id[" + session.id() + "]，昵称[" + nickname + "]");
+        // 注册之前服务器就开始关闭了，stop没有看到这个用户，由它自己停止读取
+        if (stopping) {
+            shutdownInput(session);
         }
+        return session;
     }
 
     /**
-     * 用户主动断开连接，关闭这个socket
-     * @param socket
-     * @throws IOException
+     * 用户断开连接，从用户列表中移除并关闭这个socket
+     * @param session
      */
-    public synchronized void removeClient(Socket socket) throws IOException {
-        if (null != socket) {
-            int port = socket.getPort();
-            if (clientMap.containsKey(port)) {
-                // 关闭了write，内部的流jdk也会帮我们关闭
-                clientMap.get(port).close();
+    public void removeClient(ClientSession session) {
+        // 转发失败时会在别的用户的线程里移除，这个用户自己的线程最后还会再移除一次，
+        // 所以每次都要从房间中移除，保证在它自己的线程里加入的房间也被清理掉
+        vacated(rooms.remove(session));
+        nicknames.remove(session);
+        // 用户已经断开连接，从用户列表中移除，重复移除时什么也不做
+        ShutdownReport report = shutdownReport;
+        if (!unregister(session, report)) {
+            return;
+        }
+        metrics.connectionClosed();
+        try {
+            session.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        System.out.println("服务器：用户[" + session.port() + "]断开连接");
+    }
+
+    /**
+     * 从注册表中移除
+     * 关闭过程中移除和计数放在同一个锁里，stop看到注册表空了的时候，关闭的连接数也已经算好了
+     * @return 是否真正移除了，重复移除时返回false
+     */
+    private boolean unregister(ClientSession session, ShutdownReport report) {
+        if (report == null) {
+            return registry.unregister(session);
+        }
+        synchronized (drainLock) {
+            if (!registry.unregister(session)) {
+                return false;
             }
-            // 用户已经断开连接，从用户列表中移除
-            clientMap.remove(port);
-            System.out.println("服务器：用户[" + port + "]断开连接");
+            report.sessionClosed();
+            drainLock.notifyAll();
+            return true;
         }
     }
 
     /**
-     * 向其他用户转发这个用户的发言
-     * @param socket 这个用户
-     * @param msg 发言
-     * @throws IOException
+     * 发送一帧，写失败说明接收方已经断开，把它移除，不影响发给其他用户
+     * 关闭过程中顺便统计写出去和丢弃的消息数；没有发送队列，写的耗时就是这一次阻塞写的时间
+     */
+    private void send(ClientSession session, byte[] frame) {
+        ShutdownReport report = shutdownReport;
+        long start = System.nanoTime();
+        try {
+            boolean sent = session.send(frame);
+            if (sent) {
+                metrics.written(System.nanoTime() - start);
+                metrics.bytesOut(frame.length);
+            } else {
+                metrics.dropped(1);
+            }
+            if (report != null) {
+                if (sent) {
+                    report.drained(1);
+                } else {
+                    report.dropped(1);
+                }
+            }
+        } catch (IOException e) {
+            metrics.dropped(1);
+            if (report != null) {
+                report.dropped(1);
+            }
+            removeClient(session);
+        }
+    }
+
+    /**
+     * 向同一个房间的其他用户转发这个用户的发言
+     * 只遍历这个房间的成员，不加锁，遍历时有用户加入或离开也不会抛ConcurrentModificationException
+     * 发言不解码，加上帧头和帧边界拼成一个数组，所有接收方写同一个数组
+     * @param sender 这个用户
+     * @param msg 发言，只在这个方法调用期间有效
+     * @param decodedAt 切出这一帧的时间，纳秒，写完所有接收方后记下转发的耗时
+     */
+    public void forwardMsg(ClientSession sender, ByteBuffer msg, long decodedAt) {
+        String room = rooms.roomOf(sender);
+        if (room == null) {
+            return;
+        }
+        byte[] frame = Buffers.toArray(protocol.encode(sender.header(protocol), msg));
+        ByteBuffer[] encoded = {ByteBuffer.wrap(frame)};
+        history.record(room, encoded);
+        if (messageLog != null) {
+            messageLog.append(room, encoded);
+        }
+        int receivers = 0;
+        for (ClientSession session : rooms.members(room)) {
+            if (session.id() != sender.id()) {
+                send(session, frame);
+                receivers++;
+            }
+        }
+        metrics.forwarded(receivers, System.nanoTime() - decodedAt);
+    }
+
+    /**
+     * 处理命令，只会在这个用户自己的ChatHandler线程中调用
+     * /join 房间名：离开当前房间，加入另一个房间，房间不存在时创建
+     * /leave：离开当前房间，回到大厅
+     * /msg 昵称 内容：私聊，只发给这一个用户
+     * /nick 昵称：改名
+     * /replay [序号]：从这个序号开始补收所在房间的消息，没有序号时只回复当前序号
+     * @param session 发送命令的用户
+     * @param command 命令
+     * @return 是否是认识的命令，不认识的按普通消息转发
+     */
+    public boolean commandAffair(ClientSession session, ByteBuffer command) {
+        String[] args = StandardCharsets.UTF_8.decode(command.duplicate()).toString().trim().split(" +", 3);
+        switch (args[0]) {
+            case "/join":
+                if (args.length != 2) {
+                    reply(session, "用法：/join 房间名");
+                    return true;
+                }
+                try {
+                    vacated(rooms.join(session, args[1]));
+                    reply(session, "已经进入房间[" + args[1] + "]");
+                    replay(session, args[1]);
+                } catch (IllegalArgumentException e) {
+                    reply(session, e.getMessage());
+                }
+                return true;
+            case "/leave":
+                vacated(rooms.leave(session));
+                reply(session, "已经回到大厅");
+                replay(session, RoomRegistry.LOBBY);
+                return true;
+            case "/msg":
+                ByteBuffer text = ChatProtocol.skipWords(command, 2);
+                if (text == null) {
+                    reply(session, "用法：/msg 昵称 内容");
+                    return true;
+                }
+                directMsg(session, args[1], text);
+                return true;
+            case "/nick":
+                if (args.length != 2) {
+                    reply(session, "用法：/nick 昵称");
+                    return true;
+                }
+                try {
+                    boolean renamed = nicknames.rename(session, args[1]);
+                    reply(session, renamed ? "昵称已经改为[" + args[1] + "]" : "昵称[" + args[1] + "]已经被占用");
+                } catch (IllegalArgumentException e) {
+                    reply(session, e.getMessage());
+                }
+                return true;
+            case "/replay":
+                replayLog(session, args);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 从消息日志里补收所在房间的消息，读出来的就是转发时编码好的帧，原样写出去
+     * 一次最多补收MAX_REPLAY_BYTES字节，最后回复下一次应该从哪个序号开始，用户接着发/replay直到序号不再变化
+     */
+    private void replayLog(ClientSession session, String[] args) {
+        if (messageLog == null) {
+            reply(session, "服务器没有保存消息");
+            return;
+        }
+        if (args.length == 1) {
+            reply(session, "当前序号[" + messageLog.nextSequence() + "]");
+            return;
+        }
+        long from;
+        try {
+            from = Long.parseLong(args[1]);
+        } catch (NumberFormatException e) {
+            reply(session, "用法：/replay 序号");
+            return;
+        }
+        ByteBuffer frames = ByteBuffer.allocate(MAX_REPLAY_BYTES);
+        long next = messageLog.read(from, rooms.roomOf(session), frames);
+        if (frames.position() > 0) {
+            send(session, Arrays.copyOf(frames.array(), frames.position()));
+        }
+        reply(session, "下次从序号[" + next + "]开始补收");
+    }
+
+    /**
+     * 私聊：按昵称查一次索引，只写给这一个用户，不遍历其他用户
+     * @param sender 发送者
+     * @param nickname 接收方的昵称
+     * @param text 内容，不解码，只在这个方法调用期间有效
+     */
+    private void directMsg(ClientSession sender, String nickname, ByteBuffer text) {
+        ClientSession target = nicknames.get(nickname);
+        if (target == null) {
+            reply(sender, "没有昵称为[" + nickname + "]的用户");
+            return;
+        }
+        ByteBuffer header = protocol.header(Opcode.DIRECT, sender.id(), sender.port());
+        send(target, Buffers.toArray(protocol.encode(header, text)));
+    }
+
+    /**
+     * 用户离开了房间，房间空了就释放它的历史，是否空了在RoomHistory里和删除一起判断
+     */
+    private void vacated(String room) {
+        if (room != null) {
+            history.removeIfVacant(room, rooms::hasMembers);
+        }
+    }
+
+    /**
+     * 新加入房间的用户先收到房间里最近的消息，存的就是编码好的帧，一次写出去
+     * 直接复制成数组，不拿池化的缓冲区：在连接自己的线程上释放会一直留在这个线程的缓存里
+     */
+    private void replay(ClientSession session, String room) {
+        byte[] frames = history.copy(room);
+        if (frames != null) {
+            send(session, frames);
+        }
+    }
+
+    /**
+     * 给用户回一条服务器消息
+     */
+    private void reply(ClientSession session, String msg) {
+        send(session, Buffers.toArray(protocol.encode(Opcode.NOTICE, 0, StandardCharsets.UTF_8.encode(msg))));
+    }
+
+    /**
+     * 回复客户端的PING
+     */
+    void pong(ClientSession session) {
+        send(session, Buffers.toArray(protocol.encode(Opcode.PONG)));
+    }
+
+    /**
+     * 关闭连接的输入端，不再读取新消息，输出端照常可以写
+     */
+    private static void shutdownInput(ClientSession session) {
+        try {
+            session.socket().shutdownInput();
+        } catch (IOException e) {
+            // 连接已经断开了，ChatHandler会自己移除它
+        }
+    }
+
+    /**
+     * 等所有用户都退出
+     * @return 是否在期限内都退出了
      */
-    public void forwardMsg(Socket socket, String msg) throws IOException {
-        /*clientMap.entrySet().stream().filter(k -> k.getKey() != socket.getPort())
-                .forEach(m -> m.getValue().write(msg));*/
-        for (Map.Entry<Integer, Writer> entry : clientMap.entrySet()) {
-            if (!entry.getKey().equals(socket.getPort())) {
-                Writer writer = entry.getValue();
-                writer.write(socket.getPort() + ":" + msg + "\n");
-                writer.flush();
+    private boolean awaitSessions(ShutdownReport report, long timeout, TimeUnit unit) {
+        synchronized (drainLock) {
+            while (registry.size() > 0) {
+                long remaining = report.remainingNanos(timeout, unit);
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(drainLock, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
             }
         }
+        return true;
     }
 
     private void close() {
         if (serverSocket != null) {
             try {
                 serverSocket.close();
-                System.out.println("服务器：服务器已经关闭");
+                System.out.println("服务器：停止接收新连接");
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
     }
 
-    public void start() {
+    /**
+     * 绑定端口，创建线程池，在单独的线程中接收连接
+     */
+    @Override
+    public synchronized void start() throws IOException {
+        if (serverSocket != null) {
+            throw new IllegalStateException("服务器已经启动");
+        }
+        if (messageLog != null) {
+            messageLog.open();
+        }
+        serverSocket = new ServerSocket(port);
+        AtomicInteger threadNumber = new AtomicInteger();
+        poolExecutor = new MonitoredThreadPoolExecutor(corePoolSize, maximumPoolSize, keepAliveSeconds, TimeUnit.SECONDS,
+                queueType.newQueue(queueCapacity),
+                runnable -> new Thread(runnable, "bio-pool-" + threadNumber.incrementAndGet()),
+                rejectPolicy.newHandler());
+        registerPoolMetrics();
+        metrics.openEndpoint(metricsPort);
+        System.out.println("服务器：服务器已经启动，监听端口[" + port + "]，线程池[" + corePoolSize + "-"
+                + maximumPoolSize + "]，队列[" + queueType + "]，拒绝策略[" + rejectPolicy + "]");
+        acceptor = new Thread(this::acceptLoop, "bio-pool-acceptor");
+        acceptor.start();
+    }
+
+    /**
+     * 线程池的状态在抓取时才读，getActiveCount、getCompletedTaskCount要加线程池的主锁，只在抓取时调用
+     * 等待时间在每个连接开始运行时记进直方图，定线程数和队列长度时看它的分位数
+     */
+    private void registerPoolMetrics() {
+        MonitoredThreadPoolExecutor executor = poolExecutor;
+        metrics.gauge("chat_pool_active_threads", "正在服务连接的线程数", executor::getActiveCount);
+        metrics.gauge("chat_pool_queued_connections", "在线程池队列里等线程的连接数", executor::getQueuedCount);
+        metrics.gauge("chat_pool_rejected_connections", "线程池一共拒绝的连接数", executor::getRejectedCount);
+        metrics.registry().counter("chat_pool_completed_tasks_total", "线程池服务完的连接数",
+                executor::getCompletedTaskCount);
+        executor.setWaitHistogram(metrics.registry().histogram("chat_pool_wait_seconds",
+                "连接从提交到线程池到开始被线程服务的时间"));
+    }
+
+    private void acceptLoop() {
         try {
-            serverSocket = new ServerSocket(DEFAULT_PORT);
-            System.out.println("服务器：服务器已经启动，监听端口[" + DEFAULT_PORT + "]");
-            while (true) {
+            while (!stopping) {
                 Socket accept = serverSocket.accept();
-                // 将用户传递给Handler线程
-                poolExecutor.submit(new ChatHandler(this, accept));
+                // 将用户传递给Handler线程，用execute而不是submit，任务抛出的异常不会被Future吞掉
+                try {
+                    poolExecutor.execute(new ChatHandler(this, accept));
+                } catch (RejectedExecutionException e) {
+                    // 拒绝策略没能处理，关闭这个连接，不影响继续接收
+                    accept.close();
+                    System.out.println("服务器：拒绝客户端[" + accept.getPort() + "]：" + e.getMessage());
+                }
             }
         } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            close();
+            // stop关闭服务器socket时accept会抛出SocketException，是正常退出
+            if (!stopping) {
+                e.printStackTrace();
+                stop(0, TimeUnit.MILLISECONDS);
+            }
         }
     }
 
-    public static void main(String[] args) {
-        ChatServer chatServer = new ChatServer();
-        chatServer.start();
+    /**
+     * 优雅关闭
+     * 1、关闭服务器socket，不再接收新连接；还在队列里没轮到线程的连接直接关闭
+     * 2、关闭每个连接的输入端，ChatHandler把手上的消息转发完就会读到结束，然后自己移除这个用户，
+     *    这期间转发出去的消息都算排空
+     * 3、到期还没退出的连接多半是接收方太慢，写被阻塞住了，直接关闭，阻塞的写会抛出异常
+     * 4、关闭线程池，等线程都退出
+     */
+    @Override
+    public synchronized ShutdownReport stop(long timeout, TimeUnit unit) {
+        if (shutdownReport != null) {
+            return shutdownReport;
+        }
+        ShutdownReport report = new ShutdownReport();
+        shutdownReport = report;
+        stopping = true;
+        close();
+        if (poolExecutor != null) {
+            List<Runnable> queued = new ArrayList<>();
+            poolExecutor.getQueue().drainTo(queued);
+            for (Runnable runnable : queued) {
+                Runnable task = MonitoredThreadPoolExecutor.unwrap(runnable);
+                if (task instanceof ChatHandler) {
+                    try {
+                        ((ChatHandler) task).socket().close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    report.sessionClosed();
+                }
+            }
+        }
+        registry.forEach(ChatServer::shutdownInput);
+        boolean timedOut = !awaitSessions(report, timeout, unit);
+        for (ClientSession session : registry.sessions()) {
+            removeClient(session);
+        }
+        if (poolExecutor != null) {
+            poolExecutor.shutdown();
+            try {
+                // 连接都关闭了，线程很快就会退出
+                poolExecutor.awaitTermination(Math.max(0, report.remainingNanos(timeout, unit)), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            System.out.println("服务器：" + poolExecutor);
+        }
+        if (messageLog != null) {
+            messageLog.close();
+            System.out.println("服务器：" + messageLog);
+        }
+        metrics.closeEndpoint();
+        System.out.println("服务器：" + metrics);
+        report.complete(timedOut);
+        System.out.println("服务器：服务器已经关闭，" + report);
+        terminated.countDown();
+        return report;
     }
 
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
 
-
+    public static void main(String[] args) throws IOException, InterruptedException {
+        ChatServer chatServer = new ChatServer();
+        Lifecycle.runUntilShutdown(chatServer, DEFAULT_SHUTDOWN_SECONDS, TimeUnit.SECONDS);
+    }
 }
@@ -0,0 +1,98 @@
+package com.lakeqiu.bioPool.server;
+
+import com.lakeqiu.common.protocol.ChatProtocol;
+import com.lakeqiu.common.protocol.Opcode;
+import com.lakeqiu.common.session.Session;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 一个客户端连接
+ * 会有多个ChatHandler线程同时向它转发消息，所以写入加在这个连接自己的锁上，
+ * 只会和同时写给这一个用户的线程竞争，不会影响其他用户的加入、离开和广播
+ * 关闭不加锁：写锁可能正被一个阻塞在慢接收方上的写占着，关闭socket正是为了让那个写抛出异常
+ * @author lakeqiu
+ */
+public class ClientSession implements Session {
+    /**
+     * 1、会话id，由注册表分配
+     * 2、与客户端的socket
+     * 3、客户端端口，显示在转发的消息前面
+     * 4、输出流，每帧都已经拼成一个数组，一次write写完，不需要再套一层缓冲
+     * 5、是否已经关闭，不加锁读写
+     * 6、转发这个用户的消息时的帧头，编码一次之后一直复用
+     */
+    private final long id;
+    private final Socket socket;
+    private final int port;
+    private final OutputStream out;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private ByteBuffer header;
+
+    public ClientSession(long id, Socket socket) throws IOException {
+        this.id = id;
+        this.socket = socket;
+        this.port = socket.getPort();
+        this.out = socket.getOutputStream();
+    }
+
+    @Override
+    public long id() {
+        return id;
+    }
+
+    public Socket socket() {
+        return socket;
+    }
+
+    public int port() {
+        return port;
+    }
+
+    /**
+     * 只会被这个用户自己的ChatHandler线程调用
+     * @return 只读的帧头，所有消息共享，不能直接修改
+     */
+    public ByteBuffer header(ChatProtocol protocol) {
+        if (header == null) {
+            header = protocol.header(Opcode.MESSAGE, id, port);
+        }
+        return header;
+    }
+
+    /**
+     * 发送一帧
+     * @param frame 编码好的帧，所有接收方共享，不能修改
+     * @return 是否发送了，连接已经关闭时返回false
+     * @throws IOException 写失败，连接没有被关闭，说明接收方已经断开
+     */
+    public synchronized boolean send(byte[] frame) throws IOException {
+        if (closed.get()) {
+            return false;
+        }
+        try {
+            out.write(frame);
+            return true;
+        } catch (IOException e) {
+            // 阻塞的写被close关掉了socket，不算写失败
+            if (closed.get()) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 关闭连接，可以在任何线程调用，不等写锁，正阻塞在写上的线程会抛出异常退出，重复调用时什么也不做
+     */
+    public void close() throws IOException {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        socket.close();
+    }
+}
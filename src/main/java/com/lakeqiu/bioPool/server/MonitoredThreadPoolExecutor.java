@@ -0,0 +1,130 @@
+package com.lakeqiu.bioPool.server;
+
+import com.lakeqiu.common.metrics.Histogram;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 带统计的线程池，用来给线程数和队列长度定容量
+ * 除了ThreadPoolExecutor本身提供的活跃线程数、完成任务数，还统计被拒绝的次数和任务在队列中等待的时间
+ * 任务提交时会被包一层记录提交时间，开始运行时算出等待时间，CALLER_RUNS在接收线程中运行的任务也会统计；
+ * 设置了直方图时每次等待时间也记进直方图，导出后可以看分位数，不只是平均值和最大值
+ * @author lakeqiu
+ */
+public class MonitoredThreadPoolExecutor extends ThreadPoolExecutor {
+    /**
+     * 1、被拒绝的任务数，不管拒绝策略最后怎么处理
+     * 2、开始运行的任务数
+     * 3、所有任务等待时间之和，纳秒
+     * 4、最长的等待时间，纳秒
+     * 5、等待时间的直方图，没有设置时为null
+     */
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder started = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private volatile long maxWaitNanos;
+    private volatile Histogram waitHistogram;
+
+    public MonitoredThreadPoolExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit,
+                                       BlockingQueue<Runnable> workQueue, ThreadFactory threadFactory,
+                                       RejectedExecutionHandler handler) {
+        super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, threadFactory, handler);
+        // 先计数再交给真正的拒绝策略
+        setRejectedExecutionHandler((runnable, executor) -> {
+            rejected.increment();
+            handler.rejectedExecution(runnable, executor);
+        });
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        super.execute(new TimedTask(command));
+    }
+
+    /**
+     * @return 提交时传入的原始任务
+     */
+    static Runnable unwrap(Runnable runnable) {
+        return runnable instanceof TimedTask ? ((TimedTask) runnable).task : runnable;
+    }
+
+    /**
+     * 设置记录等待时间的直方图，需要在提交任务之前调用
+     */
+    public void setWaitHistogram(Histogram waitHistogram) {
+        this.waitHistogram = waitHistogram;
+    }
+
+    private void recordWait(long waitNanos) {
+        started.increment();
+        totalWaitNanos.add(waitNanos);
+        Histogram histogram = waitHistogram;
+        if (histogram != null) {
+            histogram.record(waitNanos);
+        }
+        // 只有在刷新最大值时才需要同步
+        if (waitNanos > maxWaitNanos) {
+            synchronized (this) {
+                if (waitNanos > maxWaitNanos) {
+                    maxWaitNanos = waitNanos;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return 队列中等待运行的任务数
+     */
+    public int getQueuedCount() {
+        return getQueue().size();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return 平均等待时间，毫秒
+     */
+    public double getAverageWaitMillis() {
+        long count = started.sum();
+        return count == 0 ? 0 : totalWaitNanos.sum() / 1e6 / count;
+    }
+
+    /**
+     * @return 最长等待时间，毫秒
+     */
+    public double getMaxWaitMillis() {
+        return maxWaitNanos / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("线程池{线程数=%d, 活跃=%d, 最大=%d, 排队=%d, 拒绝=%d, 完成=%d, 平均等待=%.2fms, 最长等待=%.2fms}",
+                getPoolSize(), getActiveCount(), getLargestPoolSize(), getQueuedCount(), getRejectedCount(),
+                getCompletedTaskCount(), getAverageWaitMillis(), getMaxWaitMillis());
+    }
+
+    /**
+     * 记录提交时间的任务
+     */
+    private class TimedTask implements Runnable {
+        private final Runnable task;
+        private final long submitNanos = System.nanoTime();
+
+        TimedTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            recordWait(System.nanoTime() - submitNanos);
+            task.run();
+        }
+    }
+}
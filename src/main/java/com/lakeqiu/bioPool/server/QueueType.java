@@ -0,0 +1,42 @@
+package com.lakeqiu.bioPool.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+
+/**
+ * 线程池的任务队列类型
+ * @author lakeqiu
+ */
+public enum QueueType {
+    /**
+     * 有界数组队列，容量固定，入队出队共用一把锁
+     */
+    ARRAY {
+        @Override
+        BlockingQueue<Runnable> newQueue(int capacity) {
+            return new ArrayBlockingQueue<>(capacity);
+        }
+    },
+    /**
+     * 有界链表队列，入队和出队各有一把锁，并发高时竞争更小
+     */
+    LINKED {
+        @Override
+        BlockingQueue<Runnable> newQueue(int capacity) {
+            return new LinkedBlockingQueue<>(capacity);
+        }
+    },
+    /**
+     * 不排队，直接交给空闲线程或者新建线程，线程数到上限就拒绝，容量参数被忽略
+     */
+    SYNCHRONOUS {
+        @Override
+        BlockingQueue<Runnable> newQueue(int capacity) {
+            return new SynchronousQueue<>();
+        }
+    };
+
+    abstract BlockingQueue<Runnable> newQueue(int capacity);
+}
@@ -0,0 +1,85 @@
+package com.lakeqiu.bioPool.server;
+
+import com.lakeqiu.common.buffer.Buffers;
+import com.lakeqiu.common.protocol.Opcode;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * 线程池和队列都满了之后，新连接怎么处理
+ * @author lakeqiu
+ */
+public enum RejectPolicy {
+    /**
+     * 告诉客户端服务器繁忙，然后关闭连接，接收线程马上回去接收下一个连接
+     */
+    BUSY_REPLY {
+        @Override
+        RejectedExecutionHandler newHandler() {
+            return (runnable, executor) -> {
+                Runnable task = MonitoredThreadPoolExecutor.unwrap(runnable);
+                if (task instanceof ChatHandler) {
+                    ChatHandler handler = (ChatHandler) task;
+                    rejectBusy(handler.socket(), handler.server().protocol().encode(Opcode.NOTICE, 0,
+                            StandardCharsets.UTF_8.encode(BUSY_MSG)));
+                }
+            };
+        }
+    },
+    /**
+     * 在接收线程中直接运行ChatHandler
+     * 聊天连接会一直占着线程，这个用户断开之前服务器都不会再接收新连接，只适合连接都很短的场景
+     */
+    CALLER_RUNS {
+        @Override
+        RejectedExecutionHandler newHandler() {
+            return new ThreadPoolExecutor.CallerRunsPolicy();
+        }
+    },
+    /**
+     * 接收线程阻塞到队列有空位为止，新连接留在内核的accept队列里等待
+     * 队列类型为SYNCHRONOUS时要等到有线程空闲下来
+     */
+    BLOCK_ACCEPT {
+        @Override
+        RejectedExecutionHandler newHandler() {
+            return (runnable, executor) -> {
+                if (executor.isShutdown()) {
+                    throw new RejectedExecutionException("线程池已经关闭");
+                }
+                try {
+                    executor.getQueue().put(runnable);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException(e);
+                }
+            };
+        }
+    };
+
+    private final static String BUSY_MSG = "繁忙，请稍后再试";
+
+    abstract RejectedExecutionHandler newHandler();
+
+    private static void rejectBusy(Socket socket, ByteBuffer[] msg) {
+        try {
+            socket.getOutputStream().write(Buffers.toArray(msg));
+            socket.getOutputStream().flush();
+        } catch (IOException e) {
+            // 客户端已经断开，不用再通知
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        System.out.println("服务器：线程池已满，拒绝客户端[" + socket.getPort() + "]");
+    }
+}
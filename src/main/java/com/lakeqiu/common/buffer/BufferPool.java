@@ -0,0 +1,255 @@
+package com.lakeqiu.common.buffer;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按大小分级的直接缓冲区池，NIO和AIO的服务器、客户端共用
+ * 申请直接缓冲区很慢，回收又要靠GC，所以用完的缓冲区不还给系统而是放回池里：
+ * 先放进当前线程自己的缓存，不用加锁；线程缓存满了再放进所有线程共享的arena
+ * 大小从256B到1MB，按2的幂分级，超过1MB的不池化，直接申请
+ * @author lakeqiu
+ */
+public class BufferPool {
+    /**
+     * 1、全局默认的缓冲区池
+     * 2、最小的级别，2的8次方即256B
+     * 3、最大的级别，2的20次方即1MB
+     * 4、每一级线程缓存的容量按字节计算，小缓冲区可以多缓存几个
+     * 5、每一级arena的容量，按字节计算
+     * 6、是否开启泄漏检测，开启后没有release就被GC的缓冲区会被记下来
+     */
+    public final static BufferPool DEFAULT = new BufferPool();
+    private final static int MIN_SHIFT = 8;
+    private final static int MAX_SHIFT = 20;
+    private final static int THREAD_CACHE_BYTES = 256 * 1024;
+    private final static int ARENA_BYTES = 8 * 1024 * 1024;
+    private final static boolean LEAK_DETECTION = Boolean.getBoolean("com.lakeqiu.buffer.leakDetection");
+
+    /**
+     * 1、共享的arena，每一级一个队列
+     * 2、arena中每一级现有的缓冲区个数
+     * 3、每个线程自己的缓存
+     * 4、泄漏检测：还没有release的缓冲区
+     * 5、泄漏检测：被GC回收的缓冲区会进入这个队列
+     */
+    private final Queue<ByteBuffer>[] arenas;
+    private final AtomicInteger[] arenaSizes;
+    private final ThreadLocal<ArrayDeque<ByteBuffer>[]> threadCaches;
+    private final Map<Reference<PooledBuffer>, Boolean> liveBuffers = new ConcurrentHashMap<>();
+    private final ReferenceQueue<PooledBuffer> collected = new ReferenceQueue<>();
+
+    /**
+     * 统计
+     * 1、真正向系统申请的直接缓冲区个数和字节数
+     * 2、acquire和release的次数
+     * 3、命中线程缓存、命中arena的次数
+     * 4、超过最大级别、没有池化的申请次数
+     * 5、重复release的次数
+     * 6、没有release就被GC回收的个数
+     */
+    private final LongAdder allocations = new LongAdder();
+    private final LongAdder allocatedBytes = new LongAdder();
+    private final LongAdder acquires = new LongAdder();
+    private final LongAdder releases = new LongAdder();
+    private final LongAdder threadCacheHits = new LongAdder();
+    private final LongAdder arenaHits = new LongAdder();
+    private final LongAdder unpooledAllocations = new LongAdder();
+    private final LongAdder doubleReleases = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+
+    public BufferPool() {
+        int classes = MAX_SHIFT - MIN_SHIFT + 1;
+        // 泛型数组只能先建原始类型再转换，警告只压在这一个声明上
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Queue<ByteBuffer>[] arenas = new Queue[classes];
+        this.arenas = arenas;
+        arenaSizes = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            arenas[i] = new ConcurrentLinkedQueue<>();
+            arenaSizes[i] = new AtomicInteger();
+        }
+        threadCaches = ThreadLocal.withInitial(() -> {
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            ArrayDeque<ByteBuffer>[] caches = new ArrayDeque[classes];
+            for (int i = 0; i < classes; i++) {
+                caches[i] = new ArrayDeque<>();
+            }
+            return caches;
+        });
+    }
+
+    /**
+     * 申请一个至少capacity字节的直接缓冲区，引用计数为1
+     * 返回的buffer处于清空状态，容量是capacity向上取整到所在的级别
+     */
+    public PooledBuffer acquire(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity: " + capacity);
+        }
+        if (LEAK_DETECTION) {
+            reportLeaks();
+        }
+        acquires.increment();
+        int index = sizeClass(capacity);
+        ByteBuffer buffer;
+        if (index < 0) {
+            unpooledAllocations.increment();
+            buffer = allocate(capacity);
+        } else {
+            buffer = threadCaches.get()[index].pollLast();
+            if (buffer != null) {
+                threadCacheHits.increment();
+            } else if ((buffer = arenas[index].poll()) != null) {
+                arenaSizes[index].decrementAndGet();
+                arenaHits.increment();
+            } else {
+                buffer = allocate(1 << (index + MIN_SHIFT));
+            }
+            buffer.clear();
+        }
+        PooledBuffer pooled = new PooledBuffer(this, buffer);
+        if (LEAK_DETECTION) {
+            pooled.tracker = new PhantomReference<>(pooled, collected);
+            liveBuffers.put(pooled.tracker, Boolean.TRUE);
+        }
+        return pooled;
+    }
+
+    /**
+     * 把src剩余的字节复制进一个池化的缓冲区，返回的buffer已经切换为读模式
+     * @param src 不会改变它的position
+     */
+    public PooledBuffer copyOf(ByteBuffer src) {
+        PooledBuffer pooled = acquire(src.remaining());
+        pooled.buffer().put(src.duplicate()).flip();
+        return pooled;
+    }
+
+    /**
+     * 引用计数归零时由PooledBuffer调用，放回线程缓存或arena
+     */
+    void free(PooledBuffer pooled, ByteBuffer buffer) {
+        releases.increment();
+        if (pooled.tracker != null) {
+            liveBuffers.remove(pooled.tracker);
+            pooled.tracker.clear();
+        }
+        int index = sizeClass(buffer.capacity());
+        // 不是池里的级别，交给GC回收
+        if (index < 0 || buffer.capacity() != 1 << (index + MIN_SHIFT)) {
+            return;
+        }
+        ArrayDeque<ByteBuffer> cache = threadCaches.get()[index];
+        if (cache.size() < Math.max(1, THREAD_CACHE_BYTES >> (index + MIN_SHIFT))) {
+            cache.offerLast(buffer);
+            return;
+        }
+        if (arenaSizes[index].incrementAndGet() <= Math.max(1, ARENA_BYTES >> (index + MIN_SHIFT))) {
+            arenas[index].offer(buffer);
+        } else {
+            arenaSizes[index].decrementAndGet();
+        }
+    }
+
+    void doubleRelease() {
+        doubleReleases.increment();
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        allocations.increment();
+        allocatedBytes.add(capacity);
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * @return 所在级别的下标，超过最大级别返回-1
+     */
+    private static int sizeClass(int capacity) {
+        if (capacity > 1 << MAX_SHIFT) {
+            return -1;
+        }
+        if (capacity <= 1 << MIN_SHIFT) {
+            return 0;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(capacity - 1);
+        return shift - MIN_SHIFT;
+    }
+
+    private void reportLeaks() {
+        Reference<? extends PooledBuffer> reference;
+        while ((reference = collected.poll()) != null) {
+            if (liveBuffers.remove(reference) != null) {
+                leaks.increment();
+                System.err.println("缓冲区池：发现没有release就被回收的缓冲区，当前泄漏总数[" + leaks.sum() + "]");
+            }
+        }
+    }
+
+    public long allocations() {
+        return allocations.sum();
+    }
+
+    public long allocatedBytes() {
+        return allocatedBytes.sum();
+    }
+
+    public long acquires() {
+        return acquires.sum();
+    }
+
+    public long releases() {
+        return releases.sum();
+    }
+
+    public long threadCacheHits() {
+        return threadCacheHits.sum();
+    }
+
+    public long arenaHits() {
+        return arenaHits.sum();
+    }
+
+    public long unpooledAllocations() {
+        return unpooledAllocations.sum();
+    }
+
+    public long doubleReleases() {
+        return doubleReleases.sum();
+    }
+
+    /**
+     * @return 没有release就被GC回收的缓冲区个数，需要开启com.lakeqiu.buffer.leakDetection
+     */
+    public long leaks() {
+        if (LEAK_DETECTION) {
+            reportLeaks();
+        }
+        return leaks.sum();
+    }
+
+    /**
+     * @return 已经acquire但还没有release的缓冲区个数
+     */
+    public long outstanding() {
+        return acquires.sum() - releases.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool{allocations=" + allocations() + ", allocatedBytes=" + allocatedBytes()
+                + ", acquires=" + acquires() + ", releases=" + releases()
+                + ", threadCacheHits=" + threadCacheHits() + ", arenaHits=" + arenaHits()
+                + ", unpooled=" + unpooledAllocations() + ", outstanding=" + outstanding()
+                + ", doubleReleases=" + doubleReleases() + ", leaks=" + leaks() + "}";
+    }
+}
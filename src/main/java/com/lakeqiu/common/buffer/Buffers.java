@@ -0,0 +1,62 @@
+package com.lakeqiu.common.buffer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * ByteBuffer的一些工具方法
+ * @author lakeqiu
+ */
+public final class Buffers {
+    private Buffers() {
+    }
+
+    /**
+     * 把src剩余的字节复制进一个新的直接缓冲区，返回只读视图
+     * 广播时只复制这一次，之后每个接收方都用duplicate拿到自己的position和limit
+     * 直接缓冲区写socket时jdk不用再复制到临时的直接缓冲区
+     * @param src 不会改变它的position
+     */
+    public static ByteBuffer readOnlyDirectCopy(ByteBuffer src) {
+        ByteBuffer copy = ByteBuffer.allocateDirect(src.remaining());
+        copy.put(src.duplicate());
+        copy.flip();
+        return copy.asReadOnlyBuffer();
+    }
+
+    /**
+     * 给每一段buffer创建一个共享内容、但position和limit独立的视图
+     */
+    public static ByteBuffer[] duplicate(ByteBuffer[] buffers) {
+        ByteBuffer[] duplicates = new ByteBuffer[buffers.length];
+        for (int i = 0; i < buffers.length; i++) {
+            duplicates[i] = buffers[i].duplicate();
+        }
+        return duplicates;
+    }
+
+    /**
+     * @return 所有buffer剩余的字节数之和
+     */
+    public static long remaining(ByteBuffer[] buffers) {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        return remaining;
+    }
+
+    /**
+     * 把几段buffer拼成一个byte数组，给只能写byte[]的OutputStream用
+     * @param buffers 不会改变它们的position
+     */
+    public static byte[] toArray(ByteBuffer[] buffers) {
+        byte[] array = new byte[(int) remaining(buffers)];
+        int offset = 0;
+        for (ByteBuffer buffer : buffers) {
+            int length = buffer.remaining();
+            buffer.duplicate().get(array, offset, length);
+            offset += length;
+        }
+        return array;
+    }
+}
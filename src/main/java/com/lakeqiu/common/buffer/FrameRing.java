@@ -0,0 +1,158 @@
+package com.lakeqiu.common.buffer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 编码好的帧组成的环形缓冲区，用来保存房间里最近的消息
+ * 帧的字节首尾相接地存在一块池化的直接缓冲区里，写到末尾就绕回开头，每帧的长度另外记在一个int数组里；
+ * 放不下时从最旧的帧开始丢，所以帧数和字节数都有硬上限，存储在第一次追加时才申请
+ * 存进来和取出去的都是已经带着帧头和帧边界的字节，回放时不用重新编码
+ * 加锁保护，追加和快照都只是内存复制
+ * @author lakeqiu
+ */
+public class FrameRing {
+    /**
+     * 1、最多保存的帧数
+     * 2、最多保存的字节数
+     * 3、每帧的长度，也是一个环，first是最旧那一帧的下标
+     * 4、最旧那一帧的下标、现有帧数
+     * 5、最旧那一帧在存储中的开始位置、现有字节数
+     * 6、存储，第一次追加时申请，release时还回去
+     * 7、是否已经释放，之后的追加什么也不做
+     */
+    private final int maxFrames;
+    private final int capacity;
+    private final int[] lengths;
+    private int first;
+    private int count;
+    private int head;
+    private int size;
+    private PooledBuffer storage;
+    private boolean released;
+
+    /**
+     * @param maxFrames 最多保存的帧数
+     * @param capacity 最多保存的字节数，比它长的帧不保存
+     */
+    public FrameRing(int maxFrames, int capacity) {
+        if (maxFrames <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("maxFrames: " + maxFrames + ", capacity: " + capacity);
+        }
+        this.maxFrames = maxFrames;
+        this.capacity = capacity;
+        this.lengths = new int[maxFrames];
+    }
+
+    /**
+     * 追加一帧，放不下时丢掉最旧的
+     * @param frame 编码好的帧，不会改变它们的position
+     * @return 是否保存了，帧比整个环还长或者已经释放时返回false
+     */
+    public synchronized boolean append(ByteBuffer[] frame) {
+        long length = Buffers.remaining(frame);
+        if (released || length > capacity) {
+            return false;
+        }
+        while (count == maxFrames || size + length > capacity) {
+            evictOldest();
+        }
+        if (storage == null) {
+            storage = BufferPool.DEFAULT.acquire(capacity);
+        }
+        int tail = (head + size) % capacity;
+        for (ByteBuffer segment : frame) {
+            ByteBuffer src = segment.duplicate();
+            while (src.hasRemaining()) {
+                int chunk = Math.min(src.remaining(), capacity - tail);
+                ByteBuffer part = src.duplicate();
+                part.limit(part.position() + chunk);
+                ByteBuffer dst = storage.buffer().duplicate();
+                dst.position(tail);
+                dst.put(part);
+                src.position(src.position() + chunk);
+                tail = (tail + chunk) % capacity;
+            }
+        }
+        lengths[(first + count) % maxFrames] = (int) length;
+        count++;
+        size += length;
+        return true;
+    }
+
+    private void evictOldest() {
+        int length = lengths[first];
+        head = (head + length) % capacity;
+        size -= length;
+        first = (first + 1) % maxFrames;
+        count--;
+    }
+
+    /**
+     * 把现有的帧按从旧到新的顺序复制进一个池化的缓冲区，最多两次内存复制
+     * 环里的字节随时会被新消息覆盖，异步写出去的期间不能直接引用它，所以要复制一份
+     * 给NIO、AIO的事件循环线程用，它们数量固定，池化的缓冲区在它们的线程缓存里能反复用上
+     * @return 读模式，调用方负责release；没有保存任何帧时为null
+     */
+    public synchronized PooledBuffer snapshot() {
+        if (released || size == 0) {
+            return null;
+        }
+        PooledBuffer copy = BufferPool.DEFAULT.acquire(size);
+        copyTo(copy.buffer());
+        copy.buffer().flip();
+        return copy;
+    }
+
+    /**
+     * 把现有的帧按从旧到新的顺序直接复制进一个字节数组
+     * 给BIO用：每个连接一个线程，池化的缓冲区在这些线程上释放会留在各自的线程缓存里，
+     * 一个连接压着一块直接内存，别的线程又用不上，所以BIO不走池
+     * @return 没有保存任何帧时为null
+     */
+    public synchronized byte[] toByteArray() {
+        if (released || size == 0) {
+            return null;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(size);
+        copyTo(copy);
+        return copy.array();
+    }
+
+    /**
+     * 从最旧的帧开始复制size个字节，写到末尾时绕回开头，调用方持有锁
+     */
+    private void copyTo(ByteBuffer dst) {
+        ByteBuffer src = storage.buffer().duplicate();
+        int firstChunk = Math.min(size, capacity - head);
+        src.limit(head + firstChunk).position(head);
+        dst.put(src);
+        if (firstChunk < size) {
+            src.limit(size - firstChunk).position(0);
+            dst.put(src);
+        }
+    }
+
+    public synchronized int frames() {
+        return count;
+    }
+
+    public synchronized int bytes() {
+        return size;
+    }
+
+    /**
+     * 把存储还给池，之后追加和快照都什么也不做，重复调用时什么也不做
+     */
+    public synchronized void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        if (storage != null) {
+            storage.release();
+            storage = null;
+        }
+        count = 0;
+        size = 0;
+    }
+}
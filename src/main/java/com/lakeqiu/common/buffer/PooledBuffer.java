@@ -0,0 +1,72 @@
+package com.lakeqiu.common.buffer;
+
+import java.lang.ref.PhantomReference;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * 从BufferPool申请的缓冲区，带引用计数
+ * 广播时同一个缓冲区会被多个接收方共享，每多一个持有者就retain一次，
+ * 持有者用完后release，计数归零时放回池中
+ * 计数归零之后不能再使用buffer()以及从它创建的任何视图
+ * @author lakeqiu
+ */
+public final class PooledBuffer {
+    private final static AtomicIntegerFieldUpdater<PooledBuffer> REF_CNT =
+            AtomicIntegerFieldUpdater.newUpdater(PooledBuffer.class, "refCnt");
+
+    private final BufferPool pool;
+    private final ByteBuffer buffer;
+    private volatile int refCnt = 1;
+    PhantomReference<PooledBuffer> tracker;
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer) {
+        this.pool = pool;
+        this.buffer = buffer;
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public int refCnt() {
+        return refCnt;
+    }
+
+    public PooledBuffer retain() {
+        return retain(1);
+    }
+
+    public PooledBuffer retain(int increment) {
+        while (true) {
+            int current = refCnt;
+            if (current <= 0) {
+                throw new IllegalStateException("缓冲区已经被释放");
+            }
+            if (REF_CNT.compareAndSet(this, current, current + increment)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * 引用计数减一，归零时放回池中
+     * @return 是否真正放回了池中
+     */
+    public boolean release() {
+        while (true) {
+            int current = refCnt;
+            if (current <= 0) {
+                pool.doubleRelease();
+                return false;
+            }
+            if (REF_CNT.compareAndSet(this, current, current - 1)) {
+                if (current == 1) {
+                    pool.free(this, buffer);
+                    return true;
+                }
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.lakeqiu.common.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 帧编解码器，负责在字节流上划分出一条条消息
+ * TCP是字节流，一次read可能只读到半条消息，也可能一次读到好几条，
+ * 所以读到的字节要先放进累积缓冲区，再由编解码器从中切出完整的帧
+ * @author lakeqiu
+ */
+public interface FrameCodec {
+    /**
+     * 从累积缓冲区中切出一个完整的帧
+     * 切出成功时cumulation的position会移到这个帧之后；数据不足一帧时返回null，position不变
+     * 返回的是cumulation的切片，不会复制数据，只在cumulation下一次compact之前有效
+     * @param cumulation 读模式的累积缓冲区
+     * @return 帧的负载（不含分隔符或长度头），不足一帧时返回null
+     * @throws IOException 帧超过长度上限或格式错误
+     */
+    ByteBuffer decode(ByteBuffer cumulation) throws IOException;
+
+    /**
+     * 给负载加上帧边界，返回的数组可以直接交给gathering write，不会复制负载
+     * @param payload 负载，可以由多段组成
+     * @return 加上帧边界之后的各段buffer
+     */
+    ByteBuffer[] encode(ByteBuffer... payload);
+
+    /**
+     * @return 单个帧负载的最大长度
+     */
+    int maxFrameLength();
+}
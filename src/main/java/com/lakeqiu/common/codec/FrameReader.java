@@ -0,0 +1,88 @@
+package com.lakeqiu.common.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * 在阻塞的InputStream上按帧读取，给BIO的服务器和客户端用，与NIO共用同一个FrameCodec
+ * 不是线程安全的，一个连接一个
+ * @author lakeqiu
+ */
+public class FrameReader {
+    /**
+     * 1、累积缓冲区的初始长度
+     * 2、输入流
+     * 3、帧编解码器
+     * 4、累积缓冲区，两次调用之间处于读模式
+     * 5、一共从输入流读到的字节数
+     * 6、上一次切出一帧的耗时，纳秒，不包括阻塞在read上的时间
+     */
+    private final static int INITIAL_LENGTH = 512;
+    private final InputStream in;
+    private final FrameCodec codec;
+    private ByteBuffer cumulation;
+    private long bytesRead;
+    private long lastDecodeNanos;
+
+    public FrameReader(InputStream in, FrameCodec codec) {
+        this.in = in;
+        this.codec = codec;
+        this.cumulation = ByteBuffer.allocate(INITIAL_LENGTH);
+        this.cumulation.flip();
+    }
+
+    /**
+     * 阻塞到读出一个完整的帧
+     * @return 帧的负载，只在下一次调用之前有效；对方关闭连接时返回null
+     * @throws IOException 帧超过长度上限或格式错误
+     */
+    public ByteBuffer next() throws IOException {
+        while (true) {
+            long start = System.nanoTime();
+            ByteBuffer frame = codec.decode(cumulation);
+            if (frame != null) {
+                lastDecodeNanos = System.nanoTime() - start;
+                return frame;
+            }
+            cumulation.compact();
+            if (!cumulation.hasRemaining()) {
+                expand();
+            }
+            int length = in.read(cumulation.array(), cumulation.arrayOffset() + cumulation.position(),
+                    cumulation.remaining());
+            if (length < 0) {
+                return null;
+            }
+            bytesRead += length;
+            cumulation.position(cumulation.position() + length);
+            cumulation.flip();
+        }
+    }
+
+    /**
+     * @return 一共从输入流读到的字节数，包括还没凑够一帧的
+     */
+    public long bytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return 上一次next切出一帧的耗时，纳秒
+     */
+    public long lastDecodeNanos() {
+        return lastDecodeNanos;
+    }
+
+    private void expand() {
+        // 翻倍扩容，最多比一帧的上限多出一点，留给分隔符或长度头，超长的帧交给decode去报错
+        int capacity = (int) Math.min((long) cumulation.capacity() << 1, (long) codec.maxFrameLength() + 8);
+        if (capacity <= cumulation.capacity()) {
+            capacity = cumulation.capacity() + 1;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(capacity);
+        cumulation.flip();
+        bigger.put(cumulation);
+        cumulation = bigger;
+    }
+}
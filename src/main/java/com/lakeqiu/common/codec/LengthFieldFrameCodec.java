@@ -0,0 +1,56 @@
+package com.lakeqiu.common.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 长度前缀的帧：4字节大端长度 + 负载，负载中可以包含任意字节
+ * @author lakeqiu
+ */
+public class LengthFieldFrameCodec implements FrameCodec {
+    private final static int HEADER_LENGTH = 4;
+    private final int maxFrameLength;
+
+    public LengthFieldFrameCodec(int maxFrameLength) {
+        if (maxFrameLength <= 0) {
+            throw new IllegalArgumentException("maxFrameLength: " + maxFrameLength);
+        }
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    public ByteBuffer decode(ByteBuffer cumulation) throws IOException {
+        int start = cumulation.position();
+        if (cumulation.remaining() < HEADER_LENGTH) {
+            return null;
+        }
+        int length = cumulation.getInt(start);
+        if (length < 0 || length > maxFrameLength) {
+            throw new IOException("帧长度[" + length + "]超过上限[" + maxFrameLength + "]");
+        }
+        if (cumulation.remaining() < HEADER_LENGTH + length) {
+            return null;
+        }
+        ByteBuffer frame = cumulation.duplicate();
+        frame.position(start + HEADER_LENGTH).limit(start + HEADER_LENGTH + length);
+        cumulation.position(start + HEADER_LENGTH + length);
+        return frame.slice();
+    }
+
+    @Override
+    public ByteBuffer[] encode(ByteBuffer... payload) {
+        int length = 0;
+        for (ByteBuffer buffer : payload) {
+            length += buffer.remaining();
+        }
+        ByteBuffer[] frame = new ByteBuffer[payload.length + 1];
+        frame[0] = ((ByteBuffer) ByteBuffer.allocate(HEADER_LENGTH).putInt(length).flip()).asReadOnlyBuffer();
+        System.arraycopy(payload, 0, frame, 1, payload.length);
+        return frame;
+    }
+
+    @Override
+    public int maxFrameLength() {
+        return maxFrameLength;
+    }
+}
@@ -0,0 +1,61 @@
+package com.lakeqiu.common.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 以换行符分隔的帧，与BufferedReader.readLine兼容，结尾的\r也会被去掉
+ * @author lakeqiu
+ */
+public class LineFrameCodec implements FrameCodec {
+    private final static byte LF = '\n';
+    private final static byte CR = '\r';
+    private final static ByteBuffer DELIMITER = ByteBuffer.wrap(new byte[]{LF}).asReadOnlyBuffer();
+    private final int maxFrameLength;
+
+    public LineFrameCodec(int maxFrameLength) {
+        if (maxFrameLength <= 0) {
+            throw new IllegalArgumentException("maxFrameLength: " + maxFrameLength);
+        }
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    public ByteBuffer decode(ByteBuffer cumulation) throws IOException {
+        int start = cumulation.position();
+        int limit = cumulation.limit();
+        for (int i = start; i < limit; i++) {
+            if (cumulation.get(i) == LF) {
+                int end = i;
+                if (end > start && cumulation.get(end - 1) == CR) {
+                    end--;
+                }
+                if (end - start > maxFrameLength) {
+                    throw new IOException("帧长度[" + (end - start) + "]超过上限[" + maxFrameLength + "]");
+                }
+                ByteBuffer frame = cumulation.duplicate();
+                frame.position(start).limit(end);
+                cumulation.position(i + 1);
+                return frame.slice();
+            }
+        }
+        // 还没有遇到换行符，但已经超过上限了，不用再等下去
+        if (limit - start > maxFrameLength + 1) {
+            throw new IOException("帧长度超过上限[" + maxFrameLength + "]");
+        }
+        return null;
+    }
+
+    @Override
+    public ByteBuffer[] encode(ByteBuffer... payload) {
+        ByteBuffer[] frame = new ByteBuffer[payload.length + 1];
+        System.arraycopy(payload, 0, frame, 0, payload.length);
+        frame[payload.length] = DELIMITER.duplicate();
+        return frame;
+    }
+
+    @Override
+    public int maxFrameLength() {
+        return maxFrameLength;
+    }
+}
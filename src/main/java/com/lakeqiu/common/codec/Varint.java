@@ -0,0 +1,86 @@
+package com.lakeqiu.common.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 变长整数（与protobuf的varint相同）：每个字节低7位存数据，最高位为1表示后面还有字节
+ * 小于128的数只占1个字节，聊天消息的长度和会话id通常只要1到3个字节
+ * @author lakeqiu
+ */
+public final class Varint {
+    /**
+     * 64位的数最多占10个字节
+     */
+    public final static int MAX_LENGTH = 10;
+
+    private Varint() {
+    }
+
+    /**
+     * @return value编码后占的字节数
+     */
+    public static int length(long value) {
+        int length = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * 在buffer当前位置写入value，position后移
+     */
+    public static void write(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * 从buffer当前位置读取一个varint，position后移
+     * @throws IOException 超过10个字节还没有结束
+     */
+    public static long read(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < MAX_LENGTH * 7; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                throw new IOException("varint不完整");
+            }
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("varint超过" + MAX_LENGTH + "个字节");
+    }
+
+    /**
+     * 从index开始读取一个varint，不改变position
+     * 只接受最短编码：调用方用length(返回值)算出头部占的字节数，
+     * 如果允许补0的编码（如0x81 0x00表示1），算出的字节数会比实际少，后面的流就错位了
+     * @return 读到的值，字节不够时返回-1
+     * @throws IOException 超过maxLength个字节还没有结束，或者不是最短编码
+     */
+    static long peek(ByteBuffer buffer, int index, int maxLength) throws IOException {
+        long value = 0;
+        for (int i = 0; i < maxLength; i++) {
+            if (index + i >= buffer.limit()) {
+                return -1;
+            }
+            byte b = buffer.get(index + i);
+            value |= (long) (b & 0x7F) << (7 * i);
+            if (b >= 0) {
+                if (b == 0 && i > 0) {
+                    throw new IOException("varint不是最短编码");
+                }
+                return value;
+            }
+        }
+        throw new IOException("varint超过" + maxLength + "个字节");
+    }
+}
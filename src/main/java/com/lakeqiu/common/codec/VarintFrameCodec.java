@@ -0,0 +1,66 @@
+package com.lakeqiu.common.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 变长长度前缀的帧：varint长度 + 负载，负载中可以包含任意字节
+ * 与LengthFieldFrameCodec相比，短消息的长度头只占1到2个字节
+ * @author lakeqiu
+ */
+public class VarintFrameCodec implements FrameCodec {
+    /**
+     * 长度不会超过int，所以长度头最多5个字节
+     */
+    private final static int MAX_HEADER_LENGTH = 5;
+    private final int maxFrameLength;
+
+    public VarintFrameCodec(int maxFrameLength) {
+        if (maxFrameLength <= 0) {
+            throw new IllegalArgumentException("maxFrameLength: " + maxFrameLength);
+        }
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    public ByteBuffer decode(ByteBuffer cumulation) throws IOException {
+        int start = cumulation.position();
+        long length = Varint.peek(cumulation, start, MAX_HEADER_LENGTH);
+        if (length < 0) {
+            return null;
+        }
+        if (length > maxFrameLength) {
+            throw new IOException("帧长度[" + length + "]超过上限[" + maxFrameLength + "]");
+        }
+        // peek只接受最短编码，所以这里算出的就是实际读过的字节数
+        int headerLength = Varint.length(length);
+        if (cumulation.remaining() < headerLength + length) {
+            return null;
+        }
+        int end = start + headerLength + (int) length;
+        ByteBuffer frame = cumulation.duplicate();
+        frame.position(start + headerLength).limit(end);
+        cumulation.position(end);
+        return frame.slice();
+    }
+
+    @Override
+    public ByteBuffer[] encode(ByteBuffer... payload) {
+        int length = 0;
+        for (ByteBuffer buffer : payload) {
+            length += buffer.remaining();
+        }
+        ByteBuffer header = ByteBuffer.allocate(Varint.length(length));
+        Varint.write(header, length);
+        header.flip();
+        ByteBuffer[] frame = new ByteBuffer[payload.length + 1];
+        frame[0] = header.asReadOnlyBuffer();
+        System.arraycopy(payload, 0, frame, 1, payload.length);
+        return frame;
+    }
+
+    @Override
+    public int maxFrameLength() {
+        return maxFrameLength;
+    }
+}
@@ -0,0 +1,44 @@
+package com.lakeqiu.common.lifecycle;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 服务器的生命周期，BIO、NIO、AIO服务器共用
+ * start绑定端口、启动线程后马上返回；stop先停止接收新连接和读取新消息，
+ * 在期限内把已经放进发送队列的消息写完，再关闭所有连接、释放缓冲区和线程；
+ * awaitTermination等到所有线程都退出
+ * 滚动发布时先stop，已经在路上的消息不会丢，来不及写完的会统计在ShutdownReport里
+ * @author lakeqiu
+ */
+public interface Lifecycle {
+    /**
+     * 启动服务器，不会阻塞，只能调用一次
+     * @throws IOException 端口绑定失败等
+     * @throws IllegalStateException 已经启动过
+     */
+    void start() throws IOException;
+
+    /**
+     * 优雅关闭，可以在任何线程调用，关闭完成后会打印报告，重复调用时等第一次关闭完成后返回同一份报告
+     * @param timeout 排空发送队列的期限，到期后还没写完的消息丢弃
+     * @return 排空和丢弃的消息数
+     */
+    ShutdownReport stop(long timeout, TimeUnit unit);
+
+    /**
+     * 等待服务器关闭
+     * @return 是否在期限内关闭了
+     */
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * main方法用：启动服务器，进程收到退出信号（Ctrl+C、kill）时先优雅关闭，然后一直等到服务器关闭
+     * @param timeout 关闭时排空发送队列的期限
+     */
+    static void runUntilShutdown(Lifecycle server, long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(timeout, unit), "shutdown-hook"));
+        server.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+}
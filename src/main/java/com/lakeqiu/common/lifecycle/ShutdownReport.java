@@ -0,0 +1,87 @@
+package com.lakeqiu.common.lifecycle;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 一次关闭的结果
+ * 关闭过程中各个线程（Reactor、ChatHandler、AIO回调）并发累加，用LongAdder计数，
+ * stop返回之后就不会再变了
+ * @author lakeqiu
+ */
+public class ShutdownReport {
+    /**
+     * 1、开始关闭的时间，纳秒
+     * 2、开始关闭之后写出去的消息数
+     * 3、来不及写出去、被丢弃的消息数
+     * 4、关闭的连接数
+     * 5、关闭用的时间，毫秒，关闭完成之前为-1
+     * 6、是否在期限内排空了所有连接
+     */
+    private final long startTime = System.nanoTime();
+    private final LongAdder drained = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder closedSessions = new LongAdder();
+    private volatile long elapsedMillis = -1;
+    private volatile boolean timedOut;
+
+    /**
+     * 又写出去了count条消息
+     */
+    public void drained(long count) {
+        drained.add(count);
+    }
+
+    /**
+     * 又丢弃了count条消息
+     */
+    public void dropped(long count) {
+        dropped.add(count);
+    }
+
+    public void sessionClosed() {
+        closedSessions.increment();
+    }
+
+    /**
+     * 关闭完成
+     * @param timedOut 是否有连接到期时还没有排空，被强制关闭
+     */
+    public void complete(boolean timedOut) {
+        this.timedOut = timedOut;
+        this.elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+    }
+
+    /**
+     * @return 距离期限还剩的纳秒数
+     */
+    public long remainingNanos(long timeout, TimeUnit unit) {
+        return unit.toNanos(timeout) - (System.nanoTime() - startTime);
+    }
+
+    public long drained() {
+        return drained.sum();
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    public long closedSessions() {
+        return closedSessions.sum();
+    }
+
+    public long elapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    @Override
+    public String toString() {
+        return "排空消息[" + drained() + "]条，丢弃[" + dropped() + "]条，关闭连接[" + closedSessions() + "]个，耗时["
+                + elapsedMillis + "]毫秒" + (timedOut ? "，超过期限，强制关闭了剩下的连接" : "");
+    }
+}
@@ -0,0 +1,359 @@
+package com.lakeqiu.common.log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * 消息日志的一个段：一个数据文件和一个稀疏索引文件，都整个映射进内存
+ * 数据文件里的记录首尾相接：长度(4) CRC(4) 序号(8) 房间名长度(1) 房间名 帧，长度为0表示后面还没写过
+ * 索引文件每隔indexInterval字节记一条：序号(8) 记录在数据文件中的位置(4)，按序号找记录时先二分查找索引再往后扫
+ * 追加只是往映射的内存里复制，不是系统调用，什么时候落盘由MessageLog的刷盘线程决定
+ * 追加分两步：在MessageLog的锁里reserve占一段位置，在锁外write复制和算CRC，几个线程可以同时复制各自的记录；
+ * 复制完的记录按位置顺序公布，读的线程拿duplicate，只读end之前的部分，end之前的字节不会再变
+ * 新段可以由刷盘线程提前创建好（spare），换段时activate只是改个文件名
+ * @author lakeqiu
+ */
+class LogSegment {
+    /**
+     * 1、记录头的长度
+     * 2、一条索引的长度
+     * 3、提前创建的段的文件名
+     */
+    final static int RECORD_HEADER = 4 + 4 + 8 + 1;
+    private final static int INDEX_ENTRY = 8 + 4;
+    private final static String SPARE = "spare";
+
+    /**
+     * 1、第一条记录的序号，也是文件名，spare段activate时才确定
+     * 2、数据文件和索引文件，activate时改名
+     * 3、数据和索引的映射，追加时用绝对位置写，不改变它们的position
+     * 4、数据的容量
+     * 5、已经公布的字节数，它之前的记录都复制完了，对读的线程可见
+     * 6、已经占用的字节数，只在MessageLog的锁里修改，[end, reserved)之间的记录还在复制；读的线程用它判断段里还有没有没读到的记录
+     * 7、已经写入的索引条数，它之前的索引对读的线程可见
+     * 8、上一条索引指向的位置
+     * 9、最后一条记录的序号，还没有记录时为baseSequence - 1
+     * 10、索引间隔
+     */
+    long baseSequence;
+    Path dataPath;
+    Path indexPath;
+    private final MappedByteBuffer data;
+    private final MappedByteBuffer index;
+    private final int capacity;
+    private volatile int end;
+    private volatile int reserved;
+    private volatile int indexCount;
+    private int lastIndexed = -1;
+    private long lastSequence;
+    private final int indexInterval;
+
+    /**
+     * 打开或者创建一个段，已经存在时扫描一遍，丢掉没有写完整的记录
+     * @param size 新建时数据文件的大小，已经存在的文件保持原来的大小
+     */
+    LogSegment(Path directory, long baseSequence, int size, int indexInterval) throws IOException {
+        this(directory.resolve(String.format("%020d.log", baseSequence)),
+                directory.resolve(String.format("%020d.idx", baseSequence)), baseSequence, size, indexInterval);
+    }
+
+    private LogSegment(Path dataPath, Path indexPath, long baseSequence, int size, int indexInterval)
+            throws IOException {
+        this.baseSequence = baseSequence;
+        this.dataPath = dataPath;
+        this.indexPath = indexPath;
+        this.indexInterval = indexInterval;
+        // 与CopyFile里一样通过FileChannel操作文件，映射之后通道就可以关掉了，映射一直有效
+        try (FileChannel channel = FileChannel.open(dataPath, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long existing = channel.size();
+            this.capacity = (int) (existing > 0 ? existing : size);
+            this.data = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+        try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long indexSize = ((long) capacity / indexInterval + 2) * INDEX_ENTRY;
+            this.index = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), indexSize));
+        }
+        recover();
+    }
+
+    /**
+     * 提前创建一个空段，文件名是spare，换段时用activate改成正式的名字
+     * 每页先写一个0，把页和磁盘块都分配好，再落一次盘，追加到这个段时不会再因为缺页和分配块而停顿
+     * 很慢，只在刷盘线程里调用
+     */
+    static LogSegment spare(Path directory, int size, int indexInterval) throws IOException {
+        deleteSpare(directory);
+        LogSegment segment = new LogSegment(directory.resolve(SPARE + ".log"), directory.resolve(SPARE + ".idx"),
+                0, size, indexInterval);
+        for (int i = 0; i < segment.capacity; i += 4096) {
+            segment.data.put(i, (byte) 0);
+        }
+        segment.force();
+        return segment;
+    }
+
+    /**
+     * 删掉上次没用上的spare文件
+     */
+    static void deleteSpare(Path directory) throws IOException {
+        Files.deleteIfExists(directory.resolve(SPARE + ".log"));
+        Files.deleteIfExists(directory.resolve(SPARE + ".idx"));
+    }
+
+    /**
+     * 把spare段改成第一条记录序号为baseSequence的正式段，改名不影响映射
+     */
+    void activate(long baseSequence) throws IOException {
+        Path directory = dataPath.getParent();
+        Path data = directory.resolve(String.format("%020d.log", baseSequence));
+        Path index = directory.resolve(String.format("%020d.idx", baseSequence));
+        Files.move(indexPath, index, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(dataPath, data, StandardCopyOption.ATOMIC_MOVE);
+        this.dataPath = data;
+        this.indexPath = index;
+        this.baseSequence = baseSequence;
+        this.lastSequence = baseSequence - 1;
+    }
+
+    /**
+     * 找到最后一条完整的记录：从段的开头往后扫，长度越界、序号不连续或者CRC不对都算没写完整
+     * 刷盘是按页进行的，崩溃时后面的页可能落了盘而前面的没有，所以不能从最后一条索引开始扫：
+     * 索引指向的记录本身完整，前面却可能有一页没落盘，整条链从那里就断了；
+     * 断点后面的字节即使看起来像记录也不能信，要清零，否则新追加的记录后面可能接上一条旧记录
+     * 每个段打开时都要整个读一遍，只在启动时发生
+     */
+    private void recover() {
+        int position = 0;
+        long sequence = baseSequence;
+        int length;
+        while ((length = validAt(position, sequence)) > 0) {
+            position += length;
+            sequence++;
+        }
+        // 只保留指向完整记录的索引，索引按位置递增
+        int count = 0;
+        while ((count + 1) * INDEX_ENTRY <= index.capacity() && index.getLong(count * INDEX_ENTRY) != 0
+                && index.getInt(count * INDEX_ENTRY + 8) < position) {
+            lastIndexed = index.getInt(count * INDEX_ENTRY + 8);
+            count++;
+        }
+        clear(index, count * INDEX_ENTRY);
+        if (!isClear(data, position)) {
+            clear(data, position);
+        }
+        this.indexCount = count;
+        this.lastSequence = sequence - 1;
+        this.reserved = position;
+        this.end = position;
+    }
+
+    /**
+     * @return 这个位置上序号为sequence的完整记录的长度，不是这样一条记录时返回0
+     */
+    private int validAt(int position, long sequence) {
+        if (position < 0 || position + RECORD_HEADER > capacity) {
+            return 0;
+        }
+        int length = data.getInt(position);
+        if (length < RECORD_HEADER || length > capacity - position || data.getLong(position + 8) != sequence) {
+            return 0;
+        }
+        return data.getInt(position + 4) == checksum(data, position, length) ? length : 0;
+    }
+
+    /**
+     * CRC覆盖序号、房间名和帧
+     */
+    private static int checksum(ByteBuffer buffer, int position, int length) {
+        ByteBuffer covered = buffer.duplicate();
+        covered.limit(position + length).position(position + 8);
+        CRC32 crc = new CRC32();
+        crc.update(covered);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @return from之后是否全是0，只读不写，不会把没用过的页弄脏
+     */
+    private static boolean isClear(ByteBuffer buffer, int from) {
+        int i = from;
+        for (; i + 8 <= buffer.capacity(); i += 8) {
+            if (buffer.getLong(i) != 0) {
+                return false;
+            }
+        }
+        for (; i < buffer.capacity(); i++) {
+            if (buffer.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void clear(ByteBuffer buffer, int from) {
+        for (int i = from; i < buffer.capacity(); i++) {
+            buffer.put(i, (byte) 0);
+        }
+    }
+
+    /**
+     * @return 长度为length的记录是否还放得下，末尾要留4个字节的0作为结束标记
+     */
+    boolean hasRoom(int length) {
+        return reserved + length + 4 <= capacity;
+    }
+
+    boolean isEmpty() {
+        return reserved == 0;
+    }
+
+    long lastSequence() {
+        return lastSequence;
+    }
+
+    int reserved() {
+        return reserved;
+    }
+
+    /**
+     * @return 还在复制、没有公布的字节数，在MessageLog的锁里调用
+     */
+    int unpublished() {
+        return reserved - end;
+    }
+
+    /**
+     * 为一条记录占一段位置，顺便记索引，调用前要先用hasRoom检查，只能在MessageLog的锁里调用
+     * 索引可能先于记录可见，指向还没公布的位置，读的线程只读end之前的部分，所以不会读到它
+     * @return 记录的位置，交给write
+     */
+    int reserve(long sequence, int length) {
+        int position = reserved;
+        reserved = position + length;
+        lastSequence = sequence;
+        if (lastIndexed < 0 || position - lastIndexed >= indexInterval) {
+            addIndex(sequence, position);
+        }
+        return position;
+    }
+
+    /**
+     * 把记录复制到reserve占好的位置上，不用加锁，可以和其他记录的复制同时进行
+     * @param frame 编码好的帧，不会改变它们的position
+     */
+    void write(int position, long sequence, byte[] room, ByteBuffer[] frame, int length) {
+        ByteBuffer writer = data.duplicate();
+        writer.position(position + 8);
+        writer.putLong(sequence);
+        writer.put((byte) room.length);
+        writer.put(room);
+        for (ByteBuffer segment : frame) {
+            writer.put(segment.duplicate());
+        }
+        data.putInt(position + 4, checksum(data, position, length));
+        publish(position, length);
+    }
+
+    /**
+     * 最后写长度，长度不为0的记录就是复制完了的；从end开始把连续复制完的记录都公布出去
+     * 前面的记录还没复制完时这条先不公布，由复制完前面那条的线程一起公布
+     * 长度只在这个锁里写和读，锁之前的复制对之后拿到锁的线程都可见
+     */
+    private synchronized void publish(int position, int length) {
+        data.putInt(position, length);
+        int published = end;
+        int next;
+        while (published + 4 <= capacity && (next = data.getInt(published)) != 0) {
+            published += next;
+        }
+        end = published;
+    }
+
+    private void addIndex(long sequence, int position) {
+        int count = indexCount;
+        if ((count + 1) * INDEX_ENTRY > index.capacity()) {
+            return;
+        }
+        index.putLong(count * INDEX_ENTRY, sequence);
+        index.putInt(count * INDEX_ENTRY + 8, position);
+        lastIndexed = position;
+        indexCount = count + 1;
+    }
+
+    /**
+     * 二分查找索引
+     * @return 序号不超过sequence的最后一条索引指向的位置，从这里往后扫就能找到sequence，没有时为0
+     */
+    int floorPosition(long sequence) {
+        int low = 0;
+        int high = indexCount - 1;
+        int position = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (index.getLong(middle * INDEX_ENTRY) <= sequence) {
+                position = index.getInt(middle * INDEX_ENTRY + 8);
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * @return 数据的只读视图，limit是现在的end，读的线程各用各的
+     */
+    ByteBuffer view() {
+        ByteBuffer view = data.asReadOnlyBuffer();
+        view.limit(end);
+        return view;
+    }
+
+    static long sequenceAt(ByteBuffer view, int position) {
+        return view.getLong(position + 8);
+    }
+
+    /**
+     * 在原地比较记录的房间名，不创建字符串
+     * @param room UTF-8编码的房间名
+     */
+    static boolean roomEquals(ByteBuffer view, int position, byte[] room) {
+        if ((view.get(position + 16) & 0xFF) != room.length) {
+            return false;
+        }
+        for (int i = 0; i < room.length; i++) {
+            if (view.get(position + RECORD_HEADER + i) != room[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return 记录中帧的视图
+     */
+    static ByteBuffer frameAt(ByteBuffer view, int position) {
+        int length = view.getInt(position);
+        int roomLength = view.get(position + 16) & 0xFF;
+        ByteBuffer frame = view.duplicate();
+        frame.limit(position + length).position(position + RECORD_HEADER + roomLength);
+        return frame;
+    }
+
+    /**
+     * 把映射的内存写回磁盘，MappedByteBuffer.force会一直等到写完
+     */
+    void force() {
+        data.force();
+        index.force();
+    }
+}
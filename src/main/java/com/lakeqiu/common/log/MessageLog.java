@@ -0,0 +1,500 @@
+package com.lakeqiu.common.log;
+
+import com.lakeqiu.common.buffer.Buffers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+
+/**
+ * 只追加的消息日志，服务器转发的每一帧都按顺序编上序号存下来，重启后还在，客户端可以从某个序号开始补收
+ * 日志分成多个段（LogSegment），每个段是一个预先分配好大小、整个映射进内存的文件，写满了就换下一个，
+ * 超过maxSegments个段时删掉最旧的
+ * 追加只在锁里占一个序号和一段位置，复制和算CRC在锁外进行，几个worker可以同时追加，热路径上没有系统调用；
+ * 下一个段由刷盘线程提前创建、映射并分配好，换段时只是改个文件名，删掉旧段也交给刷盘线程；落盘由单独的线程成组进行：
+ * 每隔flushIntervalMillis，或者没落盘的字节超过flushBytes时，把这期间所有追加的记录一次force下去，
+ * 所以崩溃时最多丢掉最近一个间隔的消息，重启时按CRC丢掉没写完整的记录
+ * 每个段有一个稀疏索引，按序号找记录时先找段，再二分查找索引，最后只需往后扫几KB；
+ * 一次读最多扫过MAX_SCAN_BYTES字节，房间名在原地比较，一个很旧的序号也不会让调用的线程扫遍整个日志
+ * BIO、NIO、AIO服务器共用
+ * @author lakeqiu
+ */
+public class MessageLog implements Closeable {
+    /**
+     * 1、指定日志目录的系统属性，没有设置时服务器不保存消息
+     * 2、默认每个段的大小
+     * 3、默认成组落盘的间隔（毫秒）
+     * 4、默认没落盘的字节超过多少时马上落盘
+     * 5、默认每隔多少字节记一条索引
+     * 6、默认最多保留的段数
+     * 7、一次read最多扫过的字节数，不管有多少条是这个房间的，扫够了就返回，调用者从返回的序号接着读
+     * 8、最多缓存多少个房间名的UTF-8编码，超过时清空重来
+     */
+    public final static String PROPERTY = "com.lakeqiu.chat.log";
+    private final static int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private final static long DEFAULT_FLUSH_INTERVAL_MILLIS = 200;
+    private final static int DEFAULT_FLUSH_BYTES = 4 * 1024 * 1024;
+    private final static int DEFAULT_INDEX_INTERVAL = 4 * 1024;
+    private final static int DEFAULT_MAX_SEGMENTS = 16;
+    private final static int MAX_SCAN_BYTES = 1024 * 1024;
+    private final static int MAX_CACHED_ROOMS = 1024;
+
+    /**
+     * 1、日志目录
+     * 2、配置，需要在open之前设置
+     * 3、所有的段，按第一条记录的序号排序，读的线程不加锁
+     * 4、正在追加的段
+     * 5、已经写满、还没有落盘的段
+     * 6、刷盘线程提前准备好的下一个段，还没准备好时为null
+     * 7、超过maxSegments被换下来、等刷盘线程删掉的段
+     * 8、下一条记录的序号
+     * 9、上次落盘之后追加的字节数，超过flushBytes时叫醒刷盘线程
+     * 10、刷盘线程
+     * 11、是否已经打开、已经关闭
+     * 12、统计：追加的记录数、落盘的次数、太大放不进一个段而没有保存的记录数
+     * 13、房间名的UTF-8编码，追加和读的时候都要用，不用每条消息编码一次
+     */
+    private final Path directory;
+    private int segmentSize = DEFAULT_SEGMENT_SIZE;
+    private long flushIntervalMillis = DEFAULT_FLUSH_INTERVAL_MILLIS;
+    private int flushBytes = DEFAULT_FLUSH_BYTES;
+    private int indexInterval = DEFAULT_INDEX_INTERVAL;
+    private int maxSegments = DEFAULT_MAX_SEGMENTS;
+    private final ConcurrentSkipListMap<Long, LogSegment> segments = new ConcurrentSkipListMap<>();
+    private LogSegment active;
+    private final List<LogSegment> sealed = new ArrayList<>();
+    private LogSegment spare;
+    private final List<LogSegment> retired = new ArrayList<>();
+    private long nextSequence = 1;
+    private long unflushed;
+    private Thread flusher;
+    private boolean opened;
+    private boolean closed;
+    private long appended;
+    private long flushes;
+    private long rejected;
+    private final ConcurrentHashMap<String, byte[]> roomNames = new ConcurrentHashMap<>();
+
+    public MessageLog(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return 系统属性com.lakeqiu.chat.log指定的目录上的日志，没有设置时为null
+     */
+    public static MessageLog fromProperty() {
+        String directory = System.getProperty(PROPERTY);
+        return directory == null ? null : new MessageLog(Paths.get(directory));
+    }
+
+    /**
+     * 设置每个段的大小，需要在open之前调用
+     * @param segmentSize 字节数，要比最长的帧大，已经存在的段保持原来的大小
+     */
+    public void setSegmentSize(int segmentSize) {
+        if (segmentSize < 64 * 1024) {
+            throw new IllegalArgumentException("segmentSize: " + segmentSize);
+        }
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * 设置成组落盘的条件，满足任何一个就落盘，需要在open之前调用
+     * @param intervalMillis 最多隔多久落一次盘
+     * @param bytes 没落盘的字节超过多少时马上落盘
+     */
+    public void setFlushPolicy(long intervalMillis, int bytes) {
+        if (intervalMillis <= 0 || bytes <= 0) {
+            throw new IllegalArgumentException("intervalMillis: " + intervalMillis + ", bytes: " + bytes);
+        }
+        this.flushIntervalMillis = intervalMillis;
+        this.flushBytes = bytes;
+    }
+
+    /**
+     * 设置每隔多少字节记一条索引，越小查找时扫得越少，索引文件越大，需要在open之前调用
+     */
+    public void setIndexInterval(int indexInterval) {
+        if (indexInterval <= 0) {
+            throw new IllegalArgumentException("indexInterval: " + indexInterval);
+        }
+        this.indexInterval = indexInterval;
+    }
+
+    /**
+     * 设置最多保留多少个段，更旧的删掉，需要在open之前调用
+     */
+    public void setMaxSegments(int maxSegments) {
+        if (maxSegments < 1) {
+            throw new IllegalArgumentException("maxSegments: " + maxSegments);
+        }
+        this.maxSegments = maxSegments;
+    }
+
+    /**
+     * 打开目录中已有的段，恢复到最后一条完整的记录，然后启动刷盘线程，重复调用时什么也不做
+     */
+    public synchronized void open() throws IOException {
+        if (opened) {
+            return;
+        }
+        Files.createDirectories(directory);
+        LogSegment.deleteSpare(directory);
+        List<Long> bases = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.matches("\\d{20}\\.log"))
+                    .forEach(name -> bases.add(Long.parseLong(name.substring(0, 20))));
+        }
+        bases.sort(null);
+        for (long base : bases) {
+            LogSegment segment = new LogSegment(directory, base, segmentSize, indexInterval);
+            segments.put(base, segment);
+            active = segment;
+        }
+        if (active == null) {
+            active = newSegment(nextSequence);
+        } else {
+            nextSequence = active.lastSequence() + 1;
+        }
+        opened = true;
+        flusher = new Thread(this::flushLoop, "message-log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        System.out.println("日志：打开目录[" + directory + "]，" + segments.size() + "个段，下一条序号[" + nextSequence + "]");
+    }
+
+    private LogSegment newSegment(long baseSequence) throws IOException {
+        LogSegment segment = new LogSegment(directory, baseSequence, segmentSize, indexInterval);
+        segments.put(baseSequence, segment);
+        return segment;
+    }
+
+    /**
+     * 追加一帧
+     * 只是往映射的内存里复制，不落盘，由刷盘线程成组落盘；只有换段的时候才会创建文件
+     * @param room 帧转发到的房间，补收时按房间过滤
+     * @param frame 编码好的帧，会被复制，不会改变它们的position
+     * @return 这条记录的序号，没有打开、已经关闭或者帧太大时返回-1
+     */
+    public long append(String room, ByteBuffer[] frame) {
+        byte[] roomBytes = roomBytes(room);
+        long length = LogSegment.RECORD_HEADER + roomBytes.length + Buffers.remaining(frame);
+        LogSegment segment;
+        long sequence;
+        int position;
+        // 锁里只占序号和位置
+        synchronized (this) {
+            if (!opened || closed) {
+                return -1;
+            }
+            if (roomBytes.length > 0xFF || length > Integer.MAX_VALUE) {
+                rejected++;
+                return -1;
+            }
+            if (!active.hasRoom((int) length)) {
+                if (active.isEmpty() || !roll()) {
+                    rejected++;
+                    return -1;
+                }
+                if (!active.hasRoom((int) length)) {
+                    rejected++;
+                    return -1;
+                }
+            }
+            sequence = nextSequence++;
+            segment = active;
+            position = segment.reserve(sequence, (int) length);
+            appended++;
+            unflushed += length;
+            if (unflushed >= flushBytes) {
+                notifyAll();
+            }
+        }
+        segment.write(position, sequence, roomBytes, frame, (int) length);
+        return sequence;
+    }
+
+    /**
+     * 房间不多，编码缓存起来，缓存的房间太多时清空，只是多编码几次
+     */
+    private byte[] roomBytes(String room) {
+        byte[] bytes = roomNames.get(room);
+        if (bytes == null) {
+            if (roomNames.size() >= MAX_CACHED_ROOMS) {
+                roomNames.clear();
+            }
+            bytes = room.getBytes(StandardCharsets.UTF_8);
+            roomNames.put(room, bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * 换到新的段，旧的段交给刷盘线程，段数超过上限时把最旧的交给刷盘线程删掉，调用时要持有锁
+     * 刷盘线程已经准备好了下一个段时只是改个文件名，没准备好时才在这里创建
+     * 被删的段如果正在被读，映射在读完之前一直有效
+     * @return 是否换成功了
+     */
+    private boolean roll() {
+        LogSegment next;
+        try {
+            if (spare != null) {
+                next = spare;
+                spare = null;
+                next.activate(nextSequence);
+                segments.put(nextSequence, next);
+            } else {
+                next = newSegment(nextSequence);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        sealed.add(active);
+        active = next;
+        while (segments.size() > maxSegments) {
+            LogSegment oldest = segments.pollFirstEntry().getValue();
+            sealed.remove(oldest);
+            retired.add(oldest);
+        }
+        // 叫醒刷盘线程准备下一个段
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * 刷盘线程：等到间隔到了或者被append、roll叫醒，取走这期间写过的段，在锁外force，不挡住追加；
+     * 顺便删掉换下来的旧段，准备好下一个段，这些都是系统调用，不放在追加的线程里
+     */
+    private void flushLoop() {
+        while (true) {
+            List<LogSegment> dirty;
+            List<LogSegment> retiring;
+            boolean needSpare;
+            synchronized (this) {
+                if (!closed && unflushed < flushBytes) {
+                    try {
+                        wait(flushIntervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+                dirty = unflushed == 0 ? new ArrayList<>() : takeDirty();
+                retiring = new ArrayList<>(retired);
+                retired.clear();
+                needSpare = spare == null;
+            }
+            force(dirty);
+            delete(retiring);
+            if (needSpare) {
+                prepareSpare();
+            }
+        }
+    }
+
+    /**
+     * 在锁外创建下一个段，创建失败时到了换段的时候roll再试
+     */
+    private void prepareSpare() {
+        LogSegment prepared;
+        try {
+            prepared = LogSegment.spare(directory, segmentSize, indexInterval);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        synchronized (this) {
+            if (!closed) {
+                spare = prepared;
+                return;
+            }
+        }
+        delete(prepared);
+    }
+
+    private static void delete(List<LogSegment> segments) {
+        for (LogSegment segment : segments) {
+            delete(segment);
+        }
+    }
+
+    private static void delete(LogSegment segment) {
+        try {
+            Files.deleteIfExists(segment.dataPath);
+            Files.deleteIfExists(segment.indexPath);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 取走上次落盘之后写过的段，调用时要持有锁
+     * 还有记录在锁外复制的段留到下一轮再落一次，这些字节也算进unflushed
+     * @return 要落盘的段
+     */
+    private List<LogSegment> takeDirty() {
+        List<LogSegment> dirty = new ArrayList<>(sealed);
+        dirty.add(active);
+        sealed.clear();
+        unflushed = 0;
+        for (LogSegment segment : dirty) {
+            if (segment.unpublished() > 0) {
+                unflushed += segment.unpublished();
+                if (segment != active) {
+                    sealed.add(segment);
+                }
+            }
+        }
+        flushes++;
+        return dirty;
+    }
+
+    private static void force(List<LogSegment> dirty) {
+        for (LogSegment segment : dirty) {
+            segment.force();
+        }
+    }
+
+    /**
+     * 马上把所有追加过的记录落盘，等到写完才返回
+     */
+    public void flush() {
+        List<LogSegment> dirty;
+        synchronized (this) {
+            if (!opened || unflushed == 0) {
+                return;
+            }
+            dirty = takeDirty();
+        }
+        force(dirty);
+    }
+
+    /**
+     * 从某个序号开始，把一个房间的帧按顺序复制进dst，放不下下一帧就停，扫过MAX_SCAN_BYTES字节也停
+     * 读不加锁，可以和追加同时进行，只能读到调用时已经追加完的记录
+     * 读很旧的记录可能缺页，会挡住调用的线程，不要在事件循环里调用
+     * @param fromSequence 从这个序号开始，比最旧的记录还旧时从最旧的记录开始
+     * @param room 只要这个房间的帧
+     * @param dst 写模式，帧首尾相接地复制进去，不会超过它的limit；一帧比dst剩下的空间还大、又是第一帧时跳过这一帧
+     * @return 下一次应该从哪个序号开始
+     */
+    public long read(long fromSequence, String room, ByteBuffer dst) {
+        Map.Entry<Long, LogSegment> first = segments.firstEntry();
+        if (first == null || room == null) {
+            return fromSequence;
+        }
+        byte[] roomBytes = roomBytes(room);
+        long next = Math.max(fromSequence, first.getKey());
+        boolean copied = false;
+        long scanned = 0;
+        Map.Entry<Long, LogSegment> entry = segments.floorEntry(next);
+        while (entry != null) {
+            LogSegment segment = entry.getValue();
+            ByteBuffer view = segment.view();
+            int position = segment.floorPosition(next);
+            while (position < view.limit()) {
+                if (scanned >= MAX_SCAN_BYTES) {
+                    return next;
+                }
+                int length = view.getInt(position);
+                scanned += length;
+                long sequence = LogSegment.sequenceAt(view, position);
+                if (sequence >= next) {
+                    if (LogSegment.roomEquals(view, position, roomBytes)) {
+                        ByteBuffer frame = LogSegment.frameAt(view, position);
+                        if (frame.remaining() > dst.remaining()) {
+                            // 什么都还没复制时说明这一帧永远放不下，跳过它，否则下次从它开始
+                            if (copied) {
+                                return sequence;
+                            }
+                        } else {
+                            dst.put(frame);
+                            copied = true;
+                        }
+                    }
+                    next = sequence + 1;
+                }
+                position += length;
+            }
+            // 先找下一个段再检查这个段：下一个段已经存在，这个段就不会再占新的位置了
+            // 这个段还有记录在复制，或者是扫描期间追加的，下一个段里序号更大的记录要等它们读完再读
+            Map.Entry<Long, LogSegment> higher = segments.higherEntry(entry.getKey());
+            if (segment.reserved() > view.limit()) {
+                return next;
+            }
+            entry = higher;
+        }
+        return next;
+    }
+
+    /**
+     * @return 下一条记录的序号，客户端记下它，重连后从这里开始补收
+     */
+    public synchronized long nextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * 停止刷盘线程，把剩下的记录落盘，重复调用时什么也不做
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            if (!opened || closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+            thread = flusher;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // 关闭之前占了位置的记录可能还在锁外复制，等它们复制完再落一次盘
+        while (true) {
+            List<LogSegment> dirty;
+            List<LogSegment> retiring;
+            boolean copying;
+            synchronized (this) {
+                dirty = takeDirty();
+                copying = unflushed > 0;
+                retiring = new ArrayList<>(retired);
+                retired.clear();
+                if (spare != null) {
+                    retiring.add(spare);
+                    spare = null;
+                }
+            }
+            force(dirty);
+            delete(retiring);
+            if (!copying) {
+                return;
+            }
+            Thread.yield();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MessageLog{directory=" + directory + ", segments=" + segments.size()
+                + ", nextSequence=" + nextSequence + ", appended=" + appended
+                + ", flushes=" + flushes + ", rejected=" + rejected + "}";
+    }
+}
@@ -0,0 +1,157 @@
+package com.lakeqiu.common.metrics;
+
+import com.lakeqiu.common.buffer.BufferPool;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * 聊天服务器的指标，BIO、线程池BIO、NIO、AIO服务器用同一套名字，只有transport标签不同，可以放在一起对比
+ * 三个阶段的耗时：
+ * 1、decode：从累积缓冲区切出一帧
+ * 2、forward：从切出一帧到放进所有接收方的发送队列；NIO按worker记，跨线程投递的排队时间也算在内；
+ *    BIO没有发送队列，包括阻塞写所有接收方的时间
+ * 3、write：一帧从放进发送队列到完整写进内核；BIO是一次阻塞写的时间
+ * 记录都只是LongAdder的累加，不加锁、不申请内存，可以放在每条消息的路径上；
+ * 队列长度这样的值由各个服务器注册成仪表，抓取时才去读
+ * @author lakeqiu
+ */
+public class ChatMetrics {
+    /**
+     * 1、注册表，transport标签区分服务器
+     * 2、接受的连接数、关闭的连接数，两者的差是当前连接数
+     * 3、收到的字节数、发出的字节数
+     * 4、切出的帧数、转发给接收方的帧数（一条发言有几个接收方就算几次）、因为接收方太慢或者已经断开而丢掉的帧数
+     * 5、各个阶段的耗时
+     * 6、HTTP端口，没有开启时为null
+     */
+    private final MetricsRegistry registry;
+    private final LongAdder accepted;
+    private final LongAdder closed;
+    private final LongAdder bytesIn;
+    private final LongAdder bytesOut;
+    private final LongAdder framesIn;
+    private final LongAdder relayed;
+    private final LongAdder dropped;
+    private final Histogram decode;
+    private final Histogram forward;
+    private final Histogram write;
+    private MetricsEndpoint endpoint;
+
+    /**
+     * @param transport 服务器的种类：bio、bioPool、nio、aio
+     */
+    public ChatMetrics(String transport) {
+        this.registry = new MetricsRegistry("transport", transport);
+        this.accepted = registry.counter("chat_connections_accepted_total", "接受的连接数");
+        this.closed = registry.counter("chat_connections_closed_total", "关闭的连接数");
+        registry.gauge("chat_connections_active", "当前连接数", () -> accepted.sum() - closed.sum());
+        this.bytesIn = registry.counter("chat_received_bytes_total", "从客户端收到的字节数");
+        this.bytesOut = registry.counter("chat_sent_bytes_total", "写给客户端的字节数");
+        this.framesIn = registry.counter("chat_frames_received_total", "从客户端切出的帧数");
+        this.relayed = registry.counter("chat_messages_relayed_total", "转发给接收方的消息数");
+        this.dropped = registry.counter("chat_frames_dropped_total", "没有写出去就丢掉的帧数");
+        this.decode = registry.histogram("chat_decode_seconds", "切出一帧的耗时");
+        this.forward = registry.histogram("chat_forward_seconds", "从切出一帧到放进接收方发送队列的耗时");
+        this.write = registry.histogram("chat_write_seconds", "一帧从放进发送队列到写完的耗时");
+        registry.gauge("chat_buffer_pool_outstanding", "借出去还没还的池化缓冲区数", BufferPool.DEFAULT::outstanding);
+    }
+
+    public MetricsRegistry registry() {
+        return registry;
+    }
+
+    /**
+     * 注册一个服务器自己的仪表，比如队列长度
+     */
+    public void gauge(String name, String help, LongSupplier value) {
+        registry.gauge(name, help, value);
+    }
+
+    public void connectionOpened() {
+        accepted.increment();
+    }
+
+    /**
+     * 每个连接只能调用一次，与connectionOpened配对
+     */
+    public void connectionClosed() {
+        closed.increment();
+    }
+
+    public void bytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    public void bytesOut(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    /**
+     * 切出了一帧
+     * @param nanos 切帧的耗时
+     */
+    public void frameDecoded(long nanos) {
+        framesIn.increment();
+        decode.record(nanos);
+    }
+
+    /**
+     * 一条发言放进了接收方的发送队列
+     * @param receivers 这次放进了几个接收方的队列
+     * @param nanos 从切出这一帧到现在的耗时
+     */
+    public void forwarded(int receivers, long nanos) {
+        relayed.add(receivers);
+        forward.record(nanos);
+    }
+
+    /**
+     * 一帧完整写出去了
+     * @param nanos 从放进发送队列到写完的耗时
+     */
+    public void written(long nanos) {
+        write.record(nanos);
+    }
+
+    public void dropped(int frames) {
+        dropped.add(frames);
+    }
+
+    /**
+     * 开启HTTP端口，GET /metrics返回Prometheus的文本格式
+     * @param port 为0时不开启
+     */
+    public synchronized void openEndpoint(int port) throws IOException {
+        if (port <= 0 || endpoint != null) {
+            return;
+        }
+        MetricsEndpoint opened = new MetricsEndpoint(port, registry);
+        opened.start();
+        endpoint = opened;
+    }
+
+    /**
+     * 关闭HTTP端口，没有开启时什么也不做
+     */
+    public synchronized void closeEndpoint() {
+        if (endpoint != null) {
+            endpoint.close();
+            endpoint = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ChatMetrics{accepted=" + accepted.sum() + ", closed=" + closed.sum()
+                + ", bytesIn=" + bytesIn.sum() + ", bytesOut=" + bytesOut.sum()
+                + ", frames=" + framesIn.sum() + ", relayed=" + relayed.sum() + ", dropped=" + dropped.sum()
+                + ", forwardMeanMicros=" + meanMicros(forward) + ", writeMeanMicros=" + meanMicros(write) + "}";
+    }
+
+    private static long meanMicros(Histogram histogram) {
+        long count = histogram.count();
+        return count == 0 ? 0 : histogram.sumNanos() / count / 1000;
+    }
+}
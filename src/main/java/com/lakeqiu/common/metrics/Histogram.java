@@ -0,0 +1,83 @@
+package com.lakeqiu.common.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 服务器用的延迟直方图，导出成Prometheus的histogram
+ * 桶的上界是1微秒、2微秒、4微秒……2^25微秒（约33秒），再加一个+Inf，相邻的桶差一倍；
+ * 比loadgen里的LatencyHistogram粗得多，但是桶少，每次抓取的文本也短，分位数交给Prometheus按桶估算
+ * 很多线程同时记录：每个桶是一个LongAdder，竞争时分散到不同的cell上，记录不加锁，也不申请内存
+ * @author lakeqiu
+ */
+public class Histogram {
+    /**
+     * 1、有上界的桶数，第i个桶的上界是2^i微秒
+     * 2、每微秒的纳秒数
+     */
+    private final static int BUCKET_COUNT = 26;
+    private final static long NANOS_PER_MICRO = 1000;
+
+    /**
+     * 1、每个桶的样本数，最后一个是超过所有上界的
+     * 2、所有样本的和，纳秒
+     */
+    private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT + 1];
+    private final LongAdder sum = new LongAdder();
+
+    public Histogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * 记录一个耗时，负数按0记
+     */
+    public void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        buckets[indexOf(nanos)].increment();
+        sum.add(nanos);
+    }
+
+    /**
+     * 第i个桶装(2^(i-1), 2^i]微秒，桶的边界都是1000纳秒的整数倍，所以先除再取二进制位数就行
+     */
+    private static int indexOf(long nanos) {
+        if (nanos <= NANOS_PER_MICRO) {
+            return 0;
+        }
+        int index = 64 - Long.numberOfLeadingZeros((nanos - 1) / NANOS_PER_MICRO);
+        return Math.min(index, BUCKET_COUNT);
+    }
+
+    public long count() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    public long sumNanos() {
+        return sum.sum();
+    }
+
+    /**
+     * 按Prometheus的文本格式写出累积的桶、总和和样本数，时间的单位是秒
+     * 抓取时各个桶不是同一时刻的快照，count用写出的桶累加，保证和+Inf那个桶一致
+     * @param labels 已经拼好的标签，比如transport="nio"，没有时为空串
+     */
+    void writeTo(StringBuilder out, String name, String labels) {
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            cumulative += buckets[i].sum();
+            String bound = i < BUCKET_COUNT ? Double.toString((1L << i) * NANOS_PER_MICRO / 1e9) : "+Inf";
+            out.append(name).append("_bucket{").append(prefix).append("le=\"").append(bound).append("\"} ")
+                    .append(cumulative).append('\n');
+        }
+        String suffix = labels.isEmpty() ? " " : "{" + labels + "} ";
+        out.append(name).append("_sum").append(suffix).append(sum.sum() / 1e9).append('\n');
+        out.append(name).append("_count").append(suffix).append(cumulative).append('\n');
+    }
+}
@@ -0,0 +1,80 @@
+package com.lakeqiu.common.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 在服务器进程里开一个HTTP端口，GET /metrics返回Prometheus的文本格式
+ * 用JDK自带的com.sun.net.httpserver，不引入依赖；请求都在它的分发线程里处理，抓取很少，一个线程足够
+ * @author lakeqiu
+ */
+public class MetricsEndpoint implements Closeable {
+    /**
+     * 1、系统属性，值是HTTP端口，比如-Dcom.lakeqiu.chat.metrics=9100，没有设置时不开启
+     * 2、路径
+     * 3、Prometheus文本格式的Content-Type
+     */
+    public final static String PROPERTY = "com.lakeqiu.chat.metrics";
+    private final static String PATH = "/metrics";
+    private final static String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final int port;
+    private final MetricsRegistry registry;
+    private HttpServer server;
+
+    public MetricsEndpoint(int port, MetricsRegistry registry) {
+        this.port = port;
+        this.registry = registry;
+    }
+
+    /**
+     * @return 系统属性com.lakeqiu.chat.metrics指定的端口，没有设置时为0
+     */
+    public static int portFromProperty() {
+        return Integer.getInteger(PROPERTY, 0);
+    }
+
+    public synchronized void start() throws IOException {
+        if (server != null) {
+            throw new IllegalStateException("指标端口已经开启");
+        }
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext(PATH, this::handle);
+        server.start();
+        System.out.println("服务器：指标地址[http://localhost:" + port + PATH + "]");
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = registry.scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * 关闭HTTP端口，重复调用时什么也不做
+     */
+    @Override
+    public synchronized void close() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+}
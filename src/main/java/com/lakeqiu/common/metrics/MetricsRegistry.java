@@ -0,0 +1,114 @@
+package com.lakeqiu.common.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * 指标注册表，按注册的顺序导出成Prometheus的文本格式
+ * 计数器就是LongAdder，直方图见Histogram，记录的线程直接拿着它们累加，不经过注册表；
+ * 仪表是一个LongSupplier，抓取时才去读，比如队列长度，平时不用维护
+ * 注册通常在服务器创建时做完，抓取时加锁遍历，与记录互不影响
+ * @author lakeqiu
+ */
+public class MetricsRegistry {
+    /**
+     * 1、每个指标都带的标签，已经拼好，比如transport="nio"
+     * 2、注册的指标，用this加锁
+     */
+    private final String labels;
+    private final List<Metric> metrics = new ArrayList<>();
+
+    /**
+     * @param labels 每个指标都带的标签，名字和值交替，比如"transport", "nio"
+     */
+    public MetricsRegistry(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("标签的名字和值要成对");
+        }
+        StringBuilder joined = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (joined.length() > 0) {
+                joined.append(',');
+            }
+            joined.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+        }
+        this.labels = joined.toString();
+    }
+
+    /**
+     * 注册一个计数器，名字按惯例以_total结尾
+     */
+    public synchronized LongAdder counter(String name, String help) {
+        LongAdder counter = new LongAdder();
+        metrics.add(new Metric(name, help, "counter", (out, labels) -> sample(out, name, labels, counter.sum())));
+        return counter;
+    }
+
+    /**
+     * 注册一个由别处累计的计数器，抓取时调用value读出当前值，比如线程池自己记的完成任务数
+     */
+    public synchronized void counter(String name, String help, LongSupplier value) {
+        metrics.add(new Metric(name, help, "counter", (out, labels) -> sample(out, name, labels, value.getAsLong())));
+    }
+
+    /**
+     * 注册一个仪表，抓取时调用value读出当前值，可能在任何线程中调用
+     */
+    public synchronized void gauge(String name, String help, LongSupplier value) {
+        metrics.add(new Metric(name, help, "gauge", (out, labels) -> sample(out, name, labels, value.getAsLong())));
+    }
+
+    /**
+     * 注册一个延迟直方图，名字按惯例以_seconds结尾
+     */
+    public synchronized Histogram histogram(String name, String help) {
+        Histogram histogram = new Histogram();
+        metrics.add(new Metric(name, help, "histogram", (out, labels) -> histogram.writeTo(out, name, labels)));
+        return histogram;
+    }
+
+    /**
+     * @return Prometheus的文本格式，每个指标一段：HELP、TYPE和样本
+     */
+    public synchronized String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Metric metric : metrics) {
+            out.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+            out.append("# TYPE ").append(metric.name).append(' ').append(metric.type).append('\n');
+            metric.writer.write(out, labels);
+        }
+        return out.toString();
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, long value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private interface SampleWriter {
+        void write(StringBuilder out, String labels);
+    }
+
+    private static class Metric {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final SampleWriter writer;
+
+        Metric(String name, String help, String type, SampleWriter writer) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.writer = writer;
+        }
+    }
+}
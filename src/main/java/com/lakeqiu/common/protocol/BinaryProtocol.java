@@ -0,0 +1,86 @@
+package com.lakeqiu.common.protocol;
+
+import com.lakeqiu.common.codec.FrameCodec;
+import com.lakeqiu.common.codec.Varint;
+import com.lakeqiu.common.codec.VarintFrameCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 二进制协议：varint长度 + 1字节操作码 + varint发送者id + 负载
+ * 负载是任意字节，可以包含换行符，服务器转发时只替换头部，负载原样转发
+ * 客户端发出的帧发送者id为0，服务器转发时填上发送者的会话id
+ * @author lakeqiu
+ */
+public class BinaryProtocol implements ChatProtocol {
+    private final FrameCodec frameCodec;
+
+    public BinaryProtocol(int maxFrameLength) {
+        this.frameCodec = new VarintFrameCodec(maxFrameLength);
+    }
+
+    @Override
+    public FrameCodec frameCodec() {
+        return frameCodec;
+    }
+
+    @Override
+    public Opcode opcode(ByteBuffer frame) throws IOException {
+        if (!frame.hasRemaining()) {
+            throw new IOException("空帧");
+        }
+        Opcode opcode = Opcode.of(frame.get(frame.position()) & 0xFF);
+        if (opcode == null) {
+            throw new IOException("不认识的操作码[" + (frame.get(frame.position()) & 0xFF) + "]");
+        }
+        return opcode;
+    }
+
+    @Override
+    public long senderId(ByteBuffer frame) throws IOException {
+        ByteBuffer header = frame.duplicate();
+        header.position(header.position() + 1);
+        return Varint.read(header);
+    }
+
+    @Override
+    public ByteBuffer payload(ByteBuffer frame) throws IOException {
+        ByteBuffer payload = frame.duplicate();
+        payload.position(payload.position() + 1);
+        Varint.read(payload);
+        return payload;
+    }
+
+    /**
+     * 消息显示为"发送者id:内容"，私聊显示为"发送者id(私聊):内容"，通知显示为"服务器：内容"，命令原样显示
+     */
+    @Override
+    public String text(ByteBuffer frame) throws IOException {
+        String payload = StandardCharsets.UTF_8.decode(payload(frame)).toString();
+        switch (opcode(frame)) {
+            case MESSAGE:
+                return senderId(frame) + ":" + payload;
+            case DIRECT:
+                return senderId(frame) + "(私聊):" + payload;
+            case NOTICE:
+                return "服务器：" + payload;
+            case PING:
+                return "/ping";
+            case PONG:
+                return "/pong";
+            default:
+                return payload;
+        }
+    }
+
+    @Override
+    public ByteBuffer header(Opcode opcode, long senderId, int port) {
+        ByteBuffer header = ByteBuffer.allocate(1 + Varint.length(senderId));
+        header.put((byte) opcode.code());
+        Varint.write(header, senderId);
+        header.flip();
+        return header.asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,131 @@
+package com.lakeqiu.common.protocol;
+
+import com.lakeqiu.common.codec.FrameCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 聊天室的线上协议，服务器和客户端、BIO、NIO、AIO共用
+ * 一帧由帧边界（FrameCodec负责）、头部和负载组成，服务器转发时只看头部，负载原样转发，不解码也不重新编码
+ * 有两种实现：
+ * 文本协议（TextProtocol）：按行分隔的UTF-8，与原来的客户端兼容，消息中不能有换行符
+ * 二进制协议（BinaryProtocol）：varint长度 + 操作码 + varint发送者id + 负载，负载可以是任意字节
+ * @author lakeqiu
+ */
+public interface ChatProtocol {
+    /**
+     * 选择协议的系统属性，值为text或binary，默认text
+     */
+    String PROPERTY = "com.lakeqiu.chat.protocol";
+
+    /**
+     * @return 负责划分帧的编解码器
+     */
+    FrameCodec frameCodec();
+
+    /**
+     * @param frame decode出来的一帧，不会改变它的position
+     * @return 帧的类型
+     * @throws IOException 格式错误
+     */
+    Opcode opcode(ByteBuffer frame) throws IOException;
+
+    /**
+     * @param frame decode出来的一帧，不会改变它的position
+     * @return 发送者id，文本协议没有这个字段，返回0
+     * @throws IOException 格式错误
+     */
+    long senderId(ByteBuffer frame) throws IOException;
+
+    /**
+     * @param frame decode出来的一帧，不会改变它的position
+     * @return 负载的视图，不复制
+     * @throws IOException 格式错误
+     */
+    ByteBuffer payload(ByteBuffer frame) throws IOException;
+
+    /**
+     * 负载前面的头部，转发同一个发送者的消息时可以缓存起来一直复用
+     * @param opcode 类型
+     * @param senderId 发送者id，客户端发出的帧为0
+     * @param port 发送者端口，文本协议用它作为"端口:"前缀，为0时不加前缀
+     * @return 只读的头部，可能为空
+     */
+    ByteBuffer header(Opcode opcode, long senderId, int port);
+
+    /**
+     * 把收到的一帧转成给用户看的文字
+     * @param frame decode出来的一帧
+     * @throws IOException 格式错误
+     */
+    String text(ByteBuffer frame) throws IOException;
+
+    /**
+     * 编码一帧，不复制负载
+     */
+    default ByteBuffer[] encode(ByteBuffer header, ByteBuffer payload) {
+        return frameCodec().encode(header.duplicate(), payload);
+    }
+
+    /**
+     * 编码一个没有负载的帧，比如心跳
+     */
+    default ByteBuffer[] encode(Opcode opcode) {
+        return encode(opcode, 0, ByteBuffer.allocate(0));
+    }
+
+    /**
+     * 编码一帧，不复制负载
+     */
+    default ByteBuffer[] encode(Opcode opcode, long senderId, ByteBuffer payload) {
+        return encode(header(opcode, senderId, 0), payload);
+    }
+
+    /**
+     * 跳过命令开头count个以空格分隔的单词，返回剩下的部分，不解码也不复制
+     * 比如"/msg bob 你好"跳过2个单词后是"你好"，UTF-8的多字节字符中不会出现空格，所以可以直接按字节查找
+     * @param command 命令的负载，不会改变它的position
+     * @return 剩下部分的视图，什么也不剩时返回null
+     */
+    static ByteBuffer skipWords(ByteBuffer command, int count) {
+        ByteBuffer rest = command.duplicate();
+        for (int i = 0; i <= count; i++) {
+            // 跳过单词前面的空格
+            while (rest.hasRemaining() && rest.get(rest.position()) == ' ') {
+                rest.get();
+            }
+            if (i == count) {
+                break;
+            }
+            // 跳过这个单词
+            while (rest.hasRemaining() && rest.get(rest.position()) != ' ') {
+                rest.get();
+            }
+        }
+        return rest.hasRemaining() ? rest.slice() : null;
+    }
+
+    /**
+     * @param maxFrameLength 单个帧负载的最大长度
+     * @return 系统属性com.lakeqiu.chat.protocol指定的协议
+     */
+    static ChatProtocol fromProperty(int maxFrameLength) {
+        return of(System.getProperty(PROPERTY, "text"), maxFrameLength);
+    }
+
+    /**
+     * @param name text或binary
+     * @param maxFrameLength 单个帧负载的最大长度
+     */
+    static ChatProtocol of(String name, int maxFrameLength) {
+        switch (name.toLowerCase()) {
+            case "text":
+                return new TextProtocol(maxFrameLength);
+            case "binary":
+                return new BinaryProtocol(maxFrameLength);
+            default:
+                throw new IllegalArgumentException("不认识的协议：" + name);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.lakeqiu.common.protocol;
+
+/**
+ * 帧的类型
+ * @author lakeqiu
+ */
+public enum Opcode {
+    /**
+     * 聊天消息，服务器原样转发负载
+     */
+    MESSAGE(1),
+    /**
+     * 命令，比如/offer、/accept，服务器发给客户端的控制消息（比如/file）也是这个类型
+     */
+    COMMAND(2),
+    /**
+     * 服务器的通知
+     */
+    NOTICE(3),
+    /**
+     * 客户端退出
+     */
+    QUIT(4),
+    /**
+     * 私聊消息，只有一个接收方
+     */
+    DIRECT(5),
+    /**
+     * 心跳，收到后要回PONG
+     */
+    PING(6),
+    /**
+     * 心跳的回复
+     */
+    PONG(7);
+
+    private final static Opcode[] VALUES = new Opcode[8];
+
+    static {
+        for (Opcode opcode : values()) {
+            VALUES[opcode.code] = opcode;
+        }
+    }
+
+    private final int code;
+
+    Opcode(int code) {
+        this.code = code;
+    }
+
+    public int code() {
+        return code;
+    }
+
+    /**
+     * 按用户在控制台输入的一行判断类型，规则与文本协议相同
+     */
+    public static Opcode ofInput(String line) {
+        if ("quit".equals(line)) {
+            return QUIT;
+        }
+        return line.startsWith("/") ? COMMAND : MESSAGE;
+    }
+
+    /**
+     * @return 对应的类型，不认识时返回null
+     */
+    public static Opcode of(int code) {
+        return code >= 0 && code < VALUES.length ? VALUES[code] : null;
+    }
+}
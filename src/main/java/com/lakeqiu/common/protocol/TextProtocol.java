@@ -0,0 +1,99 @@
+package com.lakeqiu.common.protocol;
+
+import com.lakeqiu.common.codec.FrameCodec;
+import com.lakeqiu.common.codec.LineFrameCodec;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 文本协议，与原来按行收发UTF-8字符串的客户端兼容
+ * 没有头部，类型由内容决定："quit"是退出，"/ping"和"/pong"是心跳，以/开头的是命令，其余都是消息
+ * 服务器转发时在前面加上"端口:"，私聊加上"端口(私聊):"，通知加上"服务器："
+ * @author lakeqiu
+ */
+public class TextProtocol implements ChatProtocol {
+    private final static ByteBuffer QUIT = ByteBuffer.wrap("quit".getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    private final static ByteBuffer PING = ByteBuffer.wrap("/ping".getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    private final static ByteBuffer PONG = ByteBuffer.wrap("/pong".getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    private final static ByteBuffer NOTICE_PREFIX = ByteBuffer.wrap("服务器：".getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    private final static ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+    private final FrameCodec frameCodec;
+
+    public TextProtocol(int maxFrameLength) {
+        this(new LineFrameCodec(maxFrameLength));
+    }
+
+    /**
+     * @param frameCodec 划分帧的方式，比如按行或者按长度前缀
+     */
+    public TextProtocol(FrameCodec frameCodec) {
+        this.frameCodec = frameCodec;
+    }
+
+    @Override
+    public FrameCodec frameCodec() {
+        return frameCodec;
+    }
+
+    @Override
+    public Opcode opcode(ByteBuffer frame) {
+        if (QUIT.equals(frame)) {
+            return Opcode.QUIT;
+        }
+        if (PING.equals(frame)) {
+            return Opcode.PING;
+        }
+        if (PONG.equals(frame)) {
+            return Opcode.PONG;
+        }
+        if (frame.hasRemaining() && frame.get(frame.position()) == '/') {
+            return Opcode.COMMAND;
+        }
+        return Opcode.MESSAGE;
+    }
+
+    @Override
+    public long senderId(ByteBuffer frame) {
+        return 0;
+    }
+
+    @Override
+    public ByteBuffer payload(ByteBuffer frame) {
+        return frame.duplicate();
+    }
+
+    @Override
+    public String text(ByteBuffer frame) {
+        return StandardCharsets.UTF_8.decode(frame.duplicate()).toString();
+    }
+
+    @Override
+    public ByteBuffer header(Opcode opcode, long senderId, int port) {
+        if (opcode == Opcode.MESSAGE && port != 0) {
+            return StandardCharsets.UTF_8.encode(port + ":").asReadOnlyBuffer();
+        }
+        if (opcode == Opcode.DIRECT && port != 0) {
+            return StandardCharsets.UTF_8.encode(port + "(私聊):").asReadOnlyBuffer();
+        }
+        if (opcode == Opcode.NOTICE) {
+            return NOTICE_PREFIX.duplicate();
+        }
+        return EMPTY;
+    }
+
+    @Override
+    public ByteBuffer[] encode(Opcode opcode, long senderId, ByteBuffer payload) {
+        // 退出口令和心跳本身就是负载
+        if (opcode == Opcode.QUIT) {
+            return frameCodec.encode(QUIT.duplicate());
+        }
+        if (opcode == Opcode.PING) {
+            return frameCodec.encode(PING.duplicate());
+        }
+        if (opcode == Opcode.PONG) {
+            return frameCodec.encode(PONG.duplicate());
+        }
+        return ChatProtocol.super.encode(opcode, senderId, payload);
+    }
+}
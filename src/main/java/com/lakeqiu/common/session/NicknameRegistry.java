@@ -0,0 +1,94 @@
+package com.lakeqiu.common.session;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 昵称索引：昵称到会话，私聊时按昵称一次查找就能找到接收方，不用遍历所有会话
+ * 连接时注册一个默认昵称，断开时移除，也可以改名，昵称在整个服务器内唯一
+ * 同一个会话的register、rename、remove要由同一个线程调用，不同会话之间可以并发
+ * @author lakeqiu
+ */
+public class NicknameRegistry<S extends Session> {
+    /**
+     * 1、昵称的最大长度
+     * 2、昵称到会话
+     * 3、会话id到昵称
+     */
+    public final static int MAX_NICKNAME_LENGTH = 32;
+    private final ConcurrentMap<String, S> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, String> nicknames = new ConcurrentHashMap<>();
+
+    /**
+     * 连接时注册默认昵称，已经被占用时在后面加上序号
+     * @param preferred 想要的昵称，比如客户端端口
+     * @return 实际注册的昵称
+     */
+    public String register(S session, String preferred) {
+        String nickname = preferred;
+        int suffix = 0;
+        while (sessions.putIfAbsent(nickname, session) != null) {
+            nickname = preferred + "-" + (++suffix);
+        }
+        nicknames.put(session.id(), nickname);
+        return nickname;
+    }
+
+    /**
+     * 改名
+     * @return 是否成功，昵称已经被别人占用时返回false
+     * @throws IllegalArgumentException 昵称为空、包含空白字符或者太长
+     */
+    public boolean rename(S session, String nickname) {
+        checkName(nickname);
+        if (sessions.putIfAbsent(nickname, session) != null) {
+            return nickname.equals(nicknames.get(session.id()));
+        }
+        String previous = nicknames.put(session.id(), nickname);
+        if (previous != null) {
+            sessions.remove(previous, session);
+        }
+        return true;
+    }
+
+    /**
+     * 会话断开，移除它的昵称，重复调用时什么也不做
+     * @return 原来的昵称，没有注册过时为null
+     */
+    public String remove(S session) {
+        String nickname = nicknames.remove(session.id());
+        if (nickname != null) {
+            sessions.remove(nickname, session);
+        }
+        return nickname;
+    }
+
+    /**
+     * @return 这个昵称的会话，没有时为null
+     */
+    public S get(String nickname) {
+        return sessions.get(nickname);
+    }
+
+    /**
+     * @return 会话的昵称，没有注册过时为null
+     */
+    public String nicknameOf(S session) {
+        return nicknames.get(session.id());
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    private static void checkName(String nickname) {
+        if (nickname == null || nickname.isEmpty() || nickname.length() > MAX_NICKNAME_LENGTH) {
+            throw new IllegalArgumentException("昵称长度必须在1到" + MAX_NICKNAME_LENGTH + "之间");
+        }
+        for (int i = 0; i < nickname.length(); i++) {
+            if (Character.isWhitespace(nickname.charAt(i))) {
+                throw new IllegalArgumentException("昵称不能包含空白字符");
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.lakeqiu.common.session;
+
+import com.lakeqiu.common.buffer.FrameRing;
+import com.lakeqiu.common.buffer.PooledBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Predicate;
+
+/**
+ * 每个房间最近的消息，BIO、NIO、AIO服务器共用，新加入房间的用户先收到它们
+ * 每个房间一个FrameRing，存的是转发时已经编码好的帧，回放时原样写出去，不用重新编码；
+ * 帧数和字节数都有上限，所以每个房间的内存是固定的
+ * 房间里最后一个人离开时由服务器调用remove释放，只有还有人在的房间占内存
+ * 与RoomRegistry分开，NIO的每个Reactor有自己的房间索引，但历史要整个服务器共用一份
+ * @author lakeqiu
+ */
+public class RoomHistory {
+    /**
+     * 1、默认每个房间保存的消息数和字节数
+     * 2、房间名到历史
+     * 3、每个房间保存的消息数和字节数，消息数为0时不保存
+     */
+    public final static int DEFAULT_FRAMES = 50;
+    public final static int DEFAULT_BYTES = 64 * 1024;
+    private final ConcurrentMap<String, FrameRing> rings = new ConcurrentHashMap<>();
+    private volatile int maxFrames = DEFAULT_FRAMES;
+    private volatile int maxBytes = DEFAULT_BYTES;
+
+    /**
+     * 设置每个房间保存多少条消息，需要在有消息之前调用
+     * @param frames 最多保存的消息数，为0时不保存
+     * @param bytes 最多保存的字节数，包括帧头
+     */
+    public void setLimit(int frames, int bytes) {
+        if (frames < 0 || (frames > 0 && bytes <= 0)) {
+            throw new IllegalArgumentException("frames: " + frames + ", bytes: " + bytes);
+        }
+        this.maxFrames = frames;
+        this.maxBytes = bytes;
+    }
+
+    /**
+     * 把转发给房间的一帧存进历史
+     * @param frame 编码好的帧，会被复制，不会改变它们的position
+     */
+    public void record(String room, ByteBuffer[] frame) {
+        if (maxFrames == 0) {
+            return;
+        }
+        rings.computeIfAbsent(room, name -> new FrameRing(maxFrames, maxBytes)).append(frame);
+    }
+
+    /**
+     * @return 房间最近的消息，从旧到新首尾相接，读模式，调用方负责release；没有时为null
+     */
+    public PooledBuffer snapshot(String room) {
+        FrameRing ring = rings.get(room);
+        return ring == null ? null : ring.snapshot();
+    }
+
+    /**
+     * @return 房间最近的消息，从旧到新首尾相接的堆内数组，不经过缓冲池；没有时为null
+     */
+    public byte[] copy(String room) {
+        FrameRing ring = rings.get(room);
+        return ring == null ? null : ring.toByteArray();
+    }
+
+    /**
+     * 房间可能空了，确认没有成员后释放它的历史；正在往里追加的线程之后什么也不会写进去
+     * 判断和删除要在一起：先判断再删除的话，中间别的线程上有人加入并发了消息，
+     * 这条消息就跟着历史一起丢了。这里在computeIfPresent里再确认一次，与record的computeIfAbsent互斥，
+     * 加入房间总是先登记成员再记录消息，所以确认时要么看得到新成员，要么新成员的消息会建一个新的环
+     * @param occupied 房间现在是否还有成员，可以在任何线程调用
+     * @return 是否释放了
+     */
+    public boolean removeIfVacant(String room, Predicate<String> occupied) {
+        boolean[] removed = new boolean[1];
+        rings.computeIfPresent(room, (name, ring) -> {
+            if (occupied.test(name)) {
+                return ring;
+            }
+            ring.release();
+            removed[0] = true;
+            return null;
+        });
+        return removed[0];
+    }
+
+    public int roomCount() {
+        return rings.size();
+    }
+}
@@ -0,0 +1,122 @@
+package com.lakeqiu.common.session;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 房间索引：房间名到成员集合，BIO、NIO、AIO服务器共用
+ * 每个会话同一时间只在一个房间里，连接后默认在大厅，消息只发给同一个房间的成员，
+ * 广播的代价只和房间大小有关，和服务器上的总连接数无关
+ * 加入和离开用ConcurrentHashMap的compute按房间原子地修改，最后一个成员离开时房间被删掉，
+ * 遍历成员不加锁、弱一致，与SessionRegistry相同
+ * 同一个会话的join、leave、remove要由同一个线程调用（通常是这个连接自己的处理线程），不同会话之间可以并发
+ * @author lakeqiu
+ */
+public class RoomRegistry<S extends Session> {
+    /**
+     * 1、大厅，新连接都在这里
+     * 2、房间名的最大长度
+     * 3、房间名到成员，成员按会话id索引，与SessionRegistry一样按id的顺序遍历，内存访问比较连续
+     * 4、会话id到所在房间
+     */
+    public final static String LOBBY = "lobby";
+    public final static int MAX_ROOM_NAME_LENGTH = 64;
+    private final ConcurrentMap<String, ConcurrentMap<Long, S>> rooms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, String> memberships = new ConcurrentHashMap<>();
+
+    /**
+     * 加入房间，会先离开原来的房间
+     * @return 原来所在的房间，之前不在任何房间时为null
+     * @throws IllegalArgumentException 房间名为空、包含空白字符或者太长
+     */
+    public String join(S session, String room) {
+        checkName(room);
+        String previous = memberships.put(session.id(), room);
+        if (room.equals(previous)) {
+            return previous;
+        }
+        if (previous != null) {
+            removeMember(previous, session);
+        }
+        rooms.compute(room, (name, members) -> {
+            if (members == null) {
+                members = new ConcurrentHashMap<>();
+            }
+            members.put(session.id(), session);
+            return members;
+        });
+        return previous;
+    }
+
+    /**
+     * 离开所在的房间，回到大厅
+     * @return 原来所在的房间
+     */
+    public String leave(S session) {
+        return join(session, LOBBY);
+    }
+
+    /**
+     * 会话断开，从所在的房间中移除，重复调用时什么也不做
+     * @return 原来所在的房间，不在任何房间时为null
+     */
+    public String remove(S session) {
+        String previous = memberships.remove(session.id());
+        if (previous != null) {
+            removeMember(previous, session);
+        }
+        return previous;
+    }
+
+    private void removeMember(String room, S session) {
+        rooms.computeIfPresent(room, (name, members) -> {
+            members.remove(session.id(), session);
+            return members.isEmpty() ? null : members;
+        });
+    }
+
+    /**
+     * @return 会话所在的房间，不在任何房间时为null
+     */
+    public String roomOf(S session) {
+        return memberships.get(session.id());
+    }
+
+    /**
+     * @return 房间成员的只读视图，遍历不加锁、弱一致，房间不存在时为空
+     */
+    public Collection<S> members(String room) {
+        Map<Long, S> members = rooms.get(room);
+        return members == null ? Collections.emptySet() : Collections.unmodifiableCollection(members.values());
+    }
+
+    public boolean hasMembers(String room) {
+        return rooms.containsKey(room);
+    }
+
+    public int roomCount() {
+        return rooms.size();
+    }
+
+    /**
+     * @return 所有房间名的只读视图
+     */
+    public Set<String> rooms() {
+        return Collections.unmodifiableSet(rooms.keySet());
+    }
+
+    private static void checkName(String room) {
+        if (room == null || room.isEmpty() || room.length() > MAX_ROOM_NAME_LENGTH) {
+            throw new IllegalArgumentException("房间名长度必须在1到" + MAX_ROOM_NAME_LENGTH + "之间");
+        }
+        for (int i = 0; i < room.length(); i++) {
+            if (Character.isWhitespace(room.charAt(i))) {
+                throw new IllegalArgumentException("房间名不能包含空白字符");
+            }
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.lakeqiu.common.session;
+
+/**
+ * 服务器上的一个客户端连接
+ * @author lakeqiu
+ */
+public interface Session {
+    /**
+     * @return 服务器分配的会话id，在整个服务器生命周期内唯一
+     *         不用客户端端口作标识，因为不同主机的客户端端口可能相同
+     */
+    long id();
+}
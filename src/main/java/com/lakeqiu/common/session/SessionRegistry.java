@@ -0,0 +1,57 @@
+package com.lakeqiu.common.session;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * 会话注册表，BIO、NIO、AIO服务器共用
+ * 底层是ConcurrentHashMap，加入、离开、广播时的遍历都不需要加锁，互相之间不会阻塞
+ * 遍历是弱一致的：不会复制快照，也不会抛ConcurrentModificationException，
+ * 遍历过程中加入或离开的会话可能看得到也可能看不到
+ * @author lakeqiu
+ */
+public class SessionRegistry<S extends Session> {
+    private final AtomicLong idGenerator = new AtomicLong();
+    private final ConcurrentMap<Long, S> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * @return 新的会话id，从1开始递增
+     */
+    public long nextId() {
+        return idGenerator.incrementAndGet();
+    }
+
+    public void register(S session) {
+        sessions.put(session.id(), session);
+    }
+
+    /**
+     * @return 会话还在注册表中并且被移除时返回true，重复移除返回false
+     */
+    public boolean unregister(S session) {
+        return sessions.remove(session.id(), session);
+    }
+
+    public S get(long id) {
+        return sessions.get(id);
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * @return 所有会话的只读视图，遍历不加锁、弱一致
+     */
+    public Collection<S> sessions() {
+        return Collections.unmodifiableCollection(sessions.values());
+    }
+
+    public void forEach(Consumer<? super S> action) {
+        sessions.values().forEach(action);
+    }
+}
@@ -0,0 +1,243 @@
+package com.lakeqiu.common.timer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 哈希时间轮，给Reactor这类单线程事件循环用的定时器
+ * 时间被切成一个个tick，轮上的每个槽是一个双向链表，定时任务按到期的tick放进对应的槽，
+ * 到期时间超过一圈的任务记下还要转几圈，所以添加和取消都是O(1)，与定时任务的总数无关，
+ * 十万个连接各有一个空闲检测定时器也没有问题；代价是精度只有一个tick
+ * 不是线程安全的，添加、取消和推进都只能在同一个线程中调用，不需要额外的定时线程：
+ * 事件循环用nextTimeoutMillis作为select的超时时间，select返回后调用advance执行到期的任务
+ * @author lakeqiu
+ */
+public class HashedTimingWheel {
+    /**
+     * 1、每个tick的毫秒数
+     * 2、槽，长度是2的幂，用位运算取下标
+     * 3、下标掩码
+     * 4、时间轮的起点，纳秒
+     * 5、下一个要处理的tick，之前的tick都已经处理过
+     * 6、还没到期也没有取消的定时任务个数
+     */
+    private final long tickMillis;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startTime;
+    private long tick;
+    private int pending;
+
+    /**
+     * @param tickMillis 每个tick的毫秒数，也是定时的精度
+     * @param ticksPerWheel 一圈的槽数，会向上取整为2的幂
+     */
+    public HashedTimingWheel(long tickMillis, int ticksPerWheel) {
+        if (tickMillis <= 0 || ticksPerWheel <= 0 || ticksPerWheel > 1 << 30) {
+            throw new IllegalArgumentException("tickMillis: " + tickMillis + ", ticksPerWheel: " + ticksPerWheel);
+        }
+        int length = Integer.highestOneBit(ticksPerWheel - 1) << 1;
+        length = Math.max(1, length);
+        this.tickMillis = tickMillis;
+        this.wheel = new Bucket[length];
+        for (int i = 0; i < length; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = length - 1;
+        this.startTime = System.nanoTime();
+    }
+
+    /**
+     * @return 从时间轮起点到现在的毫秒数
+     */
+    private long elapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+    }
+
+    /**
+     * 添加一个定时任务
+     * @param task 到期后在调用advance的线程中执行
+     * @param delayMillis 延迟的毫秒数
+     * @return 可以用来取消
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        long deadline = elapsedMillis() + Math.max(0, delayMillis);
+        // 向上取整，保证不会提前执行；已经过去的tick不会再处理，放进当前tick
+        long ticks = Math.max((deadline + tickMillis - 1) / tickMillis, tick);
+        Timeout timeout = new Timeout(this, task, deadline);
+        timeout.remainingRounds = (ticks - tick) / wheel.length;
+        wheel[(int) (ticks & mask)].add(timeout);
+        pending++;
+        return timeout;
+    }
+
+    /**
+     * 执行所有已经到期的定时任务，任务里可以再添加或取消定时任务
+     * @return 执行的任务数
+     */
+    public int advance() {
+        long now = elapsedMillis();
+        // 没有定时任务时直接跳到当前的tick，不用一个个空转
+        if (pending == 0) {
+            tick = Math.max(tick, now / tickMillis);
+            return 0;
+        }
+        int expired = 0;
+        while (tick * tickMillis <= now) {
+            // 先推进tick再执行槽中的任务：任务里再添加的定时任务要从下一个tick开始算圈数，
+            // 否则延迟正好一圈的任务会放回正在处理的这个槽并多记一圈，晚一整圈才执行
+            long current = tick++;
+            expired += wheel[(int) (current & mask)].expire(now);
+            if (pending == 0) {
+                tick = Math.max(tick, now / tickMillis);
+                break;
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * @return 到下一个tick的毫秒数，用作select的超时时间；没有定时任务时返回0，表示一直阻塞
+     */
+    public long nextTimeoutMillis() {
+        if (pending == 0) {
+            return 0;
+        }
+        return Math.max(1, tick * tickMillis - elapsedMillis());
+    }
+
+    /**
+     * @return 还没到期也没有取消的定时任务个数
+     */
+    public int pending() {
+        return pending;
+    }
+
+    /**
+     * 一个定时任务，同时也是槽中链表的节点
+     */
+    public static final class Timeout {
+        /**
+         * 状态：等待执行、已经执行、已经取消
+         */
+        private final static int PENDING = 0;
+        private final static int EXPIRED = 1;
+        private final static int CANCELLED = 2;
+        private final HashedTimingWheel timer;
+        private final Runnable task;
+        private final long deadline;
+        private long remainingRounds;
+        private int state = PENDING;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(HashedTimingWheel timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * 取消，O(1)，已经执行或取消过时什么也不做
+         * @return 是否真正取消了
+         */
+        public boolean cancel() {
+            if (state != PENDING) {
+                return false;
+            }
+            state = CANCELLED;
+            // 已经从槽中取出、等着执行的任务不在链表里，也已经不计入pending
+            if (bucket != null) {
+                bucket.remove(this);
+                timer.pending--;
+            }
+            return true;
+        }
+
+        /**
+         * @return 是否还在等待执行
+         */
+        public boolean isPending() {
+            return state == PENDING;
+        }
+    }
+
+    /**
+     * 一个槽，双向链表
+     */
+    private final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            } else {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        /**
+         * 执行这个槽中本圈到期的任务，其余的圈数减一
+         * 先把到期的任务都从链表中取出来再逐个执行，任务里添加或取消别的定时任务不会打乱遍历
+         */
+        int expire(long now) {
+            Timeout expiredHead = null;
+            Timeout expiredTail = null;
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0 && timeout.deadline <= now) {
+                    remove(timeout);
+                    pending--;
+                    if (expiredHead == null) {
+                        expiredHead = timeout;
+                    } else {
+                        expiredTail.next = timeout;
+                    }
+                    expiredTail = timeout;
+                } else if (timeout.remainingRounds > 0) {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+            int expired = 0;
+            timeout = expiredHead;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                timeout.next = null;
+                // 前面的任务可能已经把它取消了
+                if (timeout.state == Timeout.PENDING) {
+                    timeout.state = Timeout.EXPIRED;
+                    expired++;
+                    try {
+                        timeout.task.run();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+                timeout = next;
+            }
+            return expired;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.lakeqiu.loadgen;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 延迟直方图，思路与HdrHistogram相同：对数线性分桶
+ * 小于2^8的值每个值一个桶；更大的值按2的幂分段，每段再等分成128个桶，
+ * 所以任何值的相对误差都不超过1/128，内存固定几十KB，记录是O(1)，与样本数无关
+ * 不是线程安全的，多个线程记录时各用各的，最后用add合并
+ * @author lakeqiu
+ */
+public class LatencyHistogram {
+    /**
+     * 1、每段的桶数是2^SUB_BUCKET_BITS，第一段之后每段只用上半部分
+     * 2、第一段的桶数
+     * 3、之后每段的桶数
+     * 4、桶的总数，覆盖long的全部正数范围
+     */
+    private final static int SUB_BUCKET_BITS = 8;
+    private final static int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private final static int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT >> 1;
+    private final static int BUCKET_COUNT = SUB_BUCKET_COUNT + (64 - SUB_BUCKET_BITS) * SUB_BUCKET_HALF_COUNT;
+
+    /**
+     * 1、每个桶的样本数
+     * 2、样本总数
+     * 3、所有样本的和，用来算平均值
+     * 4、最小值和最大值，精确记录，不受分桶误差影响
+     */
+    private final long[] counts = new long[BUCKET_COUNT];
+    private long totalCount;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    /**
+     * 记录一个值，负数按0记
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts[indexOf(value)]++;
+        totalCount++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * 把另一个直方图的样本加进来
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        totalCount = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    public long totalCount() {
+        return totalCount;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    public long min() {
+        return totalCount == 0 ? 0 : min;
+    }
+
+    public double mean() {
+        return totalCount == 0 ? 0 : (double) sum / totalCount;
+    }
+
+    /**
+     * @param percentile 0到100
+     * @return 至少有percentile%的样本不超过的值，取所在桶的中间值，不超过最大值
+     */
+    public long valueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(max, middleOf(i));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * 值所在的桶：第一段直接用值做下标；之后的段先找最高位，再取最高的SUB_BUCKET_BITS位做段内下标
+     */
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift);
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF_COUNT + (subBucket - SUB_BUCKET_HALF_COUNT);
+    }
+
+    /**
+     * indexOf的逆运算，返回桶所覆盖范围的中间值
+     */
+    private static long middleOf(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int offset = index - SUB_BUCKET_COUNT;
+        int shift = offset / SUB_BUCKET_HALF_COUNT + 1;
+        long subBucket = offset % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+        return (subBucket << shift) + (1L << (shift - 1));
+    }
+
+    /**
+     * 常用的百分位，值按纳秒记录，输出成微秒
+     */
+    public String summary() {
+        return String.format("样本[%d] 平均[%.1f] p50[%.1f] p90[%.1f] p99[%.1f] p99.9[%.1f] p99.99[%.1f] 最大[%.1f] 微秒",
+                totalCount, micros(mean()), micros(valueAtPercentile(50)), micros(valueAtPercentile(90)),
+                micros(valueAtPercentile(99)), micros(valueAtPercentile(99.9)), micros(valueAtPercentile(99.99)),
+                micros(max));
+    }
+
+    private static double micros(double nanos) {
+        return nanos / TimeUnit.MICROSECONDS.toNanos(1);
+    }
+
+    @Override
+    public String toString() {
+        return summary();
+    }
+}
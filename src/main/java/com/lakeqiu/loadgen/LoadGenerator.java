@@ -0,0 +1,378 @@
+package com.lakeqiu.loadgen;
+
+import com.lakeqiu.common.lifecycle.Lifecycle;
+import com.lakeqiu.common.protocol.ChatProtocol;
+import com.lakeqiu.nio.chatroom.client.ChatClient;
+import com.lakeqiu.nio.chatroom.client.ChatListener;
+import com.lakeqiu.nio.chatroom.client.ClientEventLoop;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 无界面的压测工具，只连本机：按给定的速率建立N个连接，再按固定间隔或泊松过程以目标速率发消息，
+ * 记录每条消息从发出到被其他连接收到的端到端延迟
+ * 每条消息带着两个时间：计划发送时间和实际发送时间，发送方和接收方在同一个进程里，nanoTime可以直接相减
+ * 1、服务时间：从实际发送算起，发送方被堵住的那段时间看不到，这就是协调遗漏（coordinated omission）
+ * 2、响应时间：从计划发送算起，发送方落后时不等待，直接补发，落后的时间都算进延迟，已经修正了协调遗漏
+ * 用法：java com.lakeqiu.loadgen.LoadGenerator [--server nio|bio|bio_pool|aio] [--port 8090]
+ * [--connections 100] [--connect-rate 1000] [--rate 1000] [--schedule constant|poisson]
+ * [--duration 30] [--warmup 5] [--size 64] [--rooms 1] [--loops 核数]
+ * 不指定--server时压测已经在本机端口上运行的服务器
+ * @author lakeqiu
+ */
+public class LoadGenerator {
+    private final static String HOST = "127.0.0.1";
+    /**
+     * 1、消息中时间戳的开始和结束标记，两个时间之间用冒号分隔
+     * 2、等待连接建立、ping回复的最长时间
+     * 3、发送结束后，接收数在这么长时间内不再变化就认为都送达了
+     * 4、关闭服务器的期限
+     */
+    private final static char MARKER = '#';
+    private final static char SEPARATOR = ':';
+    private final static long TIMEOUT_SECONDS = 60;
+    private final static long QUIET_MILLIS = 500;
+    private final static long SHUTDOWN_SECONDS = 10;
+
+    /**
+     * 1、参数
+     * 2、事件循环，连接平均分给它们
+     * 3、每个事件循环一个记录器，记录器只被自己的事件循环线程写，没有竞争
+     * 4、所有连接
+     * 5、发出的消息数，只由发送线程写
+     * 6、上一秒收到的消息数、连接断开的次数
+     */
+    private final Options options;
+    private final List<ClientEventLoop> loops = new ArrayList<>();
+    private final List<Recorder> recorders = new ArrayList<>();
+    private final List<ChatClient> clients = new ArrayList<>();
+    private long sent;
+    private final LongAdder received = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+
+    public LoadGenerator(Options options) {
+        this.options = options;
+    }
+
+    public void run() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        Lifecycle server = null;
+        if (options.server != null) {
+            server = options.server.newServer(options.port, options.connections);
+            server.start();
+        }
+        try {
+            connect();
+            long start = System.nanoTime();
+            load();
+            long sendNanos = System.nanoTime() - start;
+            drain();
+            report(sendNanos);
+        } finally {
+            for (ChatClient client : clients) {
+                client.close();
+            }
+            for (ClientEventLoop loop : loops) {
+                loop.shutdown();
+            }
+            if (server != null) {
+                server.stop(SHUTDOWN_SECONDS, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    /**
+     * 按速率建立连接，分配房间，最后每个连接ping一次：收到PONG说明服务器已经注册好这个连接，也已经处理完/join
+     */
+    private void connect() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        for (int i = 0; i < options.loops; i++) {
+            ClientEventLoop loop = new ClientEventLoop("loadgen-" + i);
+            loop.start();
+            loops.add(loop);
+            recorders.add(new Recorder());
+        }
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / options.connectRate);
+        long next = System.nanoTime();
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        for (int i = 0; i < options.connections; i++) {
+            waitUntil(next);
+            next += interval;
+            ChatClient client = new ChatClient(HOST, options.port, loops.get(i % options.loops));
+            client.setListener(recorders.get(i % options.loops));
+            clients.add(client);
+            futures.add(client.start());
+        }
+        await(futures);
+        System.out.println("压测：已经建立" + clients.size() + "个连接");
+        futures.clear();
+        for (int i = 0; i < clients.size(); i++) {
+            ChatClient client = clients.get(i);
+            if (options.rooms > 1) {
+                client.send("/join room-" + i % options.rooms);
+            }
+            futures.add(client.ping());
+        }
+        await(futures);
+    }
+
+    /**
+     * 按计划发消息，连接轮流发；落后于计划时不等待，计划时间照常往后排
+     */
+    private void load() {
+        Random random = ThreadLocalRandom.current();
+        long meanInterval = (long) (TimeUnit.SECONDS.toNanos(1) / options.rate);
+        String padding = padding(options.messageSize);
+        long start = System.nanoTime();
+        long warmupEnd = start + TimeUnit.SECONDS.toNanos(options.warmupSeconds);
+        long end = warmupEnd + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        boolean warmedUp = options.warmupSeconds == 0;
+        long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+        long intended = start;
+        long lastSent = 0;
+        int next = 0;
+        while (intended < end) {
+            long now = waitUntil(intended);
+            if (!warmedUp && intended >= warmupEnd) {
+                for (Recorder recorder : recorders) {
+                    recorder.reset();
+                }
+                warmedUp = true;
+                System.out.println("压测：预热结束，开始记录");
+            }
+            ChatClient client = clients.get(next);
+            next = (next + 1) % clients.size();
+            client.send(String.valueOf(MARKER) + intended + SEPARATOR + now + MARKER + padding);
+            sent++;
+            if (now >= nextReport) {
+                System.out.println("压测：发送[" + (sent - lastSent) + "]条/秒，接收[" + received.sumThenReset()
+                        + "]条/秒，落后计划[" + TimeUnit.NANOSECONDS.toMillis(now - intended)
+                        + "]毫秒，连接断开[" + disconnects.sum() + "]次");
+                lastSent = sent;
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+            }
+            intended += options.schedule.nextIntervalNanos(meanInterval, random);
+        }
+    }
+
+    /**
+     * 再ping一次，服务器处理完所有消息后，等转发的消息都送到
+     */
+    private void drain() throws InterruptedException, ExecutionException, TimeoutException {
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        for (ChatClient client : clients) {
+            futures.add(client.ping());
+        }
+        await(futures);
+        long last;
+        do {
+            last = totalReceived();
+            Thread.sleep(QUIET_MILLIS);
+        } while (totalReceived() != last);
+    }
+
+    private long totalReceived() {
+        long total = 0;
+        for (Recorder recorder : recorders) {
+            total += recorder.total();
+        }
+        return total;
+    }
+
+    private void report(long sendNanos) {
+        LatencyHistogram response = new LatencyHistogram();
+        LatencyHistogram service = new LatencyHistogram();
+        for (Recorder recorder : recorders) {
+            recorder.addTo(response, service);
+        }
+        double seconds = sendNanos / (double) TimeUnit.SECONDS.toNanos(1);
+        System.out.println(String.format(Locale.ROOT, "压测：连接[%d]个，房间[%d]个，%s计划，目标[%.0f]条/秒，发送[%d]条，用时[%.1f]秒，连接断开[%d]次",
+                clients.size(), options.rooms, options.schedule.name().toLowerCase(Locale.ROOT), options.rate,
+                sent, seconds, disconnects.sum()));
+        System.out.println("响应时间（从计划发送时间算起，修正了协调遗漏）：" + response);
+        System.out.println("服务时间（从实际发送时间算起）：" + service);
+    }
+
+    private static String padding(int messageSize) {
+        StringBuilder builder = new StringBuilder(messageSize);
+        for (int i = 0; i < messageSize; i++) {
+            builder.append((char) ('a' + i % 26));
+        }
+        return builder.toString();
+    }
+
+    private static void await(List<CompletableFuture<?>> futures)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 等到指定的时间，已经过了就直接返回
+     * @return 当前时间
+     */
+    private static long waitUntil(long deadline) {
+        long now;
+        while ((now = System.nanoTime()) < deadline) {
+            LockSupport.parkNanos(deadline - now);
+        }
+        return now;
+    }
+
+    /**
+     * 一个事件循环上所有连接的回调：从收到的消息中取出时间戳，记进直方图
+     */
+    private class Recorder implements ChatListener {
+        /**
+         * 1、响应时间和服务时间
+         * 2、一共收到的消息数，包括预热期间的，用来判断是否都送达了
+         */
+        private final LatencyHistogram response = new LatencyHistogram();
+        private final LatencyHistogram service = new LatencyHistogram();
+        private long total;
+
+        @Override
+        public void onFrame(ChatProtocol protocol, ByteBuffer frame) throws IOException {
+            ByteBuffer payload = protocol.payload(frame);
+            // 文本协议转发的消息前面有"端口:"，所以先找开始标记
+            int start = indexOf(payload, payload.position(), MARKER);
+            int separator = start < 0 ? -1 : indexOf(payload, start + 1, SEPARATOR);
+            int end = separator < 0 ? -1 : indexOf(payload, separator + 1, MARKER);
+            if (end < 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            long intended = parseLong(payload, start + 1, separator);
+            long actual = parseLong(payload, separator + 1, end);
+            synchronized (this) {
+                response.record(now - intended);
+                service.record(now - actual);
+                total++;
+            }
+            received.increment();
+        }
+
+        @Override
+        public void onDisconnected(ChatClient client, Throwable cause) {
+            disconnects.increment();
+        }
+
+        synchronized void reset() {
+            response.reset();
+            service.reset();
+        }
+
+        synchronized long total() {
+            return total;
+        }
+
+        synchronized void addTo(LatencyHistogram response, LatencyHistogram service) {
+            response.add(this.response);
+            service.add(this.service);
+        }
+    }
+
+    private static int indexOf(ByteBuffer buffer, int from, char c) {
+        for (int i = from; i < buffer.limit(); i++) {
+            if (buffer.get(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long parseLong(ByteBuffer buffer, int from, int to) throws IOException {
+        boolean negative = from < to && buffer.get(from) == '-';
+        long value = 0;
+        for (int i = negative ? from + 1 : from; i < to; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IOException("时间戳格式错误");
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * 命令行参数，都有默认值
+     */
+    public static class Options {
+        private ServerType server;
+        private int port = 8090;
+        private int connections = 100;
+        private double connectRate = 1000;
+        private double rate = 1000;
+        private Schedule schedule = Schedule.CONSTANT;
+        private long durationSeconds = 30;
+        private long warmupSeconds = 5;
+        private int messageSize = 64;
+        private int rooms = 1;
+        private int loops = Runtime.getRuntime().availableProcessors();
+
+        public static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i += 2) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("参数[" + args[i] + "]缺少值");
+                }
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--server":
+                        options.server = ServerType.valueOf(value.toUpperCase(Locale.ROOT));
+                        break;
+                    case "--port":
+                        options.port = Integer.parseInt(value);
+                        break;
+                    case "--connections":
+                        options.connections = Integer.parseInt(value);
+                        break;
+                    case "--connect-rate":
+                        options.connectRate = Double.parseDouble(value);
+                        break;
+                    case "--rate":
+                        options.rate = Double.parseDouble(value);
+                        break;
+                    case "--schedule":
+                        options.schedule = Schedule.valueOf(value.toUpperCase(Locale.ROOT));
+                        break;
+                    case "--duration":
+                        options.durationSeconds = Long.parseLong(value);
+                        break;
+                    case "--warmup":
+                        options.warmupSeconds = Long.parseLong(value);
+                        break;
+                    case "--size":
+                        options.messageSize = Integer.parseInt(value);
+                        break;
+                    case "--rooms":
+                        options.rooms = Integer.parseInt(value);
+                        break;
+                    case "--loops":
+                        options.loops = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("不认识的参数[" + args[i] + "]");
+                }
+            }
+            if (options.connections < 2 || options.connectRate <= 0 || options.rate <= 0 || options.loops <= 0
+                    || options.rooms <= 0 || options.messageSize < 0) {
+                throw new IllegalArgumentException("参数超出范围");
+            }
+            return options;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadGenerator(Options.parse(args)).run();
+    }
+}
@@ -0,0 +1,34 @@
+package com.lakeqiu.loadgen;
+
+import java.util.Random;
+
+/**
+ * 发送计划：下一条消息在上一条的计划时间之后多久发
+ * @author lakeqiu
+ */
+public enum Schedule {
+    /**
+     * 固定间隔
+     */
+    CONSTANT {
+        @Override
+        long nextIntervalNanos(long meanNanos, Random random) {
+            return meanNanos;
+        }
+    },
+    /**
+     * 泊松过程，间隔服从指数分布，平均值不变，但会有突发，更接近很多用户各自独立发消息的情况
+     */
+    POISSON {
+        @Override
+        long nextIntervalNanos(long meanNanos, Random random) {
+            return (long) (-Math.log(1.0 - random.nextDouble()) * meanNanos);
+        }
+    };
+
+    /**
+     * @param meanNanos 平均间隔，纳秒
+     * @return 到下一条消息的间隔，纳秒
+     */
+    abstract long nextIntervalNanos(long meanNanos, Random random);
+}
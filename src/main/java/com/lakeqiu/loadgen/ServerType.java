@@ -0,0 +1,57 @@
+package com.lakeqiu.loadgen;
+
+import com.lakeqiu.bioPool.server.QueueType;
+import com.lakeqiu.common.lifecycle.Lifecycle;
+
+/**
+ * 压测工具可以在进程内启动的四种服务器
+ * @author lakeqiu
+ */
+public enum ServerType {
+    /**
+     * 一个连接一个线程
+     */
+    BIO {
+        @Override
+        Lifecycle newServer(int port, int connections) {
+            return new com.lakeqiu.bio.server.ChatServer(port);
+        }
+    },
+    /**
+     * 线程池，线程数放大到连接数，否则多出来的连接会被拒绝
+     */
+    BIO_POOL {
+        @Override
+        Lifecycle newServer(int port, int connections) {
+            com.lakeqiu.bioPool.server.ChatServer server = new com.lakeqiu.bioPool.server.ChatServer(port);
+            server.setPoolSize(connections, connections);
+            server.setQueue(QueueType.SYNCHRONOUS, 0);
+            return server;
+        }
+    },
+    /**
+     * 主从Reactor
+     */
+    NIO {
+        @Override
+        Lifecycle newServer(int port, int connections) {
+            return new com.lakeqiu.nio.chatroom.server.ChatServer(port);
+        }
+    },
+    /**
+     * AsynchronousChannelGroup
+     */
+    AIO {
+        @Override
+        Lifecycle newServer(int port, int connections) {
+            return new com.lakeqiu.aio.chatroom.server.ChatServer(port);
+        }
+    };
+
+    /**
+     * @param port 监听端口
+     * @param connections 压测的连接数
+     * @return 还没有启动的服务器
+     */
+    abstract Lifecycle newServer(int port, int connections);
+}
@@ -17,6 +17,8 @@ public class CopyFile {
 
         /*NioBufferCopy copy = new NioBufferCopy();*/
 
+        /*ParallelFileCopy copy = new ParallelFileCopy();*/
+
         NioTransferCopy copy = new NioTransferCopy();
         copy.copy(source, target);
     }
@@ -98,13 +100,9 @@ class NioTransferCopy implements CopyInter {
     public void copy(File source, File target) throws Exception {
         try (FileChannel fin = new FileInputStream(source).getChannel();
         FileChannel fout = new FileOutputStream(target).getChannel()) {
-            long fileLength = 0L;
-            // 由于transfer方法也是不能保证一个全部传输完，所以需要确认
-            while (fileLength < fin.size()) {
-                // 将源文件对应通道的数据传输到目的文件对应的通道（起始位置，要传输的长度，目的通道）
-                // 传输到目的通道就是目的文件
-                fileLength += fin.transferTo(0, fin.size(), fout);
-            }
+            // 将源文件对应通道的数据传输到目的文件对应的通道（起始位置，要传输的长度，目的通道）
+            // 由于transfer方法也是不能保证一个全部传输完，FileTransfer会从上次传到的位置继续
+            FileTransfer.transferFully(fin, 0, fin.size(), fout);
         }
     }
 }
@@ -0,0 +1,55 @@
+package com.lakeqiu.nio.base;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 基于transferTo的文件传输，文件拷贝和聊天室发送文件共用
+ * transferTo在Linux上对应sendfile/copy_file_range，数据不经过用户态，也不进堆
+ * @author lakeqiu
+ */
+public final class FileTransfer {
+    private FileTransfer() {
+    }
+
+    /**
+     * 从position开始传输，直到传完count字节、目标通道写不进去（非阻塞通道的发送缓冲区满了）或者传够limit字节
+     * transferTo不保证一次传完，没传完的从上次传到的位置继续，不能再从头开始
+     * @param source 源文件
+     * @param position 从源文件的哪里开始
+     * @param count 最多传多少字节
+     * @param target 目标通道，写到它当前的位置
+     * @param limit 这一次最多传多少字节，用来限制一次占用线程的时间，不限制时传Long.MAX_VALUE
+     * @return 这一次传了多少字节
+     * @throws IOException 源文件在传输过程中被截断
+     */
+    public static long transfer(FileChannel source, long position, long count, WritableByteChannel target, long limit)
+            throws IOException {
+        long max = Math.min(count, limit);
+        long transferred = 0;
+        while (transferred < max) {
+            long length = source.transferTo(position + transferred, max - transferred, target);
+            if (length <= 0) {
+                if (position + transferred >= source.size()) {
+                    throw new IOException("源文件在传输过程中被截断");
+                }
+                // 目标通道暂时写不进去
+                break;
+            }
+            transferred += length;
+        }
+        return transferred;
+    }
+
+    /**
+     * 阻塞地传完count字节
+     */
+    public static void transferFully(FileChannel source, long position, long count, WritableByteChannel target)
+            throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            transferred += transfer(source, position + transferred, count - transferred, target, Long.MAX_VALUE);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.lakeqiu.nio.base;
+
+import com.lakeqiu.common.buffer.BufferPool;
+import com.lakeqiu.common.buffer.PooledBuffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 并行分块拷贝
+ * 把文件切成若干块，交给多个线程同时拷贝，每块都按位置读写，互不影响
+ * 目标文件先设置好长度，所以每块写到哪里都是确定的，不依赖通道当前的position
+ * 大文件单线程拷贝时，一次只有一个IO请求在路上，磁盘（特别是SSD）的并发能力用不满
+ * @author lakeqiu
+ */
+public class ParallelFileCopy implements CopyInter {
+    /**
+     * 1、默认每块的大小
+     * 2、默认并行度，与cpu核数相同，最多8个，再多磁盘也跟不上
+     * 3、小于这个大小的文件只用一个线程，开线程的开销比拷贝还大
+     * 4、小于这个大小的文件用mmap，再大就用transferTo
+     * 5、BUFFERED策略每次读写的长度，从缓冲区池申请
+     * 6、MAPPED策略一次最多映射的长度，一次映射不能超过2GB
+     */
+    private final static long DEFAULT_CHUNK_SIZE = 64L * 1024 * 1024;
+    private final static int DEFAULT_PARALLELISM = Math.min(8, Runtime.getRuntime().availableProcessors());
+    private final static long SINGLE_THREAD_THRESHOLD = 4L * 1024 * 1024;
+    private final static long MAPPED_THRESHOLD = 256L * 1024 * 1024;
+    private final static int BUFFER_LENGTH = 1024 * 1024;
+    private final static long MAX_MAP_WINDOW = 256L * 1024 * 1024;
+
+    /**
+     * 每一块的拷贝方式
+     */
+    public enum Strategy {
+        /**
+         * 按文件大小自动选择：小文件用BUFFERED，中等的用MAPPED，大文件用TRANSFER
+         */
+        AUTO,
+        /**
+         * FileChannel.transferTo，数据在内核中直接从源文件拷到目标文件，不经过用户态
+         */
+        TRANSFER,
+        /**
+         * 把源文件的这一块映射进内存，再按位置写进目标文件，少一次从内核到用户态的拷贝
+         * 映射要占用地址空间，解除映射要等GC，所以不适合特别大的文件
+         */
+        MAPPED,
+        /**
+         * 用池化的直接缓冲区按位置读写，最通用
+         */
+        BUFFERED
+    }
+
+    /**
+     * 1、每块的大小
+     * 2、并行度
+     * 3、拷贝方式
+     */
+    private final long chunkSize;
+    private final int parallelism;
+    private final Strategy strategy;
+
+    public ParallelFileCopy() {
+        this(Strategy.AUTO);
+    }
+
+    public ParallelFileCopy(Strategy strategy) {
+        this(strategy, DEFAULT_CHUNK_SIZE, DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * @param strategy 拷贝方式
+     * @param chunkSize 每块的大小
+     * @param parallelism 同时拷贝的块数
+     */
+    public ParallelFileCopy(Strategy strategy, long chunkSize, int parallelism) {
+        if (chunkSize <= 0 || parallelism <= 0) {
+            throw new IllegalArgumentException("chunkSize: " + chunkSize + ", parallelism: " + parallelism);
+        }
+        this.strategy = strategy;
+        this.chunkSize = chunkSize;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * 按文件大小选择拷贝方式
+     */
+    static Strategy choose(long size) {
+        if (size < SINGLE_THREAD_THRESHOLD) {
+            return Strategy.BUFFERED;
+        }
+        if (size < MAPPED_THRESHOLD) {
+            return Strategy.MAPPED;
+        }
+        return Strategy.TRANSFER;
+    }
+
+    @Override
+    public void copy(File source, File target) throws IOException {
+        try (FileChannel fin = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             RandomAccessFile out = new RandomAccessFile(target, "rw")) {
+            long size = fin.size();
+            // 先把目标文件设置成源文件的长度，截掉原来多出来的部分，各块直接写到自己的位置
+            out.setLength(size);
+            Strategy actual = strategy == Strategy.AUTO ? choose(size) : strategy;
+            int threads = size < SINGLE_THREAD_THRESHOLD ? 1 : (int) Math.min(parallelism, (size + chunkSize - 1) / chunkSize);
+            if (threads <= 1) {
+                copyRange(actual, fin, out.getChannel(), target, 0, size);
+                return;
+            }
+            copyParallel(actual, fin, out.getChannel(), target, size, threads);
+        }
+    }
+
+    private void copyParallel(Strategy actual, FileChannel fin, FileChannel fout, File target, long size, int threads)
+            throws IOException {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "file-copy-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (long position = 0; position < size; position += chunkSize) {
+                long start = position;
+                long count = Math.min(chunkSize, size - position);
+                futures.add(executor.submit(() -> {
+                    copyRange(actual, fin, fout, target, start, count);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("拷贝失败", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("拷贝被中断", e);
+        } finally {
+            // 有一块失败了，剩下的不用再拷
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 拷贝[position, position + count)这一块，源文件和目标文件的通道在各个线程间共享，只用按位置读写的方法
+     */
+    private static void copyRange(Strategy strategy, FileChannel fin, FileChannel fout, File target,
+                                  long position, long count) throws IOException {
+        switch (strategy) {
+            case TRANSFER:
+                transferRange(fin, target, position, count);
+                break;
+            case MAPPED:
+                mappedRange(fin, fout, position, count);
+                break;
+            default:
+                bufferedRange(fin, fout, position, count);
+                break;
+        }
+    }
+
+    private static void transferRange(FileChannel fin, File target, long position, long count) throws IOException {
+        // transferTo写到目标通道当前的position，共享一个通道会互相覆盖，所以每块单独打开目标文件
+        try (FileChannel fout = FileChannel.open(target.toPath(), StandardOpenOption.WRITE)) {
+            fout.position(position);
+            FileTransfer.transferFully(fin, position, count, fout);
+        }
+    }
+
+    private static void mappedRange(FileChannel fin, FileChannel fout, long position, long count) throws IOException {
+        long written = 0;
+        while (written < count) {
+            long window = Math.min(MAX_MAP_WINDOW, count - written);
+            MappedByteBuffer mapped = fin.map(FileChannel.MapMode.READ_ONLY, position + written, window);
+            while (mapped.hasRemaining()) {
+                written += fout.write(mapped, position + written);
+            }
+        }
+    }
+
+    private static void bufferedRange(FileChannel fin, FileChannel fout, long position, long count) throws IOException {
+        PooledBuffer pooled = BufferPool.DEFAULT.acquire((int) Math.min(BUFFER_LENGTH, count));
+        try {
+            ByteBuffer buffer = pooled.buffer();
+            long done = 0;
+            while (done < count) {
+                buffer.clear();
+                if (buffer.remaining() > count - done) {
+                    buffer.limit((int) (count - done));
+                }
+                int length = fin.read(buffer, position + done);
+                if (length < 0) {
+                    throw new IOException("源文件在拷贝过程中被截断");
+                }
+                buffer.flip();
+                long offset = position + done;
+                while (buffer.hasRemaining()) {
+                    offset += fout.write(buffer, offset);
+                }
+                done += length;
+            }
+        } finally {
+            pooled.release();
+        }
+    }
+}
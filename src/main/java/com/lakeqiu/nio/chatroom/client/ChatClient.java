@@ -1,147 +1,721 @@
 package com.lakeqiu.nio.chatroom.client;
 
+import com.lakeqiu.common.buffer.BufferPool;
+import com.lakeqiu.common.buffer.Buffers;
+import com.lakeqiu.common.buffer.PooledBuffer;
+import com.lakeqiu.common.protocol.ChatProtocol;
+import com.lakeqiu.common.protocol.Opcode;
+import com.lakeqiu.nio.base.FileTransfer;
+
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.util.Set;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
+ * NIO聊天客户端，可以当作客户端库用在压测和机器人里
+ * 所有读写都在事件循环线程中进行，send可以在任何线程调用：消息先放进线程安全的提交队列，
+ * 再由事件循环线程搬进发送队列，几条消息拼在一起用一次gathering write写出去，不用等上一条的回复
+ * send返回的CompletableFuture在消息完整写进内核时完成；ping返回的在收到服务器的PONG时完成，
+ * 服务器按顺序处理同一个连接的帧，所以收到PONG说明之前发的消息服务器都已经处理完了
+ * 连接断开后按指数退避自动重连，还没开始写的消息留在队列里，重连后接着发
+ * 集群模式下/join的房间归别的节点时跟随服务器的重定向，连到那个节点再加入房间
  * @author lakeqiu
  */
 public class ChatClient {
     private final static String DEFAULT_SERVER_HOST = "127.0.0.1";
     private final static Integer DEFAULT_SERVER_PORT = 8090;
     private final static String QUIT = "quit";
+    private final static int MAX_FRAME_LENGTH = 1024 * 1024;
+    private final static String OFFER = "/offer ";
+    private final static String FILE = "/file ";
+    private final static String REDIRECT = "/redirect ";
+    /**
+     * 1、一次gathering write最多带几段buffer
+     * 2、一次事件最多读几次，多个连接共用一个事件循环，一个连接不能一直占着线程
+     * 3、一次flush最多发送多少字节的文件
+     * 4、重连的退避时间，从最短开始每次翻倍，不超过最长
+     */
+    private final static int MAX_IOV_LENGTH = 64;
+    private final static int MAX_READS_PER_EVENT = 16;
+    private final static long MAX_FILE_BYTES_PER_FLUSH = 256 * 1024;
+    private final static long DEFAULT_MIN_BACKOFF_MILLIS = 100;
+    private final static long DEFAULT_MAX_BACKOFF_MILLIS = 10 * 1000;
 
-    private String host;
-    private Integer port;
-    private SocketChannel socketChannel;
-    private Selector selector;
-    private ByteBuffer readerBuffer;
-    private ByteBuffer writerBuffer;
+    /**
+     * 1、服务器地址
+     * 2、事件循环，以及是不是这个客户端自己创建的，自己创建的在close时一起关闭
+     * 3、线上协议和编码，要与服务器一致
+     * 4、收到消息时的回调
+     * 5、重连的退避时间，最短为0时不重连
+     * 6、提交队列，任何线程都可以放，由事件循环线程搬进发送队列
+     * 7、是否已经投递过flush任务，避免每条消息都投递一次
+     * 8、第一次连接成功时完成
+     * 9、是否已经启动、已经关闭、正在退出（发了quit，服务器断开后不重连）、当前是否连着
+     */
+    private final String host;
+    private final int port;
+    private final ClientEventLoop loop;
+    private final boolean ownLoop;
+    private ChatProtocol protocol = ChatProtocol.fromProperty(MAX_FRAME_LENGTH);
     private Charset charset = StandardCharsets.UTF_8;
+    private ChatListener listener = ChatListener.CONSOLE;
+    private long minBackoffMillis = DEFAULT_MIN_BACKOFF_MILLIS;
+    private long maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+    private final Queue<Outbound> submitted = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final CompletableFuture<Void> firstConnect = new CompletableFuture<>();
+    private boolean started;
+    private volatile boolean closed;
+    private volatile boolean quitting;
+    private volatile boolean connected;
 
-    public ChatClient() {
+    /**
+     * 以下只在事件循环线程中访问
+     * 1、当前连接和它的key，断开后为null
+     * 2、累积缓冲区，上一轮没凑够一帧的字节还留在里面
+     * 3、发送队列，队头可能写了一半
+     * 4、已经发出去、还在等PONG的ping
+     * 5、gathering write时装buffer的数组
+     * 6、连续重连失败的次数
+     * 7、是否已经释放了资源
+     * 8、集群模式下被重定向到的节点，为null时连服务器地址；连上后要重新加入的房间；
+     *    当前连接是因为重定向到哪个房间才连的，这个房间再被重定向时不再跟随，免得节点对归属的看法不一致时来回跳
+     */
+    private SocketChannel channel;
+    private SelectionKey key;
+    private PooledBuffer reader;
+    private final ArrayDeque<Outbound> pending = new ArrayDeque<>();
+    private final ArrayDeque<Outbound> pings = new ArrayDeque<>();
+    private final ByteBuffer[] iov = new ByteBuffer[MAX_IOV_LENGTH];
+    private int attempts;
+    private boolean released;
+    private InetSocketAddress redirectTarget;
+    private String rejoin;
+    private String redirectedRoom;
+    /**
+     * 1、接收的文件保存的目录
+     * 2、正在接收的文件，为null时表示没有在接收
+     * 3、正在接收的文件还差多少字节
+     */
+    private Path downloadDirectory = Paths.get("downloads");
+    private FileChannel download;
+    private long downloadRemaining;
+
+    public ChatClient() throws IOException {
         this(DEFAULT_SERVER_HOST, DEFAULT_SERVER_PORT);
     }
 
-    public ChatClient(String host, Integer port) {
+    /**
+     * 使用自己的事件循环
+     */
+    public ChatClient(String host, int port) throws IOException {
+        this(host, port, new ClientEventLoop("nio-chat-client"), true);
+    }
+
+    /**
+     * 与其他客户端共用一个事件循环，close时不会关闭它
+     */
+    public ChatClient(String host, int port, ClientEventLoop loop) {
+        this(host, port, loop, false);
+    }
+
+    private ChatClient(String host, int port, ClientEventLoop loop, boolean ownLoop) {
         this.host = host;
         this.port = port;
-        this.readerBuffer = ByteBuffer.allocate(1024);
-        this.writerBuffer = ByteBuffer.allocate(1024);
+        this.loop = loop;
+        this.ownLoop = ownLoop;
+        this.reader = BufferPool.DEFAULT.acquire(1024);
     }
 
-    public void start() throws IOException {
-        init();
-        work();
+    /**
+     * 设置线上协议，需要在start之前调用，要与服务器一致
+     */
+    public void setProtocol(ChatProtocol protocol) {
+        this.protocol = protocol;
     }
 
     /**
-     * 初始化
-     * @throws IOException
+     * 设置收到消息时的回调，需要在start之前调用，默认打印到控制台
      */
-    private void init() throws IOException {
-        // 创建通道并设置为非阻塞
-        socketChannel = SocketChannel.open();
-        socketChannel.configureBlocking(false);
-        // 创建选择器并注册事件
-        selector = Selector.open();
-        // 这里是注册连接事件是因为在事件触发后，我们会在处理创建一个线程处理用户输入问题并注册一个READER事件
-        socketChannel.register(selector, SelectionKey.OP_CONNECT);
-        socketChannel.connect(new InetSocketAddress(host, port));
+    public void setListener(ChatListener listener) {
+        this.listener = listener;
     }
 
     /**
-     * 工作线程，在客户端连接服务器后，开启一个新的线程去负责监控用户控制台的输入，
-     * 并发送给服务器。然后其自身负责监控通道是否有可读时间，如果有的话说明有其他用户
-     * 发送消息，接收并打印在屏幕上
-     * @throws IOException
+     * 设置重连的退避时间，需要在start之前调用
+     * @param minBackoffMillis 第一次重连前等多久，为0时断开后不重连
+     * @param maxBackoffMillis 每次失败后翻倍，最多等这么久
      */
-    private void work() throws IOException {
-        while (true) {
-            // 轮询查看是否有事件发生
-            selector.select();
-            Set<SelectionKey> selectionKeys = selector.keys();
-
-            for (SelectionKey selectionKey : selectionKeys) {
-                if (selectionKey.isConnectable()) {
-                    System.out.println("客户端已经连接服务器");
-                    // 注册一个READER事件
-                    SocketChannel channel = (SocketChannel) selectionKey.channel();
-                    // 人为将程序中止，等待连接创建完成,否则会报错
-                    if (socketChannel.isConnectionPending()) {
-                        socketChannel.finishConnect();
-                        // 创建一个线程去处理用户控制台输入问题并发送给服务器
-                        new Thread(new UserInputHandler(this)).start();
-                    }
-                    channel.register(selector, SelectionKey.OP_READ);
-                }
-                // 处理可读事件
-                if (selectionKey.isReadable()) {
-                    readerBuffer.clear();
-                    SocketChannel channel = (SocketChannel) selectionKey.channel();
-                    while (channel.read(readerBuffer) > 0){
-                        continue;
-                    }
-                    readerBuffer.flip();
-                    String msg = String.valueOf(charset.decode(readerBuffer));
-                    // 服务器异常
-                    if (msg.isEmpty()) {
-                        // 关闭连接
-                        close();
-                        System.out.println("服务器异常，关闭连接");
-                    } else {
-                        System.out.println(msg);
-                    }
-                }
+    public void setReconnectBackoff(long minBackoffMillis, long maxBackoffMillis) {
+        if (minBackoffMillis < 0 || maxBackoffMillis < minBackoffMillis) {
+            throw new IllegalArgumentException("minBackoffMillis: " + minBackoffMillis + ", maxBackoffMillis: " + maxBackoffMillis);
+        }
+        this.minBackoffMillis = minBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * 开始连接，不会阻塞，连接失败时按退避时间重试
+     * @return 第一次连接成功时完成，在那之前客户端被关闭则异常完成
+     */
+    public CompletableFuture<Void> start() {
+        synchronized (this) {
+            if (started) {
+                throw new IllegalStateException("客户端已经启动");
             }
+            started = true;
+        }
+        loop.start();
+        loop.execute(this::connect);
+        return firstConnect;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * 发送一条消息，可以在任何线程调用，不会阻塞
+     * @return 消息完整写进内核发送缓冲区时完成；连接在写完之前断开或者客户端被关闭时异常完成
+     */
+    public CompletableFuture<Void> send(String msg) {
+        Outbound out = new Outbound(protocol.encode(Opcode.ofInput(msg), 0, charset.encode(msg)), null, 0, null);
+        enqueue(out);
+        return out.written;
+    }
+
+    /**
+     * 发一个PING，可以和消息交错着发，不用等前面的回复
+     * @return 收到PONG时完成，值是从调用到收到PONG的纳秒数；连接断开时异常完成
+     */
+    public CompletableFuture<Long> ping() {
+        CompletableFuture<Long> pong = new CompletableFuture<>();
+        enqueue(new Outbound(protocol.encode(Opcode.PING), null, 0, pong));
+        return pong;
+    }
+
+    /**
+     * 发送文件："/offer 大小 文件名"，后面紧跟着文件内容，由事件循环线程用transferTo直接从文件写到socket
+     * @return 文件发送完时完成
+     */
+    public CompletableFuture<Void> sendFile(Path path) {
+        FileChannel file;
+        long size;
+        try {
+            file = FileChannel.open(path, StandardOpenOption.READ);
+            size = file.size();
+        } catch (IOException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        String header = OFFER + size + " " + path.getFileName();
+        Outbound out = new Outbound(protocol.encode(Opcode.COMMAND, 0, charset.encode(header)), file, size, null);
+        enqueue(out);
+        return out.written;
+    }
+
+    /**
+     * 发送退出口令，服务器断开连接后不再重连，写完后关闭客户端
+     */
+    public CompletableFuture<Void> quit() {
+        quitting = true;
+        CompletableFuture<Void> future = send(QUIT);
+        future.whenComplete((ignored, e) -> close());
+        return future;
+    }
+
+    /**
+     * 关闭客户端，不再重连，还没写出去的消息都异常完成，可以在任何线程调用，重复调用时什么也不做
+     */
+    public void close() {
+        closed = true;
+        // 总是排进任务队列：在回调里调用时，事件循环线程可能正读写到一半
+        loop.executeLater(this::release);
+    }
+
+    /**
+     * 放进提交队列，再投递一个flush任务给事件循环
+     */
+    private void enqueue(Outbound out) {
+        if (closed) {
+            out.fail(new ClosedChannelException());
+            return;
+        }
+        submitted.offer(out);
+        // 放进去的同时客户端被关闭了，release可能已经清理过提交队列，这里再清理一次
+        if (closed) {
+            failAll(submitted, new ClosedChannelException());
+            return;
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flushTask);
+        }
+    }
+
+    private void flushTask() {
+        // 先清掉标记再搬，之后提交的消息会再投递一次
+        flushScheduled.set(false);
+        try {
+            flush();
+        } catch (IOException e) {
+            connectionLost(e);
         }
     }
 
-    protected void send(String msg) {
-        // 如果信息为空，则不发送
-        if (msg.isEmpty()) {
+    private void connect() {
+        if (closed) {
             return;
         }
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            // 消息都是一条条发的短帧，不要等Nagle攒包
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            key = channel.register(loop.selector(), SelectionKey.OP_CONNECT, this);
+            InetSocketAddress target = redirectTarget != null ? redirectTarget : new InetSocketAddress(host, port);
+            if (channel.connect(target)) {
+                connected();
+            }
+        } catch (IOException e) {
+            connectionLost(e);
+        }
+    }
 
-        // 发送消息
-        writerBuffer.clear();
-        writerBuffer.put(charset.encode(msg));
-        writerBuffer.flip();
+    /**
+     * 通道上有事件，由事件循环调用
+     */
+    void handle(SelectionKey key) {
         try {
-            while (writerBuffer.hasRemaining()) {
-                socketChannel.write(writerBuffer);
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                connected();
+                return;
+            }
+            if (key.isReadable()) {
+                read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush();
             }
         } catch (IOException e) {
+            connectionLost(e);
+        } catch (RuntimeException e) {
+            // 回调抛出的异常不能让事件循环退出，其他连接还在用它
             e.printStackTrace();
         }
+    }
+
+    private void connected() throws IOException {
+        attempts = 0;
+        connected = true;
+        key.interestOps(SelectionKey.OP_READ);
+        // 重定向过来的，先加入房间，再发断开前还没发出去的消息
+        if (rejoin != null) {
+            String join = "/join " + rejoin;
+            pending.addFirst(new Outbound(protocol.encode(Opcode.COMMAND, 0, charset.encode(join)), null, 0, null));
+            rejoin = null;
+        }
+        listener.onConnected(this);
+        firstConnect.complete(null);
+        flush();
+    }
+
+    /**
+     * 连接断开：写了一半的消息没法在新连接上接着写，只能失败，还在等PONG的ping也失败；
+     * 还没开始写的消息留着，重连后再发
+     * 不是因为重定向断开的，重连时回到服务器地址，和以前一样进大厅
+     */
+    private void connectionLost(Throwable cause) {
+        connectionLost(cause, false);
+    }
 
-        // 如果是关闭口令，则关闭
-        if (QUIT.equals(msg)) {
-            close();
-            System.out.println("关闭客户端成功");
+    private void connectionLost(Throwable cause, boolean redirected) {
+        if (channel == null) {
+            return;
+        }
+        if (!redirected) {
+            redirectTarget = null;
+            rejoin = null;
+            redirectedRoom = null;
+        }
+        boolean wasConnected = connected;
+        closeChannel();
+        reader.buffer().clear();
+        abortDownload();
+        Outbound head = pending.peek();
+        if (head != null && head.isStarted()) {
+            pending.poll().fail(cause);
+        }
+        failAll(pings, cause);
+        // 连接失败只重试，不通知
+        if (wasConnected) {
+            listener.onDisconnected(this, cause);
+        }
+        if (closed || quitting || minBackoffMillis == 0) {
+            release();
+            return;
         }
+        loop.schedule(this::connect, backoff(attempts++));
+    }
+
+    /**
+     * 指数退避，一半固定一半随机，服务器重启时成千上万个客户端不会在同一时刻一起重连
+     */
+    private long backoff(int attempts) {
+        long backoff = Math.min(maxBackoffMillis, minBackoffMillis << Math.min(attempts, 20));
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
     }
 
-    private void close() {
+    private void closeChannel() {
+        connected = false;
+        key.cancel();
         try {
-            if (selector != null) {
-                selector.close();
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        channel = null;
+        key = null;
+    }
+
+    /**
+     * 关闭连接，所有还没完成的消息都异常完成，释放缓冲区，只在事件循环线程中执行
+     */
+    private void release() {
+        closed = true;
+        if (released) {
+            return;
+        }
+        released = true;
+        if (channel != null) {
+            closeChannel();
+        }
+        ClosedChannelException cause = new ClosedChannelException();
+        failAll(pending, cause);
+        failAll(pings, cause);
+        failAll(submitted, cause);
+        abortDownload();
+        reader.release();
+        firstConnect.completeExceptionally(cause);
+        if (ownLoop) {
+            loop.shutdown();
+        }
+    }
+
+    private static void failAll(Queue<Outbound> queue, Throwable cause) {
+        Outbound out;
+        while ((out = queue.poll()) != null) {
+            out.fail(cause);
+        }
+    }
+
+    /**
+     * 读到的每一帧：心跳在这里回复，文件在这里接收，其余的交给回调
+     */
+    private void read() throws IOException {
+        ByteBuffer readerBuffer = reader.buffer();
+        int length;
+        int reads = 0;
+        do {
+            // 每读一次就处理一次，接收文件时累积缓冲区不会越变越大
+            length = channel.read(readerBuffer);
+            readerBuffer.flip();
+            processInbound(readerBuffer);
+            // 处理的时候被重定向了，连接和累积缓冲区都已经清掉
+            if (channel == null) {
+                return;
+            }
+            readerBuffer.compact();
+            if (!readerBuffer.hasRemaining()) {
+                readerBuffer = expandReaderBuffer();
             }
+        } while (length > 0 && ++reads < MAX_READS_PER_EVENT && channel != null);
+        if (length < 0) {
+            throw new EOFException("服务器关闭了连接");
+        }
+        // 回复的PONG
+        if (!pending.isEmpty()) {
+            flush();
+        }
+    }
+
+    /**
+     * 处理累积缓冲区中的字节：正在接收文件时先写进文件，否则按协议切帧
+     * @param readerBuffer 读模式
+     */
+    private void processInbound(ByteBuffer readerBuffer) throws IOException {
+        while (true) {
+            if (download != null) {
+                if (!drainDownload(readerBuffer)) {
+                    return;
+                }
+                continue;
+            }
+            ByteBuffer frame = protocol.frameCodec().decode(readerBuffer);
+            if (frame == null) {
+                return;
+            }
+            Opcode opcode = protocol.opcode(frame);
+            if (opcode == Opcode.PING) {
+                // 服务器的心跳探测，直接放进发送队列，读完这一轮再一起写
+                pending.offer(new Outbound(protocol.encode(Opcode.PONG), null, 0, null));
+            } else if (opcode == Opcode.PONG) {
+                Outbound ping = pings.poll();
+                if (ping != null) {
+                    ping.pong.complete(System.nanoTime() - ping.createTime);
+                }
+            } else if (opcode == Opcode.COMMAND && protocol.text(frame).startsWith(FILE)) {
+                startDownload(protocol.text(frame));
+            } else if (opcode == Opcode.COMMAND && protocol.text(frame).startsWith(REDIRECT)
+                    && redirect(protocol.text(frame))) {
+                // 连接已经断开，这个节点后面发来的字节都不要了
+                return;
+            } else {
+                listener.onFrame(protocol, frame);
+            }
+        }
+    }
+
+    /**
+     * 集群模式下房间归别的节点："/redirect 房间名 host:port"，断开后马上连过去，重新加入这个房间
+     * 不重连的客户端、刚因为这个房间重定向过来的连接不跟随，交给回调，留在原来的节点上由集群转发
+     * @return 是否跟随了
+     */
+    private boolean redirect(String command) {
+        String[] args = command.split(" ");
+        int colon = args.length == 3 ? args[2].lastIndexOf(':') : -1;
+        if (colon < 0 || minBackoffMillis == 0 || closed || quitting || args[1].equals(redirectedRoom)) {
+            return false;
+        }
+        redirectTarget = new InetSocketAddress(args[2].substring(0, colon), Integer.parseInt(args[2].substring(colon + 1)));
+        rejoin = args[1];
+        redirectedRoom = args[1];
+        System.out.println("客户端：房间[" + args[1] + "]在节点[" + args[2] + "]上，重定向过去");
+        connectionLost(new IOException("重定向到" + args[2]), true);
+        return true;
+    }
+
+    /**
+     * 服务器开始发送文件："/file 编号 大小 起始位置 文件名"，后面紧跟着文件内容
+     */
+    private void startDownload(String header) throws IOException {
+        String[] args = header.split(" ", 5);
+        long size = Long.parseLong(args[2]);
+        long offset = Long.parseLong(args[3]);
+        Files.createDirectories(downloadDirectory);
+        Path path = downloadDirectory.resolve(args[4]);
+        download = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        // 从头接收时清掉旧文件，续传时从起始位置接着写
+        if (offset == 0) {
+            download.truncate(0);
+        }
+        download.position(offset);
+        downloadRemaining = size - offset;
+        System.out.println("客户端：开始接收文件[" + path + "]，从" + offset + "开始，共" + size + "字节");
+        drainDownload(ByteBuffer.allocate(0));
+    }
+
+    /**
+     * 把属于文件的字节写进文件
+     * @return 文件是否已经收完
+     */
+    private boolean drainDownload(ByteBuffer readerBuffer) throws IOException {
+        int length = (int) Math.min(readerBuffer.remaining(), downloadRemaining);
+        ByteBuffer slice = readerBuffer.duplicate();
+        slice.limit(slice.position() + length);
+        while (slice.hasRemaining()) {
+            download.write(slice);
+        }
+        readerBuffer.position(readerBuffer.position() + length);
+        downloadRemaining -= length;
+        if (downloadRemaining > 0) {
+            return false;
+        }
+        download.close();
+        download = null;
+        System.out.println("客户端：文件接收完成");
+        return true;
+    }
+
+    /**
+     * 连接断开时关掉没收完的文件，重新/accept时可以带上起始位置续传
+     */
+    private void abortDownload() {
+        if (download == null) {
+            return;
+        }
+        try {
+            download.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
+        download = null;
+        System.out.println("客户端：文件没有接收完，还差" + downloadRemaining + "字节");
+    }
+
+    /**
+     * 一帧比累积缓冲区还长时扩容
+     */
+    private ByteBuffer expandReaderBuffer() {
+        ByteBuffer readerBuffer = reader.buffer();
+        PooledBuffer bigger = BufferPool.DEFAULT.acquire(readerBuffer.capacity() << 1);
+        readerBuffer.flip();
+        bigger.buffer().put(readerBuffer);
+        reader.release();
+        reader = bigger;
+        return bigger.buffer();
+    }
+
+    /**
+     * 把提交队列搬进发送队列，尽量写出去，几条消息拼在一起用一次gathering write，文件用transferTo单独发送
+     * 写不完就关注OP_WRITE，写完了就取消关注，只在事件循环线程中执行
+     */
+    private void flush() throws IOException {
+        Outbound out;
+        while ((out = submitted.poll()) != null) {
+            pending.offer(out);
+        }
+        // 还没连上，消息留在发送队列里，连上后再发
+        if (!connected) {
+            return;
+        }
+        long fileQuota = MAX_FILE_BYTES_PER_FLUSH;
+        while (!pending.isEmpty()) {
+            Outbound head = pending.peek();
+            if (head.file != null && Buffers.remaining(head.buffers) == 0) {
+                long transferred = FileTransfer.transfer(head.file, head.filePosition,
+                        head.fileEnd - head.filePosition, channel, fileQuota);
+                head.filePosition += transferred;
+                fileQuota -= transferred;
+                if (head.filePosition < head.fileEnd) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                written(pending.poll());
+                continue;
+            }
+            int count = 0;
+            fill:
+            for (Outbound next : pending) {
+                for (ByteBuffer buffer : next.buffers) {
+                    if (count == iov.length) {
+                        break fill;
+                    }
+                    iov[count++] = buffer;
+                }
+                // 文件内容要紧跟在它的/offer后面
+                if (next.file != null) {
+                    break;
+                }
+            }
+            long attempted = 0;
+            for (int i = 0; i < count; i++) {
+                attempted += iov[i].remaining();
+            }
+            long written = channel.write(iov, 0, count);
+            Arrays.fill(iov, 0, count, null);
+            while ((head = pending.peek()) != null && head.file == null && Buffers.remaining(head.buffers) == 0) {
+                written(pending.poll());
+            }
+            if (written < attempted) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * 一条消息完整写出去了
+     */
+    private void written(Outbound out) {
+        if (out.pong != null) {
+            pings.offer(out);
+        }
+        out.complete();
+    }
+
+    /**
+     * 发送队列中的一条消息，或者一个带着/offer的文件
+     * 1、编码好的帧
+     * 2、帧的总字节数，用来判断是否已经开始写了
+     * 3、要发送的文件，写完帧之后接着发，没有时为null
+     * 4、文件发送到的位置和结束位置
+     * 5、写完时完成
+     * 6、PING的回复，收到PONG时完成，不是PING时为null
+     * 7、创建时间，纳秒
+     */
+    private static class Outbound {
+        private final ByteBuffer[] buffers;
+        private final long length;
+        private final FileChannel file;
+        private long filePosition;
+        private final long fileEnd;
+        private final CompletableFuture<Void> written = new CompletableFuture<>();
+        private final CompletableFuture<Long> pong;
+        private final long createTime = System.nanoTime();
+
+        Outbound(ByteBuffer[] buffers, FileChannel file, long fileSize, CompletableFuture<Long> pong) {
+            this.buffers = buffers;
+            this.length = Buffers.remaining(buffers);
+            this.file = file;
+            this.fileEnd = fileSize;
+            this.pong = pong;
+        }
+
+        boolean isStarted() {
+            return Buffers.remaining(buffers) < length;
+        }
+
+        void complete() {
+            closeFile();
+            written.complete(null);
+        }
+
+        void fail(Throwable cause) {
+            closeFile();
+            written.completeExceptionally(cause);
+            if (pong != null) {
+                pong.completeExceptionally(cause);
+            }
+        }
+
+        private void closeFile() {
+            if (file == null) {
+                return;
+            }
+            try {
+                file.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     public static void main(String[] args) throws IOException {
         ChatClient chatClient = new ChatClient();
         chatClient.start();
+        // 控制台输入在单独的线程里读，消息都交给事件循环发送
+        new Thread(new UserInputHandler(chatClient), "console-input").start();
     }
 }
@@ -0,0 +1,53 @@
+package com.lakeqiu.nio.chatroom.client;
+
+import com.lakeqiu.common.protocol.ChatProtocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * ChatClient收到消息和连接状态变化时的回调
+ * 都在事件循环线程中调用，不能阻塞，一个事件循环上的所有连接都在等它
+ * @author lakeqiu
+ */
+public interface ChatListener {
+    /**
+     * 打印到控制台，控制台客户端用
+     */
+    ChatListener CONSOLE = new ChatListener() {
+        @Override
+        public void onFrame(ChatProtocol protocol, ByteBuffer frame) throws IOException {
+            System.out.println(protocol.text(frame));
+        }
+
+        @Override
+        public void onConnected(ChatClient client) {
+            System.out.println("客户端：已经连接服务器");
+        }
+
+        @Override
+        public void onDisconnected(ChatClient client, Throwable cause) {
+            System.out.println("客户端：与服务器的连接断开：" + cause);
+        }
+    };
+
+    /**
+     * 收到一帧，心跳和文件已经由ChatClient处理掉了，不会出现在这里
+     * @param frame 只在调用期间有效，要保留就复制一份
+     * @throws IOException 帧格式错误，ChatClient会断开连接
+     */
+    void onFrame(ChatProtocol protocol, ByteBuffer frame) throws IOException;
+
+    /**
+     * 连接建立，包括重连成功
+     */
+    default void onConnected(ChatClient client) {
+    }
+
+    /**
+     * 建立好的连接断开，之后如果没有关闭客户端会自动重连，重连失败不会再调用
+     * @param cause 断开的原因，服务器正常关闭连接时是EOFException
+     */
+    default void onDisconnected(ChatClient client, Throwable cause) {
+    }
+}
@@ -0,0 +1,157 @@
+package com.lakeqiu.nio.chatroom.client;
+
+import com.lakeqiu.common.timer.HashedTimingWheel;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 客户端的事件循环，一个选择器和一个线程，可以被很多个ChatClient共用
+ * 压测和机器人一个进程里有成千上万个连接，每个连接一个线程撑不住，几个事件循环就够了
+ * 与服务器的Reactor一样：通道只由这个线程读写，其他线程通过execute投递任务；
+ * 重连的退避等待放在时间轮上，用select的超时时间驱动，不需要额外的线程
+ * @author lakeqiu
+ */
+public class ClientEventLoop implements Runnable {
+    /**
+     * 1、时间轮一个tick的毫秒数和一圈的槽数，退避时间最长也就几十秒
+     * 2、名称，也是线程名
+     * 3、选择器
+     * 4、其他线程投递过来的任务
+     * 5、是否已经唤醒过selector
+     * 6、定时器，只在本线程中使用
+     * 7、运行这个事件循环的线程
+     * 8、是否还在运行
+     */
+    private final static long TICK_MILLIS = 10;
+    private final static int TICKS_PER_WHEEL = 512;
+    private final String name;
+    private final Selector selector;
+    private final Queue<Runnable> taskQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakenUp = new AtomicBoolean();
+    private final HashedTimingWheel timer = new HashedTimingWheel(TICK_MILLIS, TICKS_PER_WHEEL);
+    private volatile Thread thread;
+    private volatile boolean running;
+
+    public ClientEventLoop(String name) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * 启动线程，重复调用时什么也不做
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    /**
+     * 退出事件循环，注册在上面的通道由各自的ChatClient关闭
+     */
+    public void shutdown() {
+        execute(() -> running = false);
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * 在事件循环线程中执行任务，如果当前就是这个线程则直接执行
+     */
+    void execute(Runnable task) {
+        if (inEventLoop()) {
+            task.run();
+            return;
+        }
+        executeLater(task);
+    }
+
+    /**
+     * 放进任务队列，等这一轮事件处理完再执行，即使当前就是这个线程
+     */
+    void executeLater(Runnable task) {
+        taskQueue.offer(task);
+        if (wakenUp.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * 只能在本线程中调用
+     */
+    HashedTimingWheel.Timeout schedule(Runnable task, long delayMillis) {
+        return timer.schedule(task, delayMillis);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                wakenUp.set(false);
+                if (taskQueue.isEmpty()) {
+                    selector.select(timer.nextTimeoutMillis());
+                } else {
+                    selector.selectNow();
+                }
+                processSelectedKeys();
+                runAllTasks();
+                timer.advance();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            // ChatClient的close也是投递过来的任务，执行掉它们再关闭选择器
+            runAllTasks();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 只处理触发了事件的key，不遍历所有注册的通道
+     */
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+            if (key.isValid()) {
+                ((ChatClient) key.attachment()).handle(key);
+            }
+        }
+    }
+
+    private void runAllTasks() {
+        Runnable task;
+        while ((task = taskQueue.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
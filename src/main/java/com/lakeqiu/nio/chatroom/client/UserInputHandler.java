@@ -3,12 +3,18 @@ package com.lakeqiu.nio.chatroom.client;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 /**
  * 负责监控控制台信息并发送给服务器
+ * 只负责把消息交给ChatClient，真正的写由事件循环线程完成，这里不会阻塞在网络上
  * @author lakeqiu
  */
 public class UserInputHandler implements Runnable {
+    private final static String QUIT = "quit";
+    private final static String OFFER = "/offer ";
     private ChatClient chatClient;
 
     public UserInputHandler(ChatClient chatClient) {
@@ -23,11 +29,43 @@ public class UserInputHandler implements Runnable {
 
             String msg = null;
             while ((msg = consoleReader.readLine()) != null) {
-                chatClient.send(msg);
+                // 如果信息为空，则不发送
+                if (msg.isEmpty()) {
+                    continue;
+                }
+                // 如果是关闭口令，发送后关闭客户端
+                if (QUIT.equals(msg)) {
+                    chatClient.quit().whenComplete((ignored, e) -> System.out.println("关闭客户端成功"));
+                    return;
+                }
+                if (msg.startsWith(OFFER)) {
+                    offerFile(msg.substring(OFFER.length()).trim());
+                    continue;
+                }
+                chatClient.send(msg).whenComplete((ignored, e) -> {
+                    if (e != null) {
+                        System.out.println("客户端：消息发送失败：" + e);
+                    }
+                });
                 System.out.println(msg);
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+
+    private void offerFile(String path) {
+        Path file = Paths.get(path);
+        if (!Files.isRegularFile(file)) {
+            System.out.println("客户端：文件[" + path + "]不存在");
+            return;
+        }
+        chatClient.sendFile(file).whenComplete((ignored, e) -> {
+            if (e != null) {
+                System.out.println("客户端：文件[" + file.getFileName() + "]发送失败：" + e);
+            } else {
+                System.out.println("客户端：文件[" + file.getFileName() + "]发送完成");
+            }
+        });
+    }
+}
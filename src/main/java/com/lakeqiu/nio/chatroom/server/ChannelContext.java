@@ -0,0 +1,523 @@
+package com.lakeqiu.nio.chatroom.server;
+
+import com.lakeqiu.common.buffer.BufferPool;
+import com.lakeqiu.common.buffer.Buffers;
+import com.lakeqiu.common.buffer.PooledBuffer;
+import com.lakeqiu.common.metrics.ChatMetrics;
+import com.lakeqiu.common.protocol.ChatProtocol;
+import com.lakeqiu.common.protocol.Opcode;
+import com.lakeqiu.common.session.Session;
+import com.lakeqiu.common.timer.HashedTimingWheel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * 每个连接自己的状态，作为attachment挂在SelectionKey上
+ * 除了id和port，只会被通道所属的Reactor线程访问
+ * @author lakeqiu
+ */
+class ChannelContext implements Session {
+    /**
+     * 1、累积缓冲区的初始长度
+     * 2、会话id，由服务器的注册表分配
+     * 3、与客户端的通道
+     * 4、通道所属的Reactor
+     * 5、客户端端口，通道关闭后就拿不到了，所以先存下来
+     * 6、转发消息时的帧头，编码一次之后一直复用
+     * 7、通道在Reactor选择器上的key
+     * 8、累积缓冲区，从池中申请，一直处于写模式，没凑够一帧的字节会留到下一轮select
+     *    切完帧后如果没有剩余的字节就还给池，空闲的连接不占用缓冲区
+     * 9、发送队列，每个元素是一帧（可能由几段buffer组成）
+     * 10、发送队列中还没写出去的字节数
+     * 11、是否处于可写状态，超过高水位后变为false，回落到低水位以下再变回true
+     * 12、因为这个通道跟不上而被暂停读取的发送方
+     * 13、被多少个接收方暂停了读取，为0时才恢复读取
+     * 14、正在上传的文件，为null时表示被拒绝的上传，收到的字节直接丢掉
+     * 15、上传文件写入的通道
+     * 16、上传文件还没收到的字节数，为-1时表示没有在上传
+     * 17、最后一次读到字节和写出字节的时间，纳秒
+     * 18、上一次读到字节之后是否已经发过心跳探测
+     * 19、空闲检测的定时任务
+     */
+    private final static int INITIAL_INBOUND_LENGTH = 1024;
+    /**
+     * 一次flush最多发送的文件字节数，发够了就让出线程，等下一轮select再继续，
+     * 免得一个大文件占住Reactor，同一个Reactor上的其他连接收不到聊天消息
+     */
+    private final static long MAX_FILE_BYTES_PER_FLUSH = 256 * 1024;
+    private final long id;
+    private final SocketChannel channel;
+    private final Reactor reactor;
+    private final int port;
+    private ByteBuffer header;
+    private SelectionKey key;
+    private PooledBuffer inbound;
+    private final ArrayDeque<PendingFrame> outbound = new ArrayDeque<>();
+    private long pendingBytes;
+    private boolean writable = true;
+    private Set<ChannelContext> pausedSenders;
+    private int pauseCount;
+    private FileOffer upload;
+    private FileChannel uploadChannel;
+    private long uploadRemaining = -1;
+    private long lastReadTime = System.nanoTime();
+    private long lastWriteTime = lastReadTime;
+    private boolean probed;
+    private HashedTimingWheel.Timeout idleTimeout;
+
+    ChannelContext(long id, SocketChannel channel, Reactor reactor) {
+        this.id = id;
+        this.channel = channel;
+        this.reactor = reactor;
+        this.port = channel.socket().getPort();
+    }
+
+    @Override
+    public long id() {
+        return id;
+    }
+
+    SocketChannel channel() {
+        return channel;
+    }
+
+    Reactor reactor() {
+        return reactor;
+    }
+
+    int port() {
+        return port;
+    }
+
+    /**
+     * @return 只读的帧头，所有消息共享，不能直接修改
+     */
+    ByteBuffer header(ChatProtocol protocol) {
+        if (header == null) {
+            header = protocol.header(Opcode.MESSAGE, id, port);
+        }
+        return header;
+    }
+
+    SelectionKey key() {
+        return key;
+    }
+
+    void key(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * 读一次通道，累积缓冲区满了才扩容，但不会超过一帧的上限
+     * 调用者每读一次就切一次帧，这样一次read读到的多条消息可以一起处理
+     * @return 读到的字节数，对方关闭连接时返回-1
+     */
+    int readInbound(int maxFrameLength) throws IOException {
+        if (inbound == null) {
+            inbound = BufferPool.DEFAULT.acquire(INITIAL_INBOUND_LENGTH);
+        }
+        ByteBuffer buffer = inbound.buffer();
+        if (!buffer.hasRemaining()) {
+            // 已经放得下最长的帧还是满了，说明帧超长，交给decode去报错
+            if (buffer.capacity() > maxFrameLength) {
+                return 0;
+            }
+            expand(maxFrameLength);
+        }
+        int length = channel.read(inbound.buffer());
+        if (length > 0) {
+            lastReadTime = System.nanoTime();
+            probed = false;
+        }
+        return length;
+    }
+
+    /**
+     * 切换为读模式，交给编解码器切帧
+     * 切完后必须调用compactInbound
+     */
+    ByteBuffer flipInbound() {
+        ByteBuffer buffer = inbound.buffer();
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * 把还没凑够一帧的字节挪到开头，切换回写模式
+     * 没有剩余字节时把缓冲区还给池
+     */
+    void compactInbound() {
+        // 处理消息的过程中连接已经被关闭，缓冲区也已经还回去了
+        if (inbound == null) {
+            return;
+        }
+        ByteBuffer buffer = inbound.buffer();
+        if (buffer.hasRemaining()) {
+            buffer.compact();
+        } else {
+            releaseInbound();
+        }
+    }
+
+    private void expand(int maxFrameLength) {
+        // 翻倍扩容，最多比一帧的上限多出一点，留给分隔符或长度头
+        ByteBuffer buffer = inbound.buffer();
+        int capacity = (int) Math.min((long) buffer.capacity() << 1, (long) maxFrameLength + 8);
+        PooledBuffer bigger = BufferPool.DEFAULT.acquire(capacity);
+        buffer.flip();
+        bigger.buffer().put(buffer);
+        inbound.release();
+        inbound = bigger;
+    }
+
+    private void releaseInbound() {
+        if (inbound != null) {
+            inbound.release();
+            inbound = null;
+        }
+    }
+
+    /**
+     * 把一帧放进发送队列，等flush写出去
+     * @param frame 要发送的帧
+     * @param owner 帧引用的池化缓冲区，写完或丢弃时release，没有时为null
+     * @param enqueueTime 放进队列的时间，纳秒，写完时用来记写的耗时
+     */
+    void enqueue(ByteBuffer[] frame, PooledBuffer owner, long enqueueTime) {
+        PendingFrame pending = new PendingFrame(frame, owner, enqueueTime);
+        outbound.offer(pending);
+        pendingBytes += pending.length;
+    }
+
+    /**
+     * 把一段文件放进发送队列，文件不占用内存，所以不计入待发送的字节数，也不受水位限制
+     */
+    void enqueue(FileRegion region) {
+        outbound.offer(new PendingFrame(region, System.nanoTime()));
+    }
+
+    boolean hasPendingWrites() {
+        return !outbound.isEmpty();
+    }
+
+    /**
+     * @return 发送队列中的帧数，文件也算一帧
+     */
+    int pendingFrames() {
+        return outbound.size();
+    }
+
+    long pendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * 尽量把发送队列写出去，几帧拼在一起用一次gathering write，文件用transferTo单独发送
+     * @param iov Reactor复用的数组，用来装这次要写的buffer
+     * @param metrics 记录写出的字节数和写完的帧的耗时
+     * @return 队列是否已经写空，没写空说明内核发送缓冲区满了或者这一轮发送的文件已经够多了，要等OP_WRITE
+     * @throws IOException
+     */
+    boolean flush(ByteBuffer[] iov, ChatMetrics metrics) throws IOException {
+        long fileQuota = MAX_FILE_BYTES_PER_FLUSH;
+        while (!outbound.isEmpty()) {
+            PendingFrame first = outbound.peek();
+            if (first.region != null) {
+                long transferred = first.region.transferTo(channel, fileQuota);
+                if (transferred > 0) {
+                    lastWriteTime = System.nanoTime();
+                    metrics.bytesOut(transferred);
+                }
+                fileQuota -= transferred;
+                if (first.region.remaining() > 0) {
+                    return false;
+                }
+                outbound.poll().release();
+                metrics.written(lastWriteTime - first.enqueueTime);
+                continue;
+            }
+            int count = 0;
+            fill:
+            for (PendingFrame frame : outbound) {
+                // 文件前面的帧先写完，文件要等轮到它时单独发送
+                if (frame.region != null) {
+                    break;
+                }
+                for (ByteBuffer buffer : frame.buffers) {
+                    if (count == iov.length) {
+                        break fill;
+                    }
+                    iov[count++] = buffer;
+                }
+            }
+            long attempted = 0;
+            for (int i = 0; i < count; i++) {
+                attempted += iov[i].remaining();
+            }
+            long written = channel.write(iov, 0, count);
+            Arrays.fill(iov, 0, count, null);
+            pendingBytes -= written;
+            if (written > 0) {
+                lastWriteTime = System.nanoTime();
+                metrics.bytesOut(written);
+            }
+            // 把已经写完的帧移出队列，这次写完的帧共用一个时间
+            PendingFrame head;
+            while ((head = outbound.peek()) != null && head.region == null && head.remaining() == 0) {
+                outbound.poll().release();
+                metrics.written(lastWriteTime - head.enqueueTime);
+            }
+            if (written < attempted) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 从队头开始丢帧，直到待发送的字节数不超过limit，写了一半的帧和最新的一帧会保留
+     * @return 丢掉的帧数
+     */
+    int dropOldest(long limit) {
+        int dropped = 0;
+        Iterator<PendingFrame> iterator = outbound.iterator();
+        while (pendingBytes > limit && iterator.hasNext()) {
+            PendingFrame frame = iterator.next();
+            // 写了一半的帧丢掉会破坏帧边界，文件不占内存，也不丢
+            if (frame.isStarted() || frame.region != null) {
+                continue;
+            }
+            if (!iterator.hasNext()) {
+                break;
+            }
+            pendingBytes -= frame.length;
+            iterator.remove();
+            frame.release();
+            dropped++;
+        }
+        return dropped;
+    }
+
+    /**
+     * 清空发送队列，释放缓冲区，连接关闭时调用
+     * @return 没来得及发送的帧数
+     */
+    int discardOutbound() {
+        int discarded = outbound.size();
+        PendingFrame frame;
+        while ((frame = outbound.poll()) != null) {
+            frame.release();
+        }
+        pendingBytes = 0;
+        releaseInbound();
+        return discarded;
+    }
+
+    /**
+     * 开始接收上传的文件，之后收到的size字节都属于这个文件，不再按帧切分
+     * @param offer 文件，为null时表示拒绝这次上传，收到的字节直接丢掉
+     * @param file 写入的通道，offer为null时也为null
+     * @param size 文件大小
+     */
+    void startUpload(FileOffer offer, FileChannel file, long size) {
+        this.upload = offer;
+        this.uploadChannel = file;
+        this.uploadRemaining = size;
+    }
+
+    boolean isUploading() {
+        return uploadRemaining >= 0;
+    }
+
+    /**
+     * 把累积缓冲区里属于上传文件的字节写进文件，在Reactor线程中直接写磁盘（通常只是写进页缓存）
+     * @param inbound 读模式的累积缓冲区
+     * @return 文件是否已经收完，收完后恢复按帧切分
+     */
+    boolean drainUpload(ByteBuffer inbound) throws IOException {
+        int length = (int) Math.min(inbound.remaining(), uploadRemaining);
+        if (uploadChannel != null) {
+            ByteBuffer slice = inbound.duplicate();
+            slice.limit(slice.position() + length);
+            while (slice.hasRemaining()) {
+                uploadChannel.write(slice);
+            }
+        }
+        inbound.position(inbound.position() + length);
+        uploadRemaining -= length;
+        if (uploadRemaining > 0) {
+            return false;
+        }
+        closeUploadChannel();
+        uploadRemaining = -1;
+        return true;
+    }
+
+    /**
+     * @return 刚收完的文件，被拒绝的上传为null
+     */
+    FileOffer takeUpload() {
+        FileOffer offer = upload;
+        upload = null;
+        return offer;
+    }
+
+    /**
+     * 连接在上传过程中断开，放弃这个文件
+     * @return 没收完的文件，没有在上传时为null
+     */
+    FileOffer abortUpload() {
+        if (!isUploading()) {
+            return null;
+        }
+        closeUploadChannel();
+        uploadRemaining = -1;
+        return takeUpload();
+    }
+
+    private void closeUploadChannel() {
+        if (uploadChannel != null) {
+            try {
+                uploadChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            uploadChannel = null;
+        }
+    }
+
+    long lastReadTime() {
+        return lastReadTime;
+    }
+
+    long lastWriteTime() {
+        return lastWriteTime;
+    }
+
+    /**
+     * @return 上一次读到字节之后是否已经发过心跳探测
+     */
+    boolean isProbed() {
+        return probed;
+    }
+
+    void setProbed() {
+        this.probed = true;
+    }
+
+    /**
+     * 记下新的空闲检测定时任务
+     */
+    void idleTimeout(HashedTimingWheel.Timeout idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * 连接关闭时取消空闲检测
+     */
+    void cancelIdleTimeout() {
+        if (idleTimeout != null) {
+            idleTimeout.cancel();
+            idleTimeout = null;
+        }
+    }
+
+    boolean isWritable() {
+        return writable;
+    }
+
+    void setWritable(boolean writable) {
+        this.writable = writable;
+    }
+
+    /**
+     * 记录一个因为这个通道跟不上而被暂停的发送方
+     * @return 之前没有记录过返回true
+     */
+    boolean addPausedSender(ChannelContext sender) {
+        if (pausedSenders == null) {
+            pausedSenders = new HashSet<>();
+        }
+        return pausedSenders.add(sender);
+    }
+
+    /**
+     * 取出并清空被暂停的发送方
+     */
+    Set<ChannelContext> drainPausedSenders() {
+        Set<ChannelContext> senders = pausedSenders;
+        pausedSenders = null;
+        return senders;
+    }
+
+    /**
+     * 暂停读取，只能在所属Reactor线程中调用
+     */
+    void pauseRead() {
+        if (pauseCount++ == 0 && key.isValid()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * 恢复读取，所有暂停它的接收方都恢复了才真正恢复
+     */
+    void resumeRead() {
+        if (pauseCount > 0 && --pauseCount == 0 && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * 发送队列中的一帧，或者一段文件
+     */
+    private static class PendingFrame {
+        private final ByteBuffer[] buffers;
+        private final PooledBuffer owner;
+        private final FileRegion region;
+        private final long length;
+        private final long enqueueTime;
+
+        PendingFrame(ByteBuffer[] buffers, PooledBuffer owner, long enqueueTime) {
+            this.buffers = buffers;
+            this.owner = owner;
+            this.region = null;
+            this.length = remaining();
+            this.enqueueTime = enqueueTime;
+        }
+
+        PendingFrame(FileRegion region, long enqueueTime) {
+            this.buffers = null;
+            this.owner = null;
+            this.region = region;
+            this.length = 0;
+            this.enqueueTime = enqueueTime;
+        }
+
+        void release() {
+            if (owner != null) {
+                owner.release();
+            }
+            if (region != null) {
+                region.close();
+            }
+        }
+
+        long remaining() {
+            return region != null ? region.remaining() : Buffers.remaining(buffers);
+        }
+
+        boolean isStarted() {
+            return region != null ? region.isStarted() : remaining() < length;
+        }
+    }
+}
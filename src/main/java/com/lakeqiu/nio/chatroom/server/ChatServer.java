@@ -1,40 +1,122 @@
 package com.lakeqiu.nio.chatroom.server;
 
-import sun.awt.AWTCharset;
+import com.lakeqiu.common.buffer.BufferPool;
+import com.lakeqiu.common.buffer.Buffers;
+import com.lakeqiu.common.buffer.PooledBuffer;
+import com.lakeqiu.common.codec.FrameCodec;
+import com.lakeqiu.common.lifecycle.Lifecycle;
+import com.lakeqiu.common.lifecycle.ShutdownReport;
+import com.lakeqiu.common.log.MessageLog;
+import com.lakeqiu.common.metrics.ChatMetrics;
+import com.lakeqiu.common.metrics.MetricsEndpoint;
+import com.lakeqiu.common.protocol.ChatProtocol;
+import com.lakeqiu.common.protocol.TextProtocol;
+import com.lakeqiu.common.session.NicknameRegistry;
+import com.lakeqiu.common.session.RoomHistory;
+import com.lakeqiu.common.session.RoomRegistry;
+import com.lakeqiu.common.session.SessionRegistry;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.util.Set;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * 主从Reactor模式的聊天室服务器
+ * 主Reactor(boss)只负责接收连接，接收到的通道轮流交给从Reactor(worker)，
+ * 每个worker拥有自己的selector和线程，负责所属通道的读写
+ * worker数量为0时退化为单Reactor模式，boss同时负责接收和读写
  * @author lakeqiu
  */
-public class ChatServer {
+public class ChatServer implements Lifecycle {
     /**
      * 1、默认监听端口
-     * 2、退出口令
-     * 3、服务器channel
-     * 4、选择器
-     * 5、端口
-     * 6、默认buffer长度
-     * 7、负责读的buffer
-     * 8、负责写的buffer
-     * （分成两个buffer是为了方便操作，免去了模式切换的麻烦）
-     * 9、默认统一编码
+     * 2、默认worker数量，与cpu核数相同
+     * 3、默认单条消息的最大长度
+     * 4、用户退出时代替退出口令转发给其他用户的消息
+     * 5、服务器channel
+     * 6、端口
+     * 7、worker数量
+     * 8、主Reactor
+     * 9、从Reactor
+     * 10、下一个分配通道的worker下标，只有boss线程访问
+     * 11、线上协议，默认由系统属性com.lakeqiu.chat.protocol决定，文本协议按换行符分隔
+     * 12、每个连接发送队列的低水位和高水位，超过高水位时按溢出策略处理
+     * 13、溢出策略
+     * 14、所有worker上的连接，按会话id索引，转发仍由各个worker遍历自己的通道
+     * 15、上传文件保存的目录，没有设置时在启动时创建临时目录
+     * 16、上传文件的大小上限
+     * 17、已经上传完、可以接收的文件，按编号索引
+     * 18、下一个文件编号
+     * 19、昵称索引，私聊时按昵称找到接收方，接收方可能在任何一个worker上
+     * 20、读空闲超时：这么久没收到客户端的任何字节就断开，半开的连接不会一直留着；为0时不检测
+     * 21、写空闲时间：这么久没发过任何字节就发一个心跳，为0时不发
+     * 22、main方法里收到退出信号后排空消息的期限（秒）
+     * 23、关闭报告，start之前和关闭之前为null
+     * 24、每个Reactor线程退出时countDown，都退出了才算关闭完成
+     * 25、每个房间最近的消息，新加入房间的用户先收到，所有worker共用一份
+     * 26、集群端口和其他节点的集群地址，端口为0时不开启集群模式；对客户端公布的主机名，为null时用本机地址；
+     *     集群节点，没有开启时为null
+     * 27、消息日志，转发的每一帧都存下来，默认由系统属性com.lakeqiu.chat.log决定，为null时不保存；
+     *     读日志的线程，/replay读很旧的记录可能缺页，不放在Reactor线程里，没有日志时为null
+     * 28、指标，读、切帧、转发、写的路径上累加；导出指标的HTTP端口，默认由系统属性com.lakeqiu.chat.metrics决定，为0时不开启
+     * 29、默认统一编码
      */
     private final static int DEFAULT_PORT = 8090;
-    private final static String QUIT = "quit\n";
+    private final static int DEFAULT_WORKER_COUNT = Runtime.getRuntime().availableProcessors();
+    private final static int DEFAULT_MAX_FRAME_LENGTH = 1024 * 1024;
+    private final static int DEFAULT_HIGH_WATER_MARK = DEFAULT_MAX_FRAME_LENGTH;
+    private final static int DEFAULT_LOW_WATER_MARK = DEFAULT_HIGH_WATER_MARK / 2;
+    private final static long DEFAULT_MAX_FILE_SIZE = 1024L * 1024 * 1024;
+    private final static long DEFAULT_READER_IDLE_MILLIS = 90 * 1000;
+    private final static long DEFAULT_WRITER_IDLE_MILLIS = 30 * 1000;
+    private final static long DEFAULT_SHUTDOWN_SECONDS = 10;
+    final static ByteBuffer LEAVE_MSG = Buffers.readOnlyDirectCopy(StandardCharsets.UTF_8.encode("已经退出聊天室"));
     private ServerSocketChannel socketChannel;
-    private Selector selector;
     private int port;
-    private int bufferLength = 1024;
-    private ByteBuffer readBuffer;
-    private ByteBuffer writeBuffer;
-    private Charset charset = StandardCharsets.UTF_8;
+    private int workerCount;
+    private Reactor boss;
+    private Reactor[] workers;
+    private int nextWorker;
+    private ChatProtocol protocol = ChatProtocol.fromProperty(DEFAULT_MAX_FRAME_LENGTH);
+    private int lowWaterMark = DEFAULT_LOW_WATER_MARK;
+    private int highWaterMark = DEFAULT_HIGH_WATER_MARK;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    private final SessionRegistry<ChannelContext> registry = new SessionRegistry<>();
+    private Path fileDirectory;
+    private long maxFileSize = DEFAULT_MAX_FILE_SIZE;
+    private final Map<Long, FileOffer> offers = new ConcurrentHashMap<>();
+    private final AtomicLong offerIds = new AtomicLong();
+    private final NicknameRegistry<ChannelContext> nicknames = new NicknameRegistry<>();
+    private long readerIdleMillis = DEFAULT_READER_IDLE_MILLIS;
+    private long writerIdleMillis = DEFAULT_WRITER_IDLE_MILLIS;
+    private ShutdownReport shutdownReport;
+    private CountDownLatch terminated;
+    private final RoomHistory history = new RoomHistory();
+    private MessageLog messageLog = MessageLog.fromProperty();
+    private ExecutorService replayReader;
+    private int clusterPort;
+    private final List<InetSocketAddress> clusterPeers = new ArrayList<>();
+    private String advertisedHost;
+    private ClusterNode cluster;
+    private final ChatMetrics metrics = new ChatMetrics("nio");
+    private int metricsPort = MetricsEndpoint.portFromProperty();
+    final Charset charset = StandardCharsets.UTF_8;
 
 
     public ChatServer() {
@@ -42,147 +124,554 @@ public class ChatServer {
     }
 
     public ChatServer(int port) {
+        this(port, DEFAULT_WORKER_COUNT);
+    }
+
+    /**
+     * @param port 监听端口
+     * @param workerCount 从Reactor数量，为0时使用单Reactor模式
+     */
+    public ChatServer(int port, int workerCount) {
+        if (workerCount < 0) {
+            throw new IllegalArgumentException("workerCount: " + workerCount);
+        }
         this.port = port;
-        readBuffer = ByteBuffer.allocate(bufferLength);
-        writeBuffer = ByteBuffer.allocate(bufferLength);
+        this.workerCount = workerCount;
+    }
+
+    /**
+     * 设置线上协议，需要在start之前调用
+     * @param protocol 文本协议TextProtocol或二进制协议BinaryProtocol
+     */
+    public void setProtocol(ChatProtocol protocol) {
+        this.protocol = protocol;
+    }
+
+    /**
+     * 使用文本协议，并设置帧编解码器，需要在start之前调用
+     * @param frameCodec 比如换行分隔的LineFrameCodec、长度前缀的LengthFieldFrameCodec
+     */
+    public void setFrameCodec(FrameCodec frameCodec) {
+        this.protocol = new TextProtocol(frameCodec);
+    }
+
+    /**
+     * 设置每个房间保存多少条最近的消息，新加入的用户先收到它们，需要在start之前调用
+     * @param frames 最多保存的消息数，为0时不保存
+     * @param bytes 最多保存的字节数，包括帧头
+     */
+    public void setHistoryLimit(int frames, int bytes) {
+        history.setLimit(frames, bytes);
+    }
+
+    /**
+     * 设置消息日志，转发的每一帧都存下来，用户可以用/replay从某个序号开始补收，需要在start之前调用
+     * 服务器在start时打开它，关闭时把剩下的记录落盘并关闭它
+     * @param messageLog 为null时不保存
+     */
+    public void setMessageLog(MessageLog messageLog) {
+        this.messageLog = messageLog;
+    }
+
+    /**
+     * 开启集群模式，与其他节点两两相连，本节点用户的发言会转发给其他节点上同一个房间的用户，需要在start之前调用
+     * 所有节点要用同一种线上协议，并且每个节点都要配置其他所有节点的地址
+     * @param port 本节点接收其他节点连接的端口
+     * @param peers 其他所有节点的集群端口
+     */
+    public void setCluster(int port, List<InetSocketAddress> peers) {
+        if (port <= 0) {
+            throw new IllegalArgumentException("port: " + port);
+        }
+        this.clusterPort = port;
+        this.clusterPeers.clear();
+        this.clusterPeers.addAll(peers);
+    }
+
+    /**
+     * 设置导出指标的HTTP端口，GET /metrics返回Prometheus的文本格式，需要在start之前调用
+     * @param port 为0时不开启
+     */
+    public void setMetricsPort(int port) {
+        this.metricsPort = port;
+    }
+
+    public ChatMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * 设置集群模式下对客户端公布的主机名，需要在start之前调用
+     * 所有节点用"主机名:端口"标识本节点在哈希环上的位置，用户/join的房间归别的节点时被重定向到这个地址，
+     * 所以它要是客户端连得上的地址，并且重启之后保持不变
+     * @param host 为null时用本机地址
+     */
+    public void setAdvertisedHost(String host) {
+        this.advertisedHost = host;
+    }
+
+    ChatProtocol protocol() {
+        return protocol;
+    }
+
+    RoomHistory history() {
+        return history;
+    }
+
+    MessageLog messageLog() {
+        return messageLog;
+    }
+
+    /**
+     * @return 读日志的线程，只有一个，各个Reactor的/replay排队读
+     */
+    Executor replayReader() {
+        return replayReader;
+    }
+
+    /**
+     * @return 是否有任何一个worker上有这个房间的成员
+     * 各个worker的房间索引都是ConcurrentHashMap，可以在任何线程中检查
+     */
+    boolean hasRoomMembers(String room) {
+        for (Reactor worker : workers) {
+            if (worker.hasRoomMembers(room)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 集群模式下房间归哪个节点，用户/join时查一次，查找不加锁
+     * @return 房间归别的节点时返回那个节点对客户端公布的地址；归本节点、是大厅或者没有开启集群时为null
+     */
+    String remoteOwner(String room) {
+        if (cluster == null || RoomRegistry.LOBBY.equals(room)) {
+            return null;
+        }
+        return cluster.remoteOwner(room);
+    }
+
+    /**
+     * 集群的节点变了，大约1/N的房间换了归属，让各个worker把这些房间里的用户重定向过去
+     */
+    void placementChanged() {
+        for (Reactor worker : workers) {
+            worker.execute(worker::redirectMovedRooms);
+        }
+    }
+
+    /**
+     * 有用户进入了房间，集群模式下房间有了第一个成员时通告其他节点
+     */
+    void roomOccupied(String room) {
+        if (cluster != null) {
+            cluster.roomOccupied(room);
+        }
+    }
+
+    /**
+     * 有用户离开了房间，所有worker上都没有这个房间的成员时释放它的历史，集群模式下通告其他节点
+     * 别的worker上可能同时有人加入，所以不能先判断再删除：历史在RoomHistory里和删除一起再确认一次，
+     * 集群的通告在ClusterNode的锁里再确认一次
+     */
+    void roomVacated(String room) {
+        if (room == null || hasRoomMembers(room)) {
+            return;
+        }
+        history.removeIfVacant(room, this::hasRoomMembers);
+        if (cluster != null) {
+            cluster.roomVacated(room);
+        }
+    }
+
+    FrameCodec frameCodec() {
+        return protocol.frameCodec();
+    }
+
+    /**
+     * 设置发送队列的水位，需要在start之前调用
+     * @param lowWaterMark 回落到这个字节数以下时恢复可写
+     * @param highWaterMark 超过这个字节数时按溢出策略处理
+     */
+    public void setWriteBufferWaterMark(int lowWaterMark, int highWaterMark) {
+        if (lowWaterMark < 0 || highWaterMark < lowWaterMark) {
+            throw new IllegalArgumentException("lowWaterMark: " + lowWaterMark + ", highWaterMark: " + highWaterMark);
+        }
+        this.lowWaterMark = lowWaterMark;
+        this.highWaterMark = highWaterMark;
+    }
+
+    int lowWaterMark() {
+        return lowWaterMark;
+    }
+
+    int highWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * 设置发送队列超过高水位时的处理策略，需要在start之前调用
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    OverflowPolicy overflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * 设置空闲检测，需要在start之前调用
+     * 读空闲一半时间时会先发一个心跳探测，客户端回复PONG就算收到了字节，只有真正断了的连接才会被关闭
+     * @param readerIdleMillis 这么久没收到任何字节就断开，为0时不检测
+     * @param writerIdleMillis 这么久没发过任何字节就发一个心跳，为0时不发
+     */
+    public void setIdleTimeout(long readerIdleMillis, long writerIdleMillis) {
+        if (readerIdleMillis < 0 || writerIdleMillis < 0) {
+            throw new IllegalArgumentException("readerIdleMillis: " + readerIdleMillis + ", writerIdleMillis: " + writerIdleMillis);
+        }
+        this.readerIdleMillis = readerIdleMillis;
+        this.writerIdleMillis = writerIdleMillis;
+    }
+
+    long readerIdleMillis() {
+        return readerIdleMillis;
+    }
+
+    long writerIdleMillis() {
+        return writerIdleMillis;
+    }
+
+    /**
+     * 设置上传文件保存的目录，需要在start之前调用
+     */
+    public void setFileDirectory(Path fileDirectory) {
+        this.fileDirectory = fileDirectory;
+    }
+
+    /**
+     * 设置上传文件的大小上限，需要在start之前调用
+     */
+    public void setMaxFileSize(long maxFileSize) {
+        this.maxFileSize = maxFileSize;
+    }
+
+    long maxFileSize() {
+        return maxFileSize;
+    }
+
+    /**
+     * 为一个新上传的文件分配编号和保存位置，上传完之前其他用户还看不到它
+     */
+    FileOffer newOffer(int senderPort, String name, long size) {
+        long id = offerIds.incrementAndGet();
+        return new FileOffer(id, senderPort, name, size, fileDirectory.resolve(id + ".file"));
+    }
+
+    /**
+     * 文件上传完，其他用户可以接收了
+     */
+    void publishOffer(FileOffer offer) {
+        offers.put(offer.id(), offer);
+    }
+
+    FileOffer offer(long id) {
+        return offers.get(id);
     }
 
-    public void start() {
+    /**
+     * 删除没有上传完的文件
+     */
+    void discardOffer(FileOffer offer) {
+        offers.remove(offer.id());
         try {
-            init();
-            work();
+            Files.deleteIfExists(offer.path());
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    SessionRegistry<ChannelContext> registry() {
+        return registry;
+    }
+
+    NicknameRegistry<ChannelContext> nicknames() {
+        return nicknames;
+    }
+
+    /**
+     * 绑定端口，启动boss和worker线程
+     */
+    @Override
+    public synchronized void start() throws IOException {
+        if (boss != null) {
+            throw new IllegalStateException("服务器已经启动");
+        }
+        init();
+        new Thread(boss, "nio-boss").start();
+    }
+
+    /**
+     * 优雅关闭，每一步都投递给各个Reactor在自己的线程里做
+     * 1、boss关闭服务器通道，所有Reactor暂停读取，已经读到的消息照常转发，
+     *    等所有Reactor都做完这一步，就不会再有新的转发任务了
+     * 2、所有Reactor开始排空：发送队列为空的通道马上关闭，其余的写空后关闭，这期间写出去的帧都算排空
+     * 3、到期还没写空的通道直接关闭，丢弃发送队列，Reactor退出事件循环
+     */
+    @Override
+    public synchronized ShutdownReport stop(long timeout, TimeUnit unit) {
+        if (shutdownReport != null) {
+            return shutdownReport;
+        }
+        ShutdownReport report = new ShutdownReport();
+        shutdownReport = report;
+        if (boss == null) {
+            report.complete(false);
+            return report;
+        }
+        Reactor[] reactors = reactors();
+        boolean timedOut = false;
+        try {
+            CountDownLatch readStopped = new CountDownLatch(reactors.length);
+            for (Reactor reactor : reactors) {
+                reactor.execute(() -> {
+                    reactor.stopReading(report);
+                    readStopped.countDown();
+                });
+            }
+            timedOut = !readStopped.await(report.remainingNanos(timeout, unit), TimeUnit.NANOSECONDS);
+            // 不会再有新的/replay了，已经在读的读完交回Reactor，和其他帧一起排空
+            if (replayReader != null) {
+                replayReader.shutdown();
+                timedOut |= !replayReader.awaitTermination(report.remainingNanos(timeout, unit), TimeUnit.NANOSECONDS);
+            }
+            // 不会再有本节点用户的发言了，停止与其他节点的往来，已经投递给worker的照常排空
+            if (cluster != null) {
+                cluster.shutdown();
+                System.out.println("服务器：" + cluster);
+            }
+            CountDownLatch drained = new CountDownLatch(reactors.length);
+            for (Reactor reactor : reactors) {
+                reactor.execute(() -> reactor.beginDrain(drained));
+            }
+            timedOut |= !drained.await(report.remainingNanos(timeout, unit), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            timedOut = true;
+        }
+        for (Reactor reactor : reactors) {
+            reactor.execute(reactor::shutdown);
+        }
+        try {
+            terminated.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (messageLog != null) {
+            messageLog.close();
+            System.out.println("服务器：" + messageLog);
+        }
+        metrics.closeEndpoint();
+        System.out.println("服务器：" + metrics);
+        report.complete(timedOut);
+        System.out.println("服务器：服务器已经关闭，" + report);
+        System.out.println("服务器：" + BufferPool.DEFAULT);
+        return report;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        CountDownLatch latch;
+        synchronized (this) {
+            latch = terminated;
+        }
+        return latch != null && latch.await(timeout, unit);
+    }
+
+    /**
+     * @return boss和所有worker，单Reactor模式时只有boss
+     */
+    private Reactor[] reactors() {
+        if (workers[0] == boss) {
+            return workers;
+        }
+        Reactor[] reactors = new Reactor[workers.length + 1];
+        reactors[0] = boss;
+        System.arraycopy(workers, 0, reactors, 1, workers.length);
+        return reactors;
+    }
+
+    /**
+     * Reactor线程退出
+     */
+    void reactorTerminated() {
+        terminated.countDown();
+    }
+
     /**
      * 初始化服务器
      * @throws IOException
      */
     private void init() throws IOException {
+        if (messageLog != null) {
+            messageLog.open();
+            replayReader = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "nio-replay");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        if (fileDirectory == null) {
+            fileDirectory = Files.createTempDirectory("chatroom-files");
+        } else {
+            Files.createDirectories(fileDirectory);
+        }
         // 创建服务器通道
         socketChannel = ServerSocketChannel.open();
         // 默认是阻塞通道，将其改为非阻塞通道
         socketChannel.configureBlocking(false);
         // 绑定监听端口
         socketChannel.socket().bind(new InetSocketAddress(port));
-        // 创建选择器
-        selector = Selector.open();
-        // 将服务器通道注册到选择器上，触发事件为ACCEPT
-        socketChannel.register(selector, SelectionKey.OP_ACCEPT);
-        System.out.println("服务器：服务器已经启动，开始监听端口[" + port + "]");
-    }
-
-    private void work() throws IOException {
-        // 需要不断地查询
-        while (true) {
-            // select本身是阻塞的，其会等到其所监听的通道有其关心的事件触发
-            // 其才会返回触发的事件个数
-            selector.select();
-            // select返回了，有事件触发了
-            // 返回触发事件的集合
-            Set<SelectionKey> selectionKeys = selector.selectedKeys();
-            for (SelectionKey key : selectionKeys) {
-                // 处理被触发的事件
-                if (key.isAcceptable()) {
-                    acceptAffair(key);
-                }else if (key.isReadable()) {
-                    sendMsgAffair(key);
-                }
+        // 创建主Reactor，并将服务器通道注册到其选择器上，触发事件为ACCEPT
+        boss = new Reactor(this, "nio-boss");
+        socketChannel.register(boss.selector(), SelectionKey.OP_ACCEPT);
 
+        if (workerCount == 0) {
+            workers = new Reactor[]{boss};
+            terminated = new CountDownLatch(1);
+        } else {
+            terminated = new CountDownLatch(workerCount + 1);
+            workers = new Reactor[workerCount];
+            for (int i = 0; i < workerCount; i++) {
+                workers[i] = new Reactor(this, "nio-worker-" + i);
+                new Thread(workers[i], "nio-worker-" + i).start();
             }
-            // 记得将事件集合情况，不然下一轮会包含上一轮的事件
-            selectionKeys.clear();
+        }
+        System.out.println("服务器：服务器已经启动，开始监听端口[" + port + "]，worker数量[" + workers.length + "]");
+        registerGauges();
+        metrics.openEndpoint(metricsPort);
+        if (clusterPort > 0) {
+            String host = advertisedHost != null ? advertisedHost : InetAddress.getLocalHost().getHostAddress();
+            cluster = new ClusterNode(this, clusterPort, clusterPeers, host + ":" + port,
+                    protocol.frameCodec().maxFrameLength());
+            cluster.start();
         }
     }
 
     /**
-     * 客户端连接事件
+     * 队列长度在抓取时才读：任务队列是ConcurrentLinkedQueue，size要遍历一遍；
+     * 发送队列的字节数只由各自的Reactor线程修改，抓取线程读到的可能是稍早的值
      */
-    private void acceptAffair(SelectionKey selectionKey) throws IOException {
+    private void registerGauges() {
+        Reactor[] reactors = reactors();
+        metrics.gauge("chat_pending_tasks", "各个Reactor任务队列中的任务数", () -> {
+            long tasks = 0;
+            for (Reactor reactor : reactors) {
+                tasks += reactor.pendingTasks();
+            }
+            return tasks;
+        });
+        metrics.gauge("chat_pending_write_bytes", "发送队列中还没写出去的字节数", () -> {
+            long bytes = 0;
+            for (ChannelContext context : registry.sessions()) {
+                bytes += context.pendingBytes();
+            }
+            return bytes;
+        });
+    }
+
+    /**
+     * 客户端连接事件，只会在boss线程中被调用
+     */
+    void acceptAffair(SelectionKey selectionKey) throws IOException {
         // 获取服务器socket
         ServerSocketChannel serverSocketChannel = (ServerSocketChannel) selectionKey.channel();
-        // 获取与客户端连接socket并设置为非阻塞式
-        SocketChannel accept = serverSocketChannel.accept();
-        accept.configureBlocking(false);
-        // 注册事件
-        accept.register(selector, SelectionKey.OP_READ);
-        System.out.println("服务器：客户端[" + accept.socket().getPort() + "]已经连接");
+        // 一次把已经完成握手的连接都取出来
+        SocketChannel accept;
+        while ((accept = serverSocketChannel.accept()) != null) {
+            // 设置为非阻塞式，然后轮流交给worker注册
+            accept.configureBlocking(false);
+            Reactor worker = workers[nextWorker];
+            nextWorker = (nextWorker + 1) % workers.length;
+            worker.register(accept);
+            System.out.println("服务器：客户端[" + accept.socket().getPort() + "]已经连接");
+        }
     }
 
     /**
-     * 客户端发送消息事件
+     * 向同一个房间的其他用户转发这个用户的发言，只在发送者所属的Reactor线程中调用
+     * 消息只编码一次：帧头（文本协议是"端口:"，二进制协议是操作码和发送者id）、消息体和帧边界各是一段只读buffer，
+     * 服务器不解析消息体，只把它复制进池化的直接缓冲区，
+     * 每个接收方只拿到这几段buffer的duplicate视图，用gathering write写出去，不用再复制
+     * 消息体按引用计数共享，最后一个接收方写完后还给池
+     * 每个worker只负责写自己的通道，所以把转发任务投递到各个worker的任务队列中，
+     * 每个worker有自己的房间索引，没有这个房间成员的worker不用投递
+     * 编码好的帧同时存进房间的历史和消息日志，新加入的用户和补收的用户收到的就是这些字节，
+     * 集群模式下还要交给集群节点，发给有这个房间成员的其他节点
+     * @param sender 发送者
+     * @param msg 发言，只在这个方法调用期间有效
+     * @param decodedAt 切出这一帧的时间，纳秒，各个worker放进接收方的发送队列后记下转发的耗时
      */
-    private void sendMsgAffair(SelectionKey selectionKey) throws IOException {
-        SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
-        socketChannel.configureBlocking(false);
-        // 读取客户端发来的消息
-        String msg = readMsg(socketChannel);
-        // 客户端异常
-        if (msg.isEmpty()) {
-            // 关闭事件与通道，并通知selector更新
-            selectionKey.cancel();
-            selector.wakeup();
-
-            System.out.println("服务器：用户[" + socketChannel.socket().getPort() + "]异常断开连接");
-        }else {
-            // 用户断开连接
-            if (QUIT.equals(msg)) {
-                msg = "已经退出聊天室";
-                selectionKey.cancel();
-                selector.wakeup();
-                System.out.println("服务器：用户[" + socketChannel.socket().getPort() + "]已经断开连接");
+    void forwardMsg(ChannelContext sender, ByteBuffer msg, long decodedAt) {
+        String room = sender.reactor().roomOf(sender);
+        if (room == null) {
+            return;
+        }
+        PooledBuffer body = BufferPool.DEFAULT.copyOf(msg);
+        ByteBuffer[] frame = protocol.encode(sender.header(protocol), body.buffer().asReadOnlyBuffer());
+        if (cluster != null) {
+            cluster.publish(room, frame);
+        }
+        dispatch(sender, room, frame, body, decodedAt);
+    }
+
+    /**
+     * 投递其他节点转发过来的帧，只在集群线程中调用，与本节点用户的发言一样存进历史和日志，再交给有成员的worker
+     * @param body 帧的全部字节，所有权交给这个方法
+     */
+    void deliverRemote(String room, PooledBuffer body) {
+        dispatch(null, room, new ByteBuffer[]{body.buffer().asReadOnlyBuffer()}, body, System.nanoTime());
+    }
+
+    /**
+     * @param sender 发送者，其他节点转发过来的为null
+     * @param body 帧引用的池化缓冲区，调用者的引用在这里release
+     */
+    private void dispatch(ChannelContext sender, String room, ByteBuffer[] frame, PooledBuffer body, long decodedAt) {
+        history.record(room, frame);
+        if (messageLog != null) {
+            messageLog.append(room, frame);
+        }
+        for (Reactor worker : workers) {
+            if (!worker.hasRoomMembers(room)) {
+                continue;
             }
-            // 转发信息
-            forwardMsg(socketChannel, msg);
+            // 每个worker的转发任务持有一个引用
+            body.retain();
+            worker.execute(() -> worker.forwardLocal(sender, room, frame, body, decodedAt));
         }
+        body.release();
     }
 
     /**
-     * 读取客户端发送过来的信息
-     * @param socketChannel
-     * @return
-     * @throws IOException
+     * 参数：[端口 [集群端口 其他节点的集群地址host:port...]]
      */
-    private String readMsg(SocketChannel socketChannel) throws IOException {
-        // 防止readBuffer里有信息，先清零,也是切换为读模式
-        readBuffer.clear();
-        // 注意与FileChannel判断读完没有的区别，FileChannel是=-1
-        // 这个是只要能读出字节就继续读，直到不能读取为止
-        while (socketChannel.read(readBuffer) > 0) {
-            continue;
-        }
-        // 将buffer切换为写模式
-        readBuffer.flip();
-        return String.valueOf(charset.decode(readBuffer));
-    }
-
-    private void forwardMsg(SocketChannel socketChannel, String msg) throws IOException {
-        // 获取所有selector监听的所有事件通道
-        Set<SelectionKey> keys = selector.keys();
-        for (SelectionKey key : keys) {
-           Channel channel = key.channel();
-           // 如果是监听客户端连接的通道，则不发送请求
-           if (channel instanceof ServerSocketChannel) {
-               continue;
-           }
-           // 如果该通道有效并且不是发送此消息的通道
-           if (key.isValid() && !socketChannel.equals(channel)) {
-                // 切换为写模式情况信息，往里面将信息装进去再切换为读模式
-                writeBuffer.clear();
-                writeBuffer.put(charset.encode(socketChannel.socket().getPort() + ":" + msg));
-                writeBuffer.flip();
-                // 注意要读完
-                while (writeBuffer.hasRemaining()) {
-                    ((SocketChannel)channel).write(writeBuffer);
-                }
-           }
-        }
-    }
-
-    public static void main(String[] args) {
-        ChatServer chatServer = new ChatServer();
-        chatServer.start();
+    public static void main(String[] args) throws IOException, InterruptedException {
+        ChatServer chatServer = args.length > 0 ? new ChatServer(Integer.parseInt(args[0])) : new ChatServer();
+        if (args.length > 1) {
+            List<InetSocketAddress> peers = new ArrayList<>();
+            for (int i = 2; i < args.length; i++) {
+                String[] address = args[i].split(":");
+                peers.add(new InetSocketAddress(address[0], Integer.parseInt(address[1])));
+            }
+            chatServer.setCluster(Integer.parseInt(args[1]), peers);
+            // 所有节点都在本机时公布回环地址，客户端重定向时连的也是本机
+            if (peers.stream().allMatch(peer -> peer.getAddress() != null && peer.getAddress().isLoopbackAddress())) {
+                chatServer.setAdvertisedHost("127.0.0.1");
+            }
+        }
+        Lifecycle.runUntilShutdown(chatServer, DEFAULT_SHUTDOWN_SECONDS, TimeUnit.SECONDS);
     }
 }
@@ -0,0 +1,693 @@
+package com.lakeqiu.nio.chatroom.server;
+
+import com.lakeqiu.common.buffer.BufferPool;
+import com.lakeqiu.common.buffer.Buffers;
+import com.lakeqiu.common.buffer.PooledBuffer;
+import com.lakeqiu.common.codec.LengthFieldFrameCodec;
+import com.lakeqiu.common.timer.HashedTimingWheel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 集群模式：多个ChatServer节点两两相连，一个节点上的发言转发给其他节点上同一个房间的用户
+ * 每两个节点之间有两条单向的连接：本节点连出去的出站连接发送本节点用户的发言，对方连进来的入站连接接收对方用户的发言，
+ * 反方向上只有很少的字节：入站一方通告自己有成员的房间、确认收到的序号
+ * 1、按房间过滤：只发给通告过有这个房间成员的节点
+ * 2、批量：worker线程只把编码好的消息放进出站连接的队列，集群线程一次取出队列里所有的消息，
+ *    编成批次，用gathering write一次发出去，消息不再复制
+ * 3、去重：同一条出站连接上的消息序号连续递增，接收方记下每个来源节点已经投递过的最大序号，
+ *    重连后重发的、已经收到过的消息直接丢掉
+ * 4、断线重连：出站连接断开后按指数退避重连，没有被确认的批次留着，连上后按顺序重发，
+ *    最多留MAX_UNACKED_BYTES字节，超过时丢掉最旧的
+ * 5、房间归属：HELLO里带着对方对客户端公布的地址，本节点和打过招呼的入站连接的对方组成一致性哈希环，
+ *    用户/join的房间归别的节点时服务器让客户端重定向过去，房间的转发就都在一个节点上
+ * 收到的消息只投递给本节点的用户，不再转发，所以每个节点都要配置其他所有节点的地址
+ * 消息是原样转发的帧，所有节点要用同一种线上协议
+ * 所有集群连接都只由集群线程读写，与Reactor一样，其他线程通过execute投递任务
+ * @author lakeqiu
+ */
+class ClusterNode implements Runnable {
+    /**
+     * 集群帧的类型，每一帧是：4字节长度 + 1字节类型 + 内容
+     * 1、HELLO：出站一方连上后发的第一帧，节点id(8) 地址长度(2) 对客户端公布的地址"host:port"
+     * 2、BATCH：一批消息，第一条的序号(8) 条数(4)，每条消息是：房间名长度(2) 房间名 帧长度(4) 帧
+     * 3、ACK：入站一方确认收到的最大序号(8)
+     * 4、ROOMS：入站一方收到HELLO后通告自己有成员的所有房间，房间数(4)，每个房间是：长度(2) 房间名
+     * 5、JOIN、LEAVE：之后房间有了第一个成员、最后一个成员离开时通告，长度(2) 房间名
+     */
+    private final static byte HELLO = 1;
+    private final static byte BATCH = 2;
+    private final static byte ACK = 3;
+    private final static byte ROOMS = 4;
+    private final static byte JOIN = 5;
+    private final static byte LEAVE = 6;
+    /**
+     * 1、批次头的长度：长度、类型、第一条的序号、条数
+     * 2、一个批次最多的字节数，单条消息更长时自己一个批次
+     * 3、每条出站连接最多保留的没有被确认的字节数
+     * 4、gathering write一次最多的buffer数
+     * 5、重连的最短、最长退避时间（毫秒）
+     * 6、时间轮一个tick 50毫秒，一圈512个槽
+     */
+    private final static int BATCH_HEADER = 4 + 1 + 8 + 4;
+    private final static int MAX_BATCH_BYTES = 64 * 1024;
+    private final static long MAX_UNACKED_BYTES = 4L * 1024 * 1024;
+    private final static int MAX_IOV_LENGTH = 64;
+    private final static long MIN_BACKOFF_MILLIS = 100;
+    private final static long MAX_BACKOFF_MILLIS = 5000;
+    private final static long TICK_MILLIS = 50;
+    private final static int TICKS_PER_WHEEL = 512;
+
+    /**
+     * 1、所属服务器
+     * 2、本节点的id，每次启动随机生成，重启后对方的去重记录自然作废
+     * 3、接收其他节点连接的端口
+     * 4、到其他节点的出站连接，worker线程遍历它们提交消息
+     * 5、其他节点连进来的入站连接
+     * 6、集群帧的编解码器，一帧最长是一个批次加上一条最长的消息
+     * 7、选择器、监听通道
+     * 8、其他线程投递过来的任务，是否已经唤醒过selector，是否已经安排了一次批量发送
+     * 9、重连的定时器
+     * 10、gathering write用的数组
+     * 11、是否还在运行、集群线程
+     * 12、本节点有成员的房间，用它自己加锁，通告按加锁的顺序投递，对方收到的JOIN、LEAVE不会乱序
+     * 13、每个来源节点已经投递过的最大序号
+     * 14、统计：发往其他节点的消息数、从其他节点收到并投递的消息数、重复丢掉的消息数、因为积压太多丢掉的消息数
+     * 15、本节点对客户端公布的地址；房间归属，成员是本节点和打过招呼的入站连接的对方
+     */
+    private final ChatServer server;
+    private final long nodeId;
+    private final int port;
+    private final List<PeerLink> outboundLinks = new CopyOnWriteArrayList<>();
+    private final Set<PeerLink> inboundLinks = new HashSet<>();
+    private final LengthFieldFrameCodec codec;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private final Queue<Runnable> taskQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakenUp = new AtomicBoolean();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final HashedTimingWheel timer = new HashedTimingWheel(TICK_MILLIS, TICKS_PER_WHEEL);
+    private final ByteBuffer[] iov = new ByteBuffer[MAX_IOV_LENGTH];
+    private volatile boolean running = true;
+    private volatile Thread thread;
+    private final Set<String> localRooms = new HashSet<>();
+    private final Map<Long, Long> delivered = new HashMap<>();
+    private final LongAdder published = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final String address;
+    private final RoomPlacement placement;
+
+    /**
+     * @param port 接收其他节点连接的端口
+     * @param peers 其他所有节点的集群端口
+     * @param address 本节点对客户端公布的地址"host:port"，重定向时告诉客户端
+     * @param maxFrameLength 单条消息的最大长度
+     */
+    ClusterNode(ChatServer server, int port, List<InetSocketAddress> peers, String address, int maxFrameLength) {
+        this.server = server;
+        this.port = port;
+        this.address = address;
+        this.placement = new RoomPlacement(address);
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while (id == 0);
+        this.nodeId = id;
+        this.codec = new LengthFieldFrameCodec(MAX_BATCH_BYTES + maxFrameLength + 1024);
+        for (InetSocketAddress peer : peers) {
+            outboundLinks.add(new PeerLink(peer));
+        }
+    }
+
+    /**
+     * 绑定集群端口，启动集群线程，然后连接其他节点
+     */
+    void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.socket().bind(new InetSocketAddress(port));
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        new Thread(this, "nio-cluster").start();
+        execute(() -> outboundLinks.forEach(this::connect));
+        System.out.println("服务器：集群节点[" + Long.toHexString(nodeId) + "]监听端口[" + port + "]，其他节点["
+                + outboundLinks.size() + "]个");
+    }
+
+    /**
+     * 把还没发出的消息尽量发出去，然后关闭所有集群连接，等集群线程退出
+     * 要在所有Reactor都停止读取之后调用，之后不会再有publish
+     */
+    void shutdown() {
+        execute(() -> {
+            flushSubmitted();
+            running = false;
+        });
+        Thread current = thread;
+        if (current != null && current != Thread.currentThread()) {
+            try {
+                current.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private boolean inEventLoop() {
+        return thread == Thread.currentThread();
+    }
+
+    private void execute(Runnable task) {
+        if (inEventLoop()) {
+            task.run();
+            return;
+        }
+        taskQueue.offer(task);
+        if (wakenUp.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        try {
+            while (running) {
+                wakenUp.set(false);
+                if (taskQueue.isEmpty()) {
+                    selector.select(timer.nextTimeoutMillis());
+                } else {
+                    selector.selectNow();
+                }
+                processSelectedKeys();
+                runAllTasks();
+                timer.advance();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            runAllTasks();
+            for (PeerLink link : outboundLinks) {
+                link.release();
+            }
+            for (PeerLink link : inboundLinks) {
+                link.release();
+            }
+            inboundLinks.clear();
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void runAllTasks() {
+        Runnable task;
+        while ((task = taskQueue.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void processSelectedKeys() throws IOException {
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+            if (!key.isValid()) {
+                continue;
+            }
+            if (key.isAcceptable()) {
+                acceptPeers();
+                continue;
+            }
+            PeerLink link = (PeerLink) key.attachment();
+            if (key.isConnectable()) {
+                finishConnect(link);
+                continue;
+            }
+            if (key.isReadable()) {
+                read(link);
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush(link);
+            }
+        }
+    }
+
+    /**
+     * 其他节点连进来，入站连接等对方的HELLO
+     */
+    private void acceptPeers() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            PeerLink link = new PeerLink(null);
+            link.attach(channel, channel.register(selector, SelectionKey.OP_READ, link), codec.maxFrameLength() + 4);
+            inboundLinks.add(link);
+        }
+    }
+
+    private void connect(PeerLink link) {
+        if (!running) {
+            return;
+        }
+        try {
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            boolean connected = channel.connect(link.address);
+            SelectionKey key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, link);
+            link.attach(channel, key, codec.maxFrameLength() + 4);
+            if (connected) {
+                connected(link);
+            }
+        } catch (IOException e) {
+            linkFailed(link);
+        }
+    }
+
+    private void finishConnect(PeerLink link) {
+        try {
+            link.channel().finishConnect();
+            connected(link);
+        } catch (IOException e) {
+            linkFailed(link);
+        }
+    }
+
+    /**
+     * 出站连接连上了：先发HELLO，再按顺序重发没有被确认的批次，对方按序号丢掉已经收到过的
+     */
+    private void connected(PeerLink link) {
+        link.established(true);
+        link.backoffMillis(0);
+        link.key().interestOps(SelectionKey.OP_READ);
+        link.enqueue(helloFrame());
+        for (PeerLink.Batch batch : link.unacked()) {
+            enqueueBatch(link, batch);
+        }
+        System.out.println("服务器：已经连接集群节点[" + link.address + "]");
+        flush(link);
+    }
+
+    /**
+     * 连接断开：出站连接丢掉超过上限的积压，稍后重连；入站连接等对方重连
+     */
+    private void linkFailed(PeerLink link) {
+        boolean established = link.isEstablished();
+        link.disconnect();
+        if (link.isOutbound()) {
+            dropped.add(link.trimUnacked(MAX_UNACKED_BYTES));
+            if (established) {
+                System.out.println("服务器：与集群节点[" + link.address + "]的连接断开");
+            }
+            scheduleReconnect(link);
+        } else {
+            inboundLinks.remove(link);
+            leavePlacement(link.peerAddress());
+        }
+    }
+
+    /**
+     * 对方打过招呼，加入哈希环，环变了就让worker重定向换了归属的房间里的用户
+     */
+    private void joinPlacement(String peerAddress) {
+        if (placement.add(peerAddress)) {
+            System.out.println("服务器：节点[" + peerAddress + "]加入，集群共" + placement.size() + "个节点");
+            server.placementChanged();
+        }
+    }
+
+    /**
+     * 入站连接断开，对方重启时新连接可能比旧连接的断开先到，还有同一地址的入站连接时留在环上
+     */
+    private void leavePlacement(String peerAddress) {
+        if (peerAddress == null) {
+            return;
+        }
+        for (PeerLink link : inboundLinks) {
+            if (peerAddress.equals(link.peerAddress())) {
+                return;
+            }
+        }
+        if (placement.remove(peerAddress)) {
+            System.out.println("服务器：节点[" + peerAddress + "]离开，集群共" + placement.size() + "个节点");
+            server.placementChanged();
+        }
+    }
+
+    /**
+     * @return 房间归别的节点时返回那个节点对客户端公布的地址，归本节点时为null，可以在任何线程调用
+     */
+    String remoteOwner(String room) {
+        return placement.remoteOwner(room);
+    }
+
+    private void scheduleReconnect(PeerLink link) {
+        if (!running) {
+            return;
+        }
+        long backoff = link.backoffMillis() == 0 ? MIN_BACKOFF_MILLIS
+                : Math.min(MAX_BACKOFF_MILLIS, link.backoffMillis() * 2);
+        link.backoffMillis(backoff);
+        link.reconnect(timer.schedule(() -> connect(link), backoff));
+    }
+
+    private void read(PeerLink link) {
+        int length;
+        boolean batches = false;
+        try {
+            length = link.read();
+            ByteBuffer inbound = link.flipInbound();
+            ByteBuffer frame;
+            while (link.isConnected() && (frame = codec.decode(inbound)) != null) {
+                batches |= handleFrame(link, frame);
+            }
+            if (link.isConnected()) {
+                link.compactInbound();
+            }
+        } catch (IOException e) {
+            System.out.println("服务器：集群连接读取失败：" + e.getMessage());
+            length = -1;
+        }
+        if (length < 0) {
+            linkFailed(link);
+            return;
+        }
+        // 一次读到的批次只确认一次
+        if (batches) {
+            link.enqueue(control(ACK, delivered.get(link.peerId())));
+            flush(link);
+        }
+    }
+
+    /**
+     * @return 是否是一个批次，处理完要确认
+     */
+    private boolean handleFrame(PeerLink link, ByteBuffer frame) throws IOException {
+        byte type = frame.get();
+        switch (type) {
+            case HELLO:
+                link.peerId(frame.getLong());
+                link.peerAddress(readString(frame));
+                link.established(true);
+                List<String> rooms;
+                synchronized (localRooms) {
+                    rooms = new ArrayList<>(localRooms);
+                }
+                link.enqueue(roomsFrame(rooms));
+                flush(link);
+                System.out.println("服务器：集群节点[" + Long.toHexString(link.peerId()) + "]已经连接");
+                joinPlacement(link.peerAddress());
+                return false;
+            case BATCH:
+                if (link.peerId() == 0) {
+                    throw new IOException("没有HELLO就发送消息");
+                }
+                receiveBatch(link.peerId(), frame);
+                return true;
+            case ACK:
+                link.acknowledge(frame.getLong());
+                return false;
+            case ROOMS:
+                Set<String> peerRooms = new HashSet<>();
+                for (int count = frame.getInt(); count > 0; count--) {
+                    peerRooms.add(readString(frame));
+                }
+                link.peerRooms(peerRooms);
+                return false;
+            case JOIN:
+                link.peerJoined(readString(frame));
+                return false;
+            case LEAVE:
+                link.peerLeft(readString(frame));
+                return false;
+            default:
+                throw new IOException("不认识的集群帧类型[" + type + "]");
+        }
+    }
+
+    /**
+     * 投递一个批次里还没有收到过的消息
+     * 消息复制进池化的缓冲区，累积缓冲区马上可以接着用
+     */
+    private void receiveBatch(long origin, ByteBuffer frame) {
+        long sequence = frame.getLong();
+        int count = frame.getInt();
+        long highest = delivered.getOrDefault(origin, 0L);
+        for (int i = 0; i < count; i++, sequence++) {
+            String room = readString(frame);
+            int length = frame.getInt();
+            ByteBuffer message = frame.duplicate();
+            message.limit(message.position() + length);
+            frame.position(frame.position() + length);
+            if (sequence <= highest) {
+                duplicates.increment();
+                continue;
+            }
+            highest = sequence;
+            received.increment();
+            server.deliverRemote(room, BufferPool.DEFAULT.copyOf(message));
+        }
+        delivered.put(origin, highest);
+    }
+
+    private static String readString(ByteBuffer frame) {
+        int length = frame.getShort() & 0xFFFF;
+        ByteBuffer room = frame.duplicate();
+        room.limit(room.position() + length);
+        frame.position(frame.position() + length);
+        return StandardCharsets.UTF_8.decode(room).toString();
+    }
+
+    private void flush(PeerLink link) {
+        if (!link.isConnected()) {
+            return;
+        }
+        try {
+            SelectionKey key = link.key();
+            if (link.flush(iov)) {
+                key.interestOps(SelectionKey.OP_READ);
+            } else {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            linkFailed(link);
+        }
+    }
+
+    /**
+     * 把本节点用户的发言发给有这个房间成员的其他节点，在发送者所属的Reactor线程中调用
+     * 消息只编码一次，所有出站连接共享，各自持有一个引用；真正的发送由集群线程批量进行
+     * @param frame 编码好的帧，会被复制，不会改变它们的position
+     */
+    void publish(String room, ByteBuffer[] frame) {
+        PooledBuffer message = null;
+        for (PeerLink link : outboundLinks) {
+            if (!link.interestedIn(room)) {
+                continue;
+            }
+            if (message == null) {
+                message = encodeMessage(room, frame);
+            }
+            link.submit(message.retain());
+        }
+        if (message == null) {
+            return;
+        }
+        message.release();
+        published.increment();
+        // 已经安排过的话，这条消息会和前面的一起发出去
+        if (flushScheduled.compareAndSet(false, true)) {
+            execute(this::flushSubmitted);
+        }
+    }
+
+    private static PooledBuffer encodeMessage(String room, ByteBuffer[] frame) {
+        byte[] name = room.getBytes(StandardCharsets.UTF_8);
+        int length = (int) Buffers.remaining(frame);
+        PooledBuffer message = BufferPool.DEFAULT.acquire(2 + name.length + 4 + length);
+        ByteBuffer buffer = message.buffer();
+        buffer.putShort((short) name.length).put(name).putInt(length);
+        for (ByteBuffer segment : frame) {
+            buffer.put(segment.duplicate());
+        }
+        buffer.flip();
+        return message;
+    }
+
+    /**
+     * 取出每条出站连接上提交的所有消息，编成批次发出去，只在集群线程中执行
+     * 对方太慢、积压超过上限时断开重连，断开期间的积压超过上限时丢掉最旧的
+     */
+    private void flushSubmitted() {
+        flushScheduled.set(false);
+        for (PeerLink link : outboundLinks) {
+            List<PooledBuffer> messages = new ArrayList<>();
+            int bytes = 0;
+            PooledBuffer message;
+            while ((message = link.pollSubmitted()) != null) {
+                int size = message.buffer().remaining();
+                if (!messages.isEmpty() && bytes + size > MAX_BATCH_BYTES) {
+                    addBatch(link, messages, bytes);
+                    messages = new ArrayList<>();
+                    bytes = 0;
+                }
+                messages.add(message);
+                bytes += size;
+            }
+            if (!messages.isEmpty()) {
+                addBatch(link, messages, bytes);
+            }
+            if (link.unackedBytes() <= MAX_UNACKED_BYTES) {
+                flush(link);
+            } else if (link.isEstablished()) {
+                System.out.println("服务器：集群节点[" + link.address + "]接收太慢，断开重连");
+                linkFailed(link);
+            } else {
+                dropped.add(link.trimUnacked(MAX_UNACKED_BYTES));
+            }
+        }
+    }
+
+    private void addBatch(PeerLink link, List<PooledBuffer> messages, int bytes) {
+        long first = link.takeSequences(messages.size());
+        ByteBuffer header = ByteBuffer.allocate(BATCH_HEADER);
+        header.putInt(BATCH_HEADER - 4 + bytes).put(BATCH).putLong(first).putInt(messages.size());
+        header.flip();
+        PeerLink.Batch batch = new PeerLink.Batch(header, messages.toArray(new PooledBuffer[0]),
+                first + messages.size() - 1, BATCH_HEADER + bytes);
+        link.addUnacked(batch);
+        if (link.isEstablished()) {
+            enqueueBatch(link, batch);
+        }
+    }
+
+    /**
+     * 批次头和消息各是一段，放进发送队列的都是duplicate，批次本身留着重发
+     */
+    private static void enqueueBatch(PeerLink link, PeerLink.Batch batch) {
+        link.enqueue(batch.header.duplicate());
+        for (PooledBuffer message : batch.messages) {
+            link.enqueue(message.buffer().duplicate());
+        }
+    }
+
+    /**
+     * 本节点的房间有了成员，在加入房间之后调用
+     */
+    void roomOccupied(String room) {
+        synchronized (localRooms) {
+            if (localRooms.add(room)) {
+                execute(() -> announce(JOIN, room));
+            }
+        }
+    }
+
+    /**
+     * 本节点的房间可能空了，在离开房间之后调用，加锁后再确认一次，免得和同时加入的用户冲突
+     */
+    void roomVacated(String room) {
+        synchronized (localRooms) {
+            if (!server.hasRoomMembers(room) && localRooms.remove(room)) {
+                execute(() -> announce(LEAVE, room));
+            }
+        }
+    }
+
+    /**
+     * 告诉所有已经打过招呼的入站连接的对方
+     */
+    private void announce(byte type, String room) {
+        for (PeerLink link : new ArrayList<>(inboundLinks)) {
+            if (link.peerId() != 0) {
+                link.enqueue(roomFrame(type, room));
+                flush(link);
+            }
+        }
+    }
+
+    private ByteBuffer helloFrame() {
+        byte[] name = address.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(4 + 1 + 8 + 2 + name.length);
+        frame.putInt(1 + 8 + 2 + name.length).put(HELLO).putLong(nodeId).putShort((short) name.length).put(name);
+        frame.flip();
+        return frame;
+    }
+
+    private static ByteBuffer control(byte type, long value) {
+        ByteBuffer frame = ByteBuffer.allocate(4 + 1 + 8);
+        frame.putInt(1 + 8).put(type).putLong(value);
+        frame.flip();
+        return frame;
+    }
+
+    private static ByteBuffer roomFrame(byte type, String room) {
+        byte[] name = room.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(4 + 1 + 2 + name.length);
+        frame.putInt(1 + 2 + name.length).put(type).putShort((short) name.length).put(name);
+        frame.flip();
+        return frame;
+    }
+
+    private static ByteBuffer roomsFrame(List<String> rooms) {
+        List<byte[]> names = new ArrayList<>();
+        int length = 1 + 4;
+        for (String room : rooms) {
+            byte[] name = room.getBytes(StandardCharsets.UTF_8);
+            names.add(name);
+            length += 2 + name.length;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(4 + length);
+        frame.putInt(length).put(ROOMS).putInt(names.size());
+        for (byte[] name : names) {
+            frame.putShort((short) name.length).put(name);
+        }
+        frame.flip();
+        return frame;
+    }
+
+    @Override
+    public String toString() {
+        int connected = 0;
+        for (PeerLink link : outboundLinks) {
+            if (link.isEstablished()) {
+                connected++;
+            }
+        }
+        return "Cluster{nodeId=" + Long.toHexString(nodeId) + ", address=" + address
+                + ", peers=" + connected + "/" + outboundLinks.size() + ", placement=" + placement.size()
+                + ", published=" + published.sum() + ", received=" + received.sum()
+                + ", duplicates=" + duplicates.sum() + ", dropped=" + dropped.sum() + "}";
+    }
+}
@@ -0,0 +1,50 @@
+package com.lakeqiu.nio.chatroom.server;
+
+import java.nio.file.Path;
+
+/**
+ * 用户上传到服务器、等待其他用户接收的文件
+ * @author lakeqiu
+ */
+class FileOffer {
+    /**
+     * 1、编号，接收时用
+     * 2、发送者端口
+     * 3、文件名，去掉了路径
+     * 4、大小
+     * 5、服务器上保存的位置
+     */
+    private final long id;
+    private final int senderPort;
+    private final String name;
+    private final long size;
+    private final Path path;
+
+    FileOffer(long id, int senderPort, String name, long size, Path path) {
+        this.id = id;
+        this.senderPort = senderPort;
+        this.name = name;
+        this.size = size;
+        this.path = path;
+    }
+
+    long id() {
+        return id;
+    }
+
+    int senderPort() {
+        return senderPort;
+    }
+
+    String name() {
+        return name;
+    }
+
+    long size() {
+        return size;
+    }
+
+    Path path() {
+        return path;
+    }
+}
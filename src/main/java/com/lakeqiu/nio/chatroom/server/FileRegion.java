@@ -0,0 +1,57 @@
+package com.lakeqiu.nio.chatroom.server;
+
+import com.lakeqiu.nio.base.FileTransfer;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 发送队列中的一段文件，用transferTo直接从文件写到socket，内容不经过堆
+ * @author lakeqiu
+ */
+class FileRegion {
+    /**
+     * 1、文件，每个FileRegion单独打开，发完或丢弃时关闭
+     * 2、起始位置
+     * 3、下一次从哪里开始发
+     * 4、结束位置
+     */
+    private final FileChannel file;
+    private final long start;
+    private long position;
+    private final long end;
+
+    FileRegion(FileChannel file, long position, long count) {
+        this.file = file;
+        this.start = position;
+        this.position = position;
+        this.end = position + count;
+    }
+
+    /**
+     * 尽量发送，socket发送缓冲区满了或者发够limit字节就返回
+     * @return 这一次发送的字节数
+     */
+    long transferTo(WritableByteChannel target, long limit) throws IOException {
+        long transferred = FileTransfer.transfer(file, position, end - position, target, limit);
+        position += transferred;
+        return transferred;
+    }
+
+    long remaining() {
+        return end - position;
+    }
+
+    boolean isStarted() {
+        return position > start;
+    }
+
+    void close() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.lakeqiu.nio.chatroom.server;
+
+/**
+ * 接收方的发送队列超过高水位时的处理策略
+ * @author lakeqiu
+ */
+public enum OverflowPolicy {
+    /**
+     * 丢掉队列里最早的消息，直到回到高水位以下
+     */
+    DROP_OLDEST,
+    /**
+     * 断开这个跟不上的接收方
+     */
+    DISCONNECT,
+    /**
+     * 暂停读取发送方的消息，直到接收方的队列回落到低水位以下
+     */
+    PAUSE_SENDER
+}
@@ -0,0 +1,325 @@
+package com.lakeqiu.nio.chatroom.server;
+
+import com.lakeqiu.common.buffer.BufferPool;
+import com.lakeqiu.common.buffer.PooledBuffer;
+import com.lakeqiu.common.timer.HashedTimingWheel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 集群中与另一个节点之间的一条连接
+ * 出站连接由本节点连出去，用来发送本节点用户的发言，断开后会重连，没有被确认的批次留着重发；
+ * 入站连接由对方连进来，用来接收对方用户的发言，断开后等对方重连
+ * 除了submitted队列和peerRooms，其余字段只由集群线程访问
+ * @author lakeqiu
+ */
+class PeerLink {
+    /**
+     * 1、出站连接的对方地址，入站连接为null
+     * 2、通道和选择键，断开时为null；出站连接是否已经连上，入站连接是否已经收到HELLO
+     * 3、累积缓冲区，读模式和写模式与ChannelContext相同：两次读之间处于写模式
+     * 4、等待写出的buffer，队头可能只写了一部分
+     * 5、对方节点的id和对客户端公布的地址，入站连接收到HELLO之后才知道
+     * 6、出站：worker线程提交的消息，集群线程取出来编成批次
+     * 7、出站：已经发出、还没有被确认的批次，重连后按顺序重发
+     * 8、出站：还没有被确认的字节数
+     * 9、出站：下一条消息的序号，每条出站连接单独编号，同一条连接上的消息序号连续递增
+     * 10、出站：对方有成员的房间，对方通告之前为空，只转发这些房间的消息
+     * 11、出站：重连的退避时间和定时器
+     */
+    final InetSocketAddress address;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private volatile boolean established;
+    private PooledBuffer inbound;
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    private long peerId;
+    private String peerAddress;
+    private final Queue<PooledBuffer> submitted = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<Batch> unacked = new ArrayDeque<>();
+    private long unackedBytes;
+    private long nextSequence = 1;
+    private volatile Set<String> peerRooms = ConcurrentHashMap.newKeySet();
+    private long backoffMillis;
+    private HashedTimingWheel.Timeout reconnect;
+
+    /**
+     * 已经发出、还没有被确认的一个批次
+     * 批次头单独一段，消息各自一段，重发时用duplicate，不用重新编码
+     */
+    static class Batch {
+        final ByteBuffer header;
+        final PooledBuffer[] messages;
+        final long lastSequence;
+        final int bytes;
+
+        Batch(ByteBuffer header, PooledBuffer[] messages, long lastSequence, int bytes) {
+            this.header = header;
+            this.messages = messages;
+            this.lastSequence = lastSequence;
+            this.bytes = bytes;
+        }
+
+        void release() {
+            for (PooledBuffer message : messages) {
+                message.release();
+            }
+        }
+    }
+
+    /**
+     * @param address 出站连接的对方地址，入站连接为null
+     */
+    PeerLink(InetSocketAddress address) {
+        this.address = address;
+    }
+
+    boolean isOutbound() {
+        return address != null;
+    }
+
+    boolean isConnected() {
+        return key != null && key.isValid();
+    }
+
+    void attach(SocketChannel channel, SelectionKey key, int bufferSize) {
+        this.channel = channel;
+        this.key = key;
+        this.inbound = BufferPool.DEFAULT.acquire(bufferSize);
+    }
+
+    boolean isEstablished() {
+        return established;
+    }
+
+    void established(boolean established) {
+        this.established = established;
+    }
+
+    SocketChannel channel() {
+        return channel;
+    }
+
+    SelectionKey key() {
+        return key;
+    }
+
+    long peerId() {
+        return peerId;
+    }
+
+    void peerId(long peerId) {
+        this.peerId = peerId;
+    }
+
+    String peerAddress() {
+        return peerAddress;
+    }
+
+    void peerAddress(String peerAddress) {
+        this.peerAddress = peerAddress;
+    }
+
+    /**
+     * 读一次，累积缓冲区满了说明对方发来的帧超过了上限
+     * @return 读到的字节数，对方关闭时为-1
+     */
+    int read() throws IOException {
+        ByteBuffer buffer = inbound.buffer();
+        if (!buffer.hasRemaining()) {
+            throw new IOException("集群帧超过上限");
+        }
+        return channel.read(buffer);
+    }
+
+    ByteBuffer flipInbound() {
+        inbound.buffer().flip();
+        return inbound.buffer();
+    }
+
+    void compactInbound() {
+        inbound.buffer().compact();
+    }
+
+    void enqueue(ByteBuffer buffer) {
+        outbound.add(buffer);
+    }
+
+    boolean hasPendingWrites() {
+        return !outbound.isEmpty();
+    }
+
+    /**
+     * 用gathering write写发送队列，一次最多iov.length段
+     * @return 是否写完了
+     */
+    boolean flush(ByteBuffer[] iov) throws IOException {
+        while (!outbound.isEmpty()) {
+            int count = 0;
+            for (ByteBuffer buffer : outbound) {
+                iov[count++] = buffer;
+                if (count == iov.length) {
+                    break;
+                }
+            }
+            long written = channel.write(iov, 0, count);
+            while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+                outbound.poll();
+            }
+            Arrays.fill(iov, 0, count, null);
+            if (written == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 连接断开：关闭通道，丢掉没写完的buffer，归还累积缓冲区；出站连接没有被确认的批次留着重发
+     */
+    void disconnect() {
+        established = false;
+        if (key != null) {
+            key.cancel();
+            key = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            channel = null;
+        }
+        if (inbound != null) {
+            inbound.release();
+            inbound = null;
+        }
+        outbound.clear();
+    }
+
+    /**
+     * worker线程提交一条编码好的消息，引用交给这条连接
+     */
+    void submit(PooledBuffer message) {
+        submitted.add(message);
+    }
+
+    PooledBuffer pollSubmitted() {
+        return submitted.poll();
+    }
+
+    boolean interestedIn(String room) {
+        return peerRooms.contains(room);
+    }
+
+    /**
+     * 对方通告了有成员的房间的全集，换成新的集合，worker线程读到的总是完整的一个
+     */
+    void peerRooms(Set<String> rooms) {
+        Set<String> copy = ConcurrentHashMap.newKeySet();
+        copy.addAll(rooms);
+        this.peerRooms = copy;
+    }
+
+    void peerJoined(String room) {
+        peerRooms.add(room);
+    }
+
+    void peerLeft(String room) {
+        peerRooms.remove(room);
+    }
+
+    /**
+     * @return 分给下一个批次的第一个序号，并把序号往后推count个
+     */
+    long takeSequences(int count) {
+        long first = nextSequence;
+        nextSequence += count;
+        return first;
+    }
+
+    /**
+     * 记下一个发出去的批次，确认之前一直持有它的消息
+     */
+    void addUnacked(Batch batch) {
+        unacked.add(batch);
+        unackedBytes += batch.bytes;
+    }
+
+    long unackedBytes() {
+        return unackedBytes;
+    }
+
+    /**
+     * 没有被确认的字节超过上限时丢掉最旧的批次，最新的一个总是留着
+     * 发送队列里可能还引用着这些批次，只能在连接断开、发送队列清空之后调用
+     * @return 丢掉的消息数
+     */
+    int trimUnacked(long maxBytes) {
+        int dropped = 0;
+        while (unackedBytes > maxBytes && unacked.size() > 1) {
+            Batch oldest = unacked.poll();
+            unackedBytes -= oldest.bytes;
+            dropped += oldest.messages.length;
+            oldest.release();
+        }
+        return dropped;
+    }
+
+    /**
+     * 对方确认收到了序号不超过sequence的消息
+     */
+    void acknowledge(long sequence) {
+        while (!unacked.isEmpty() && unacked.peek().lastSequence <= sequence) {
+            Batch batch = unacked.poll();
+            unackedBytes -= batch.bytes;
+            batch.release();
+        }
+    }
+
+    Iterable<Batch> unacked() {
+        return unacked;
+    }
+
+    long backoffMillis() {
+        return backoffMillis;
+    }
+
+    void backoffMillis(long backoffMillis) {
+        this.backoffMillis = backoffMillis;
+    }
+
+    void reconnect(HashedTimingWheel.Timeout reconnect) {
+        this.reconnect = reconnect;
+    }
+
+    /**
+     * 关闭时释放所有引用：没写出的提交、没确认的批次
+     */
+    void release() {
+        disconnect();
+        if (reconnect != null) {
+            reconnect.cancel();
+        }
+        PooledBuffer message;
+        while ((message = submitted.poll()) != null) {
+            message.release();
+        }
+        for (Batch batch : unacked) {
+            batch.release();
+        }
+        unacked.clear();
+        unackedBytes = 0;
+    }
+}
@@ -0,0 +1,886 @@
+package com.lakeqiu.nio.chatroom.server;
+
+import com.lakeqiu.common.buffer.BufferPool;
+import com.lakeqiu.common.buffer.Buffers;
+import com.lakeqiu.common.buffer.PooledBuffer;
+import com.lakeqiu.common.codec.FrameCodec;
+import com.lakeqiu.common.lifecycle.ShutdownReport;
+import com.lakeqiu.common.log.MessageLog;
+import com.lakeqiu.common.metrics.ChatMetrics;
+import com.lakeqiu.common.protocol.ChatProtocol;
+import com.lakeqiu.common.protocol.Opcode;
+import com.lakeqiu.common.session.RoomRegistry;
+import com.lakeqiu.common.timer.HashedTimingWheel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 一个Reactor对应一个选择器和一个线程
+ * 注册到这个选择器上的通道只会由这个线程读写，其他线程想要操作这些通道，
+ * 需要通过execute把任务投递进任务队列，再由这个线程执行
+ * @author lakeqiu
+ */
+class Reactor implements Runnable {
+    /**
+     * 1、默认buffer长度
+     * 2、所属服务器
+     * 3、名称
+     * 4、选择器
+     * 5、其他线程投递过来的任务（注册通道、转发消息）
+     * 6、是否已经唤醒过selector，避免每个任务都调用一次wakeup
+     * 7、flush时装buffer的数组，只会被本线程使用，所以每个Reactor一份即可
+     * 8、运行这个Reactor的线程
+     * 9、房间索引，只包含注册在这个Reactor上的通道，只由本线程修改，其他线程只读
+     * 10、定时器，每个连接一个空闲检测任务，由本线程在select超时后推进，不需要额外的线程
+     * 11、注册在这个Reactor上的通道数
+     * 12、是否还在运行，shutdown之后事件循环退出
+     * 13、关闭报告，开始关闭之后不为null，之后不再读取新消息
+     * 14、是否在排空，排空时发送队列写空的通道马上关闭
+     * 15、所有通道都关闭后通知服务器
+     */
+    private final static int MAX_IOV_LENGTH = 64;
+    private final static int MAX_READS_PER_EVENT = 16;
+    /**
+     * 时间轮一个tick 100毫秒，一圈512个槽约51秒，超过一圈的定时任务记下圈数
+     */
+    private final static long TICK_MILLIS = 100;
+    private final static int TICKS_PER_WHEEL = 512;
+    /**
+     * 每次/replay最多补收的字节数
+     */
+    private final static int MAX_REPLAY_BYTES = 256 * 1024;
+    private final ChatServer server;
+    private final String name;
+    private final Selector selector;
+    private final Queue<Runnable> taskQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakenUp = new AtomicBoolean();
+    private final ByteBuffer[] iov = new ByteBuffer[MAX_IOV_LENGTH];
+    private volatile Thread thread;
+    private final RoomRegistry<ChannelContext> rooms = new RoomRegistry<>();
+    private final HashedTimingWheel timer = new HashedTimingWheel(TICK_MILLIS, TICKS_PER_WHEEL);
+    private int channels;
+    private volatile boolean running = true;
+    private ShutdownReport report;
+    private boolean draining;
+    private CountDownLatch drained;
+
+    Reactor(ChatServer server, String name) throws IOException {
+        this.server = server;
+        this.name = name;
+        this.selector = Selector.open();
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    ChatMetrics metrics() {
+        return server.metrics();
+    }
+
+    /**
+     * 可以在任何线程调用，ConcurrentLinkedQueue的size要遍历一遍，只在抓取指标时用
+     */
+    int pendingTasks() {
+        return taskQueue.size();
+    }
+
+    /**
+     * 可以在任何线程调用，用来判断要不要把转发任务投递给这个Reactor
+     * @return 这个Reactor上是否有通道在这个房间里
+     */
+    boolean hasRoomMembers(String room) {
+        return rooms.hasMembers(room);
+    }
+
+    /**
+     * 只能在本线程调用
+     * @return 通道所在的房间
+     */
+    String roomOf(ChannelContext context) {
+        return rooms.roomOf(context);
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * 在这个Reactor的线程中执行任务，如果当前就是这个线程则直接执行
+     */
+    void execute(Runnable task) {
+        if (inEventLoop()) {
+            task.run();
+            return;
+        }
+        taskQueue.offer(task);
+        // select可能正阻塞着，唤醒它来处理任务
+        if (wakenUp.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * 把通道交给这个Reactor
+     * 在其他线程直接register会和正在阻塞的select争抢锁，所以投递到本线程中注册
+     */
+    void register(SocketChannel channel) {
+        execute(() -> {
+            // 投递过来的路上服务器开始关闭了，新连接直接关掉
+            if (report != null) {
+                closeQuietly(channel);
+                return;
+            }
+            try {
+                ChannelContext context = new ChannelContext(server.registry().nextId(), channel, this);
+                context.key(channel.register(selector, SelectionKey.OP_READ, context));
+                server.registry().register(context);
+                server.metrics().connectionOpened();
+                channels++;
+                rooms.join(context, RoomRegistry.LOBBY);
+                server.roomOccupied(RoomRegistry.LOBBY);
+                replay(context, RoomRegistry.LOBBY);
+                // 默认昵称是端口，与转发的消息前面显示的一致
+                server.nicknames().register(context, String.valueOf(context.port()));
+                scheduleIdleCheck(context, nextIdleCheck(context, System.nanoTime()));
+            } catch (ClosedChannelException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        try {
+            // 需要不断地查询，直到shutdown
+            while (running) {
+                // 先清掉唤醒标记，之后投递的任务都会再次唤醒selector
+                wakenUp.set(false);
+                if (taskQueue.isEmpty()) {
+                    // select本身是阻塞的，其会等到其所监听的通道有其关心的事件触发、被唤醒，或者下一个定时任务到期
+                    // 没有定时任务时超时时间为0，一直阻塞
+                    selector.select(timer.nextTimeoutMillis());
+                } else {
+                    selector.selectNow();
+                }
+                processSelectedKeys();
+                runAllTasks();
+                timer.advance();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            // 退出之前投递进来的任务可能持有池化缓冲区的引用，执行掉它们，
+            // 通道都已经关闭，转发任务找不到接收方，只会把引用还回去
+            runAllTasks();
+            server.reactorTerminated();
+        }
+    }
+
+    private void processSelectedKeys() throws IOException {
+        // 返回触发事件的集合
+        Set<SelectionKey> selectionKeys = selector.selectedKeys();
+        Iterator<SelectionKey> iterator = selectionKeys.iterator();
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            // 记得将事件移除，不然下一轮会包含上一轮的事件
+            iterator.remove();
+            if (!key.isValid()) {
+                continue;
+            }
+            // 处理被触发的事件
+            if (key.isAcceptable()) {
+                server.acceptAffair(key);
+                continue;
+            }
+            if (key.isReadable()) {
+                sendMsgAffair(key);
+            }
+            // 内核发送缓冲区又有空间了，继续写发送队列
+            if (key.isValid() && key.isWritable()) {
+                flush((ChannelContext) key.attachment());
+            }
+        }
+    }
+
+    private void runAllTasks() {
+        Runnable task;
+        while ((task = taskQueue.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return 距离下一次需要检查空闲的毫秒数，两种检测都关闭时返回-1
+     */
+    private long nextIdleCheck(ChannelContext context, long now) {
+        long next = Long.MAX_VALUE;
+        long readerIdle = server.readerIdleMillis();
+        if (readerIdle > 0) {
+            long readIdle = TimeUnit.NANOSECONDS.toMillis(now - context.lastReadTime());
+            // 还没探测过时先在一半的时候探测，探测过了就等到超时
+            long deadline = context.isProbed() ? readerIdle : readerIdle / 2;
+            next = Math.min(next, deadline - readIdle);
+        }
+        long writerIdle = server.writerIdleMillis();
+        if (writerIdle > 0) {
+            next = Math.min(next, writerIdle - TimeUnit.NANOSECONDS.toMillis(now - context.lastWriteTime()));
+        }
+        return next == Long.MAX_VALUE ? -1 : Math.max(0, next);
+    }
+
+    private void scheduleIdleCheck(ChannelContext context, long delayMillis) {
+        if (delayMillis >= 0) {
+            context.idleTimeout(timer.schedule(() -> idleCheck(context), delayMillis));
+        }
+    }
+
+    /**
+     * 空闲检测，每个连接同一时间只有一个定时任务
+     * 收发字节时只更新时间戳，不取消也不重新添加定时任务，到期时再根据时间戳算出下一次检查的时间
+     * 读空闲超时的连接直接关闭；读空闲一半时间或写空闲超时发一个PING，客户端回复的PONG会刷新读时间
+     */
+    private void idleCheck(ChannelContext context) {
+        // 关闭过程中不再发心跳，也不再检测
+        if (!context.key().isValid() || report != null) {
+            return;
+        }
+        long now = System.nanoTime();
+        long readIdle = TimeUnit.NANOSECONDS.toMillis(now - context.lastReadTime());
+        long writeIdle = TimeUnit.NANOSECONDS.toMillis(now - context.lastWriteTime());
+        long readerIdle = server.readerIdleMillis();
+        long writerIdle = server.writerIdleMillis();
+        if (readerIdle > 0 && readIdle >= readerIdle) {
+            System.out.println("服务器：用户[" + context.port() + "]" + readIdle + "毫秒没有响应，断开连接");
+            close(context);
+            return;
+        }
+        boolean probe = readerIdle > 0 && !context.isProbed() && readIdle >= readerIdle / 2;
+        if (probe) {
+            context.setProbed();
+        }
+        // 发送队列里还有没写出去的字节时不用再发心跳，写不出去说明对方不读，交给读空闲处理
+        if ((probe || writerIdle > 0 && writeIdle >= writerIdle) && !context.hasPendingWrites()) {
+            write(context, server.protocol().encode(Opcode.PING), null, null);
+        }
+        if (context.key().isValid()) {
+            // 心跳可能没写出去，写空闲时间至少再等一个完整的周期，免得反复发送
+            long next = nextIdleCheck(context, now);
+            scheduleIdleCheck(context, next == 0 ? Math.max(1, writerIdle) : next);
+        }
+    }
+
+    /**
+     * 客户端发送消息事件
+     * 每读一次就把累积缓冲区里完整的帧全部切出来处理，没凑够一帧的留到下一轮
+     * 一次事件最多读MAX_READS_PER_EVENT次，剩下的等下一轮select，免得一个发得快的客户端
+     * 占住线程，其他通道和任务队列（比如暂停读取）都得不到处理
+     */
+    private void sendMsgAffair(SelectionKey selectionKey) throws IOException {
+        ChannelContext context = (ChannelContext) selectionKey.attachment();
+        FrameCodec codec = server.frameCodec();
+        ChatMetrics metrics = server.metrics();
+        int length;
+        int reads = 0;
+        try {
+            do {
+                length = context.readInbound(codec.maxFrameLength());
+                if (length > 0) {
+                    metrics.bytesIn(length);
+                }
+                ByteBuffer inbound = context.flipInbound();
+                ByteBuffer frame;
+                while (selectionKey.isValid()) {
+                    // 正在上传文件时，收到的字节属于文件，收完之后才继续切帧
+                    if (context.isUploading()) {
+                        if (!context.drainUpload(inbound)) {
+                            break;
+                        }
+                        uploadComplete(context);
+                        continue;
+                    }
+                    long start = System.nanoTime();
+                    if ((frame = codec.decode(inbound)) == null) {
+                        break;
+                    }
+                    long decodedAt = System.nanoTime();
+                    metrics.frameDecoded(decodedAt - start);
+                    readMsg(selectionKey, context, frame, decodedAt);
+                }
+                context.compactInbound();
+            } while (length > 0 && ++reads < MAX_READS_PER_EVENT && selectionKey.isValid()
+                    && (selectionKey.interestOps() & SelectionKey.OP_READ) != 0);
+        } catch (IOException e) {
+            // 连接被客户端重置或者发来了非法的帧，按异常断开处理
+            System.out.println("服务器：用户[" + context.port() + "]读取失败：" + e.getMessage());
+            length = -1;
+        }
+        // 客户端异常
+        if (length < 0 && selectionKey.isValid()) {
+            // 关闭事件与通道
+            close(context);
+            System.out.println("服务器：用户[" + context.port() + "]异常断开连接");
+        }
+    }
+
+    /**
+     * 处理客户端发送过来的一条完整消息
+     * @param selectionKey
+     * @param context
+     * @param frame 一帧，只看帧头，消息体直接按字节转发，不用解码
+     * @param decodedAt 切出这一帧的时间，纳秒
+     */
+    private void readMsg(SelectionKey selectionKey, ChannelContext context, ByteBuffer frame, long decodedAt)
+            throws IOException {
+        ChatProtocol protocol = server.protocol();
+        Opcode opcode = protocol.opcode(frame);
+        ByteBuffer msg = protocol.payload(frame);
+        // 不认识的命令按普通消息转发
+        if (opcode == Opcode.COMMAND && commandAffair(context, msg)) {
+            return;
+        }
+        // 心跳，读到字节时已经刷新了读时间
+        if (opcode == Opcode.PING) {
+            write(context, protocol.encode(Opcode.PONG), null, null);
+            return;
+        }
+        if (opcode == Opcode.PONG) {
+            return;
+        }
+        // 用户断开连接
+        if (opcode == Opcode.QUIT) {
+            msg = ChatServer.LEAVE_MSG;
+            selectionKey.cancel();
+            System.out.println("服务器：用户[" + context.port() + "]已经断开连接");
+        }
+        // 转发信息
+        server.forwardMsg(context, msg, decodedAt);
+        if (!selectionKey.isValid()) {
+            close(context);
+        }
+    }
+
+    /**
+     * 处理命令
+     * /offer 大小 文件名：后面紧跟着文件内容，服务器收完后通知其他用户
+     * /accept 编号 [起始位置]：接收文件，服务器先回一条命令"/file 编号 大小 起始位置 文件名"，然后是文件内容，
+     * 之前只收到一部分时可以带上起始位置续传
+     * /join 房间名：离开当前房间，加入另一个房间，房间不存在时创建；
+     * 集群模式下房间归别的节点时先回一条命令"/redirect 房间名 host:port"
+     * /leave：离开当前房间，回到大厅
+     * /msg 昵称 内容：私聊，只发给这一个用户
+     * /nick 昵称：改名
+     * /replay [序号]：从这个序号开始补收所在房间的消息，没有序号时只回复当前序号
+     * @return 是否是认识的命令
+     */
+    private boolean commandAffair(ChannelContext context, ByteBuffer frame) throws IOException {
+        String line = server.charset.decode(frame.duplicate()).toString();
+        String[] args = line.split(" ", 3);
+        switch (args[0]) {
+            case "/offer":
+                offerCommand(context, args);
+                return true;
+            case "/accept":
+                acceptCommand(context, args);
+                return true;
+            case "/join":
+                joinCommand(context, args);
+                return true;
+            case "/leave":
+                server.roomVacated(rooms.leave(context));
+                server.roomOccupied(RoomRegistry.LOBBY);
+                reply(context, "已经回到大厅");
+                replay(context, RoomRegistry.LOBBY);
+                return true;
+            case "/msg":
+                directMsg(context, args, frame);
+                return true;
+            case "/nick":
+                nickCommand(context, args);
+                return true;
+            case "/replay":
+                replayCommand(context, args);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void joinCommand(ChannelContext context, String[] args) {
+        // 按空格最多切成三段，房间名中有空格时会多出一段
+        if (args.length != 2) {
+            reply(context, "用法：/join 房间名，房间名不能包含空格");
+            return;
+        }
+        try {
+            server.roomVacated(rooms.join(context, args[1]));
+            server.roomOccupied(args[1]);
+            // 照样在本节点加入，集群会把房间的消息转发过来，不认识重定向的客户端也能用；
+            // 认识的客户端收到重定向就断开，不再处理后面的回复和历史
+            String owner = server.remoteOwner(args[1]);
+            if (owner != null) {
+                redirect(context, args[1], owner);
+            }
+            reply(context, "已经进入房间[" + args[1] + "]");
+            replay(context, args[1]);
+        } catch (IllegalArgumentException e) {
+            reply(context, e.getMessage());
+        }
+    }
+
+    /**
+     * 集群的节点变了，把归属换到别的节点的房间里的用户重定向过去，只在本线程中执行
+     * 只有大约1/N的房间换了归属，其余房间的用户不受影响
+     */
+    void redirectMovedRooms() {
+        for (String room : rooms.rooms()) {
+            String owner = server.remoteOwner(room);
+            if (owner == null) {
+                continue;
+            }
+            for (ChannelContext member : rooms.members(room)) {
+                redirect(member, room, owner);
+            }
+        }
+    }
+
+    private void redirect(ChannelContext context, String room, String owner) {
+        String command = "/redirect " + room + " " + owner;
+        write(context, server.protocol().encode(Opcode.COMMAND, 0, server.charset.encode(command)), null, null);
+    }
+
+    /**
+     * 私聊：按昵称查一次索引，只投递给接收方所在的Reactor，不遍历其他用户
+     * 内容不解码，复制进池化的缓冲区，由接收方的发送队列负责release
+     */
+    private void directMsg(ChannelContext context, String[] args, ByteBuffer command) {
+        ByteBuffer text = ChatProtocol.skipWords(command, 2);
+        if (text == null) {
+            reply(context, "用法：/msg 昵称 内容");
+            return;
+        }
+        ChannelContext target = server.nicknames().get(args[1]);
+        if (target == null) {
+            reply(context, "没有昵称为[" + args[1] + "]的用户");
+            return;
+        }
+        ChatProtocol protocol = server.protocol();
+        PooledBuffer body = BufferPool.DEFAULT.copyOf(text);
+        ByteBuffer[] frame = protocol.encode(protocol.header(Opcode.DIRECT, context.id(), context.port()),
+                body.buffer().asReadOnlyBuffer());
+        Reactor reactor = target.reactor();
+        reactor.execute(() -> reactor.writeDirect(target, frame, body, context));
+    }
+
+    /**
+     * 把私聊消息写给注册在这个Reactor上的通道，只在本线程中执行
+     * @param body 帧引用的池化缓冲区，所有权交给这个方法
+     */
+    private void writeDirect(ChannelContext target, ByteBuffer[] frame, PooledBuffer body, ChannelContext sender) {
+        // 投递过来的路上接收方可能已经断开
+        if (!target.key().isValid()) {
+            body.release();
+            return;
+        }
+        write(target, frame, body, sender);
+    }
+
+    /**
+     * 从消息日志里补收所在房间的消息，读出来的就是转发时编码好的帧，复制进池化的缓冲区交给发送队列
+     * 一次最多补收MAX_REPLAY_BYTES字节，最后回复下一次应该从哪个序号开始
+     * 日志是映射的文件，读的是很久以前的消息时可能缺页，所以交给读日志的线程去读，读完再投递回这个Reactor发送
+     */
+    private void replayCommand(ChannelContext context, String[] args) {
+        MessageLog log = server.messageLog();
+        if (log == null) {
+            reply(context, "服务器没有保存消息");
+            return;
+        }
+        if (args.length == 1) {
+            reply(context, "当前序号[" + log.nextSequence() + "]");
+            return;
+        }
+        long from;
+        try {
+            from = Long.parseLong(args[1]);
+        } catch (NumberFormatException e) {
+            reply(context, "用法：/replay 序号");
+            return;
+        }
+        // 房间索引只能在这个线程里读
+        String room = rooms.roomOf(context);
+        PooledBuffer frames = BufferPool.DEFAULT.acquire(MAX_REPLAY_BYTES);
+        try {
+            server.replayReader().execute(() -> {
+                long next = log.read(from, room, frames.buffer());
+                execute(() -> replayRead(context, frames, next));
+            });
+        } catch (RejectedExecutionException e) {
+            // 服务器正在关闭
+            frames.release();
+        }
+    }
+
+    /**
+     * 读日志的线程读完了，在这个Reactor线程里发送
+     * @param frames 读出来的帧，写模式
+     */
+    private void replayRead(ChannelContext context, PooledBuffer frames, long next) {
+        // 读的时候连接可能已经关闭了
+        if (!context.key().isValid()) {
+            frames.release();
+            return;
+        }
+        frames.buffer().flip();
+        if (frames.buffer().hasRemaining()) {
+            write(context, new ByteBuffer[]{frames.buffer()}, frames, null);
+        } else {
+            frames.release();
+        }
+        reply(context, "下次从序号[" + next + "]开始补收");
+    }
+
+    private void nickCommand(ChannelContext context, String[] args) {
+        if (args.length != 2) {
+            reply(context, "用法：/nick 昵称");
+            return;
+        }
+        try {
+            boolean renamed = server.nicknames().rename(context, args[1]);
+            reply(context, renamed ? "昵称已经改为[" + args[1] + "]" : "昵称[" + args[1] + "]已经被占用");
+        } catch (IllegalArgumentException e) {
+            reply(context, e.getMessage());
+        }
+    }
+
+    private void offerCommand(ChannelContext context, String[] args) throws IOException {
+        long size;
+        try {
+            size = Long.parseLong(args[1]);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            size = -1;
+        }
+        // 不知道后面跟了多少字节，只能断开连接
+        if (size < 0 || args.length < 3) {
+            throw new IOException("非法的/offer命令");
+        }
+        if (size > server.maxFileSize()) {
+            // 文件太大，照样收完再丢掉，否则文件内容会被当成聊天消息
+            context.startUpload(null, null, size);
+            reply(context, "文件超过" + server.maxFileSize() + "字节，拒绝接收");
+            return;
+        }
+        FileOffer offer = server.newOffer(context.port(), fileName(args[2]), size);
+        FileChannel file = FileChannel.open(offer.path(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        context.startUpload(offer, file, size);
+        System.out.println("服务器：用户[" + context.port() + "]开始上传文件[" + offer.name() + "]，" + size + "字节");
+    }
+
+    /**
+     * 去掉文件名中的路径
+     */
+    private static String fileName(String name) {
+        String fileName = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1).trim();
+        return fileName.isEmpty() ? "file" : fileName;
+    }
+
+    /**
+     * 文件收完了，通知其他用户
+     */
+    private void uploadComplete(ChannelContext context) {
+        FileOffer offer = context.takeUpload();
+        if (offer == null) {
+            return;
+        }
+        server.publishOffer(offer);
+        System.out.println("服务器：用户[" + context.port() + "]上传文件[" + offer.name() + "]完成，编号[" + offer.id() + "]");
+        reply(context, "文件[" + offer.name() + "]上传完成，编号[" + offer.id() + "]");
+        server.forwardMsg(context, server.charset.encode("发送了文件[" + offer.name() + "]，" + offer.size()
+                + "字节，输入 /accept " + offer.id() + " 接收"), System.nanoTime());
+    }
+
+    private void acceptCommand(ChannelContext context, String[] args) throws IOException {
+        FileOffer offer = null;
+        long offset = 0;
+        try {
+            offer = server.offer(Long.parseLong(args[1]));
+            if (args.length > 2) {
+                offset = Long.parseLong(args[2].trim());
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            reply(context, "用法：/accept 编号 [起始位置]");
+            return;
+        }
+        if (offer == null) {
+            reply(context, "没有这个文件");
+            return;
+        }
+        if (offset < 0 || offset > offer.size()) {
+            reply(context, "起始位置超出文件大小" + offer.size());
+            return;
+        }
+        FileChannel file = FileChannel.open(offer.path(), StandardOpenOption.READ);
+        String header = "/file " + offer.id() + " " + offer.size() + " " + offset + " " + offer.name();
+        write(context, server.protocol().encode(Opcode.COMMAND, 0, server.charset.encode(header)), null, null);
+        boolean idle = !context.hasPendingWrites();
+        context.enqueue(new FileRegion(file, offset, offer.size() - offset));
+        // 前面还有没写完的帧时已经在等OP_WRITE了，到时一起发送
+        if (idle) {
+            flush(context);
+        }
+        System.out.println("服务器：用户[" + context.port() + "]从" + offset + "开始接收文件[" + offer.name() + "]");
+    }
+
+    /**
+     * 新加入房间的用户先收到房间里最近的消息：历史的快照就是编码好的帧首尾相接，作为一段buffer放进发送队列，
+     * 快照的所有权交给发送队列，写完后还给池
+     */
+    private void replay(ChannelContext context, String room) {
+        PooledBuffer recent = server.history().snapshot(room);
+        if (recent != null) {
+            write(context, new ByteBuffer[]{recent.buffer()}, recent, null);
+        }
+    }
+
+    /**
+     * 给用户回一条服务器消息
+     */
+    private void reply(ChannelContext context, String msg) {
+        write(context, server.protocol().encode(Opcode.NOTICE, 0, server.charset.encode(msg)), null, null);
+    }
+
+    /**
+     * 把消息写给注册在这个Reactor上、在这个房间里的通道，只在本线程中执行
+     * 只遍历房间成员，代价与房间大小成正比，与这个Reactor上的总连接数无关
+     * @param sender 发送者，不会收到自己的消息
+     * @param room 房间
+     * @param frame 编码好的帧，所有接收方共享，不能直接修改
+     * @param body 帧引用的池化缓冲区，调用者已经为这次调用retain过一次，这里负责release
+     * @param decodedAt 切出这一帧的时间，纳秒，放完所有接收方后记下转发的耗时，包括在任务队列里排队的时间
+     */
+    void forwardLocal(ChannelContext sender, String room, ByteBuffer[] frame, PooledBuffer body, long decodedAt) {
+        // 所有接收方共用一个入队时间，不用每人取一次时钟
+        long now = System.nanoTime();
+        int receivers = 0;
+        for (ChannelContext context : rooms.members(room)) {
+            // 如果该通道有效并且不是发送此消息的通道
+            if (context.key().isValid() && context != sender) {
+                // 每个接收方拿到自己的视图，各自记录写到了哪里，并且各自持有一个引用
+                write(context, Buffers.duplicate(frame), body.retain(), sender, now);
+                receivers++;
+            }
+        }
+        body.release();
+        server.metrics().forwarded(receivers, System.nanoTime() - decodedAt);
+    }
+
+    /**
+     * 把一帧放进通道的发送队列
+     * 队列原本是空的就马上尝试写一次，写不完的留给OP_WRITE，不会在这里自旋等待
+     * @param context 接收方
+     * @param frame 要发送的帧
+     * @param owner 帧引用的池化缓冲区，所有权交给发送队列，没有时为null
+     * @param sender 发送方，接收方跟不上时可能会被暂停读取，没有发送方时为null
+     */
+    void write(ChannelContext context, ByteBuffer[] frame, PooledBuffer owner, ChannelContext sender) {
+        write(context, frame, owner, sender, System.nanoTime());
+    }
+
+    /**
+     * @param enqueueTime 放进发送队列的时间，纳秒，写完时记下写的耗时
+     */
+    private void write(ChannelContext context, ByteBuffer[] frame, PooledBuffer owner, ChannelContext sender,
+                       long enqueueTime) {
+        boolean idle = !context.hasPendingWrites();
+        context.enqueue(frame, owner, enqueueTime);
+        if (idle) {
+            flush(context);
+        }
+        if (context.key().isValid() && context.pendingBytes() > server.highWaterMark()) {
+            overflow(context, sender);
+        }
+    }
+
+    /**
+     * 写发送队列，写不完就关注OP_WRITE，写完了就取消关注
+     */
+    private void flush(ChannelContext context) {
+        SelectionKey key = context.key();
+        int frames = context.pendingFrames();
+        try {
+            boolean flushed = context.flush(iov, server.metrics());
+            if (report != null) {
+                report.drained(frames - context.pendingFrames());
+            }
+            if (flushed) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            // 对方已经断开，直接关闭
+            close(context);
+            return;
+        }
+        // 回落到低水位以下，恢复被它暂停的发送方
+        if (!context.isWritable() && context.pendingBytes() <= server.lowWaterMark()) {
+            context.setWritable(true);
+            resumeSenders(context);
+        }
+        // 排空时写完就关闭
+        if (draining && !context.hasPendingWrites()) {
+            close(context);
+        }
+    }
+
+    /**
+     * 接收方的发送队列超过了高水位
+     */
+    private void overflow(ChannelContext context, ChannelContext sender) {
+        switch (server.overflowPolicy()) {
+            case DROP_OLDEST:
+                server.metrics().dropped(context.dropOldest(server.highWaterMark()));
+                break;
+            case DISCONNECT:
+                System.out.println("服务器：用户[" + context.port() + "]接收太慢，断开连接");
+                close(context);
+                break;
+            case PAUSE_SENDER:
+                context.setWritable(false);
+                if (sender != null && context.addPausedSender(sender)) {
+                    // 发送方可能属于别的Reactor，暂停读取要在它自己的线程里做
+                    sender.reactor().execute(sender::pauseRead);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void resumeSenders(ChannelContext context) {
+        Set<ChannelContext> senders = context.drainPausedSenders();
+        if (senders != null) {
+            for (ChannelContext sender : senders) {
+                sender.reactor().execute(sender::resumeRead);
+            }
+        }
+    }
+
+    /**
+     * 关闭连接，丢弃还没发出去的消息，并恢复被它暂停的发送方
+     */
+    private void close(ChannelContext context) {
+        if (!server.registry().unregister(context)) {
+            return;
+        }
+        server.metrics().connectionClosed();
+        channels--;
+        server.roomVacated(rooms.remove(context));
+        server.nicknames().remove(context);
+        context.cancelIdleTimeout();
+        FileOffer aborted = context.abortUpload();
+        if (aborted != null) {
+            server.discardOffer(aborted);
+        }
+        context.key().cancel();
+        int discarded = context.discardOutbound();
+        server.metrics().dropped(discarded);
+        resumeSenders(context);
+        closeQuietly(context.channel());
+        if (report != null) {
+            report.dropped(discarded);
+            report.sessionClosed();
+            checkDrained();
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 关闭的第一步，只在本线程中执行：不再读取新消息，boss同时不再接收新连接
+     * 已经读到、还没处理完的消息照常转发
+     */
+    void stopReading(ShutdownReport report) {
+        this.report = report;
+        for (SelectionKey key : selector.keys()) {
+            if (key.channel() instanceof ServerSocketChannel) {
+                key.cancel();
+                closeQuietly(key.channel());
+                System.out.println("服务器：停止接收新连接");
+            } else if (key.isValid() && key.attachment() instanceof ChannelContext) {
+                // 多暂停一次，不会被PAUSE_SENDER的恢复重新打开
+                ((ChannelContext) key.attachment()).pauseRead();
+            }
+        }
+    }
+
+    /**
+     * 关闭的第二步，只在本线程中执行：所有Reactor都已经停止读取，不会再有新的转发任务，
+     * 发送队列已经空了的通道马上关闭，其余的写空后在flush中关闭
+     * @param drained 这个Reactor上的通道都关闭后countDown
+     */
+    void beginDrain(CountDownLatch drained) {
+        this.draining = true;
+        this.drained = drained;
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid() && key.attachment() instanceof ChannelContext) {
+                ChannelContext context = (ChannelContext) key.attachment();
+                if (!context.hasPendingWrites()) {
+                    close(context);
+                }
+            }
+        }
+        checkDrained();
+    }
+
+    private void checkDrained() {
+        if (drained != null && channels == 0) {
+            drained.countDown();
+            drained = null;
+        }
+    }
+
+    /**
+     * 关闭的最后一步，只在本线程中执行：到期还没写完的通道直接关闭，丢弃发送队列，然后退出事件循环
+     */
+    void shutdown() {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof ChannelContext) {
+                close((ChannelContext) key.attachment());
+            }
+        }
+        running = false;
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,110 @@
+package com.lakeqiu.nio.chatroom.server;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * 集群模式下房间归哪个节点：一致性哈希环
+ * 每个节点在环上放VIRTUAL_NODES个虚拟节点，房间名哈希之后顺时针找到的第一个虚拟节点就是它的归属，
+ * 节点加入或离开时只有落在它那些虚拟节点上的房间换了归属，大约是1/N，其余房间不动；
+ * 虚拟节点越多，每个节点分到的房间越均匀
+ * 节点用对客户端公布的地址"host:port"标识，所有节点算出来的环是一样的，重启之后位置也不变
+ * 环是不可变的TreeMap，成员变化时复制一份改好再换上去（只在集群线程中发生，很少），
+ * worker线程在/join时查找不加锁，是一次O(log(N * VIRTUAL_NODES))的ceilingEntry
+ * @author lakeqiu
+ */
+class RoomPlacement {
+    /**
+     * 每个节点的虚拟节点数
+     */
+    private final static int VIRTUAL_NODES = 160;
+
+    /**
+     * 1、本节点的地址，总在环上
+     * 2、环上的所有节点，用this加锁
+     * 3、环：虚拟节点的哈希到节点地址，不可变，换的时候整个换掉
+     */
+    private final String self;
+    private final Set<String> nodes = new TreeSet<>();
+    private volatile TreeMap<Long, String> ring = new TreeMap<>();
+
+    /**
+     * @param self 本节点对客户端公布的地址
+     */
+    RoomPlacement(String self) {
+        this.self = self;
+        add(self);
+    }
+
+    /**
+     * 节点加入
+     * @return 环是否变了，已经在环上时返回false
+     */
+    synchronized boolean add(String node) {
+        if (!nodes.add(node)) {
+            return false;
+        }
+        TreeMap<Long, String> next = new TreeMap<>(ring);
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+            next.put(hash(node + "#" + i), node);
+        }
+        ring = next;
+        return true;
+    }
+
+    /**
+     * 节点离开，本节点不会离开
+     * @return 环是否变了，不在环上时返回false
+     */
+    synchronized boolean remove(String node) {
+        if (node.equals(self) || !nodes.remove(node)) {
+            return false;
+        }
+        TreeMap<Long, String> next = new TreeMap<>(ring);
+        next.values().removeIf(node::equals);
+        ring = next;
+        return true;
+    }
+
+    /**
+     * @return 房间归属的节点地址
+     */
+    String owner(String room) {
+        TreeMap<Long, String> current = ring;
+        Map.Entry<Long, String> entry = current.ceilingEntry(hash(room));
+        // 比环上最大的哈希还大，绕回第一个
+        return (entry != null ? entry : current.firstEntry()).getValue();
+    }
+
+    /**
+     * @return 房间归别的节点时返回那个节点的地址，归本节点时为null
+     */
+    String remoteOwner(String room) {
+        String owner = owner(room);
+        return owner.equals(self) ? null : owner;
+    }
+
+    synchronized int size() {
+        return nodes.size();
+    }
+
+    /**
+     * 64位FNV-1a，再用MurmurHash3的fmix64打散，相近的名字（room1、room2）也会落到环上相距很远的位置
+     * 只依赖字符串的内容，不依赖JVM，所有节点算出来的都一样
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
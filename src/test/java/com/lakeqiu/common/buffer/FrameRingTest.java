@@ -0,0 +1,63 @@
+package com.lakeqiu.common.buffer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author lakeqiu
+ */
+public class FrameRingTest {
+
+    @Test
+    public void copiesOldestFirstAcrossWrap() {
+        // 10字节的环，每帧4字节：第3帧挤掉第1帧，并且绕回开头
+        FrameRing ring = new FrameRing(8, 10);
+        ring.append(frame("aaaa"));
+        ring.append(frame("bbbb"));
+        ring.append(frame("cc", "cc"));
+        assertEquals(2, ring.frames());
+        assertArrayEquals("bbbbcccc".getBytes(StandardCharsets.US_ASCII), ring.toByteArray());
+
+        PooledBuffer snapshot = ring.snapshot();
+        byte[] pooled = new byte[snapshot.buffer().remaining()];
+        snapshot.buffer().get(pooled);
+        snapshot.release();
+        assertArrayEquals(ring.toByteArray(), pooled);
+        ring.release();
+    }
+
+    @Test
+    public void dropsOldestWhenFramesAreFull() {
+        FrameRing ring = new FrameRing(2, 1024);
+        ring.append(frame("1"));
+        ring.append(frame("2"));
+        ring.append(frame("3"));
+        assertArrayEquals("23".getBytes(StandardCharsets.US_ASCII), ring.toByteArray());
+        ring.release();
+    }
+
+    @Test
+    public void emptyOrReleasedHasNothing() {
+        FrameRing ring = new FrameRing(2, 16);
+        assertNull(ring.toByteArray());
+        assertNull(ring.snapshot());
+        ring.append(frame("x"));
+        ring.release();
+        assertNull(ring.toByteArray());
+        assertNull(ring.snapshot());
+    }
+
+    private static ByteBuffer[] frame(String... parts) {
+        ByteBuffer[] frame = new ByteBuffer[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            frame[i] = ByteBuffer.wrap(parts[i].getBytes(StandardCharsets.US_ASCII));
+        }
+        return frame;
+    }
+}
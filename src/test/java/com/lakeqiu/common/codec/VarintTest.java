@@ -0,0 +1,84 @@
+package com.lakeqiu.common.codec;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * @author lakeqiu
+ */
+public class VarintTest {
+    private final static long[] VALUES = {0, 1, 127, 128, 300, 16383, 16384, Integer.MAX_VALUE,
+            1L << 35, Long.MAX_VALUE, -1L, Long.MIN_VALUE};
+
+    @Test
+    public void roundTrip() throws IOException {
+        for (long value : VALUES) {
+            ByteBuffer buffer = ByteBuffer.allocate(Varint.MAX_LENGTH);
+            Varint.write(buffer, value);
+            assertEquals(Varint.length(value), buffer.position());
+            buffer.flip();
+            assertEquals(value, Varint.peek(buffer, 0, Varint.MAX_LENGTH));
+            assertEquals(0, buffer.position());
+            assertEquals(value, Varint.read(buffer));
+            assertEquals(Varint.length(value), buffer.position());
+        }
+    }
+
+    @Test
+    public void peekIncomplete() throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[]{(byte) 0x80, (byte) 0x80});
+        assertEquals(-1, Varint.peek(buffer, 0, Varint.MAX_LENGTH));
+    }
+
+    @Test(expected = IOException.class)
+    public void peekRejectsPaddedEncoding() throws IOException {
+        // 0x81 0x00 也能解出1，但最短编码只有1个字节
+        Varint.peek(ByteBuffer.wrap(new byte[]{(byte) 0x81, 0x00}), 0, Varint.MAX_LENGTH);
+    }
+
+    @Test
+    public void frameCodecRoundTrip() throws IOException {
+        VarintFrameCodec codec = new VarintFrameCodec(1 << 20);
+        ByteBuffer cumulation = ByteBuffer.allocate(1 << 16);
+        int[] lengths = {0, 1, 127, 128, 300, 20000};
+        for (int length : lengths) {
+            for (ByteBuffer part : codec.encode(ByteBuffer.wrap(payload(length)))) {
+                cumulation.put(part);
+            }
+        }
+        cumulation.flip();
+        for (int length : lengths) {
+            ByteBuffer frame = codec.decode(cumulation);
+            assertEquals(length, frame.remaining());
+            assertEquals(ByteBuffer.wrap(payload(length)), frame);
+        }
+        assertNull(codec.decode(cumulation));
+    }
+
+    @Test
+    public void frameCodecRejectsPaddedHeader() throws IOException {
+        VarintFrameCodec codec = new VarintFrameCodec(1 << 20);
+        // 长度1用两个字节编码：如果按length(1)=1算头长，负载会从0x00开始，后面的流全部错位
+        ByteBuffer cumulation = ByteBuffer.wrap(new byte[]{(byte) 0x81, 0x00, 'a', 0x01, 'b'});
+        try {
+            codec.decode(cumulation);
+            fail("补0的长度头应该被拒绝");
+        } catch (IOException expected) {
+            assertEquals(0, cumulation.position());
+        }
+    }
+
+    private static byte[] payload(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 31 + length);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,190 @@
+package com.lakeqiu.common.log;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 模拟崩溃时没有写完整的尾部：改坏磁盘上的记录，重新打开后只保留前面完整的记录
+ * @author lakeqiu
+ */
+public class MessageLogTest {
+    /**
+     * 1、每条记录的帧都是4个字节，读出来以后按4个字节切开
+     * 2、写入的记录数
+     */
+    private final static int FRAME_LENGTH = 4;
+    private final static int RECORDS = 20;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void corruptedLastRecordIsDropped() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        writeRecords(directory);
+        List<Integer> positions = recordPositions(directory);
+        try (FileChannel channel = FileChannel.open(segmentFile(directory), StandardOpenOption.WRITE)) {
+            // 最后一条记录帧的最后一个字节不对，CRC校验不过
+            int last = positions.get(RECORDS - 1);
+            int end = positions.get(RECORDS);
+            channel.write(ByteBuffer.wrap(new byte[]{'?'}), end - 1);
+            // 后面的页先落了盘：看起来像一条记录，但前面的记录不完整，不能信
+            ByteBuffer garbage = ByteBuffer.allocate(end - last);
+            garbage.putInt(0, end - last).putLong(8, RECORDS + 1);
+            channel.write(garbage, end);
+        }
+
+        MessageLog log = open(directory);
+        try {
+            assertEquals(RECORDS, log.nextSequence());
+            assertEquals(frames(0, RECORDS - 1), readAll(log, "a"));
+            assertEquals(RECORDS, log.append("a", frame("new!")));
+            assertEquals(frames(0, RECORDS - 1) + "new!", readAll(log, "a"));
+        } finally {
+            log.close();
+        }
+        assertReopens(directory, RECORDS + 1, frames(0, RECORDS - 1) + "new!");
+    }
+
+    @Test
+    public void recordsAfterTornHeaderAreDropped() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        writeRecords(directory);
+        List<Integer> positions = recordPositions(directory);
+        int torn = 15;
+        try (FileChannel channel = FileChannel.open(segmentFile(directory), StandardOpenOption.WRITE)) {
+            // 序号为16的记录所在的页没有落盘，后面几条记录虽然完整也不能要
+            channel.write(ByteBuffer.allocate(8), positions.get(torn));
+        }
+
+        MessageLog log = open(directory);
+        try {
+            assertEquals(torn + 1, log.nextSequence());
+            assertEquals(frames(0, torn), readAll(log, "a"));
+            assertEquals(torn + 1, log.append("a", frame("new!")));
+            assertEquals(frames(0, torn) + "new!", readAll(log, "a"));
+        } finally {
+            log.close();
+        }
+        assertReopens(directory, torn + 2, frames(0, torn) + "new!");
+    }
+
+    @Test
+    public void readFiltersByRoom() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        MessageLog log = open(directory);
+        try {
+            for (int i = 0; i < RECORDS; i++) {
+                log.append(i % 2 == 0 ? "a" : "b", frame(frames(i, i + 1)));
+            }
+            StringBuilder even = new StringBuilder();
+            for (int i = 0; i < RECORDS; i += 2) {
+                even.append(frames(i, i + 1));
+            }
+            assertEquals(even.toString(), readAll(log, "a"));
+            assertEquals("", readAll(log, "c"));
+        } finally {
+            log.close();
+        }
+    }
+
+    private static MessageLog open(Path directory) throws IOException {
+        MessageLog log = new MessageLog(directory);
+        log.setSegmentSize(64 * 1024);
+        // 索引间隔很小，恢复时要先跳过指向坏记录的索引
+        log.setIndexInterval(64);
+        log.open();
+        return log;
+    }
+
+    private static void writeRecords(Path directory) throws IOException {
+        MessageLog log = open(directory);
+        try {
+            for (int i = 0; i < RECORDS; i++) {
+                // 序号从1开始
+                assertEquals(i + 1, log.append("a", frame(frames(i, i + 1))));
+            }
+        } finally {
+            log.close();
+        }
+    }
+
+    private static void assertReopens(Path directory, long nextSequence, String expected) throws IOException {
+        MessageLog log = open(directory);
+        try {
+            assertEquals(nextSequence, log.nextSequence());
+            assertEquals(expected, readAll(log, "a"));
+        } finally {
+            log.close();
+        }
+    }
+
+    private static Path segmentFile(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> segments = files.filter(path -> path.getFileName().toString().matches("\\d{20}\\.log"))
+                    .collect(Collectors.toList());
+            assertEquals(1, segments.size());
+            return segments.get(0);
+        }
+    }
+
+    /**
+     * @return 每条记录在段文件中的位置，最后多一个，是结束的位置
+     */
+    private static List<Integer> recordPositions(Path directory) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(segmentFile(directory)));
+        List<Integer> positions = new ArrayList<>();
+        int position = 0;
+        int length;
+        while ((length = data.getInt(position)) != 0) {
+            positions.add(position);
+            position += length;
+        }
+        positions.add(position);
+        assertEquals(RECORDS + 1, positions.size());
+        return positions;
+    }
+
+    private static String readAll(MessageLog log, String room) {
+        StringBuilder frames = new StringBuilder();
+        long next = 1;
+        while (next < log.nextSequence()) {
+            ByteBuffer dst = ByteBuffer.allocate(16 * FRAME_LENGTH);
+            next = log.read(next, room, dst);
+            dst.flip();
+            frames.append(StandardCharsets.US_ASCII.decode(dst));
+        }
+        return frames.toString();
+    }
+
+    /**
+     * @return 第from条到第to条（不含）记录的帧连在一起
+     */
+    private static String frames(int from, int to) {
+        StringBuilder frames = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            frames.append(String.format("f%03d", i));
+        }
+        return frames.toString();
+    }
+
+    private static ByteBuffer[] frame(String text) {
+        assertEquals(FRAME_LENGTH, text.length());
+        return new ByteBuffer[]{ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII))};
+    }
+}
@@ -0,0 +1,58 @@
+package com.lakeqiu.common.session;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author lakeqiu
+ */
+public class RoomHistoryTest {
+
+    @Test
+    public void keepsHistoryWhileRoomIsOccupied() {
+        RoomHistory history = new RoomHistory();
+        history.record("red", frame("hi\n"));
+        // 离开的线程以为空了，确认时别的线程上已经有人加入
+        assertFalse(history.removeIfVacant("red", room -> true));
+        assertArrayEquals(bytes("hi\n"), history.copy("red"));
+        assertEquals(1, history.roomCount());
+    }
+
+    @Test
+    public void releasesHistoryOfVacantRoom() {
+        RoomHistory history = new RoomHistory();
+        history.record("red", frame("hi\n"));
+        assertTrue(history.removeIfVacant("red", room -> false));
+        assertNull(history.copy("red"));
+        assertFalse(history.removeIfVacant("red", room -> false));
+
+        // 之后再有消息会建一个新的环
+        history.record("red", frame("again\n"));
+        assertArrayEquals(bytes("again\n"), history.copy("red"));
+    }
+
+    @Test
+    public void disabledHistoryRecordsNothing() {
+        RoomHistory history = new RoomHistory();
+        history.setLimit(0, 0);
+        history.record("red", frame("hi\n"));
+        assertNull(history.copy("red"));
+        assertEquals(0, history.roomCount());
+    }
+
+    private static ByteBuffer[] frame(String text) {
+        return new ByteBuffer[]{ByteBuffer.wrap(bytes(text))};
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
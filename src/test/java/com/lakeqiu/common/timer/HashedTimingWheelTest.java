@@ -0,0 +1,91 @@
+package com.lakeqiu.common.timer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 时间轮用的是真实时间，一圈设得比较长，晚一圈和按时执行在时间上能明显区分开
+ * @author lakeqiu
+ */
+public class HashedTimingWheelTest {
+    /**
+     * 1、每个tick的毫秒数
+     * 2、一圈的槽数
+     * 3、一圈的毫秒数
+     */
+    private final static long TICK_MILLIS = 50;
+    private final static int TICKS_PER_WHEEL = 4;
+    private final static long WHEEL_MILLIS = TICK_MILLIS * TICKS_PER_WHEEL;
+
+    @Test
+    public void rescheduleOneWheelFromExpire() throws InterruptedException {
+        HashedTimingWheel timer = new HashedTimingWheel(TICK_MILLIS, TICKS_PER_WHEEL);
+        long[] scheduledAt = new long[1];
+        long[] firedAt = new long[1];
+        timer.schedule(() -> {
+            scheduledAt[0] = System.nanoTime();
+            timer.schedule(() -> firedAt[0] = System.nanoTime(), WHEEL_MILLIS);
+        }, 0);
+        runUntil(timer, firedAt, 4 * WHEEL_MILLIS);
+
+        long delayMillis = (firedAt[0] - scheduledAt[0]) / 1_000_000;
+        // 时间轮按毫秒取整计时，最多差不到1毫秒
+        assertTrue("提前执行：" + delayMillis, delayMillis >= WHEEL_MILLIS - 1);
+        // 晚一圈的话至少是两圈
+        assertTrue("晚了一圈：" + delayMillis, delayMillis < 2 * WHEEL_MILLIS - TICK_MILLIS);
+        assertEquals(0, timer.pending());
+    }
+
+    @Test
+    public void rescheduleImmediatelyFromExpire() throws InterruptedException {
+        HashedTimingWheel timer = new HashedTimingWheel(TICK_MILLIS, TICKS_PER_WHEEL);
+        long[] scheduledAt = new long[1];
+        long[] firedAt = new long[1];
+        timer.schedule(() -> {
+            scheduledAt[0] = System.nanoTime();
+            timer.schedule(() -> firedAt[0] = System.nanoTime(), 0);
+        }, 0);
+        runUntil(timer, firedAt, 4 * WHEEL_MILLIS);
+
+        long delayMillis = (firedAt[0] - scheduledAt[0]) / 1_000_000;
+        assertTrue("晚了一圈：" + delayMillis, delayMillis < WHEEL_MILLIS);
+    }
+
+    @Test
+    public void multipleRoundsAndCancel() throws InterruptedException {
+        HashedTimingWheel timer = new HashedTimingWheel(TICK_MILLIS, TICKS_PER_WHEEL);
+        long start = System.nanoTime();
+        long[] firedAt = new long[1];
+        boolean[] cancelledRan = new boolean[1];
+        timer.schedule(() -> firedAt[0] = System.nanoTime(), 2 * WHEEL_MILLIS + TICK_MILLIS);
+        HashedTimingWheel.Timeout cancelled = timer.schedule(() -> cancelledRan[0] = true, TICK_MILLIS);
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.cancel());
+        assertEquals(1, timer.pending());
+        runUntil(timer, firedAt, 5 * WHEEL_MILLIS);
+
+        long delayMillis = (firedAt[0] - start) / 1_000_000;
+        assertTrue("提前执行：" + delayMillis, delayMillis >= 2 * WHEEL_MILLIS + TICK_MILLIS - 1);
+        assertTrue("晚了一圈：" + delayMillis, delayMillis < 3 * WHEEL_MILLIS + TICK_MILLIS);
+        assertFalse(cancelledRan[0]);
+        assertEquals(0, timer.pending());
+    }
+
+    /**
+     * 像事件循环一样按nextTimeoutMillis等待并推进，直到firedAt被设置或者超时
+     */
+    private static void runUntil(HashedTimingWheel timer, long[] firedAt, long timeoutMillis)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000;
+        while (firedAt[0] == 0 && System.nanoTime() < deadline) {
+            timer.advance();
+            if (firedAt[0] == 0) {
+                Thread.sleep(Math.max(1, Math.min(timer.nextTimeoutMillis(), 5)));
+            }
+        }
+        assertTrue("没有执行", firedAt[0] != 0);
+    }
+}
@@ -0,0 +1,116 @@
+package com.lakeqiu.nio.chatroom.server;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author lakeqiu
+ */
+public class RoomPlacementTest {
+    /**
+     * 1、每个节点的虚拟节点数，与RoomPlacement里的相同，测试里自己算环上的位置
+     * 2、用来统计的房间数
+     */
+    private final static int VIRTUAL_NODES = 160;
+    private final static int ROOMS = 20_000;
+
+    @Test
+    public void addingNodeMovesAboutOneNth() {
+        RoomPlacement placement = placement("a:1", "b:1", "c:1", "d:1");
+        Map<String, String> before = owners(placement);
+
+        assertTrue(placement.add("e:1"));
+        int moved = 0;
+        for (Map.Entry<String, String> entry : before.entrySet()) {
+            String owner = placement.owner(entry.getKey());
+            if (!owner.equals(entry.getValue())) {
+                // 只会搬到新节点上，旧节点之间不互相搬
+                assertEquals("e:1", owner);
+                moved++;
+            }
+        }
+        double fraction = (double) moved / ROOMS;
+        assertTrue("搬走的比例：" + fraction, fraction > 0.1 && fraction < 0.3);
+
+        // 新节点再离开，所有房间回到原来的节点
+        assertTrue(placement.remove("e:1"));
+        assertEquals(before, owners(placement));
+    }
+
+    @Test
+    public void removingNodeMovesOnlyItsRooms() {
+        RoomPlacement placement = placement("a:1", "b:1", "c:1", "d:1");
+        Map<String, String> before = owners(placement);
+
+        assertTrue(placement.remove("c:1"));
+        for (Map.Entry<String, String> entry : before.entrySet()) {
+            String owner = placement.owner(entry.getKey());
+            if (entry.getValue().equals("c:1")) {
+                assertFalse(owner.equals("c:1"));
+            } else {
+                assertEquals(entry.getValue(), owner);
+            }
+        }
+    }
+
+    @Test
+    public void wrapsAroundPastLargestHash() {
+        String[] nodes = {"a:1", "b:1", "c:1"};
+        RoomPlacement placement = placement(nodes);
+        long largest = Long.MIN_VALUE;
+        long smallest = Long.MAX_VALUE;
+        String first = null;
+        for (String node : nodes) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                long hash = RoomPlacement.hash(node + "#" + i);
+                largest = Math.max(largest, hash);
+                if (hash < smallest) {
+                    smallest = hash;
+                    first = node;
+                }
+            }
+        }
+        String room = null;
+        for (int i = 0; room == null; i++) {
+            if (RoomPlacement.hash("room" + i) > largest) {
+                room = "room" + i;
+            }
+        }
+        assertEquals(first, placement.owner(room));
+    }
+
+    @Test
+    public void selfStaysOnRing() {
+        RoomPlacement placement = new RoomPlacement("a:1");
+        assertFalse(placement.add("a:1"));
+        assertFalse(placement.remove("a:1"));
+        assertFalse(placement.remove("b:1"));
+        assertEquals(1, placement.size());
+        assertNull(placement.remoteOwner("lobby"));
+        assertTrue(placement.add("b:1"));
+        assertEquals(2, placement.size());
+    }
+
+    private static RoomPlacement placement(String... nodes) {
+        RoomPlacement placement = new RoomPlacement(nodes[0]);
+        for (String node : nodes) {
+            placement.add(node);
+        }
+        return placement;
+    }
+
+    private static Map<String, String> owners(RoomPlacement placement) {
+        Map<String, String> owners = new HashMap<>();
+        for (int i = 0; i < ROOMS; i++) {
+            owners.put("room" + i, placement.owner("room" + i));
+        }
+        return owners;
+    }
+}